@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.testclient;
 
+import java.io.File;
+
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.net.FileTransfer;
 
@@ -79,6 +81,11 @@ public class TestClientFileTransferListener implements FileTransferListener {
         }
     }
 
+    @Override
+    public void fileCompleted(final File file) {
+
+    }
+
     private boolean hasDelay() {
         return fileTransferDelay > 0;
     }
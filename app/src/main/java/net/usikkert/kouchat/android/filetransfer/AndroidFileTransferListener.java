@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.android.filetransfer;
 
+import java.io.File;
+
 import net.usikkert.kouchat.android.R;
 import net.usikkert.kouchat.android.notification.NotificationService;
 import net.usikkert.kouchat.event.FileTransferListener;
@@ -136,6 +138,8 @@ public class AndroidFileTransferListener implements FileTransferListener {
     /**
      * Makes sure the received file is scanned and inserted into the media database
      * when the file transfer is completed.
+     *
+     * <p>The files in a batch are added one at a time in {@link #fileCompleted(File)} instead.</p>
      */
     @Override
     public void statusCompleted() {
@@ -145,7 +149,19 @@ public class AndroidFileTransferListener implements FileTransferListener {
         if (fileTransfer.getDirection() == FileTransfer.Direction.RECEIVE) {
             final FileReceiver fileReceiver = (FileReceiver) fileTransfer;
 
-            androidFileUtils.addFileToMediaDatabase(context, fileReceiver.getFile());
+            if (!fileReceiver.isBatchTransfer()) {
+                androidFileUtils.addFileToMediaDatabase(context, fileReceiver.getFile());
+            }
+        }
+    }
+
+    /**
+     * Makes sure each received file in a batch is scanned and inserted into the media database.
+     */
+    @Override
+    public void fileCompleted(final File file) {
+        if (fileTransfer.getDirection() == FileTransfer.Direction.RECEIVE) {
+            androidFileUtils.addFileToMediaDatabase(context, file);
         }
     }
 
@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.event;
 
+import java.io.File;
+
 /**
  * This interface needs to be implemented by the ui to add support
  * for file transfers. The methods here are called when
@@ -61,4 +63,12 @@ public interface FileTransferListener {
      * Used to notify that more of the transfer has completed.
      */
     void transferUpdate();
+
+    /**
+     * Called when one of the files in a batch transfer is completed,
+     * before the whole batch is completed.
+     *
+     * @param file The file that was sent, or the file that was saved when receiving.
+     */
+    void fileCompleted(File file);
 }
@@ -0,0 +1,136 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.jmx;
+
+import net.usikkert.kouchat.net.BandwidthGovernor;
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * This is a JMX MBean for the bandwidth used by file transfers.
+ *
+ * @author Christian Ihle
+ */
+public class BandwidthInformation implements BandwidthInformationMBean {
+
+    private final BandwidthGovernor bandwidthGovernor;
+    private final Settings settings;
+
+    /**
+     * Constructor.
+     *
+     * @param bandwidthGovernor To get information about the bandwidth in use.
+     * @param settings To change the bandwidth limits.
+     */
+    public BandwidthInformation(final BandwidthGovernor bandwidthGovernor, final Settings settings) {
+        Validate.notNull(bandwidthGovernor, "Bandwidth governor can not be null");
+        Validate.notNull(settings, "Settings can not be null");
+
+        this.bandwidthGovernor = bandwidthGovernor;
+        this.settings = settings;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBandwidthLimit() {
+        return settings.getFileTransferBandwidthLimit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBandwidthLimit(final int bandwidthLimit) {
+        settings.setFileTransferBandwidthLimit(bandwidthLimit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getChatBandwidthLimit() {
+        return settings.getFileTransferChatBandwidthLimit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setChatBandwidthLimit(final int chatBandwidthLimit) {
+        settings.setFileTransferChatBandwidthLimit(chatBandwidthLimit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSendWeight() {
+        return settings.getFileTransferSendWeight();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSendWeight(final int sendWeight) {
+        settings.setFileTransferSendWeight(sendWeight);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getReceiveWeight() {
+        return settings.getFileTransferReceiveWeight();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReceiveWeight(final int receiveWeight) {
+        settings.setFileTransferReceiveWeight(receiveWeight);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String showCurrentBandwidth() {
+        final long totalRate = bandwidthGovernor.getTotalRate();
+        final String limit = totalRate == 0 ? "No limit" : "Limit: " + totalRate / 1024 + " kB/s";
+        final String chatting = bandwidthGovernor.isChatActive() ? " (chatting)" : "";
+
+        return limit + chatting + ", file transfers: " + bandwidthGovernor.getNumberOfShares();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getBeanName() {
+        return "Bandwidth";
+    }
+}
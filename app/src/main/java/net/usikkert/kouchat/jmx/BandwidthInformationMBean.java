@@ -0,0 +1,96 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.jmx;
+
+/**
+ * This is the JMX MBean interface for the bandwidth used by file transfers.
+ *
+ * @author Christian Ihle
+ */
+public interface BandwidthInformationMBean extends JMXBean {
+
+    /**
+     * Gets the max kilobytes per second for all the file transfers together.
+     *
+     * @return The bandwidth limit, or 0 if there is no limit.
+     */
+    int getBandwidthLimit();
+
+    /**
+     * Sets the max kilobytes per second for all the file transfers together.
+     *
+     * @param bandwidthLimit The bandwidth limit, or 0 for no limit.
+     */
+    void setBandwidthLimit(int bandwidthLimit);
+
+    /**
+     * Gets the max kilobytes per second for all the file transfers together while chatting.
+     *
+     * @return The bandwidth limit while chatting, or 0 if there is no limit.
+     */
+    int getChatBandwidthLimit();
+
+    /**
+     * Sets the max kilobytes per second for all the file transfers together while chatting.
+     *
+     * @param chatBandwidthLimit The bandwidth limit while chatting, or 0 for no limit.
+     */
+    void setChatBandwidthLimit(int chatBandwidthLimit);
+
+    /**
+     * Gets the weight of new file transfers sending files, compared to the other file transfers.
+     *
+     * @return The weight of new file transfers sending files.
+     */
+    int getSendWeight();
+
+    /**
+     * Sets the weight of new file transfers sending files, compared to the other file transfers.
+     * The weight of a single file transfer can be changed in the transfers bean.
+     *
+     * @param sendWeight The weight, at least 1.
+     */
+    void setSendWeight(int sendWeight);
+
+    /**
+     * Gets the weight of new file transfers receiving files, compared to the other file transfers.
+     *
+     * @return The weight of new file transfers receiving files.
+     */
+    int getReceiveWeight();
+
+    /**
+     * Sets the weight of new file transfers receiving files, compared to the other file transfers.
+     * The weight of a single file transfer can be changed in the transfers bean.
+     *
+     * @param receiveWeight The weight, at least 1.
+     */
+    void setReceiveWeight(int receiveWeight);
+
+    /**
+     * Shows the bandwidth limit in use right now, and how many file transfers are sharing it.
+     *
+     * @return A string with information.
+     */
+    String showCurrentBandwidth();
+}
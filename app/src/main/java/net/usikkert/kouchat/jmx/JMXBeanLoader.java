@@ -28,6 +28,7 @@ import java.util.List;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.net.ConnectionWorker;
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
@@ -40,6 +41,9 @@ import net.usikkert.kouchat.util.Validate;
  *   <li>{@link NetworkInformation}</li>
  *   <li>{@link ControllerInformation}</li>
  *   <li>{@link GeneralInformation}</li>
+ *   <li>{@link TCPInformation}</li>
+ *   <li>{@link BandwidthInformation}</li>
+ *   <li>{@link TransferInformation}</li>
  * </ul>
  *
  * @author Christian Ihle
@@ -53,20 +57,26 @@ public class JMXBeanLoader {
      *
      * @param controller The controller.
      * @param connectionWorker The connection worker.
+     * @param tcpNetworkService The tcp network service.
      * @param settings The settings.
      * @param errorHandler The error handler to use.
      */
     public JMXBeanLoader(final Controller controller, final ConnectionWorker connectionWorker,
-                         final Settings settings, final ErrorHandler errorHandler) {
+                         final TCPNetworkService tcpNetworkService, final Settings settings,
+                         final ErrorHandler errorHandler) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(connectionWorker, "ConnectionWorker can not be null");
+        Validate.notNull(tcpNetworkService, "TCP network service can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         jmxBeans = Arrays.asList(
                 new NetworkInformation(connectionWorker, settings, errorHandler),
                 new ControllerInformation(controller),
-                new GeneralInformation(settings));
+                new GeneralInformation(settings),
+                new TCPInformation(tcpNetworkService),
+                new BandwidthInformation(controller.getBandwidthGovernor(), settings),
+                new TransferInformation(controller.getTransferList()));
     }
 
     public List<JMXBean> getJMXBeans() {
@@ -0,0 +1,71 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.jmx;
+
+import java.util.List;
+
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * This is a JMX MBean for the tcp connections.
+ *
+ * @author Christian Ihle
+ */
+public class TCPInformation implements TCPInformationMBean {
+
+    private final TCPNetworkService tcpNetworkService;
+
+    /**
+     * Constructor.
+     *
+     * @param tcpNetworkService To get information about the tcp connections.
+     */
+    public TCPInformation(final TCPNetworkService tcpNetworkService) {
+        Validate.notNull(tcpNetworkService, "TCP network service can not be null");
+
+        this.tcpNetworkService = tcpNetworkService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] showReconnectStates() {
+        final List<String> reconnectStates = tcpNetworkService.getReconnectStates();
+
+        if (reconnectStates.isEmpty()) {
+            return new String[]{"No users are waiting to reconnect."};
+        }
+
+        return reconnectStates.toArray(new String[reconnectStates.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getBeanName() {
+        return "TCP";
+    }
+}
@@ -0,0 +1,38 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.jmx;
+
+/**
+ * This is the JMX MBean interface for the tcp connections.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPInformationMBean extends JMXBean {
+
+    /**
+     * Shows the reconnect state of the users missing a tcp connection.
+     *
+     * @return A list with one line per user.
+     */
+    String[] showReconnectStates();
+}
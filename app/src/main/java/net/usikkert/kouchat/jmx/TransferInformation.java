@@ -0,0 +1,169 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import net.usikkert.kouchat.net.FileTransfer;
+import net.usikkert.kouchat.net.TransferList;
+import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.TransferTelemetry;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * This is a JMX MBean for the file transfers.
+ *
+ * @author Christian Ihle
+ */
+public class TransferInformation implements TransferInformationMBean {
+
+    private final TransferList transferList;
+
+    /**
+     * Constructor.
+     *
+     * @param transferList To get information about the file transfers.
+     */
+    public TransferInformation(final TransferList transferList) {
+        Validate.notNull(transferList, "Transfer list can not be null");
+
+        this.transferList = transferList;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] showTransfers() {
+        final List<FileTransfer> fileTransfers = getFileTransfers();
+
+        if (fileTransfers.isEmpty()) {
+            return new String[]{"No file transfers."};
+        }
+
+        final List<String> lines = new ArrayList<>();
+
+        for (final FileTransfer fileTransfer : fileTransfers) {
+            lines.add(describe(fileTransfer));
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] showTotalsPerUser() {
+        final Map<String, Long> bytesSent = transferList.getBytesSent();
+        final Map<String, Long> bytesReceived = transferList.getBytesReceived();
+
+        final TreeSet<String> nicks = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        nicks.addAll(bytesSent.keySet());
+        nicks.addAll(bytesReceived.keySet());
+
+        if (nicks.isEmpty()) {
+            return new String[]{"No completed file transfers."};
+        }
+
+        final List<String> lines = new ArrayList<>();
+
+        for (final String nick : nicks) {
+            lines.add(nick + ": sent " + Tools.byteToString(getTotal(bytesSent, nick)) +
+                              ", received " + Tools.byteToString(getTotal(bytesReceived, nick)));
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String changeWeight(final int id, final int weight) {
+        if (weight <= 0) {
+            return "The weight must be at least 1.";
+        }
+
+        for (final FileTransfer fileTransfer : getFileTransfers()) {
+            if (fileTransfer.getId() == id) {
+                fileTransfer.setWeight(weight);
+                return "Changed the weight of #" + id + " " + fileTransfer.getFileName() + " to " + weight + ".";
+            }
+        }
+
+        return "No file transfer with ID " + id + ".";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getBeanName() {
+        return "Transfers";
+    }
+
+    private List<FileTransfer> getFileTransfers() {
+        final List<FileTransfer> fileTransfers = new ArrayList<>();
+        fileTransfers.addAll(transferList.getFileSenders());
+        fileTransfers.addAll(transferList.getFileReceivers());
+
+        return fileTransfers;
+    }
+
+    private String describe(final FileTransfer fileTransfer) {
+        final TransferTelemetry telemetry = fileTransfer.getTelemetry();
+        final String direction = fileTransfer.getDirection() == FileTransfer.Direction.SEND ? "to" : "from";
+        final long eta = fileTransfer.getEta();
+        final long totalBytes = telemetry.getTotalBytes();
+        final long wireBytes = telemetry.getTotalWireBytes();
+        final String wire;
+
+        if (wireBytes != totalBytes && totalBytes > 0) {
+            wire = ", on network avg " + Tools.byteToString(telemetry.getAverageWireBytesPerSec()) + "/s" +
+                    " (" + (wireBytes * 100 / totalBytes) + "% of size)";
+        }
+
+        else {
+            wire = "";
+        }
+
+        return "#" + fileTransfer.getId() + " " + fileTransfer.getFileName() + " " + direction + " " +
+                fileTransfer.getUser().getNick() + ": " + fileTransfer.getPercent() + "%" +
+                ", speed " + Tools.byteToString(fileTransfer.getSpeed()) + "/s" +
+                " (last 5 sec " + Tools.byteToString(telemetry.getWindowBytesPerSec()) + "/s" +
+                ", min " + Tools.byteToString(telemetry.getMinBytesPerSec()) + "/s" +
+                ", avg " + Tools.byteToString(telemetry.getAverageBytesPerSec()) + "/s" +
+                ", max " + Tools.byteToString(telemetry.getMaxBytesPerSec()) + "/s)" + wire +
+                ", time left " + (eta >= 0 ? eta + " sec" : "unknown") +
+                ", weight " + fileTransfer.getWeight();
+    }
+
+    private long getTotal(final Map<String, Long> totals, final String nick) {
+        final Long total = totals.get(nick);
+        return total != null ? total : 0;
+    }
+}
@@ -0,0 +1,55 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.jmx;
+
+/**
+ * This is the JMX MBean interface for the file transfers.
+ *
+ * @author Christian Ihle
+ */
+public interface TransferInformationMBean extends JMXBean {
+
+    /**
+     * Shows the speed and estimated time left of the ongoing file transfers.
+     *
+     * @return A list with one line per file transfer.
+     */
+    String[] showTransfers();
+
+    /**
+     * Shows the total number of bytes sent to and received from each user, by file transfers that are done.
+     *
+     * @return A list with one line per user.
+     */
+    String[] showTotalsPerUser();
+
+    /**
+     * Changes the weight of an ongoing file transfer, to give it a bigger or smaller part of the bandwidth
+     * than the other file transfers.
+     *
+     * @param id The ID of the file transfer, as shown by {@link #showTransfers()}.
+     * @param weight The new weight, at least 1.
+     * @return A string with the result.
+     */
+    String changeWeight(int id, int weight);
+}
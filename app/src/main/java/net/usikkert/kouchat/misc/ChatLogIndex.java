@@ -0,0 +1,834 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+package net.usikkert.kouchat.misc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An index of the lines in the chat logs, for searching with {@link #search(String, int)}.
+ *
+ * <p>The lines are split into words, and each word points to the lines it's found in. Each line points to
+ * the log file it was written to, and where in the log file it starts, so the lines are read from the log files
+ * when they are found. Log files that are compressed are read too, and lines in log files that are deleted
+ * are skipped.</p>
+ *
+ * <p>The index is built a segment at a time, as {@link RotatingLogWriter} writes the lines. When a segment
+ * is full it's saved to a file in the log directory, next to the log files. When there are too many segment
+ * files they are merged into one on a thread of its own. The segment files are loaded again when a new
+ * index is created for the same directory and prefix, so the lines from earlier sessions can be found.</p>
+ *
+ * <p>Only one index should use the same directory and prefix at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ChatLogIndex {
+
+    private static final Logger LOG = Logger.getLogger(ChatLogIndex.class);
+
+    /** The number of lines in each segment. */
+    static final int SEGMENT_SIZE = 4096;
+
+    /** The max number of segment files before they are merged. */
+    static final int MAX_SEGMENTS = 8;
+
+    /** The end of the name of the segment files. */
+    static final String SEGMENT_SUFFIX = ".idx";
+
+    private static final String MERGED = "-merged";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** How old a temporary file must be before it's deleted as left over from an earlier session. */
+    private static final long TEMPORARY_FILE_AGE = 60 * 60 * 1000;
+
+    /** The number of hits to find in addition to the max, in case some of the lines are gone from the logs. */
+    private static final int EXTRA_HITS = 10;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Pattern segmentFilePattern;
+    private final Pattern temporaryFilePattern;
+    private final ExecutorService merger;
+
+    /** Held while reading from the segment files, so a merge doesn't delete them. */
+    private final ReadWriteLock segmentFileLock;
+
+    /** The segments saved to files, oldest first. */
+    private final List<FileChatLogSegment> savedSegments;
+
+    /** The segment new lines are added to, until it's full and saved. */
+    @Nullable
+    private MemoryChatLogSegment currentSegment;
+
+    private boolean merging;
+
+    /**
+     * Constructor. Loads the segment files already in the directory.
+     *
+     * @param directory The directory with the log files, where the segment files are saved.
+     * @param prefix The start of the name of the segment files.
+     */
+    public ChatLogIndex(final File directory, final String prefix) {
+        this(directory, prefix, SEGMENT_SIZE, MAX_SEGMENTS);
+    }
+
+    /**
+     * Constructor. Loads the segment files already in the directory.
+     *
+     * @param directory The directory with the log files, where the segment files are saved.
+     * @param prefix The start of the name of the segment files.
+     * @param segmentSize The number of lines in each segment.
+     * @param maxSegments The max number of segment files before they are merged.
+     */
+    ChatLogIndex(final File directory, final String prefix, final int segmentSize, final int maxSegments) {
+        Validate.notNull(directory, "Directory can not be null");
+        Validate.notEmpty(prefix, "Prefix can not be empty");
+
+        if (segmentSize <= 0 || maxSegments <= 1) {
+            throw new IllegalArgumentException("Segment size must be positive, and max segments more than 1");
+        }
+
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        final String segmentName = Pattern.quote(prefix) +
+                "-\\d{4}\\.\\d{2}\\.\\d{2}-\\d{2}\\.\\d{2}\\.\\d{2}-\\d{3}(" + Pattern.quote(MERGED) + ")?" +
+                Pattern.quote(SEGMENT_SUFFIX);
+        segmentFilePattern = Pattern.compile(segmentName);
+        temporaryFilePattern =
+                Pattern.compile(segmentName + "(\\.lines|\\.postings)?" + Pattern.quote(TEMPORARY_SUFFIX));
+
+        merger = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "ChatLogIndexer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        segmentFileLock = new ReentrantReadWriteLock();
+        savedSegments = new ArrayList<>();
+
+        loadSegments();
+    }
+
+    /**
+     * Gets the directory with the log files.
+     *
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Adds a line that is written to a log file. The line is saved to a segment file when the segment is full.
+     *
+     * @param logFile The log file the line is written to. Must be in the directory of the index.
+     * @param offset Where the line starts in the log file, in bytes.
+     * @param time When the line was written, in milliseconds.
+     * @param line The line to add.
+     */
+    public void add(final File logFile, final long offset, final long time, final String line) {
+        Validate.notNull(logFile, "Log file can not be null");
+        Validate.notNull(line, "Line can not be null");
+
+        final List<String> words = tokenize(line, textStart(line));
+
+        synchronized (this) {
+            if (currentSegment == null) {
+                currentSegment = new MemoryChatLogSegment(segmentSize);
+            }
+
+            currentSegment.add(logFile.getName(), offset, time, words);
+
+            if (currentSegment.isFull()) {
+                saveCurrentSegment();
+            }
+        }
+    }
+
+    /**
+     * Saves the lines not yet saved to a segment file.
+     */
+    public synchronized void save() {
+        if (currentSegment != null && !currentSegment.isEmpty()) {
+            saveCurrentSegment();
+        }
+    }
+
+    /**
+     * Returns the number of lines in the index.
+     *
+     * @return The number of lines.
+     */
+    public synchronized int size() {
+        int size = currentSegment != null ? currentSegment.getLineCount() : 0;
+
+        for (final FileChatLogSegment segment : savedSegments) {
+            size += segment.getLineCount();
+        }
+
+        return size;
+    }
+
+    /**
+     * Finds the lines containing all the words in the query. The words are not case sensitive.
+     *
+     * <p>The best hits are first. Lines with rare words from the query are better than lines with common words,
+     * and lines with a word more than once are better than lines with the word once. New lines are better than
+     * old lines when they are just as good otherwise.</p>
+     *
+     * <p>Only the best hits are read from the log files. Hits in log files that are gone are left out.</p>
+     *
+     * @param query The words to search for.
+     * @param maxHits The max number of hits to return.
+     * @return The best hits, or an empty list if none were found.
+     */
+    public List<Hit> search(final String query, final int maxHits) {
+        Validate.notNull(query, "Query can not be null");
+
+        final Set<String> words = new LinkedHashSet<>(tokenize(query, 0));
+
+        if (words.isEmpty() || maxHits <= 0) {
+            return Collections.emptyList();
+        }
+
+        segmentFileLock.readLock().lock();
+
+        try {
+            final List<ChatLogSegment> segments;
+
+            synchronized (this) {
+                segments = new ArrayList<ChatLogSegment>(savedSegments);
+
+                if (currentSegment != null) {
+                    segments.add(currentSegment);
+                }
+            }
+
+            return search(segments, words, maxHits);
+        }
+
+        finally {
+            segmentFileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the segment files to be merged, if they are being merged.
+     *
+     * @param timeout Max milliseconds to wait.
+     * @return If there was no merge going on before the timeout.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized boolean awaitMerge(final long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+
+        while (merging && System.currentTimeMillis() < end) {
+            wait(Math.max(1, end - System.currentTimeMillis()));
+        }
+
+        return !merging;
+    }
+
+    /**
+     * Splits text into lower case words of letters and digits. Everything else separates the words.
+     *
+     * @param text The text to split.
+     * @param start Where in the text to start.
+     * @return The words in the text, in order, including duplicates.
+     */
+    static List<String> tokenize(final String text, final int start) {
+        final List<String> words = new ArrayList<>();
+        int wordStart = -1;
+
+        for (int i = start; i <= text.length(); i++) {
+            final boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (inWord && wordStart == -1) {
+                wordStart = i;
+            }
+
+            else if (!inWord && wordStart != -1) {
+                words.add(text.substring(wordStart, i).toLowerCase(Locale.ROOT));
+                wordStart = -1;
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Finds where the text of a line starts, after the time of day added by
+     * {@link net.usikkert.kouchat.util.Tools#getTime()}, so the time is not indexed.
+     *
+     * @param line The line to check.
+     * @return The position after the time, or 0 if the line doesn't start with the time.
+     */
+    static int textStart(final String line) {
+        if (line.length() >= 10 && line.charAt(0) == '[' && line.charAt(3) == ':' && line.charAt(6) == ':'
+                && line.charAt(9) == ']') {
+            return 10;
+        }
+
+        return 0;
+    }
+
+    private List<Hit> search(final List<ChatLogSegment> segments, final Set<String> words, final int maxHits) {
+        final List<Map<String, ChatLogSegment.Postings>> postings = new ArrayList<>();
+        int lines = 0;
+
+        for (final ChatLogSegment segment : segments) {
+            try {
+                postings.add(segment.findPostings(words));
+                lines += segment.getLineCount();
+            }
+
+            catch (final IOException e) {
+                LOG.severe(e, "Failed to search the chat log index");
+                postings.add(Collections.<String, ChatLogSegment.Postings>emptyMap());
+            }
+        }
+
+        final Map<String, Double> weights = new HashMap<>();
+
+        for (final String word : words) {
+            int linesWithWord = 0;
+
+            for (final Map<String, ChatLogSegment.Postings> segmentPostings : postings) {
+                final ChatLogSegment.Postings wordPostings = segmentPostings.get(word);
+
+                if (wordPostings != null) {
+                    linesWithWord += wordPostings.getLines();
+                }
+            }
+
+            if (linesWithWord == 0) {
+                return Collections.emptyList();
+            }
+
+            weights.put(word, Math.log(1.0 + (double) lines / linesWithWord));
+        }
+
+        final Comparator<Candidate> bestFirst = new Comparator<Candidate>() {
+            @Override
+            public int compare(final Candidate candidate1, final Candidate candidate2) {
+                final int byScore = Double.compare(candidate2.score, candidate1.score);
+
+                if (byScore != 0) {
+                    return byScore;
+                }
+
+                // Long.compare() is not available before Android 4.4
+                return candidate2.order < candidate1.order ? -1 : (candidate2.order == candidate1.order ? 0 : 1);
+            }
+        };
+
+        // The worst of the best candidates is first, so it can be replaced by a better one
+        final PriorityQueue<Candidate> candidates =
+                new PriorityQueue<>(maxHits + EXTRA_HITS, Collections.reverseOrder(bestFirst));
+
+        for (int i = 0; i < segments.size(); i++) {
+            findCandidates(i, postings.get(i), weights, candidates, maxHits + EXTRA_HITS);
+        }
+
+        final List<Candidate> bestCandidates = new ArrayList<>(candidates);
+        Collections.sort(bestCandidates, bestFirst);
+
+        return readLines(segments, bestCandidates, maxHits);
+    }
+
+    /**
+     * Adds the lines in a segment containing all the words to the candidates, keeping only the best.
+     */
+    private void findCandidates(final int segment, final Map<String, ChatLogSegment.Postings> postings,
+                                final Map<String, Double> weights, final PriorityQueue<Candidate> candidates,
+                                final int max) {
+        ChatLogSegment.Postings rarest = null;
+
+        for (final String word : weights.keySet()) {
+            final ChatLogSegment.Postings wordPostings = postings.get(word);
+
+            if (wordPostings == null) {
+                return;
+            }
+
+            if (rarest == null || wordPostings.getSize() < rarest.getSize()) {
+                rarest = wordPostings;
+            }
+        }
+
+        if (rarest == null) {
+            return;
+        }
+
+        for (int i = 0; i < rarest.getSize(); i++) {
+            final int line = rarest.get(i);
+
+            if (i > 0 && rarest.get(i - 1) == line) {
+                continue;
+            }
+
+            double score = 0;
+
+            for (final Map.Entry<String, Double> weight : weights.entrySet()) {
+                final int count = postings.get(weight.getKey()).count(line);
+
+                if (count == 0) {
+                    score = -1;
+                    break;
+                }
+
+                score += count * weight.getValue();
+            }
+
+            if (score >= 0) {
+                candidates.add(new Candidate(segment, line, score));
+
+                if (candidates.size() > max) {
+                    candidates.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the lines of the candidates from the log files, one log file at a time.
+     *
+     * @return The hits that could be read, best first.
+     */
+    private List<Hit> readLines(final List<ChatLogSegment> segments, final List<Candidate> candidates,
+                                final int maxHits) {
+        final Map<String, SortedMap<Long, String>> linesByFile = new HashMap<>();
+        final List<ChatLogSegment.LogLine> logLines = new ArrayList<>();
+
+        for (final Candidate candidate : candidates) {
+            ChatLogSegment.LogLine logLine = null;
+
+            try {
+                logLine = segments.get(candidate.segment).getLogLine(candidate.line);
+                SortedMap<Long, String> lines = linesByFile.get(logLine.getFileName());
+
+                if (lines == null) {
+                    lines = new TreeMap<>();
+                    linesByFile.put(logLine.getFileName(), lines);
+                }
+
+                lines.put(logLine.getOffset(), null);
+            }
+
+            catch (final IOException e) {
+                LOG.severe(e, "Failed to read from the chat log index");
+            }
+
+            logLines.add(logLine);
+        }
+
+        for (final Map.Entry<String, SortedMap<Long, String>> lines : linesByFile.entrySet()) {
+            readLines(lines.getKey(), lines.getValue());
+        }
+
+        final List<Hit> foundHits = new ArrayList<>();
+
+        for (int i = 0; i < candidates.size() && foundHits.size() < maxHits; i++) {
+            final ChatLogSegment.LogLine logLine = logLines.get(i);
+
+            if (logLine != null) {
+                final String line = linesByFile.get(logLine.getFileName()).get(logLine.getOffset());
+
+                if (line != null) {
+                    final Candidate candidate = candidates.get(i);
+                    foundHits.add(new Hit(logLine.getTime(), line, candidate.score, candidate.order));
+                }
+            }
+        }
+
+        return foundHits;
+    }
+
+    /**
+     * Reads the lines starting at the offsets from a log file, or from the compressed log file if it's
+     * compressed. The lines that can't be read are left as <code>null</code>.
+     */
+    private void readLines(final String fileName, final SortedMap<Long, String> lines) {
+        try {
+            final InputStream input = openLogFile(fileName);
+
+            if (input == null) {
+                return;
+            }
+
+            try {
+                long position = 0;
+
+                for (final Long offset : new ArrayList<>(lines.keySet())) {
+                    if (!skip(input, offset - position)) {
+                        break;
+                    }
+
+                    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+                    int read;
+
+                    while ((read = input.read()) != -1 && read != '\n') {
+                        line.write(read);
+                    }
+
+                    position = offset + line.size() + (read == -1 ? 0 : 1);
+                    final String text = new String(line.toByteArray(), RotatingLogWriter.CHARSET);
+                    lines.put(offset, text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+                }
+            }
+
+            finally {
+                input.close();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e, "Failed to read the chat log %s", fileName);
+        }
+    }
+
+    /**
+     * Opens a log file. Opens the compressed log file instead if the log file is gone, in case it was just
+     * compressed.
+     *
+     * @return The log file, or <code>null</code> if it's gone.
+     */
+    @Nullable
+    private InputStream openLogFile(final String fileName) throws IOException {
+        try {
+            return new BufferedInputStream(new FileInputStream(new File(directory, fileName)));
+        }
+
+        catch (final FileNotFoundException e) {
+            final File compressedFile = new File(directory, fileName + RotatingLogWriter.COMPRESSED_SUFFIX);
+
+            if (!compressedFile.exists()) {
+                return null;
+            }
+
+            return new BufferedInputStream(new GZIPInputStream(new FileInputStream(compressedFile)));
+        }
+    }
+
+    private static boolean skip(final InputStream input, final long bytes) throws IOException {
+        long skipped = 0;
+
+        while (skipped < bytes) {
+            final long skip = input.skip(bytes - skipped);
+
+            if (skip > 0) {
+                skipped += skip;
+            }
+
+            else if (input.read() != -1) {
+                skipped++;
+            }
+
+            else {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void loadSegments() {
+        final String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return segmentFilePattern.matcher(name).matches() || temporaryFilePattern.matcher(name).matches();
+            }
+        });
+
+        if (names == null) {
+            return;
+        }
+
+        // The names start with the time, so they sort from oldest to newest
+        Arrays.sort(names);
+
+        for (final String name : names) {
+            final File file = new File(directory, name);
+
+            if (temporaryFilePattern.matcher(name).matches()) {
+                // Could be in use by another session if it's new
+                if (System.currentTimeMillis() - file.lastModified() > TEMPORARY_FILE_AGE && !file.delete()) {
+                    LOG.warning("Could not delete %s", file);
+                }
+
+                continue;
+            }
+
+            try {
+                savedSegments.add(FileChatLogSegment.open(file));
+            }
+
+            catch (final IOException e) {
+                LOG.severe(e, "Skipping the chat log index %s", file);
+            }
+        }
+
+        synchronized (this) {
+            mergeIfNeeded();
+        }
+    }
+
+    /**
+     * Saves the current segment to a file, and starts a new segment. The lines in the segment are lost from
+     * the index if it can't be saved.
+     */
+    private void saveCurrentSegment() {
+        final File file = createSegmentFile();
+
+        try {
+            currentSegment.save(file);
+            savedSegments.add(FileChatLogSegment.open(file));
+            LOG.fine("Saved the chat log index to %s", file);
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e, "Failed to save the chat log index to %s", file);
+        }
+
+        currentSegment = null;
+        mergeIfNeeded();
+    }
+
+    private File createSegmentFile() {
+        long time = System.currentTimeMillis();
+        File file;
+
+        // Only if saving twice in the same millisecond
+        do {
+            final String timeString = Tools.dateToString(new Date(time), RotatingLogWriter.TIME_FORMAT);
+            file = new File(directory, prefix + "-" + timeString + SEGMENT_SUFFIX);
+            time++;
+        } while (file.exists());
+
+        return file;
+    }
+
+    /**
+     * Merges all the segment files in the background if there are too many of them.
+     */
+    private void mergeIfNeeded() {
+        if (merging || savedSegments.size() <= maxSegments) {
+            return;
+        }
+
+        merging = true;
+        final List<FileChatLogSegment> segments = new ArrayList<>(savedSegments);
+
+        merger.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean merged = false;
+
+                try {
+                    merged = merge(segments);
+                }
+
+                finally {
+                    synchronized (ChatLogIndex.this) {
+                        merging = false;
+                        ChatLogIndex.this.notifyAll();
+
+                        // Waits for the next segment to be saved before trying again after a failure
+                        if (merged) {
+                            mergeIfNeeded();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges the segments into a temporary file, and replaces the segments with the merged segment when done.
+     * The merged segment is named after the newest segment, so it sorts before the segments saved later.
+     *
+     * @return If the segments were merged.
+     */
+    private boolean merge(final List<FileChatLogSegment> segments) {
+        final String newestName = segments.get(segments.size() - 1).getFile().getName();
+        final int timeStart = prefix.length() + 1;
+        final String time = newestName.substring(timeStart, timeStart + RotatingLogWriter.TIME_FORMAT.length());
+        final File mergedFile = new File(directory, prefix + "-" + time + MERGED + SEGMENT_SUFFIX);
+        final File temporaryFile = new File(mergedFile.getPath() + TEMPORARY_SUFFIX);
+
+        try {
+            final long start = System.currentTimeMillis();
+            final int lines = FileChatLogSegment.merge(segments, temporaryFile, directory);
+
+            segmentFileLock.writeLock().lock();
+
+            try {
+                synchronized (this) {
+                    for (final FileChatLogSegment segment : segments) {
+                        if (!segment.getFile().delete()) {
+                            LOG.warning("Could not delete the merged chat log index %s", segment.getFile());
+                        }
+                    }
+
+                    savedSegments.removeAll(segments);
+
+                    if (lines > 0) {
+                        if (!temporaryFile.renameTo(mergedFile)) {
+                            throw new IOException("Could not rename " + temporaryFile + " to " + mergedFile);
+                        }
+
+                        savedSegments.add(0, FileChatLogSegment.open(mergedFile));
+                    }
+                }
+            }
+
+            finally {
+                segmentFileLock.writeLock().unlock();
+            }
+
+            LOG.fine("Merged %s chat log indexes with %s lines in %s ms", segments.size(), lines,
+                    System.currentTimeMillis() - start);
+            return true;
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e, "Failed to merge the chat log index");
+            return false;
+        }
+
+        finally {
+            if (temporaryFile.exists() && !temporaryFile.delete()) {
+                LOG.warning("Could not delete %s", temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * A line found by a search.
+     */
+    public static class Hit {
+
+        private final long time;
+        private final String line;
+        private final double score;
+        private final long order;
+
+        Hit(final long time, final String line, final double score, final long order) {
+            this.time = time;
+            this.line = line;
+            this.score = score;
+            this.order = order;
+        }
+
+        /**
+         * Returns when the line was written.
+         *
+         * @return The time, in milliseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Returns the line that was found.
+         *
+         * @return The line.
+         */
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * Returns how good the hit is compared to the other hits from the same search. Higher is better.
+         *
+         * @return The score.
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * A line found by a search, before it's read from the log file.
+     */
+    private static class Candidate {
+
+        private final int segment;
+        private final int line;
+        private final double score;
+
+        /** The segment and the line, so newer lines are higher. */
+        private final long order;
+
+        Candidate(final int segment, final int line, final double score) {
+            this.segment = segment;
+            this.line = line;
+            this.score = score;
+
+            order = (long) segment << 32 | line;
+        }
+    }
+}
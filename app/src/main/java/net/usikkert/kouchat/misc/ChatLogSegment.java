@@ -0,0 +1,191 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A part of a {@link ChatLogIndex}, with the words in a number of lines from the chat logs.
+ *
+ * <p>The lines are numbered from 0 in the order they were written. The lines themselves are not kept.
+ * Each line points to the log file it was written to, and where in the log file it starts.</p>
+ *
+ * @author Christian Ihle
+ */
+abstract class ChatLogSegment {
+
+    /**
+     * Returns the number of lines in the segment.
+     *
+     * @return The number of lines.
+     */
+    abstract int getLineCount();
+
+    /**
+     * Finds the postings of the words.
+     *
+     * @param words The words to find.
+     * @return The postings of each word found in the segment. Words that are not found are left out.
+     * @throws IOException If the segment could not be read.
+     */
+    abstract Map<String, Postings> findPostings(Collection<String> words) throws IOException;
+
+    /**
+     * Finds where a line was written.
+     *
+     * @param line The number of the line in the segment.
+     * @return Where the line is.
+     * @throws IOException If the segment could not be read.
+     */
+    abstract LogLine getLogLine(int line) throws IOException;
+
+    /**
+     * The lines in a segment containing a word, in the order they were added.
+     * A line is listed once for each time the word is found in the line.
+     */
+    static class Postings {
+
+        private int[] entries;
+        private int size;
+
+        /** The number of different lines in the postings. */
+        private int lines;
+
+        Postings() {
+            entries = new int[4];
+        }
+
+        Postings(final int[] entries, final int lines) {
+            this.entries = entries;
+            this.lines = lines;
+
+            size = entries.length;
+        }
+
+        void add(final int line) {
+            if (size == 0 || entries[size - 1] != line) {
+                lines++;
+            }
+
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+
+            entries[size++] = line;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        int get(final int position) {
+            return entries[position];
+        }
+
+        int getLines() {
+            return lines;
+        }
+
+        Postings copy() {
+            return new Postings(Arrays.copyOf(entries, size), lines);
+        }
+
+        /**
+         * Finds how many times a line is listed.
+         *
+         * @param line The line to find.
+         * @return The number of times, or 0 if it's not listed.
+         */
+        int count(final int line) {
+            int low = 0;
+            int high = size;
+
+            // Finds the first entry that is not lower than the line
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+
+                if (entries[middle] < line) {
+                    low = middle + 1;
+                }
+
+                else {
+                    high = middle;
+                }
+            }
+
+            int count = 0;
+
+            while (low + count < size && entries[low + count] == line) {
+                count++;
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Where a line was written in the chat logs.
+     */
+    static class LogLine {
+
+        private final String fileName;
+        private final long offset;
+        private final long time;
+
+        LogLine(final String fileName, final long offset, final long time) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.time = time;
+        }
+
+        /**
+         * Returns the name of the log file, without the suffix added when it's compressed.
+         *
+         * @return The name of the log file.
+         */
+        String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Returns where the line starts in the log file, in bytes.
+         *
+         * @return The offset of the line.
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns when the line was written.
+         *
+         * @return The time, in milliseconds.
+         */
+        long getTime() {
+            return time;
+        }
+    }
+}
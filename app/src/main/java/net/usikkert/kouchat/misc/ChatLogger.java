@@ -22,10 +22,13 @@
 
 package net.usikkert.kouchat.misc;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,39 +38,60 @@ import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Tools;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This is a simple logger. Creates a new unique log file for each time
- * KouChat is started.
+ * KouChat is started, and a new log file when it gets too big or the day changes.
+ * The old log files are compressed, see {@link RotatingLogWriter}.
+ *
+ * <p>By default the lines are written to disk by a thread of their own, a batch at a time,
+ * so a slow disk doesn't hold up the chat. See {@link Settings#setLogFlushInterval(int)}.</p>
+ *
+ * <p>The lines logged by the main chat logger are also added to a {@link ChatLogIndex} for searching,
+ * saved next to the log files. The loggers for private chats are not indexed.</p>
  *
  * @author Christian Ihle
  */
 public class ChatLogger implements SettingsListener {
 
     /**
-     * The name of the log file. Uses date, time, and milliseconds to make sure
+     * The time in the name of the first log file. Uses date, time, and milliseconds to make sure
      * it is unique.
      */
-    private static final String LOG_FILE_POSTFIX = "-" + Tools.dateToString(null, "yyyy.MM.dd-HH.mm.ss-SSS") + ".log";
+    private static final String LOG_FILE_TIME = Tools.dateToString(null, RotatingLogWriter.TIME_FORMAT);
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(ChatLogger.class.getName());
 
+    /** Max number of lines waiting to be written, before logging has to wait for the disk. */
+    static final int QUEUE_SIZE = 10000;
+
     private final Settings settings;
     private final ErrorHandler errorHandler;
     private final String logFilePrefix;
+    private final boolean indexed;
 
-    private BufferedWriter writer;
-    private boolean open;
-    private String logFileName;
+    /** The index of the lines logged, or <code>null</code> if not indexed or not created yet. */
+    @Nullable
+    private ChatLogIndex index;
+
+    private RotatingLogWriter writer;
+    private volatile boolean open;
+
+    /** Writes the lines in the background, or <code>null</code> if each line is written right away. */
+    @Nullable
+    private volatile GroupCommitWriter groupCommitWriter;
 
     /**
-     * Default constructor. Sets the log file prefix to <code>kouchat</code>.
+     * Default constructor, for the main chat. Sets the log file prefix to <code>kouchat</code>,
+     * and indexes the lines logged.
      *
      * @param settings The settings to use.
      * @param errorHandler The error handler to use.
      */
     public ChatLogger(final Settings settings, final ErrorHandler errorHandler) {
-        this("kouchat", settings, errorHandler);
+        this("kouchat", true, settings, errorHandler);
     }
 
     /**
@@ -80,11 +104,25 @@ public class ChatLogger implements SettingsListener {
      * @param errorHandler The error handler to use.
      */
     public ChatLogger(final String logFilePrefix, final Settings settings, final ErrorHandler errorHandler) {
+        this(logFilePrefix, false, settings, errorHandler);
+    }
+
+    /**
+     * Constructor for setting a custom log file prefix, and if the lines logged should be indexed.
+     *
+     * @param logFilePrefix The prefix for the log file name.
+     * @param indexed If the lines logged should be added to a {@link ChatLogIndex}.
+     * @param settings The settings to use.
+     * @param errorHandler The error handler to use.
+     */
+    ChatLogger(final String logFilePrefix, final boolean indexed, final Settings settings,
+               final ErrorHandler errorHandler) {
         Validate.notEmpty(logFilePrefix, "Log file prefix can not be empty");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.logFilePrefix = logFilePrefix;
+        this.indexed = indexed;
         this.settings = settings;
         this.errorHandler = errorHandler;
 
@@ -99,7 +137,7 @@ public class ChatLogger implements SettingsListener {
      * Opens the log file for writing.
      * Will append if the log file already exists.
      */
-    public void open() {
+    public synchronized void open() {
         close();
 
         try {
@@ -114,11 +152,20 @@ public class ChatLogger implements SettingsListener {
                 }
             }
 
-            logFileName = logLocation + logFilePrefix + LOG_FILE_POSTFIX;
-            writer = new BufferedWriter(new FileWriter(logFileName, true));
+            writer = new RotatingLogWriter(logdir, logFilePrefix, LOG_FILE_TIME, settings.getLogMaxSize() * 1024L,
+                                           settings.getLogKeepFiles(), indexed ? getIndex(logdir) : null);
+            writer.open();
+
+            if (settings.getLogFlushInterval() > 0) {
+                final GroupCommitWriter newGroupCommitWriter = new GroupCommitWriter(
+                        writer, settings.getLogFlushInterval(), settings.getLogFlushSize() * 1024);
+                newGroupCommitWriter.start();
+                groupCommitWriter = newGroupCommitWriter;
+            }
+
             open = true;
 
-            LOG.fine("Started logging to " + logFileName);
+            LOG.fine("Started logging to " + writer.getFile());
         }
 
         catch (final IOException e) {
@@ -129,15 +176,28 @@ public class ChatLogger implements SettingsListener {
     }
 
     /**
-     * Flushed and closes the current open log file.
+     * Flushed and closes the current open log file. Waits for all the lines to be written first.
      */
-    public void close() {
+    public synchronized void close() {
         if (open) {
             try {
+                final GroupCommitWriter currentGroupCommitWriter = groupCommitWriter;
+
+                if (currentGroupCommitWriter != null) {
+                    groupCommitWriter = null;
+                    currentGroupCommitWriter.stop();
+                }
+
+                final File logFile = writer.getFile();
+
                 writer.flush();
                 writer.close();
 
-                LOG.fine("Stopped logging to " + logFileName);
+                if (index != null) {
+                    index.save();
+                }
+
+                LOG.fine("Stopped logging to " + logFile);
             }
 
             catch (final IOException e) {
@@ -157,9 +217,22 @@ public class ChatLogger implements SettingsListener {
      */
     public void append(final String line) {
         if (open) {
+            final GroupCommitWriter currentGroupCommitWriter = groupCommitWriter;
+
+            if (currentGroupCommitWriter != null) {
+                if (!currentGroupCommitWriter.append(line)) {
+                    LOG.warning("Line not logged: " + line);
+
+                    if (currentGroupCommitWriter.isFailed()) {
+                        close();
+                    }
+                }
+
+                return;
+            }
+
             try {
-                writer.append(line);
-                writer.newLine();
+                writer.writeLine(line);
                 writer.flush();
             }
 
@@ -179,6 +252,35 @@ public class ChatLogger implements SettingsListener {
         return open;
     }
 
+    /**
+     * Returns the index of the lines logged, including the lines logged before the application was started.
+     *
+     * @return The index, or <code>null</code> if this logger is not indexed.
+     */
+    @Nullable
+    public synchronized ChatLogIndex getIndex() {
+        if (!indexed) {
+            return null;
+        }
+
+        if (index == null) {
+            index = new ChatLogIndex(new File(settings.getLogLocation()), logFilePrefix);
+        }
+
+        return index;
+    }
+
+    /**
+     * Gets the index for the log directory, and creates a new index if the log directory has changed.
+     */
+    private ChatLogIndex getIndex(final File logdir) {
+        if (index == null || !index.getDirectory().equals(logdir)) {
+            index = new ChatLogIndex(logdir, logFilePrefix);
+        }
+
+        return index;
+    }
+
     /**
      * Opens or closes the log file when the logging setting is changed.
      *
@@ -200,4 +302,199 @@ public class ChatLogger implements SettingsListener {
             }
         }
     }
+
+    /**
+     * Writes the lines from a queue on a thread of its own. The lines waiting are written together, and flushed
+     * to disk when the oldest line has waited for the flush interval, or there are enough lines to fill
+     * the flush size.
+     *
+     * <p>New lines are rejected once {@link #stop()} is called, and the lines already in the queue are all
+     * written before it returns. Lines that could not be written because of an error are reported.</p>
+     */
+    static class GroupCommitWriter implements Runnable {
+
+        private final RotatingLogWriter writer;
+        private final long flushInterval;
+        private final int flushSize;
+        private final BlockingQueue<String> queue;
+        private final Thread thread;
+
+        private volatile boolean stopping;
+        private volatile boolean failed;
+
+        GroupCommitWriter(final RotatingLogWriter writer, final long flushInterval, final int flushSize) {
+            this.writer = writer;
+            this.flushInterval = flushInterval;
+            this.flushSize = flushSize;
+
+            queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            thread = new Thread(this, "ChatLoggerWriter");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Adds a line to write. Waits if the queue is full.
+         *
+         * @param line The line to write.
+         * @return True if the line was added, false if the writer is stopping or writing has failed.
+         */
+        boolean append(final String line) {
+            try {
+                while (true) {
+                    // Checked together with adding the line, so stop() can't miss a line
+                    synchronized (this) {
+                        if (stopping || failed) {
+                            return false;
+                        }
+
+                        if (queue.offer(line)) {
+                            return true;
+                        }
+
+                        LOG.fine("Waiting for the chat log to be written");
+                        wait(100);
+                    }
+                }
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Checks if writing has failed.
+         *
+         * @return If writing has failed.
+         */
+        boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Rejects new lines, writes all the lines in the queue, and stops the thread.
+         */
+        void stop() {
+            synchronized (this) {
+                stopping = true;
+                notifyAll();
+            }
+
+            thread.interrupt();
+
+            try {
+                thread.join();
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.WARNING, "Interrupted while waiting for the chat log to be written");
+                Thread.currentThread().interrupt();
+            }
+
+            writeRemaining();
+        }
+
+        /**
+         * Writes the lines still in the queue after the thread has stopped, in case it stopped early.
+         */
+        private void writeRemaining() {
+            if (thread.isAlive() || queue.isEmpty()) {
+                return;
+            }
+
+            final List<String> lines = new ArrayList<>();
+            queue.drainTo(lines);
+
+            if (failed) {
+                reportDropped(lines.size());
+                return;
+            }
+
+            try {
+                for (final String line : lines) {
+                    writer.writeLine(line);
+                }
+
+                writer.flush();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+                failed = true;
+                reportDropped(lines.size());
+            }
+        }
+
+        private void reportDropped(final int lines) {
+            if (lines > 0) {
+                LOG.severe("Could not write " + lines + " lines to the chat log");
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<String> lines = new ArrayList<>();
+            long firstUnflushed = 0;
+            int unflushed = 0;
+
+            try {
+                while (!stopping || !queue.isEmpty()) {
+                    final long timeout = unflushed > 0 ?
+                            Math.max(1, firstUnflushed + flushInterval - System.currentTimeMillis()) : flushInterval;
+
+                    try {
+                        final String line = queue.poll(timeout, TimeUnit.MILLISECONDS);
+
+                        if (line != null) {
+                            lines.add(line);
+                        }
+                    }
+
+                    catch (final InterruptedException e) {
+                        // Woken up by stop()
+                    }
+
+                    queue.drainTo(lines);
+
+                    synchronized (this) {
+                        // Room in the queue for the lines waiting in append()
+                        notifyAll();
+                    }
+
+                    if (!lines.isEmpty() && unflushed == 0) {
+                        firstUnflushed = System.currentTimeMillis();
+                    }
+
+                    for (final String line : lines) {
+                        writer.writeLine(line);
+                        unflushed += line.length() + 1;
+                    }
+
+                    lines.clear();
+
+                    if (unflushed > 0 && (stopping || unflushed >= flushSize ||
+                            System.currentTimeMillis() - firstUnflushed >= flushInterval)) {
+                        writer.flush();
+                        unflushed = 0;
+                    }
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+                failed = true;
+
+                synchronized (this) {
+                    reportDropped(lines.size() + queue.size());
+                    queue.clear();
+                    notifyAll();
+                }
+            }
+        }
+    }
 }
@@ -23,12 +23,14 @@
 package net.usikkert.kouchat.misc;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Pattern;
 
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.message.CoreMessages;
+import net.usikkert.kouchat.net.FileBatch;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.FileToSend;
@@ -53,6 +55,9 @@ public class CommandParser {
 
     private static final String WHITESPACE = "\\s"; // Any whitespace character
 
+    /** The max number of lines to show from a search. */
+    private static final int MAX_SEARCH_HITS = 10;
+
     private final DateTools dateTools = new DateTools();
 
     private final Controller controller;
@@ -262,11 +267,12 @@ public class CommandParser {
     }
 
     /**
-     * Command: <em>/send &lt;nick&gt; &lt;file&gt;</em>.
+     * Command: <em>/send &lt;nick&gt;[,&lt;nick&gt;...] &lt;file&gt;</em>.
      *
-     * <p>Send a file to a user.</p>
+     * <p>Send a file to a user, or to several users separated by comma.
+     * A directory is sent as a batch with all the files in it.</p>
      *
-     * @param args First argument is the user to send to, and the second is the file to send to the user.
+     * @param args First argument is the users to send to, and the second is the file to send to the users.
      */
     private void cmdSend(final String args) {
         final String[] argsArray = args.split(WHITESPACE);
@@ -276,44 +282,71 @@ public class CommandParser {
         }
 
         else {
-            final String nick = argsArray[1];
-            final User user = controller.getUser(nick);
+            final List<User> users = new ArrayList<>();
+
+            for (final String nick : argsArray[1].split(",")) {
+                final User user = controller.getUser(nick);
+
+                if (user == me) {
+                    msgController.showSystemMessage(coreMessages.getMessage("core.command.send.systemMessage.userIsMe"));
+                    return;
+                }
 
-            if (user != me) {
                 if (user == null) {
                     msgController.showSystemMessage(
                             coreMessages.getMessage("core.command.send.systemMessage.noSuchUser", nick));
+                    return;
                 }
 
-                else {
-                    String file = "";
+                if (!users.contains(user)) {
+                    users.add(user);
+                }
+            }
 
-                    for (int i = 2; i < argsArray.length; i++) {
-                        file += argsArray[i] + " ";
-                    }
+            String file = "";
 
-                    file = file.trim();
-                    final File sendFile = new File(file);
+            for (int i = 2; i < argsArray.length; i++) {
+                file += argsArray[i] + " ";
+            }
 
-                    if (sendFile.exists() && sendFile.isFile()) {
-                        try {
-                            sendFile(user, new FileToSend(sendFile));
-                        }
+            file = file.trim();
+            final File sendFile = new File(file);
+            final FileToSend fileToSend;
 
-                        catch (final CommandException e) {
-                            msgController.showSystemMessage(e.getMessage());
-                        }
-                    }
+            if (sendFile.exists() && sendFile.isFile()) {
+                fileToSend = new FileToSend(sendFile);
+            }
 
-                    else {
-                        msgController.showSystemMessage(
-                                coreMessages.getMessage("core.command.send.systemMessage.noSuchFile", file));
-                    }
+            else if (sendFile.isDirectory()) {
+                final FileBatch batch = FileBatch.fromDirectory(sendFile);
+
+                if (batch.size() == 0) {
+                    msgController.showSystemMessage(
+                            coreMessages.getMessage("core.command.send.systemMessage.emptyDirectory", file));
+                    return;
+                }
+
+                fileToSend = new FileToSend(batch);
+            }
+
+            else {
+                msgController.showSystemMessage(
+                        coreMessages.getMessage("core.command.send.systemMessage.noSuchFile", file));
+                return;
+            }
+
+            if (users.size() == 1) {
+                try {
+                    sendFile(users.get(0), fileToSend);
+                }
+
+                catch (final CommandException e) {
+                    msgController.showSystemMessage(e.getMessage());
                 }
             }
 
             else {
-                msgController.showSystemMessage(coreMessages.getMessage("core.command.send.systemMessage.userIsMe"));
+                sendFile(users, fileToSend);
             }
         }
     }
@@ -670,6 +703,45 @@ public class CommandParser {
         }
     }
 
+    /**
+     * Command: <em>/search &lt;words&gt;</em>.
+     *
+     * <p>Shows the best lines in the chat containing all the words, with the date and time they were written.</p>
+     *
+     * @param args The words to search for.
+     */
+    private void cmdSearch(final String args) {
+        final String query = args.trim();
+
+        if (query.length() == 0) {
+            msgController.showSystemMessage(coreMessages.getMessage("core.command.search.systemMessage.missingArgument"));
+            return;
+        }
+
+        final List<ChatLogIndex.Hit> hits = msgController.searchChatLog(query, MAX_SEARCH_HITS);
+
+        if (hits.isEmpty()) {
+            msgController.showSearchResults(coreMessages.getMessage("core.command.search.systemMessage.noHits", query));
+            return;
+        }
+
+        final StringBuilder results = new StringBuilder(
+                coreMessages.getMessage("core.command.search.systemMessage.hits", query));
+        final String dateFormat = coreMessages.getMessage("core.dateFormat.search");
+
+        for (final ChatLogIndex.Hit hit : hits) {
+            // The time of day is shown with the date instead
+            final String line = hit.getLine().substring(ChatLogIndex.textStart(hit.getLine())).trim();
+
+            results.append("\n  ");
+            results.append(coreMessages.getMessage("core.command.search.hit",
+                                                   dateTools.dateToString(new Date(hit.getTime()), dateFormat),
+                                                   line));
+        }
+
+        msgController.showSearchResults(results.toString());
+    }
+
     /**
      * Command: <em>/quit</em>.
      *
@@ -768,7 +840,38 @@ public class CommandParser {
      */
     public void sendFile(final User user, final FileToSend file) throws CommandException {
         controller.sendFile(user, file);
-        final FileSender fileSend = tList.addFileSender(user, file);
+        showFileSender(tList.addFileSender(user, file), user, file);
+    }
+
+    /**
+     * Sends a file to several users, with one file transfer for each user.
+     *
+     * <p>Users that can not receive the file are skipped, with a system message.</p>
+     *
+     * @param users The users to send to.
+     * @param file The file to send to the users.
+     */
+    public void sendFile(final List<User> users, final FileToSend file) {
+        for (final User user : users) {
+            try {
+                controller.sendFile(user, file);
+                showFileSender(tList.addFileSender(user, file), user, file);
+            }
+
+            catch (final CommandException e) {
+                msgController.showSystemMessage(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Shows a new file transfer in the user interface, with a system message.
+     *
+     * @param fileSend The file transfer to show.
+     * @param user The user to send to.
+     * @param file The file to send to the user.
+     */
+    private void showFileSender(final FileSender fileSend, final User user, final FileToSend file) {
         ui.showTransfer(fileSend);
 
         final String size = Tools.byteToString(file.length());
@@ -819,6 +922,7 @@ public class CommandParser {
                         coreMessages.getMessage("core.command.quit.systemMessage.help") + "\n" +
                         coreMessages.getMessage("core.command.receive.systemMessage.help") + "\n" +
                         coreMessages.getMessage("core.command.reject.systemMessage.help") + "\n" +
+                        coreMessages.getMessage("core.command.search.systemMessage.help") + "\n" +
                         coreMessages.getMessage("core.command.send.systemMessage.help") + "\n" +
                         coreMessages.getMessage("core.command.topic.systemMessage.help") + "\n" +
                         coreMessages.getMessage("core.command.transfers.systemMessage.help") + "\n" +
@@ -876,6 +980,8 @@ public class CommandParser {
                 cmdUsers();
             } else if (command.equals("transfers")) {
                 cmdTransfers();
+            } else if (command.equals("search")) {
+                cmdSearch(args);
             } else if (command.equals("quit")) {
                 cmdQuit();
             } else if (command.startsWith("/")) {
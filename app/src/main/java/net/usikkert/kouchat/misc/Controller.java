@@ -32,17 +32,21 @@ import net.usikkert.kouchat.event.NetworkConnectionListener;
 import net.usikkert.kouchat.jmx.JMXBeanLoader;
 import net.usikkert.kouchat.message.CoreMessages;
 import net.usikkert.kouchat.net.AsyncMessageResponderWrapper;
+import net.usikkert.kouchat.net.BandwidthGovernor;
 import net.usikkert.kouchat.net.DefaultMessageResponder;
 import net.usikkert.kouchat.net.DefaultPrivateMessageResponder;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.FileToSend;
+import net.usikkert.kouchat.net.FileTransferAcceptor;
+import net.usikkert.kouchat.net.FileTransferOptions;
 import net.usikkert.kouchat.net.MessageParser;
 import net.usikkert.kouchat.net.MessageResponder;
 import net.usikkert.kouchat.net.NetworkMessages;
 import net.usikkert.kouchat.net.NetworkService;
 import net.usikkert.kouchat.net.PrivateMessageParser;
 import net.usikkert.kouchat.net.PrivateMessageResponder;
+import net.usikkert.kouchat.net.ProgressDispatcher;
 import net.usikkert.kouchat.net.TransferList;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.settings.SettingsSaver;
@@ -79,6 +83,9 @@ public class Controller implements NetworkConnectionListener {
     private final NetworkMessages networkMessages;
     private final IdleThread idleThread;
     private final TransferList tList;
+    private final BandwidthGovernor bandwidthGovernor;
+    private final FileTransferAcceptor fileTransferAcceptor;
+    private final ProgressDispatcher progressDispatcher;
     private final WaitingList wList;
     private final User me;
     private final UserInterface ui;
@@ -128,7 +135,10 @@ public class Controller implements NetworkConnectionListener {
         me = settings.getMe();
         userListController = new UserListController(settings);
         chatState = new ChatState();
-        tList = new TransferList();
+        bandwidthGovernor = new BandwidthGovernor(settings);
+        fileTransferAcceptor = new FileTransferAcceptor();
+        progressDispatcher = new ProgressDispatcher(ProgressDispatcher.DEFAULT_INTERVAL);
+        tList = new TransferList(bandwidthGovernor, fileTransferAcceptor, progressDispatcher);
         wList = new WaitingList();
         idleThread = new IdleThread(this, ui, settings);
         dayTimer = new DayTimer(ui);
@@ -511,6 +521,8 @@ public class Controller implements NetworkConnectionListener {
         idleThread.stopThread();
         dayTimer.stopTimer();
         msgController.shutdown();
+        fileTransferAcceptor.stop();
+        progressDispatcher.stop();
     }
 
     /**
@@ -565,6 +577,7 @@ public class Controller implements NetworkConnectionListener {
             throw new CommandException(coreMessages.getMessage("core.chatMessage.error.messageTooLong",
                                                                Constants.MESSAGE_MAX_BYTES));
         } else {
+            bandwidthGovernor.chatActivity();
             networkMessages.sendChatMessage(msg);
         }
     }
@@ -639,6 +652,23 @@ public class Controller implements NetworkConnectionListener {
         networkMessages.sendFileAccept(user, port, fileHash, fileName);
     }
 
+    /**
+     * Sends a message over the network to notify the file sender that you
+     * accepted the file transfer, with the file transfer options to use.
+     *
+     * @param user The user sending a file.
+     * @param port The port the file sender can connect to on this client
+     *             to start the file transfer.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param options The file transfer options to use.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileAccept(final User user, final int port, final int fileHash, final String fileName,
+                               final FileTransferOptions options) throws CommandException {
+        networkMessages.sendFileAccept(user, port, fileHash, fileName, options);
+    }
+
     /**
      * Sends a message over the network to notify another user that the
      * application user wants to send a file.
@@ -680,6 +710,15 @@ public class Controller implements NetworkConnectionListener {
         return tList;
     }
 
+    /**
+     * Gets the bandwidth governor, that shares the bandwidth between the file transfers.
+     *
+     * @return The bandwidth governor.
+     */
+    public BandwidthGovernor getBandwidthGovernor() {
+        return bandwidthGovernor;
+    }
+
     /**
      * Gets the list of unidentified users.
      *
@@ -738,6 +777,7 @@ public class Controller implements NetworkConnectionListener {
         } else if (settings.isNoPrivateChat()) {
             throw new CommandException(coreMessages.getMessage("core.privateChatMessage.error.privateChatDisabled"));
         } else {
+            bandwidthGovernor.chatActivity();
             networkMessages.sendPrivateMessage(privmsg, user);
         }
     }
@@ -753,6 +793,17 @@ public class Controller implements NetworkConnectionListener {
         userListController.changeNewMessage(code, newMsg);
     }
 
+    /**
+     * Updates the port to use for sending chat messages to the user using tcp.
+     * Notifies the user list listeners, so a tcp connection waiting for the port can continue.
+     *
+     * @param code The user code for the user to update.
+     * @param tcpChatPort The new tcp chat port.
+     */
+    public void changeTcpChatPort(final int code, final int tcpChatPort) {
+        userListController.changeTcpChatPort(code, tcpChatPort);
+    }
+
     /**
      * Returns if the client is logged on to the chat and connected to the network.
      *
@@ -862,7 +913,8 @@ public class Controller implements NetworkConnectionListener {
      * @return A JMX bean loader.
      */
     public JMXBeanLoader createJMXBeanLoader() {
-        return new JMXBeanLoader(this, networkService.getConnectionWorker(), settings, errorHandler);
+        return new JMXBeanLoader(this, networkService.getConnectionWorker(), networkService.getTCPNetworkService(),
+                                 settings, errorHandler);
     }
 
     public void registerNetworkConnectionListener(final NetworkConnectionListener listener) {
@@ -0,0 +1,658 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A segment of a {@link ChatLogIndex} saved to a file. Only the names of the log files are kept in memory.
+ * The rest is read from the file when searching.
+ *
+ * <p>The file starts with a header, followed by:</p>
+ *
+ * <ul>
+ *   <li>The names of the log files.</li>
+ *   <li>The dictionary, with each word sorted, how many lines it's in, and where its postings are.</li>
+ *   <li>The lines, with the log file, the offset in the log file, and the time of each line.</li>
+ *   <li>The postings of all the words, in the same order as the dictionary.</li>
+ * </ul>
+ *
+ * <p>The file is never changed after it's written. Segments are merged into a new file instead.</p>
+ *
+ * @author Christian Ihle
+ */
+class FileChatLogSegment extends ChatLogSegment {
+
+    private static final int MAGIC = 0x4B434C49;
+    private static final int VERSION = 1;
+
+    /** Magic, version, number of lines, and the length of the log file names and of the dictionary. */
+    private static final int HEADER_SIZE = 20;
+
+    /** Log file, offset, and time. */
+    private static final int LINE_SIZE = 20;
+
+    private final File file;
+    private final int lineCount;
+    private final List<String> fileNames;
+    private final long dictionaryPosition;
+    private final long linesPosition;
+    private final long postingsPosition;
+
+    private FileChatLogSegment(final File file, final int lineCount, final List<String> fileNames,
+                               final long dictionaryPosition, final long linesPosition) {
+        this.file = file;
+        this.lineCount = lineCount;
+        this.fileNames = fileNames;
+        this.dictionaryPosition = dictionaryPosition;
+        this.linesPosition = linesPosition;
+
+        postingsPosition = linesPosition + (long) lineCount * LINE_SIZE;
+    }
+
+    /**
+     * Opens a segment file.
+     *
+     * @param file The file to open.
+     * @return The segment.
+     * @throws IOException If the file could not be read, or is not a complete segment.
+     */
+    static FileChatLogSegment open(final File file) throws IOException {
+        final DataInputStream input = openAt(file, 0);
+
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a chat log index: " + file);
+            }
+
+            final int lineCount = input.readInt();
+            final int filesLength = input.readInt();
+            final int dictionaryLength = input.readInt();
+
+            if (lineCount < 0 || filesLength < 4 || dictionaryLength < 4) {
+                throw new IOException("Broken chat log index: " + file);
+            }
+
+            final int fileCount = input.readInt();
+            final List<String> fileNames = new ArrayList<>(fileCount);
+
+            for (int i = 0; i < fileCount; i++) {
+                fileNames.add(input.readUTF());
+            }
+
+            final long dictionaryPosition = HEADER_SIZE + filesLength;
+            final long linesPosition = dictionaryPosition + dictionaryLength;
+            final FileChatLogSegment segment =
+                    new FileChatLogSegment(file, lineCount, fileNames, dictionaryPosition, linesPosition);
+
+            if (file.length() < segment.postingsPosition) {
+                throw new IOException("Incomplete chat log index: " + file);
+            }
+
+            return segment;
+        }
+
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes a segment file. Writes to a temporary file first, so a segment file is never incomplete.
+     *
+     * @param file The file to write.
+     * @param fileNames The names of the log files.
+     * @param lineCount The number of lines.
+     * @param fileIndexes The log file of each line.
+     * @param offsets Where each line starts in its log file.
+     * @param times When each line was written.
+     * @param postings The postings of each word, sorted by word.
+     * @throws IOException If the file could not be written.
+     */
+    static void write(final File file, final List<String> fileNames, final int lineCount, final int[] fileIndexes,
+                      final long[] offsets, final long[] times, final SortedMap<String, Postings> postings)
+            throws IOException {
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        final DataOutputStream dictionaryOutput = new DataOutputStream(dictionary);
+        int start = 0;
+
+        dictionaryOutput.writeInt(postings.size());
+
+        for (final Map.Entry<String, Postings> entry : postings.entrySet()) {
+            dictionaryOutput.writeUTF(entry.getKey());
+            dictionaryOutput.writeInt(entry.getValue().getLines());
+            dictionaryOutput.writeInt(entry.getValue().getSize());
+            dictionaryOutput.writeInt(start);
+            start += entry.getValue().getSize();
+        }
+
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+
+        try {
+            final DataOutputStream output = create(temporaryFile);
+
+            try {
+                writeHeader(output, lineCount, fileNames, dictionary.toByteArray());
+
+                for (int i = 0; i < lineCount; i++) {
+                    output.writeInt(fileIndexes[i]);
+                    output.writeLong(offsets[i]);
+                    output.writeLong(times[i]);
+                }
+
+                for (final Postings wordPostings : postings.values()) {
+                    for (int i = 0; i < wordPostings.getSize(); i++) {
+                        output.writeInt(wordPostings.get(i));
+                    }
+                }
+            }
+
+            finally {
+                output.close();
+            }
+
+            rename(temporaryFile, file);
+        }
+
+        finally {
+            deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Merges segments into a new segment file. The lines from log files that are gone are left out,
+     * and so are the words only found in those lines.
+     *
+     * <p>The lines and the postings are copied through temporary files, so the segments don't have to fit
+     * in memory. Only the dictionaries do.</p>
+     *
+     * @param segments The segments to merge, oldest first.
+     * @param file The file to write the merged segment to.
+     * @param logDirectory The directory with the log files.
+     * @return The number of lines in the merged segment.
+     * @throws IOException If the segments could not be read, or the file could not be written.
+     */
+    static int merge(final List<FileChatLogSegment> segments, final File file, final File logDirectory)
+            throws IOException {
+        final List<String> fileNames = new ArrayList<>();
+        final List<int[]> fileMaps = new ArrayList<>();
+
+        for (final FileChatLogSegment segment : segments) {
+            final int[] fileMap = new int[segment.fileNames.size()];
+
+            for (int i = 0; i < fileMap.length; i++) {
+                final String fileName = segment.fileNames.get(i);
+
+                if (!logExists(logDirectory, fileName)) {
+                    fileMap[i] = -1;
+                }
+
+                else if (fileNames.contains(fileName)) {
+                    fileMap[i] = fileNames.indexOf(fileName);
+                }
+
+                else {
+                    fileNames.add(fileName);
+                    fileMap[i] = fileNames.size() - 1;
+                }
+            }
+
+            fileMaps.add(fileMap);
+        }
+
+        final File linesFile = new File(file.getPath() + ".lines.tmp");
+        final File postingsFile = new File(file.getPath() + ".postings.tmp");
+
+        try {
+            final List<int[]> lineMaps = new ArrayList<>();
+            final int lineCount = mergeLines(segments, fileMaps, lineMaps, linesFile);
+            final byte[] dictionary = mergePostings(segments, lineMaps, postingsFile);
+            final DataOutputStream output = create(file);
+
+            try {
+                writeHeader(output, lineCount, fileNames, dictionary);
+                copy(linesFile, output);
+                copy(postingsFile, output);
+            }
+
+            finally {
+                output.close();
+            }
+
+            return lineCount;
+        }
+
+        finally {
+            deleteIfExists(linesFile);
+            deleteIfExists(postingsFile);
+        }
+    }
+
+    /**
+     * Copies the lines of the segments that are still in the logs, and maps the old line numbers to the new ones.
+     */
+    private static int mergeLines(final List<FileChatLogSegment> segments, final List<int[]> fileMaps,
+                                  final List<int[]> lineMaps, final File linesFile) throws IOException {
+        final DataOutputStream lines = create(linesFile);
+        int lineCount = 0;
+
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                final FileChatLogSegment segment = segments.get(i);
+                final int[] fileMap = fileMaps.get(i);
+                final int[] lineMap = new int[segment.lineCount];
+                final DataInputStream input = openAt(segment.file, segment.linesPosition);
+
+                try {
+                    for (int line = 0; line < lineMap.length; line++) {
+                        final int fileIndex = input.readInt();
+                        final long offset = input.readLong();
+                        final long time = input.readLong();
+
+                        if (fileIndex < 0 || fileIndex >= fileMap.length) {
+                            throw new IOException("Broken chat log index: " + segment.file);
+                        }
+
+                        if (fileMap[fileIndex] == -1) {
+                            lineMap[line] = -1;
+                        }
+
+                        else {
+                            lines.writeInt(fileMap[fileIndex]);
+                            lines.writeLong(offset);
+                            lines.writeLong(time);
+                            lineMap[line] = lineCount++;
+                        }
+                    }
+                }
+
+                finally {
+                    input.close();
+                }
+
+                lineMaps.add(lineMap);
+            }
+        }
+
+        finally {
+            lines.close();
+        }
+
+        return lineCount;
+    }
+
+    /**
+     * Merges the words of the segments in sorted order. The postings of each segment are in the same order
+     * as its dictionary, so they are read straight through.
+     *
+     * @return The merged dictionary.
+     */
+    private static byte[] mergePostings(final List<FileChatLogSegment> segments, final List<int[]> lineMaps,
+                                        final File postingsFile) throws IOException {
+        final SortedMap<String, List<SegmentWord>> words = new TreeMap<>();
+
+        for (int i = 0; i < segments.size(); i++) {
+            for (final DictionaryEntry entry : segments.get(i).readDictionary(null)) {
+                List<SegmentWord> segmentWords = words.get(entry.word);
+
+                if (segmentWords == null) {
+                    segmentWords = new ArrayList<>();
+                    words.put(entry.word, segmentWords);
+                }
+
+                segmentWords.add(new SegmentWord(i, entry));
+            }
+        }
+
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        final DataOutputStream entriesOutput = new DataOutputStream(entries);
+        final List<DataInputStream> inputs = new ArrayList<>();
+        final int[] positions = new int[segments.size()];
+        final DataOutputStream postings = create(postingsFile);
+        int wordCount = 0;
+        int start = 0;
+
+        try {
+            for (final FileChatLogSegment segment : segments) {
+                inputs.add(openAt(segment.file, segment.postingsPosition));
+            }
+
+            for (final Map.Entry<String, List<SegmentWord>> word : words.entrySet()) {
+                int size = 0;
+                int lines = 0;
+                int lastLine = -1;
+
+                for (final SegmentWord segmentWord : word.getValue()) {
+                    final int segment = segmentWord.segment;
+                    final int[] lineMap = lineMaps.get(segment);
+                    final DataInputStream input = inputs.get(segment);
+
+                    if (segmentWord.entry.start != positions[segment]) {
+                        throw new IOException("Broken chat log index: " + segments.get(segment).file);
+                    }
+
+                    for (int i = 0; i < segmentWord.entry.size; i++) {
+                        final int line = input.readInt();
+
+                        if (line < 0 || line >= lineMap.length) {
+                            throw new IOException("Broken chat log index: " + segments.get(segment).file);
+                        }
+
+                        if (lineMap[line] != -1) {
+                            postings.writeInt(lineMap[line]);
+                            size++;
+
+                            if (lineMap[line] != lastLine) {
+                                lines++;
+                                lastLine = lineMap[line];
+                            }
+                        }
+                    }
+
+                    positions[segment] += segmentWord.entry.size;
+                }
+
+                if (size > 0) {
+                    entriesOutput.writeUTF(word.getKey());
+                    entriesOutput.writeInt(lines);
+                    entriesOutput.writeInt(size);
+                    entriesOutput.writeInt(start);
+                    start += size;
+                    wordCount++;
+                }
+            }
+        }
+
+        finally {
+            postings.close();
+
+            for (final DataInputStream input : inputs) {
+                input.close();
+            }
+        }
+
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(entries.size() + 4);
+        final DataOutputStream dictionaryOutput = new DataOutputStream(dictionary);
+        dictionaryOutput.writeInt(wordCount);
+        entries.writeTo(dictionaryOutput);
+
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * Gets the segment file.
+     *
+     * @return The file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    int getLineCount() {
+        return lineCount;
+    }
+
+    @Override
+    Map<String, Postings> findPostings(final Collection<String> words) throws IOException {
+        final List<DictionaryEntry> entries = readDictionary(new HashSet<>(words));
+        final Map<String, Postings> found = new HashMap<>();
+
+        if (entries.isEmpty()) {
+            return found;
+        }
+
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            for (final DictionaryEntry entry : entries) {
+                final byte[] bytes = new byte[entry.size * 4];
+                input.seek(postingsPosition + entry.start * 4L);
+                input.readFully(bytes);
+
+                final int[] lines = new int[entry.size];
+                ByteBuffer.wrap(bytes).asIntBuffer().get(lines);
+                found.put(entry.word, new Postings(lines, entry.lines));
+            }
+        }
+
+        finally {
+            input.close();
+        }
+
+        return found;
+    }
+
+    @Override
+    LogLine getLogLine(final int line) throws IOException {
+        if (line < 0 || line >= lineCount) {
+            throw new IllegalArgumentException("Line must be between 0 and " + (lineCount - 1) + ": " + line);
+        }
+
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            input.seek(linesPosition + (long) line * LINE_SIZE);
+
+            final int fileIndex = input.readInt();
+            final long offset = input.readLong();
+            final long time = input.readLong();
+
+            if (fileIndex < 0 || fileIndex >= fileNames.size()) {
+                throw new IOException("Broken chat log index: " + file);
+            }
+
+            return new LogLine(fileNames.get(fileIndex), offset, time);
+        }
+
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the dictionary. Stops early when all the words are found, or the rest of the dictionary comes
+     * after the last word.
+     *
+     * @param words The words to read, or <code>null</code> to read all of them.
+     * @return The entries of the words found, sorted by word.
+     */
+    private List<DictionaryEntry> readDictionary(@Nullable final Set<String> words) throws IOException {
+        final List<DictionaryEntry> entries = new ArrayList<>();
+        final String lastWord = words == null || words.isEmpty() ? null : Collections.max(words);
+        final DataInputStream input = openAt(file, dictionaryPosition);
+
+        try {
+            final int wordCount = input.readInt();
+
+            for (int i = 0; i < wordCount; i++) {
+                if (words != null && entries.size() == words.size()) {
+                    break;
+                }
+
+                final DictionaryEntry entry =
+                        new DictionaryEntry(input.readUTF(), input.readInt(), input.readInt(), input.readInt());
+
+                if (entry.size < 0 || entry.start < 0) {
+                    throw new IOException("Broken chat log index: " + file);
+                }
+
+                if (words == null || words.contains(entry.word)) {
+                    entries.add(entry);
+                }
+
+                else if (lastWord != null && entry.word.compareTo(lastWord) > 0) {
+                    break;
+                }
+            }
+        }
+
+        finally {
+            input.close();
+        }
+
+        return entries;
+    }
+
+    private static boolean logExists(final File logDirectory, final String fileName) {
+        return new File(logDirectory, fileName).exists() ||
+                new File(logDirectory, fileName + RotatingLogWriter.COMPRESSED_SUFFIX).exists();
+    }
+
+    private static void writeHeader(final DataOutputStream output, final int lineCount, final List<String> fileNames,
+                                    final byte[] dictionary) throws IOException {
+        final ByteArrayOutputStream files = new ByteArrayOutputStream();
+        final DataOutputStream filesOutput = new DataOutputStream(files);
+        filesOutput.writeInt(fileNames.size());
+
+        for (final String fileName : fileNames) {
+            filesOutput.writeUTF(fileName);
+        }
+
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(lineCount);
+        output.writeInt(files.size());
+        output.writeInt(dictionary.length);
+        files.writeTo(output);
+        output.write(dictionary);
+    }
+
+    private static DataInputStream openAt(final File file, final long position) throws IOException {
+        final InputStream input = new FileInputStream(file);
+
+        try {
+            long skipped = 0;
+
+            while (skipped < position) {
+                final long skip = input.skip(position - skipped);
+
+                if (skip <= 0) {
+                    throw new EOFException("Incomplete chat log index: " + file);
+                }
+
+                skipped += skip;
+            }
+        }
+
+        catch (final IOException e) {
+            input.close();
+            throw e;
+        }
+
+        return new DataInputStream(new BufferedInputStream(input));
+    }
+
+    private static DataOutputStream create(final File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    private static void copy(final File from, final DataOutputStream to) throws IOException {
+        final InputStream input = new FileInputStream(from);
+
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+
+            while ((read = input.read(buffer)) != -1) {
+                to.write(buffer, 0, read);
+            }
+        }
+
+        finally {
+            input.close();
+        }
+    }
+
+    private static void rename(final File from, final File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+
+    private static void deleteIfExists(final File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * A word in the dictionary of a segment file.
+     */
+    private static class DictionaryEntry {
+
+        private final String word;
+
+        /** The number of different lines with the word. */
+        private final int lines;
+
+        /** The number of postings, and where they start. */
+        private final int size;
+        private final int start;
+
+        DictionaryEntry(final String word, final int lines, final int size, final int start) {
+            this.word = word;
+            this.lines = lines;
+            this.size = size;
+            this.start = start;
+        }
+    }
+
+    /**
+     * A word in the dictionary of one of the segments being merged.
+     */
+    private static class SegmentWord {
+
+        private final int segment;
+        private final DictionaryEntry entry;
+
+        SegmentWord(final int segment, final DictionaryEntry entry) {
+            this.segment = segment;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The newest segment of a {@link ChatLogIndex}, where new lines are added until it's full
+ * and saved as a {@link FileChatLogSegment}.
+ *
+ * <p>Thread safe, so it can be searched while lines are added.</p>
+ *
+ * @author Christian Ihle
+ */
+class MemoryChatLogSegment extends ChatLogSegment {
+
+    private final List<String> fileNames;
+    private final int[] fileIndexes;
+    private final long[] offsets;
+    private final long[] times;
+    private final Map<String, Postings> postings;
+
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param maxLines The number of lines the segment can hold.
+     */
+    MemoryChatLogSegment(final int maxLines) {
+        fileNames = new ArrayList<>();
+        fileIndexes = new int[maxLines];
+        offsets = new long[maxLines];
+        times = new long[maxLines];
+        postings = new HashMap<>();
+    }
+
+    synchronized boolean isFull() {
+        return size == fileIndexes.length;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds a line.
+     *
+     * @param fileName The name of the log file the line was written to.
+     * @param offset Where the line starts in the log file, in bytes.
+     * @param time When the line was written, in milliseconds.
+     * @param words The words in the line.
+     */
+    synchronized void add(final String fileName, final long offset, final long time, final List<String> words) {
+        if (isFull()) {
+            throw new IllegalStateException("Segment is full");
+        }
+
+        int fileIndex = fileNames.size() - 1;
+
+        if (fileIndex == -1 || !fileNames.get(fileIndex).equals(fileName)) {
+            fileIndex = fileNames.indexOf(fileName);
+
+            if (fileIndex == -1) {
+                fileNames.add(fileName);
+                fileIndex = fileNames.size() - 1;
+            }
+        }
+
+        for (final String word : words) {
+            Postings wordPostings = postings.get(word);
+
+            if (wordPostings == null) {
+                wordPostings = new Postings();
+                postings.put(word, wordPostings);
+            }
+
+            wordPostings.add(size);
+        }
+
+        fileIndexes[size] = fileIndex;
+        offsets[size] = offset;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     * Saves the segment to a file, with the words sorted.
+     *
+     * @param file The file to save to.
+     * @throws IOException If the file could not be written.
+     */
+    synchronized void save(final File file) throws IOException {
+        FileChatLogSegment.write(file, fileNames, size, fileIndexes, offsets, times, new TreeMap<>(postings));
+    }
+
+    @Override
+    synchronized int getLineCount() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Returns copies, so more lines can be added while they are used.</p>
+     */
+    @Override
+    synchronized Map<String, Postings> findPostings(final Collection<String> words) {
+        final Map<String, Postings> found = new HashMap<>();
+
+        for (final String word : words) {
+            final Postings wordPostings = postings.get(word);
+
+            if (wordPostings != null) {
+                found.put(word, wordPostings.copy());
+            }
+        }
+
+        return found;
+    }
+
+    @Override
+    synchronized LogLine getLogLine(final int line) {
+        return new LogLine(fileNames.get(fileIndexes[line]), offsets[line], times[line]);
+    }
+}
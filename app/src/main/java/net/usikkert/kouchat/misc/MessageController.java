@@ -22,6 +22,9 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.Collections;
+import java.util.List;
+
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.ui.ChatWindow;
 import net.usikkert.kouchat.ui.UserInterface;
@@ -163,6 +166,35 @@ public class MessageController {
         user.getPrivateChatLogger().append(msg);
     }
 
+    /**
+     * Shows the results of a search in the chat, in the same color as system messages.
+     * The results are not added to the log, so they are not found again by later searches.
+     *
+     * @param results The search results to show.
+     */
+    public void showSearchResults(final String results) {
+        final String msg = Tools.getTime() + " *** " + results;
+        chat.appendToChat(msg, settings.getSysColor());
+    }
+
+    /**
+     * Searches the lines in the logs of the main chat.
+     *
+     * @param query The words to search for.
+     * @param maxHits The max number of hits to return.
+     * @return The best hits first.
+     * @see ChatLogIndex#search(String, int)
+     */
+    public List<ChatLogIndex.Hit> searchChatLog(final String query, final int maxHits) {
+        final ChatLogIndex index = cLog.getIndex();
+
+        if (index == null) {
+            return Collections.emptyList();
+        }
+
+        return index.search(query, maxHits);
+    }
+
     /**
      * Cleanup that must be done when shutting down. Closes the chat logger.
      */
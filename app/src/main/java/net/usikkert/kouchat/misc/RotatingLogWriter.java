@@ -0,0 +1,443 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes lines to a log file, and starts a new log file when it gets too big, or the day changes.
+ *
+ * <p>The log files that are done are compressed with gzip on a thread of their own, and the oldest
+ * compressed log files are deleted when there are more than the number of log files to keep.
+ * The log file in use is never compressed or deleted.</p>
+ *
+ * <p>All the log files start with the prefix, followed by the time they were started.
+ * The first log file can be given the time of the session instead, so all the log files
+ * from the same session have the same name.</p>
+ *
+ * <p>The lines can be added to a {@link ChatLogIndex}, with where they start in the log file. A line is added
+ * when it has been written to the log file, after {@link #flush()}, or when the log file is closed.</p>
+ *
+ * <p>Not thread safe. Only one thread should write at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class RotatingLogWriter {
+
+    private static final Logger LOG = Logger.getLogger(RotatingLogWriter.class);
+
+    /** The format of the time in the name of the log files. */
+    static final String TIME_FORMAT = "yyyy.MM.dd-HH.mm.ss-SSS";
+
+    /** The charset of the log files. */
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    /** The end of the name of compressed log files, after the name of the log file. */
+    static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(CHARSET);
+
+    private final File directory;
+    private final String prefix;
+    private final String firstTime;
+    private final long maxSize;
+    private final int keepFiles;
+    private final Pattern compressedFilePattern;
+
+    @Nullable
+    private final ChatLogIndex index;
+
+    /** The lines written, but not yet added to the index. */
+    private final List<IndexedLine> unindexedLines;
+
+    @Nullable
+    private OutputStream output;
+
+    @Nullable
+    private File file;
+
+    @Nullable
+    private ExecutorService compressor;
+
+    /** The size of the current log file, in bytes. */
+    private long size;
+
+    /** When the next day starts, and a new log file is needed. */
+    private long nextDay;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to save the log files in.
+     * @param prefix The start of the name of the log files.
+     * @param firstTime The time to use in the name of the first log file, in {@link #TIME_FORMAT}.
+     * @param maxSize Approximate max bytes in each log file, or 0 to only start a new log file when the day changes.
+     * @param keepFiles Number of compressed log files to keep, or 0 to keep them all.
+     */
+    public RotatingLogWriter(final File directory, final String prefix, final String firstTime, final long maxSize,
+                             final int keepFiles) {
+        this(directory, prefix, firstTime, maxSize, keepFiles, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to save the log files in.
+     * @param prefix The start of the name of the log files.
+     * @param firstTime The time to use in the name of the first log file, in {@link #TIME_FORMAT}.
+     * @param maxSize Approximate max bytes in each log file, or 0 to only start a new log file when the day changes.
+     * @param keepFiles Number of compressed log files to keep, or 0 to keep them all.
+     * @param index The index to add the lines to, or <code>null</code> to not index them.
+     */
+    public RotatingLogWriter(final File directory, final String prefix, final String firstTime, final long maxSize,
+                             final int keepFiles, @Nullable final ChatLogIndex index) {
+        Validate.notNull(directory, "Directory can not be null");
+        Validate.notEmpty(prefix, "Prefix can not be empty");
+        Validate.notEmpty(firstTime, "First time can not be empty");
+
+        this.directory = directory;
+        this.prefix = prefix;
+        this.firstTime = firstTime;
+        this.maxSize = maxSize;
+        this.keepFiles = keepFiles;
+        this.index = index;
+
+        unindexedLines = new ArrayList<>();
+
+        compressedFilePattern = Pattern.compile(Pattern.quote(prefix) +
+                "-\\d{4}\\.\\d{2}\\.\\d{2}-\\d{2}\\.\\d{2}\\.\\d{2}-\\d{3}" + Pattern.quote(LOG_SUFFIX + COMPRESSED_SUFFIX));
+    }
+
+    /**
+     * Opens the first log file. Will append if the log file already exists.
+     *
+     * @throws IOException If the log file could not be opened.
+     */
+    public void open() throws IOException {
+        openFile(new File(directory, prefix + "-" + firstTime + LOG_SUFFIX));
+    }
+
+    /**
+     * Writes a line to the log file, after starting a new log file if needed.
+     *
+     * @param line The line to write.
+     * @throws IOException If the line could not be written.
+     */
+    public void writeLine(final String line) throws IOException {
+        final OutputStream currentOutput = getOutput();
+        final byte[] bytes = line.getBytes(CHARSET);
+        final long now = currentTimeMillis();
+
+        if (size > 0 && (now >= nextDay || maxSize > 0 && size + bytes.length + LINE_SEPARATOR.length > maxSize)) {
+            rotate();
+            writeLine(line);
+            return;
+        }
+
+        currentOutput.write(bytes);
+        currentOutput.write(LINE_SEPARATOR);
+
+        if (index != null) {
+            unindexedLines.add(new IndexedLine(file, size, now, line));
+        }
+
+        size += bytes.length + LINE_SEPARATOR.length;
+    }
+
+    /**
+     * Flushes the lines written to the log file, and adds them to the index.
+     *
+     * @throws IOException If the lines could not be written.
+     */
+    public void flush() throws IOException {
+        getOutput().flush();
+        addToIndex();
+    }
+
+    /**
+     * Closes the log file. The log files still being compressed will be finished in the background.
+     *
+     * @throws IOException If the log file could not be closed.
+     */
+    public void close() throws IOException {
+        final OutputStream currentOutput = output;
+        output = null;
+
+        if (compressor != null) {
+            compressor.shutdown();
+        }
+
+        if (currentOutput != null) {
+            currentOutput.close();
+            addToIndex();
+        }
+    }
+
+    /**
+     * Gets the log file in use.
+     *
+     * @return The current log file, or <code>null</code> if not open.
+     */
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Waits for the log files being compressed after {@link #close()}.
+     *
+     * @param timeout Max milliseconds to wait.
+     * @return If all the log files were compressed before the timeout.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean awaitCompression(final long timeout) throws InterruptedException {
+        return compressor == null || compressor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the current time. Can be overridden in tests.
+     *
+     * @return The current time in milliseconds.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private OutputStream getOutput() throws IOException {
+        if (output == null) {
+            throw new IOException("Log file is closed");
+        }
+
+        return output;
+    }
+
+    /**
+     * Adds the lines written since last time to the index. Only called when they are written to the log file,
+     * so the index never points to a line that is not there.
+     */
+    private void addToIndex() {
+        if (index == null) {
+            return;
+        }
+
+        for (final IndexedLine indexedLine : unindexedLines) {
+            index.add(indexedLine.file, indexedLine.offset, indexedLine.time, indexedLine.line);
+        }
+
+        unindexedLines.clear();
+    }
+
+    private void openFile(final File newFile) throws IOException {
+        output = new BufferedOutputStream(new FileOutputStream(newFile, true));
+        file = newFile;
+        size = newFile.length();
+        nextDay = startOfNextDay(currentTimeMillis());
+    }
+
+    /**
+     * Closes the current log file, compresses it in the background, and opens a new log file.
+     */
+    private void rotate() throws IOException {
+        final File oldFile = file;
+        getOutput().close();
+        addToIndex();
+
+        final long now = currentTimeMillis();
+        File newFile = new File(directory, prefix + "-" + Tools.dateToString(new Date(now), TIME_FORMAT) + LOG_SUFFIX);
+
+        // Only if rotating twice in the same millisecond
+        if (newFile.equals(oldFile)) {
+            newFile = new File(directory, prefix + "-" + Tools.dateToString(new Date(now + 1), TIME_FORMAT) + LOG_SUFFIX);
+        }
+
+        openFile(newFile);
+        LOG.fine("Started new log file %s", newFile);
+
+        if (oldFile != null) {
+            compressInBackground(oldFile);
+        }
+    }
+
+    private void compressInBackground(final File oldFile) {
+        if (compressor == null) {
+            compressor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "ChatLogCompressor");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+
+        compressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compress(oldFile);
+                deleteOldFiles();
+            }
+        });
+    }
+
+    /**
+     * Compresses to a temporary file first, so a compressed log file is never incomplete.
+     */
+    private void compress(final File oldFile) {
+        final File compressedFile = new File(oldFile.getPath() + COMPRESSED_SUFFIX);
+        final File temporaryFile = new File(oldFile.getPath() + COMPRESSED_SUFFIX + ".tmp");
+
+        try {
+            final InputStream inputStream = new FileInputStream(oldFile);
+
+            try {
+                final OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(temporaryFile));
+
+                try {
+                    final byte[] buffer = new byte[64 * 1024];
+                    int read;
+
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                }
+
+                finally {
+                    outputStream.close();
+                }
+            }
+
+            finally {
+                inputStream.close();
+            }
+
+            if (!temporaryFile.renameTo(compressedFile)) {
+                throw new IOException("Could not rename " + temporaryFile + " to " + compressedFile);
+            }
+
+            if (!oldFile.delete()) {
+                LOG.warning("Could not delete %s after compressing it", oldFile);
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e, "Failed to compress %s", oldFile);
+
+            if (temporaryFile.exists() && !temporaryFile.delete()) {
+                LOG.warning("Could not delete %s", temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest compressed log files with this prefix, if there are more than the number to keep.
+     * The names start with the time, so they sort from oldest to newest.
+     */
+    private void deleteOldFiles() {
+        if (keepFiles <= 0) {
+            return;
+        }
+
+        final String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return compressedFilePattern.matcher(name).matches();
+            }
+        });
+
+        if (names == null || names.length <= keepFiles) {
+            return;
+        }
+
+        Arrays.sort(names);
+
+        for (int i = 0; i < names.length - keepFiles; i++) {
+            final File oldFile = new File(directory, names[i]);
+
+            if (oldFile.delete()) {
+                LOG.fine("Deleted old log file %s", oldFile);
+            }
+
+            else {
+                LOG.warning("Could not delete old log file %s", oldFile);
+            }
+        }
+    }
+
+    private static long startOfNextDay(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * A line written to the log file, and where it starts.
+     */
+    private static class IndexedLine {
+
+        private final File file;
+        private final long offset;
+        private final long time;
+        private final String line;
+
+        IndexedLine(final File file, final long offset, final long time, final String line) {
+            this.file = file;
+            this.offset = offset;
+            this.time = time;
+            this.line = line;
+        }
+    }
+}
@@ -194,7 +194,7 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
      */
     @Override
     public void fileSend(final int userCode, final long byteSize, final String fileName,
-                         final String user, final int fileHash) {
+                         final String user, final int fileHash, final FileTransferOptions options) {
         if (controller.isNewUser(userCode)) {
             askUserToIdentify(userCode);
         }
@@ -203,7 +203,7 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
             @Override
             public void run() {
                 waitForUserToIdentify(userCode);
-                messageResponder.fileSend(userCode, byteSize, fileName, user, fileHash);
+                messageResponder.fileSend(userCode, byteSize, fileName, user, fileHash, options);
             }
         });
     }
@@ -218,11 +218,12 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
      * in a different thread.
      */
     @Override
-    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) {
+    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port,
+                                 final FileTransferOptions options) {
         executorService.execute(new Runnable() {
             @Override
             public void run() {
-                messageResponder.fileSendAccepted(userCode, fileName, fileHash, port);
+                messageResponder.fileSendAccepted(userCode, fileName, fileHash, port, options);
             }
         });
     }
@@ -0,0 +1,354 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Shares the bandwidth between all the ongoing file transfers, using token buckets.
+ *
+ * <p>Each file transfer registers a {@link Share} with a weight when the transfer starts,
+ * and is guaranteed a part of the total bandwidth limit matching its part of the total weight.
+ * Each share has its own token bucket, which is filled at the guaranteed rate of the share. The file
+ * transfer uses {@link Share#acquire(long)} after sending or receiving bytes, and is paused
+ * until the bucket has enough tokens.</p>
+ *
+ * <p>The bandwidth a share does not use is not lost. All the bytes transferred are also counted
+ * in a common bucket filled at the total rate. While the file transfers together are below the total
+ * limit, the common bucket has tokens, and a share that is ahead of its guaranteed rate can use them
+ * instead of waiting. A file transfer can then use all the bandwidth the other transfers are not using.</p>
+ *
+ * <p>The limits are read from the settings every time, so they can be changed during a file transfer.
+ * While the user is chatting, the stricter limit from {@link Settings#getFileTransferChatBandwidthLimit()}
+ * is used, so the chat messages are not delayed by the file transfers. The weight of new file transfers
+ * is also read from the settings, and can be changed for each file transfer with {@link #setWeight(Share, int)}.
+ * </p>
+ *
+ * @author Christian Ihle
+ */
+public class BandwidthGovernor {
+
+    private static final Logger LOG = Logger.getLogger(BandwidthGovernor.class);
+
+    /** The weight to use for normal file transfers. */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /** Milliseconds after the last chat message where the chat limit is used. */
+    static final long CHAT_BACKOFF_PERIOD = 2000;
+
+    /** The max milliseconds of tokens a share can save up while not transferring. */
+    private static final long MAX_BURST = 250;
+
+    /** The max milliseconds to sleep before checking the limits again. */
+    private static final long MAX_SLEEP = 100;
+
+    private final Settings settings;
+    private final List<Share> shares;
+
+    /** The sum of the weights of all the shares. */
+    private int totalWeight;
+
+    /** Bytes all the file transfers together can transfer without waiting. Negative when above the limit. */
+    private long commonTokens;
+
+    /** Time the common tokens were last filled, from {@link System#nanoTime()}. */
+    private long lastCommonRefill;
+
+    /** Time of the last chat message, from {@link System#nanoTime()}. */
+    private volatile long lastChatActivity;
+
+    /**
+     * Constructor.
+     *
+     * @param settings The settings to get the bandwidth limits from.
+     */
+    public BandwidthGovernor(final Settings settings) {
+        Validate.notNull(settings, "Settings can not be null");
+
+        this.settings = settings;
+        shares = new ArrayList<>();
+        lastCommonRefill = System.nanoTime();
+        lastChatActivity = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(CHAT_BACKOFF_PERIOD);
+    }
+
+    /**
+     * Registers a new file transfer that wants a share of the bandwidth.
+     *
+     * @param weight The weight of the file transfer, compared to the other file transfers.
+     * @return The share to use during the file transfer.
+     */
+    public synchronized Share register(final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+
+        final Share share = new Share(weight);
+        shares.add(share);
+        totalWeight += weight;
+
+        return share;
+    }
+
+    /**
+     * Changes the weight of a file transfer, compared to the other file transfers.
+     * Takes effect at once, also if the file transfer is waiting for bandwidth.
+     *
+     * @param share The share of the file transfer.
+     * @param weight The new weight of the file transfer.
+     */
+    public synchronized void setWeight(final Share share, final int weight) {
+        Validate.notNull(share, "Share can not be null");
+
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+
+        if (shares.contains(share)) {
+            totalWeight += weight - share.weight;
+        }
+
+        share.weight = weight;
+    }
+
+    /**
+     * Gets the weight to use for new file transfers, from the settings.
+     *
+     * @param direction If the file transfer is sending or receiving.
+     * @return The weight of new file transfers in that direction.
+     */
+    public int getDefaultWeight(final FileTransfer.Direction direction) {
+        Validate.notNull(direction, "Direction can not be null");
+
+        if (direction == FileTransfer.Direction.SEND) {
+            return settings.getFileTransferSendWeight();
+        }
+
+        return settings.getFileTransferReceiveWeight();
+    }
+
+    /**
+     * Removes the share of a file transfer that is done, so the bandwidth is shared between the rest.
+     * Any file transfer waiting for the share is released.
+     *
+     * @param share The share to remove.
+     */
+    public synchronized void unregister(final Share share) {
+        Validate.notNull(share, "Share can not be null");
+
+        share.closed = true;
+
+        if (shares.remove(share)) {
+            totalWeight -= share.weight;
+        }
+    }
+
+    /**
+     * Tells the governor that the user is chatting, so the file transfers back off for a while.
+     */
+    public void chatActivity() {
+        lastChatActivity = System.nanoTime();
+    }
+
+    /**
+     * Checks if there has been any chat messages in the last {@link #CHAT_BACKOFF_PERIOD} milliseconds.
+     *
+     * @return If the user is chatting.
+     */
+    public boolean isChatActive() {
+        return System.nanoTime() - lastChatActivity < TimeUnit.MILLISECONDS.toNanos(CHAT_BACKOFF_PERIOD);
+    }
+
+    /**
+     * Gets the number of file transfers sharing the bandwidth.
+     *
+     * @return The number of registered shares.
+     */
+    public synchronized int getNumberOfShares() {
+        return shares.size();
+    }
+
+    /**
+     * Gets the bandwidth limit to share between all the file transfers right now.
+     *
+     * @return Bytes per second, or 0 if there is no limit.
+     */
+    public long getTotalRate() {
+        long limit = settings.getFileTransferBandwidthLimit();
+
+        if (isChatActive()) {
+            final long chatLimit = settings.getFileTransferChatBandwidthLimit();
+
+            if (chatLimit > 0 && (limit == 0 || chatLimit < limit)) {
+                limit = chatLimit;
+            }
+        }
+
+        return limit * 1024;
+    }
+
+    /**
+     * Gets the part of the total bandwidth limit that belongs to the share.
+     *
+     * @param share The share to get the rate of.
+     * @return Bytes per second, or 0 if there is no limit.
+     */
+    synchronized long getRate(final Share share) {
+        final long totalRate = getTotalRate();
+
+        if (totalRate == 0 || totalWeight == 0) {
+            return totalRate;
+        }
+
+        return Math.max(1, totalRate * share.weight / totalWeight);
+    }
+
+    /**
+     * Counts the bytes just transferred by a share in the common bucket, and gives the share as many of
+     * the unused tokens as it's missing.
+     *
+     * <p>The bytes the share gets are already counted in the common bucket, so they are not taken from it
+     * again. The common bucket goes below zero as soon as the file transfers together are above the limit,
+     * and then each share is back to its guaranteed rate until the common bucket has tokens again.</p>
+     *
+     * @param bytes The number of bytes just transferred by the share.
+     * @param missingTokens The number of tokens the share is missing, or 0 if the share is not waiting.
+     * @param totalRate The total bandwidth limit, in bytes per second.
+     * @return The number of tokens the share can use.
+     */
+    private synchronized long useCommonTokens(final long bytes, final long missingTokens, final long totalRate) {
+        final long now = System.nanoTime();
+        final double seconds = (now - lastCommonRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+        final long maxTokens = totalRate * MAX_BURST / 1000;
+
+        lastCommonRefill = now;
+        commonTokens = (long) Math.min(maxTokens, commonTokens + seconds * totalRate) - bytes;
+
+        if (missingTokens <= 0 || commonTokens <= 0) {
+            return 0;
+        }
+
+        return Math.min(missingTokens, commonTokens);
+    }
+
+    /**
+     * The share of the bandwidth used by a single file transfer.
+     */
+    public final class Share {
+
+        /** Changed by the governor, while holding the lock of the governor. */
+        private int weight;
+
+        /** Bytes that can be transferred without waiting. Negative when the transfer is ahead of the limit. */
+        private long tokens;
+
+        /** Time the tokens were last filled, from {@link System#nanoTime()}. */
+        private long lastRefill;
+
+        private volatile boolean closed;
+
+        private Share(final int weight) {
+            this.weight = weight;
+            lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Takes tokens for the bytes just transferred, and waits until the bucket is no longer in debt.
+         * Returns at once if there is no limit, or the share has been unregistered.
+         *
+         * <p>Only the tokens are updated while holding the lock. Several threads can then use the same
+         * share, without holding each other up while waiting.</p>
+         *
+         * @param bytes The number of bytes just transferred.
+         */
+        public void acquire(final long bytes) {
+            long sleep = takeTokens(bytes);
+
+            while (sleep > 0 && !closed) {
+                try {
+                    Thread.sleep(sleep);
+                }
+
+                catch (final InterruptedException e) {
+                    LOG.warning("Interrupted while waiting for bandwidth");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                sleep = takeTokens(0);
+            }
+        }
+
+        /**
+         * Takes tokens for the bytes just transferred, and fills the bucket with tokens for the time passed,
+         * and with unused tokens from the common bucket if the share is in debt.
+         *
+         * @param bytes The number of bytes just transferred.
+         * @return Milliseconds to sleep before checking again, or 0 if the bucket is not in debt.
+         */
+        private synchronized long takeTokens(final long bytes) {
+            final long totalRate = getTotalRate();
+            final long rate = getRate(this);
+
+            if (rate == 0) {
+                tokens = 0;
+                lastRefill = System.nanoTime();
+                return 0;
+            }
+
+            refill(rate);
+            tokens -= bytes;
+            tokens += useCommonTokens(bytes, -tokens, totalRate);
+
+            if (tokens >= 0) {
+                return 0;
+            }
+
+            return Math.max(1, Math.min(MAX_SLEEP, -tokens * 1000 / rate));
+        }
+
+        /**
+         * Adds the tokens for the time passed since the last refill, but never more than {@link #MAX_BURST}
+         * milliseconds worth of tokens.
+         */
+        private void refill(final long rate) {
+            final long now = System.nanoTime();
+            final double seconds = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+            final long maxTokens = rate * MAX_BURST / 1000;
+
+            lastRefill = now;
+            tokens = (long) Math.min(maxTokens, tokens + seconds * rate);
+        }
+
+        public int getWeight() {
+            synchronized (BandwidthGovernor.this) {
+                return weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.SocketChannel;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.util.TransferTelemetry;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Receives a batch of files over one connection, sent by {@link BatchFileSender}.
+ *
+ * <p>The files are saved in a directory with the name of the batch, using the paths in the manifest.
+ * Paths that would end up outside the directory are rejected, and existing files are never overwritten.</p>
+ *
+ * @author Christian Ihle
+ * @see FileBatch
+ */
+public class BatchFileReceiver {
+
+    private final File directory;
+    private final String name;
+    private final int files;
+    private final long length;
+    private final ChannelTransfer.ProgressListener listener;
+    private final FileTransferListener fileTransferListener;
+    private final boolean checksum;
+
+    /** The telemetry to add the bytes on the network to, if the files are compressed. */
+    @Nullable
+    private TransferTelemetry compressionTelemetry;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to save the files in.
+     * @param name The name of the batch.
+     * @param files The number of files offered.
+     * @param length The total size offered.
+     * @param listener Progress listener for the whole batch.
+     * @param fileTransferListener Notified when each file is received.
+     * @param checksum If each file is followed by a checksum.
+     */
+    public BatchFileReceiver(final File directory, final String name, final int files, final long length,
+                             final ChannelTransfer.ProgressListener listener,
+                             final FileTransferListener fileTransferListener, final boolean checksum) {
+        Validate.notNull(directory, "Directory can not be null");
+        Validate.notNull(listener, "Progress listener can not be null");
+        Validate.notNull(fileTransferListener, "File transfer listener can not be null");
+
+        this.directory = directory;
+        this.name = name;
+        this.files = files;
+        this.length = length;
+        this.listener = listener;
+        this.fileTransferListener = fileTransferListener;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Sets if each file should be received compressed with {@link CompressedTransfer}.
+     *
+     * @param telemetry The telemetry to add the bytes on the network to.
+     */
+    public void setCompression(final TransferTelemetry telemetry) {
+        Validate.notNull(telemetry, "Telemetry can not be null");
+        compressionTelemetry = telemetry;
+    }
+
+    /**
+     * Reads the manifest, and receives all the files in the batch.
+     *
+     * @param socketChannel The connection from the user.
+     * @return If all the files were received.
+     * @throws IOException If the transfer fails, the manifest is invalid, or a file could not be saved.
+     */
+    public boolean receive(final SocketChannel socketChannel) throws IOException {
+        final FileBatch batch = FileBatch.readManifest(socketChannel, name, files, length);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+
+        final String directoryPath = directory.getCanonicalPath() + File.separator;
+
+        for (final FileBatch.Entry entry : batch.getEntries()) {
+            if (listener.isCanceled()) {
+                return false;
+            }
+
+            final File file = createFile(directoryPath, entry.getPath());
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                final CRC32 crc = checksum ? new CRC32() : null;
+                final long received;
+
+                if (compressionTelemetry != null) {
+                    received = CompressedTransfer.receive(socketChannel, raf.getChannel(), 0, entry.getLength(),
+                                                          listener, crc, compressionTelemetry);
+                }
+
+                else {
+                    received = ChannelTransfer.receiveFile(socketChannel, raf.getChannel(), 0, entry.getLength(),
+                                                           listener, crc);
+                }
+
+                if (listener.isCanceled()) {
+                    return false;
+                }
+
+                if (received != entry.getLength()) {
+                    throw new EOFException("Connection closed while receiving " + entry.getPath());
+                }
+
+                if (crc != null) {
+                    final long expectedChecksum = ChannelTransfer.readLong(socketChannel);
+
+                    if (expectedChecksum != crc.getValue()) {
+                        throw new IOException("Checksum mismatch for " + entry.getPath() + ", expected " +
+                                                      expectedChecksum + " but got " + crc.getValue());
+                    }
+                }
+            }
+
+            finally {
+                raf.close();
+            }
+
+            fileTransferListener.fileCompleted(file);
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates a new empty file for an entry in the manifest, and the directories leading to it.
+     *
+     * @param directoryPath The canonical path of the directory to save in, ending with a separator.
+     * @param path The path of the entry.
+     * @return The new file.
+     * @throws IOException If the file is outside the directory, already exists, or could not be created.
+     */
+    private File createFile(final String directoryPath, final String path) throws IOException {
+        final File file = new File(directoryPath, path.replace('/', File.separatorChar));
+
+        // Catches symbolic links in the directory pointing somewhere else
+        if (!file.getCanonicalPath().startsWith(directoryPath)) {
+            throw new IOException("Path is outside of " + directoryPath + ": " + path);
+        }
+
+        final File parent = file.getParentFile();
+
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+
+        if (!file.createNewFile()) {
+            throw new IOException("File already exists: " + file);
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.util.TransferTelemetry;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Sends a batch of files over one connection, to be received by {@link BatchFileReceiver}.
+ *
+ * <p>The manifest is sent first, and then the files one after another without waiting for the
+ * user in between, so many small files don't need a round trip each.</p>
+ *
+ * @author Christian Ihle
+ * @see FileBatch
+ */
+public class BatchFileSender {
+
+    private final FileBatch batch;
+    private final ChannelTransfer.ProgressListener listener;
+    private final FileTransferListener fileTransferListener;
+    private final boolean checksum;
+
+    /** The telemetry to add the bytes on the network to, if the files are compressed. */
+    @Nullable
+    private TransferTelemetry compressionTelemetry;
+
+    /**
+     * Constructor.
+     *
+     * @param batch The files to send.
+     * @param listener Progress listener for the whole batch.
+     * @param fileTransferListener Notified when each file is sent.
+     * @param checksum If each file should be followed by a checksum.
+     */
+    public BatchFileSender(final FileBatch batch, final ChannelTransfer.ProgressListener listener,
+                           final FileTransferListener fileTransferListener, final boolean checksum) {
+        Validate.notNull(batch, "Batch can not be null");
+        Validate.notNull(listener, "Progress listener can not be null");
+        Validate.notNull(fileTransferListener, "File transfer listener can not be null");
+
+        this.batch = batch;
+        this.listener = listener;
+        this.fileTransferListener = fileTransferListener;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Sets if each file should be sent compressed with {@link CompressedTransfer}.
+     *
+     * @param telemetry The telemetry to add the bytes on the network to.
+     */
+    public void setCompression(final TransferTelemetry telemetry) {
+        Validate.notNull(telemetry, "Telemetry can not be null");
+        compressionTelemetry = telemetry;
+    }
+
+    /**
+     * Sends the manifest, and all the files in the batch.
+     *
+     * @param socketChannel The connection to the user.
+     * @return If all the files were sent.
+     * @throws IOException If the transfer fails, or a file changed size after the batch was offered.
+     */
+    public boolean send(final SocketChannel socketChannel) throws IOException {
+        batch.writeManifest(socketChannel);
+
+        for (final FileBatch.Entry entry : batch.getEntries()) {
+            if (listener.isCanceled()) {
+                return false;
+            }
+
+            final File file = entry.getFile();
+
+            if (file == null) {
+                throw new IOException("Missing file for " + entry.getPath());
+            }
+
+            final FileChannel fileChannel = new FileInputStream(file).getChannel();
+
+            try {
+                final CRC32 crc = checksum ? new CRC32() : null;
+                final long sent;
+
+                if (compressionTelemetry != null) {
+                    sent = CompressedTransfer.send(fileChannel, socketChannel, entry.getLength(), listener, crc,
+                                                   compressionTelemetry);
+                }
+
+                else {
+                    sent = ChannelTransfer.sendFile(fileChannel, socketChannel, 0, entry.getLength(), listener, crc);
+                }
+
+                if (listener.isCanceled()) {
+                    return false;
+                }
+
+                // The sizes in the manifest decide where each file ends, so they must be exact
+                if (sent != entry.getLength()) {
+                    throw new IOException(entry.getPath() + " changed size after the batch was offered");
+                }
+
+                if (crc != null) {
+                    ChannelTransfer.writeLong(socketChannel, crc.getValue());
+                }
+            }
+
+            finally {
+                fileChannel.close();
+            }
+
+            fileTransferListener.fileCompleted(file);
+        }
+
+        return true;
+    }
+}
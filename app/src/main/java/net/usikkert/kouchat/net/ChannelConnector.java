@@ -0,0 +1,194 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Connects a socket channel without blocking, so the connection attempt can be given a deadline,
+ * and be canceled from another thread.
+ *
+ * <p>If the connection is refused, because the user is not listening yet, the connection is tried again
+ * after a short delay until the deadline. Other errors, like an unreachable address, fail right away.</p>
+ *
+ * <p>Each connector is used for the connections of one file transfer, and can not be used again
+ * after {@link #cancel()}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ChannelConnector {
+
+    private static final Logger LOG = Logger.getLogger(ChannelConnector.class);
+
+    /** Default milliseconds to keep trying to connect before giving up. */
+    public static final int CONNECT_TIMEOUT = 10000;
+
+    /** Milliseconds to wait before trying again when the connection is refused. */
+    static final int RETRY_DELAY = 50;
+
+    private volatile boolean canceled;
+
+    @Nullable
+    private volatile Selector selector;
+
+    /**
+     * Connects to the address, trying again if the connection is refused, until the timeout.
+     *
+     * @param address The address to connect to.
+     * @param timeout Milliseconds to keep trying before giving up.
+     * @return The connected channel, in blocking mode.
+     * @throws ConnectException If the connection was still refused at the timeout.
+     * @throws SocketTimeoutException If the connection did not complete before the timeout.
+     * @throws InterruptedIOException If the connector was canceled.
+     * @throws IOException If the connection failed for another reason.
+     */
+    public SocketChannel connect(final InetSocketAddress address, final long timeout) throws IOException {
+        Validate.notNull(address, "Address can not be null");
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final Selector openedSelector = Selector.open();
+        selector = openedSelector;
+
+        try {
+            int attempts = 0;
+
+            while (true) {
+                checkCanceled();
+                attempts++;
+
+                try {
+                    final SocketChannel channel = tryConnect(openedSelector, address, deadline);
+                    LOG.fine("Connected to %s after %s attempts", address, attempts);
+
+                    return channel;
+                }
+
+                catch (final ConnectException e) {
+                    final long remaining = remainingMillis(deadline);
+
+                    if (remaining <= 0) {
+                        throw e;
+                    }
+
+                    openedSelector.select(Math.min(RETRY_DELAY, remaining));
+                }
+            }
+        }
+
+        finally {
+            selector = null;
+            openedSelector.close();
+        }
+    }
+
+    /**
+     * Stops a connection attempt in progress, or the next one, at once.
+     */
+    public void cancel() {
+        canceled = true;
+
+        final Selector currentSelector = selector;
+
+        if (currentSelector != null) {
+            currentSelector.wakeup();
+        }
+    }
+
+    /**
+     * Checks if the connector has been canceled.
+     *
+     * @return If canceled.
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    private SocketChannel tryConnect(final Selector openedSelector, final InetSocketAddress address,
+                                     final long deadline) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        boolean connected = false;
+
+        try {
+            channel.configureBlocking(false);
+
+            if (!channel.connect(address)) {
+                final SelectionKey key = channel.register(openedSelector, SelectionKey.OP_CONNECT);
+
+                try {
+                    while (!channel.finishConnect()) {
+                        checkCanceled();
+                        final long remaining = remainingMillis(deadline);
+
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("Timed out connecting to " + address);
+                        }
+
+                        openedSelector.select(remaining);
+                        openedSelector.selectedKeys().clear();
+                    }
+                }
+
+                finally {
+                    key.cancel();
+                    // Removes the canceled key, so the channel can go back to blocking mode
+                    openedSelector.selectNow();
+                }
+            }
+
+            checkCanceled();
+            channel.configureBlocking(true);
+            connected = true;
+
+            return channel;
+        }
+
+        finally {
+            if (!connected) {
+                channel.close();
+            }
+        }
+    }
+
+    private void checkCanceled() throws InterruptedIOException {
+        if (canceled) {
+            throw new InterruptedIOException("Connect canceled");
+        }
+    }
+
+    private long remainingMillis(final long deadline) {
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+}
@@ -0,0 +1,341 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Copies file transfer data between channels, without going through a small <code>byte[]</code>
+ * in a read/write loop.
+ *
+ * <p>A regular file is sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * and received with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, which lets the
+ * operating system copy the data directly when supported. Other sources, like an Android content uri,
+ * are copied through a large direct buffer.</p>
+ *
+ * <p>When a {@link Checksum} is used with a regular file, the checksum is updated by reading each chunk
+ * from the file again after it is transferred, so the transfer itself still goes directly between the
+ * file and the connection. The chunk was just read or written, so it is usually read from the cache.</p>
+ *
+ * <p>The data is copied in chunks of {@link #CHUNK_SIZE} bytes, to report progress and check for
+ * cancel between each chunk.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class ChannelTransfer {
+
+    /** Max number of bytes to copy before reporting progress. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Number of bytes to transfer between each progress update when the percent is unchanged. */
+    static final int UPDATE_INTERVAL = 256 * 1024;
+
+    private ChannelTransfer() {
+        // Only static methods
+    }
+
+    /**
+     * Sends from a file channel, until the length of the file is sent, or the transfer is canceled.
+     *
+     * @param source The file to send.
+     * @param target The channel to the other user.
+     * @param start The position in the file to start sending from.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @return The number of bytes sent.
+     * @throws IOException If the transfer fails.
+     */
+    public static long sendFile(final FileChannel source, final WritableByteChannel target, final long start,
+                                final long length, final ProgressListener listener) throws IOException {
+        return sendFile(source, target, start, length, listener, null);
+    }
+
+    /**
+     * Sends from a file channel, until the length of the file is sent, or the transfer is canceled.
+     *
+     * @param source The file to send.
+     * @param target The channel to the other user.
+     * @param start The position in the file to start sending from.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @param checksum Checksum to update with the bytes sent, or <code>null</code>.
+     * @return The number of bytes sent.
+     * @throws IOException If the transfer fails.
+     */
+    public static long sendFile(final FileChannel source, final WritableByteChannel target, final long start,
+                                final long length, final ProgressListener listener,
+                                @Nullable final Checksum checksum) throws IOException {
+        final ByteBuffer buffer = checksum != null ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+        long position = start;
+
+        while (!listener.isCanceled() && position < length) {
+            final int count = (int) Math.min(CHUNK_SIZE, length - position);
+            final long sent = source.transferTo(position, count, target);
+
+            if (sent <= 0) {
+                break;
+            }
+
+            if (checksum != null) {
+                updateChecksum(source, position, sent, buffer, checksum);
+            }
+
+            position += sent;
+            listener.bytesTransferred(sent);
+        }
+
+        return position - start;
+    }
+
+    /**
+     * Receives into a file channel, until the expected length is received, the other user closes
+     * the connection, or the transfer is canceled.
+     *
+     * @param source The channel from the other user.
+     * @param target The file to save to.
+     * @param start The position in the file to start saving to.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @return The number of bytes received.
+     * @throws IOException If the transfer fails.
+     */
+    public static long receiveFile(final ReadableByteChannel source, final FileChannel target, final long start,
+                                   final long length, final ProgressListener listener) throws IOException {
+        return receiveFile(source, target, start, length, listener, null);
+    }
+
+    /**
+     * Receives into a file channel, until the expected length is received, the other user closes
+     * the connection, or the transfer is canceled.
+     *
+     * @param source The channel from the other user.
+     * @param target The file to save to.
+     * @param start The position in the file to start saving to.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @param checksum Checksum to update with the bytes received, or <code>null</code>.
+     * @return The number of bytes received.
+     * @throws IOException If the transfer fails.
+     */
+    public static long receiveFile(final ReadableByteChannel source, final FileChannel target, final long start,
+                                   final long length, final ProgressListener listener,
+                                   @Nullable final Checksum checksum) throws IOException {
+        final ByteBuffer buffer = checksum != null ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+        long position = start;
+
+        while (!listener.isCanceled() && position < length) {
+            final int count = (int) Math.min(CHUNK_SIZE, length - position);
+
+            // transferFrom() returns 0 when the other user closes the connection
+            final long received = target.transferFrom(source, position, count);
+
+            if (received <= 0) {
+                break;
+            }
+
+            if (checksum != null) {
+                updateChecksum(target, position, received, buffer, checksum);
+            }
+
+            position += received;
+            listener.bytesTransferred(received);
+        }
+
+        return position - start;
+    }
+
+    /**
+     * Copies between any two channels through a direct buffer, until the end of the source,
+     * or the transfer is canceled.
+     *
+     * @param source The channel to copy from.
+     * @param target The channel to copy to.
+     * @param listener Progress listener.
+     * @return The number of bytes copied.
+     * @throws IOException If the transfer fails.
+     */
+    public static long copy(final ReadableByteChannel source, final WritableByteChannel target,
+                            final ProgressListener listener) throws IOException {
+        return copy(source, target, listener, null);
+    }
+
+    /**
+     * Copies between any two channels through a buffer, until the end of the source,
+     * or the transfer is canceled.
+     *
+     * @param source The channel to copy from.
+     * @param target The channel to copy to.
+     * @param listener Progress listener.
+     * @param checksum Checksum to update with the bytes copied, or <code>null</code> to use a direct buffer.
+     * @return The number of bytes copied.
+     * @throws IOException If the transfer fails.
+     */
+    public static long copy(final ReadableByteChannel source, final WritableByteChannel target,
+                            final ProgressListener listener, @Nullable final Checksum checksum) throws IOException {
+        final ByteBuffer buffer = checksum != null ? ByteBuffer.allocate(CHUNK_SIZE) : ByteBuffer.allocateDirect(CHUNK_SIZE);
+        long copied = 0;
+
+        while (!listener.isCanceled() && source.read(buffer) != -1) {
+            buffer.flip();
+            final int bytes = buffer.remaining();
+
+            if (checksum != null) {
+                checksum.update(buffer.array(), 0, bytes);
+            }
+
+            writeFully(target, buffer);
+            buffer.clear();
+            copied += bytes;
+            listener.bytesTransferred(bytes);
+        }
+
+        return copied;
+    }
+
+    /**
+     * Calculates the CRC32 checksum of the next bytes in the channel.
+     *
+     * @param source The channel to read from.
+     * @param length The number of bytes to include.
+     * @return The checksum, or <code>-1</code> if the channel ended before all the bytes were read.
+     * @throws IOException If reading fails.
+     */
+    public static long checksum(final ReadableByteChannel source, final long length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        final CRC32 crc = new CRC32();
+        long remaining = length;
+
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            final int read = source.read(buffer);
+
+            if (read == -1) {
+                return -1;
+            }
+
+            crc.update(buffer.array(), 0, read);
+            remaining -= read;
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Reads exactly the bytes the buffer has room for.
+     *
+     * @param source The channel to read from.
+     * @param buffer The buffer to fill.
+     * @throws IOException If reading fails, or the channel ends first.
+     */
+    public static void readFully(final ReadableByteChannel source, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) == -1) {
+                throw new EOFException("Channel ended with " + buffer.remaining() + " bytes left to read");
+            }
+        }
+    }
+
+    /**
+     * Reads a long, like a position or a checksum.
+     *
+     * @param source The channel to read from.
+     * @return The long.
+     * @throws IOException If reading fails, or the channel ends first.
+     */
+    public static long readLong(final ReadableByteChannel source) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(source, buffer);
+        buffer.flip();
+
+        return buffer.getLong();
+    }
+
+    /**
+     * Writes a long, like a position or a checksum.
+     *
+     * @param target The channel to write to.
+     * @param value The long to write.
+     * @throws IOException If writing fails.
+     */
+    public static void writeLong(final WritableByteChannel target, final long value) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(value);
+        buffer.flip();
+
+        writeFully(target, buffer);
+    }
+
+    static void writeFully(final WritableByteChannel target, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static void updateChecksum(final FileChannel file, final long position, final long count,
+                                       final ByteBuffer buffer, final Checksum checksum) throws IOException {
+        long read = 0;
+
+        while (read < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - read));
+            final int bytes = file.read(buffer, position + read);
+
+            if (bytes == -1) {
+                throw new EOFException("File ended with " + (count - read) + " bytes left to checksum");
+            }
+
+            checksum.update(buffer.array(), 0, bytes);
+            read += bytes;
+        }
+    }
+
+    /**
+     * Listener for the progress of a transfer.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Checks if the transfer should stop.
+         *
+         * @return If the transfer is canceled.
+         */
+        boolean isCanceled();
+
+        /**
+         * Notifies that more bytes were transferred.
+         *
+         * @param bytes Number of bytes transferred since last time.
+         */
+        void bytesTransferred(long bytes);
+    }
+}
@@ -0,0 +1,327 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.TransferTelemetry;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Transfers a file compressed with DEFLATE at the fastest level, for files like logs and text
+ * that compress well.
+ *
+ * <p>The file is sent in blocks of up to {@link #BLOCK_SIZE} bytes. Each block starts with a header of
+ * two ints: the number of bytes in the file, and the number of compressed bytes that follow,
+ * or 0 if the block is sent uncompressed. Each block is compressed on its own, so any block can be
+ * sent uncompressed when compressing it did not help.</p>
+ *
+ * <p>The first {@link #PROBE_BLOCKS} blocks are used to check if the file compresses well enough
+ * to be worth the time. If not, like with images and archives, the rest of the file is sent
+ * uncompressed without trying.</p>
+ *
+ * <p>The receiver only asks for compression for the types of files in {@link #isCompressible(String)},
+ * so other files can be sent directly between the file and the connection.</p>
+ *
+ * <p>The progress listener gets the bytes of the file, while the bytes on the wire are added
+ * to the telemetry with {@link TransferTelemetry#addWireBytes(long)}.</p>
+ *
+ * @author Christian Ihle
+ * @see FileTransferOptions#DEFLATE
+ */
+public final class CompressedTransfer {
+
+    private static final Logger LOG = Logger.getLogger(CompressedTransfer.class);
+
+    /** Max number of bytes of the file in each block. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Number of blocks to check before deciding to stop compressing. */
+    static final int PROBE_BLOCKS = 4;
+
+    /** Compression stops if the probed blocks are larger than this ratio of the original size. */
+    static final double MAX_RATIO = 0.9;
+
+    /** Number of bytes in the header of each block. */
+    private static final int HEADER_SIZE = 8;
+
+    /** File extensions of the types of files that usually compress well. */
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ".txt", ".log", ".csv", ".tsv", ".xml", ".json", ".html", ".htm", ".css", ".js", ".svg", ".md",
+            ".java", ".c", ".h", ".cpp", ".py", ".sql", ".properties", ".yml", ".yaml", ".ini", ".conf",
+            ".rtf", ".bmp", ".wav", ".tar")));
+
+    private CompressedTransfer() {
+        // Only static methods
+    }
+
+    /**
+     * Checks if a file is of a type that usually compresses well, like text and logs.
+     *
+     * @param fileName The name of the file.
+     * @return If the file should be transferred compressed.
+     */
+    public static boolean isCompressible(final String fileName) {
+        final String extension = Tools.getFileExtension(fileName);
+
+        return extension != null && COMPRESSIBLE_EXTENSIONS.contains(extension.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Sends from a channel, until the length is sent, the source ends, or the transfer is canceled.
+     *
+     * @param source The file to send, positioned where to start sending from.
+     * @param target The channel to the other user.
+     * @param length The number of bytes to send.
+     * @param listener Progress listener.
+     * @param checksum Checksum to update with the bytes of the file, or <code>null</code>.
+     * @param telemetry Telemetry to add the bytes on the wire to.
+     * @return The number of bytes of the file sent.
+     * @throws IOException If the transfer fails.
+     */
+    public static long send(final ReadableByteChannel source, final WritableByteChannel target, final long length,
+                            final ChannelTransfer.ProgressListener listener, @Nullable final Checksum checksum,
+                            final TransferTelemetry telemetry) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        final ByteBuffer compressed = ByteBuffer.allocate(BLOCK_SIZE);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        boolean compress = true;
+        int probedBlocks = 0;
+        long probedBytes = 0;
+        long probedWireBytes = 0;
+        long sent = 0;
+
+        try {
+            while (!listener.isCanceled() && sent < length) {
+                block.clear();
+                block.limit((int) Math.min(BLOCK_SIZE, length - sent));
+
+                if (!readBlock(source, block)) {
+                    break;
+                }
+
+                block.flip();
+                final int bytes = block.remaining();
+
+                if (checksum != null) {
+                    checksum.update(block.array(), 0, bytes);
+                }
+
+                final int compressedBytes = compress ? deflate(deflater, block, compressed) : 0;
+                final ByteBuffer payload = compressedBytes > 0 ? compressed : block;
+
+                header.clear();
+                header.putInt(bytes).putInt(compressedBytes);
+                header.flip();
+
+                ChannelTransfer.writeFully(target, header);
+                ChannelTransfer.writeFully(target, payload);
+
+                final long wireBytes = HEADER_SIZE + (compressedBytes > 0 ? compressedBytes : bytes);
+
+                if (compress && probedBlocks < PROBE_BLOCKS) {
+                    probedBlocks++;
+                    probedBytes += bytes;
+                    probedWireBytes += wireBytes;
+
+                    if (probedBlocks == PROBE_BLOCKS && probedWireBytes > probedBytes * MAX_RATIO) {
+                        LOG.fine("Stopped compressing, %s bytes became %s bytes", probedBytes, probedWireBytes);
+                        compress = false;
+                    }
+                }
+
+                sent += bytes;
+                telemetry.addWireBytes(wireBytes);
+                listener.bytesTransferred(bytes);
+            }
+        }
+
+        finally {
+            deflater.end();
+        }
+
+        return sent;
+    }
+
+    /**
+     * Receives into a file channel, until the expected length is received, or the transfer is canceled.
+     *
+     * @param source The channel from the other user.
+     * @param target The file to save to.
+     * @param start The position in the file to start saving to.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @param checksum Checksum to update with the bytes of the file, or <code>null</code>.
+     * @param telemetry Telemetry to add the bytes on the wire to.
+     * @return The number of bytes of the file received.
+     * @throws IOException If the transfer fails, the other user closes the connection, or a block is invalid.
+     */
+    public static long receive(final ReadableByteChannel source, final FileChannel target, final long start,
+                               final long length, final ChannelTransfer.ProgressListener listener,
+                               @Nullable final Checksum checksum, final TransferTelemetry telemetry)
+            throws IOException {
+        final Inflater inflater = new Inflater();
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        final ByteBuffer compressed = ByteBuffer.allocate(BLOCK_SIZE);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = start;
+
+        try {
+            while (!listener.isCanceled() && position < length) {
+                header.clear();
+                ChannelTransfer.readFully(source, header);
+
+                final int bytes = header.getInt(0);
+                final int compressedBytes = header.getInt(4);
+
+                if (bytes <= 0 || bytes > BLOCK_SIZE || bytes > length - position
+                        || compressedBytes < 0 || compressedBytes >= bytes) {
+                    throw new IOException("Invalid block header: " + bytes + ", " + compressedBytes);
+                }
+
+                block.clear();
+                block.limit(bytes);
+
+                if (compressedBytes == 0) {
+                    ChannelTransfer.readFully(source, block);
+                }
+
+                else {
+                    compressed.clear();
+                    compressed.limit(compressedBytes);
+                    ChannelTransfer.readFully(source, compressed);
+                    inflate(inflater, compressed, block);
+                }
+
+                block.flip();
+
+                if (checksum != null) {
+                    checksum.update(block.array(), 0, bytes);
+                }
+
+                while (block.hasRemaining()) {
+                    position += target.write(block, position);
+                }
+
+                telemetry.addWireBytes(HEADER_SIZE + (compressedBytes > 0 ? compressedBytes : bytes));
+                listener.bytesTransferred(bytes);
+            }
+        }
+
+        finally {
+            inflater.end();
+        }
+
+        return position - start;
+    }
+
+    /**
+     * Reads from the channel until the block is full, or the channel ends.
+     *
+     * @return If anything was read.
+     */
+    private static boolean readBlock(final ReadableByteChannel source, final ByteBuffer block) throws IOException {
+        while (block.hasRemaining()) {
+            if (source.read(block) == -1) {
+                break;
+            }
+        }
+
+        return block.position() > 0;
+    }
+
+    /**
+     * Compresses the block on its own.
+     *
+     * @return The number of compressed bytes, or 0 if the compressed block would not be smaller.
+     */
+    private static int deflate(final Deflater deflater, final ByteBuffer block, final ByteBuffer compressed) {
+        final int bytes = block.remaining();
+
+        deflater.reset();
+        deflater.setInput(block.array(), 0, bytes);
+        deflater.finish();
+
+        int compressedBytes = 0;
+
+        while (!deflater.finished()) {
+            if (compressedBytes >= bytes - 1) {
+                return 0;
+            }
+
+            compressedBytes += deflater.deflate(compressed.array(), compressedBytes, bytes - 1 - compressedBytes);
+        }
+
+        compressed.clear();
+        compressed.limit(compressedBytes);
+
+        return compressedBytes;
+    }
+
+    /**
+     * Decompresses a block, which must be exactly the size of the block buffer.
+     */
+    private static void inflate(final Inflater inflater, final ByteBuffer compressed, final ByteBuffer block)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed.array(), 0, compressed.limit());
+
+        try {
+            while (block.hasRemaining() && !inflater.finished()) {
+                final int inflated = inflater.inflate(block.array(), block.position(), block.remaining());
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                block.position(block.position() + inflated);
+            }
+        }
+
+        catch (final DataFormatException e) {
+            throw new IOException("Invalid compressed block: " + e.getMessage());
+        }
+
+        if (block.hasRemaining() || !inflater.finished()) {
+            throw new IOException("Compressed block did not match the size in the header");
+        }
+    }
+}
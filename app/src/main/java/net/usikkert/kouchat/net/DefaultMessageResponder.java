@@ -23,6 +23,7 @@
 package net.usikkert.kouchat.net;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 
 import net.usikkert.kouchat.message.CoreMessages;
@@ -62,6 +63,7 @@ public class DefaultMessageResponder implements MessageResponder {
     private final MessageController msgController;
     private final ChatState chatState;
     private final CoreMessages coreMessages;
+    private final Settings settings;
 
     /**
      * Constructor.
@@ -81,6 +83,7 @@ public class DefaultMessageResponder implements MessageResponder {
         this.controller = controller;
         this.ui = ui;
         this.coreMessages = coreMessages;
+        this.settings = settings;
 
         msgController = ui.getMessageController();
         me = settings.getMe();
@@ -470,18 +473,35 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param fileName The name of the file.
      * @param user The nick name of the user.
      * @param fileHash The hash code of the file.
+     * @param options The file transfer options supported by the user.
      */
     @Override
-    public void fileSend(final int userCode, final long byteSize, final String fileName, final String user, final int fileHash) {
+    public void fileSend(final int userCode, final long byteSize, final String fileName, final String user,
+                         final int fileHash, final FileTransferOptions options) {
         if (!controller.isNewUser(userCode)) {
+            final int batchFiles = getBatchFiles(options);
+
+            if (batchFiles < 0) {
+                LOG.severe("Invalid batch of files from %s: %s", user, options);
+                return;
+            }
+
             final String size = Tools.byteToString(byteSize);
             final User tmpUser = controller.getUser(userCode);
             final File defaultFile = new File(
                     System.getProperty("user.home") + System.getProperty("file.separator") + fileName);
             final FileReceiver fileRes = tList.addFileReceiver(tmpUser, defaultFile, byteSize);
+            fileRes.setBatchFiles(batchFiles);
+
+            if (batchFiles > 0) {
+                msgController.showSystemMessage(user + " is trying to send " + batchFiles + " files in " + fileName +
+                                                        " (#" + fileRes.getId() + ") [" + size + "]");
+            }
 
-            msgController.showSystemMessage(
-                    user + " is trying to send the file " + fileName + " (#" + fileRes.getId() + ") [" + size + "]");
+            else {
+                msgController.showSystemMessage(
+                        user + " is trying to send the file " + fileName + " (#" + fileRes.getId() + ") [" + size + "]");
+            }
 
             if (ui.askFileSave(user, fileName, size)) {
                 ui.showFileSave(fileRes);
@@ -489,9 +509,21 @@ public class DefaultMessageResponder implements MessageResponder {
                 if (fileRes.isAccepted() && !fileRes.isCanceled()) {
                     ui.showTransfer(fileRes);
 
+                    if (options.has(FileTransferOptions.RESUME) && batchFiles == 0) {
+                        prepareResume(fileRes, tmpUser, fileName, byteSize);
+                    }
+
+                    fileRes.setResumable(options.has(FileTransferOptions.RESUME) && batchFiles == 0);
+                    fileRes.setParallel(options.has(FileTransferOptions.PARALLEL));
+                    fileRes.setChecksum(options.has(FileTransferOptions.CHECKSUM) && settings.isFileTransferChecksum());
+                    fileRes.setCompression(options.has(FileTransferOptions.DEFLATE) &&
+                                                   settings.isFileTransferCompression() &&
+                                                   (batchFiles > 0 || CompressedTransfer.isCompressible(fileName)));
+                    fileRes.setToken(options.has(FileTransferOptions.TOKEN));
+
                     try {
                         final int port = fileRes.startServer();
-                        controller.sendFileAccept(tmpUser, port, fileHash, fileName);
+                        controller.sendFileAccept(tmpUser, port, fileHash, fileName, fileRes.getAcceptOptions());
 
                         if (fileRes.transfer()) {
                             msgController.showSystemMessage("Successfully received " + fileName +
@@ -500,6 +532,11 @@ public class DefaultMessageResponder implements MessageResponder {
 
                         else {
                             msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
+
+                            if (fileRes.isResumable()) {
+                                tList.addPartialFile(tmpUser, fileName, byteSize, fileRes.getFile());
+                            }
+
                             fileRes.cancel();
                         }
                     }
@@ -539,6 +576,54 @@ public class DefaultMessageResponder implements MessageResponder {
         }
     }
 
+    /**
+     * Gets the number of files offered, if the user is sending a batch of files.
+     *
+     * @param options The file transfer options from the user.
+     * @return The number of files, <code>0</code> if not a batch, or <code>-1</code> if invalid.
+     */
+    private int getBatchFiles(final FileTransferOptions options) {
+        final String batch = options.get(FileTransferOptions.BATCH);
+
+        if (batch == null) {
+            return 0;
+        }
+
+        try {
+            final int files = Integer.parseInt(batch);
+            return files > 0 ? files : -1;
+        }
+
+        catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Continues saving to the file from an earlier failed file transfer of the same file, if there is one.
+     *
+     * @param fileRes The file reception object.
+     * @param user The user sending the file.
+     * @param fileName The name of the file.
+     * @param byteSize The size of the file in bytes.
+     */
+    private void prepareResume(final FileReceiver fileRes, final User user, final String fileName, final long byteSize) {
+        final File partialFile = tList.removePartialFile(user, fileName, byteSize);
+
+        if (partialFile == null) {
+            return;
+        }
+
+        try {
+            fileRes.prepareResume(partialFile);
+            msgController.showSystemMessage("Resuming " + fileName + " from " + Tools.byteToString(partialFile.length()));
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to read partial file %s, receiving the whole file: %s", partialFile, e.getMessage());
+        }
+    }
+
     /**
      * The other user stopped a file transfer from the application user,
      * or the other way around.
@@ -575,9 +660,11 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param fileName The name of the file.
      * @param fileHash The hash code of the file.
      * @param port The port to use for connecting to the other user.
+     * @param options The file transfer options to use.
      */
     @Override
-    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) {
+    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port,
+                                 final FileTransferOptions options) {
         final User user = controller.getUser(userCode);
         final FileSender fileSend = tList.getFileSender(user, fileName, fileHash);
 
@@ -587,7 +674,7 @@ public class DefaultMessageResponder implements MessageResponder {
             // Give the server some time to set up the connection first
             sleeper.sleep(200);
 
-            if (fileSend.transfer(port)) {
+            if (fileSend.transfer(port, options)) {
                 msgController.showSystemMessage(fileName + " successfully sent to " + user.getNick());
             }
 
@@ -619,7 +706,7 @@ public class DefaultMessageResponder implements MessageResponder {
             user.setLogonTime(System.currentTimeMillis() - timeSinceLogon);
             user.setOperatingSystem(operatingSystem);
             user.setPrivateChatPort(privateChatPort);
-            user.setTcpChatPort(tcpChatPort);
+            controller.changeTcpChatPort(userCode, tcpChatPort);
         }
 
         else {
@@ -0,0 +1,294 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Several files sent together over one connection, like the files in a directory.
+ *
+ * <p>The batch is offered with a single <code>SENDBATCH</code> message with the name, the number of files
+ * and the total size. The manifest with the path and size of each file is sent first on the connection,
+ * followed by the contents of each file in the same order. The sizes in the manifest frame the files,
+ * and with {@link FileTransferOptions#CHECKSUM} each file is followed by its own checksum.</p>
+ *
+ * <p>Paths are relative to the directory of the batch, separated by <code>/</code>.</p>
+ *
+ * @author Christian Ihle
+ * @see FileTransferOptions#BATCH
+ */
+public class FileBatch {
+
+    /** Max size of the manifest in bytes, to avoid running out of memory on bad input. */
+    static final int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+    private final String name;
+    private final List<Entry> entries;
+    private final long length;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the batch, used as the name of the directory to save to.
+     * @param entries The files in the batch.
+     */
+    public FileBatch(final String name, final List<Entry> entries) {
+        Validate.notEmpty(name, "Name can not be empty");
+        Validate.notNull(entries, "Entries can not be null");
+
+        this.name = name;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+
+        long totalLength = 0;
+
+        for (final Entry entry : entries) {
+            totalLength += entry.getLength();
+        }
+
+        length = totalLength;
+    }
+
+    /**
+     * Creates a batch of all the files in a directory, including sub directories.
+     * Empty directories are not included.
+     *
+     * @param directory The directory to send.
+     * @return The batch with the files in the directory, sorted by path.
+     */
+    public static FileBatch fromDirectory(final File directory) {
+        Validate.notNull(directory, "Directory can not be null");
+
+        final List<Entry> entries = new ArrayList<>();
+        addDirectory(directory, "", entries);
+
+        return new FileBatch(directory.getName(), entries);
+    }
+
+    private static void addDirectory(final File directory, final String path, final List<Entry> entries) {
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+
+        for (final File file : files) {
+            final String filePath = path + file.getName();
+
+            if (file.isDirectory()) {
+                addDirectory(file, filePath + "/", entries);
+            }
+
+            else if (file.isFile()) {
+                entries.add(new Entry(filePath, file.length(), file));
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the total size of the files in the batch.
+     *
+     * @return The size in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the manifest, with the number of bytes in the manifest first.
+     *
+     * @param target The channel to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeManifest(final WritableByteChannel target) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0); // Room for the size
+        out.writeInt(entries.size());
+
+        for (final Entry entry : entries) {
+            out.writeUTF(entry.getPath());
+            out.writeLong(entry.getLength());
+        }
+
+        out.flush();
+
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        buffer.putInt(0, buffer.limit() - 4);
+
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a manifest written by {@link #writeManifest(WritableByteChannel)}, and checks that it matches
+     * what was offered, and that all the paths are safe to save to.
+     *
+     * @param source The channel to read from.
+     * @param name The name of the batch.
+     * @param files The number of files offered.
+     * @param length The total size offered.
+     * @return The batch in the manifest, without local files.
+     * @throws IOException If reading fails, or the manifest is invalid.
+     */
+    public static FileBatch readManifest(final ReadableByteChannel source, final String name, final int files,
+                                         final long length) throws IOException {
+        final ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
+        ChannelTransfer.readFully(source, sizeBuffer);
+        final int size = sizeBuffer.getInt(0);
+
+        if (size < 4 || size > MAX_MANIFEST_SIZE) {
+            throw new IOException("Invalid manifest size: " + size);
+        }
+
+        final ByteBuffer manifestBuffer = ByteBuffer.allocate(size);
+        ChannelTransfer.readFully(source, manifestBuffer);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifestBuffer.array()));
+        final int count = in.readInt();
+
+        if (count != files) {
+            throw new IOException("Expected " + files + " files in the manifest, but got " + count);
+        }
+
+        final List<Entry> entries = new ArrayList<>();
+        final Set<String> paths = new HashSet<>();
+
+        for (int i = 0; i < count; i++) {
+            final String path = in.readUTF();
+            final long entryLength = in.readLong();
+
+            if (!isValidPath(path) || !paths.add(path)) {
+                throw new IOException("Invalid path in manifest: " + path);
+            }
+
+            if (entryLength < 0) {
+                throw new IOException("Invalid size of " + path + ": " + entryLength);
+            }
+
+            entries.add(new Entry(path, entryLength, null));
+        }
+
+        final FileBatch batch = new FileBatch(name, entries);
+
+        if (batch.getLength() != length) {
+            throw new IOException("Expected " + length + " bytes in the manifest, but got " + batch.getLength());
+        }
+
+        return batch;
+    }
+
+    /**
+     * Checks if a path from another user is safe to save to, inside the directory of the batch.
+     *
+     * @param path The path to check.
+     * @return If the path is relative, and only goes down into sub directories.
+     */
+    static boolean isValidPath(final String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.contains("\\") || path.contains(":")
+                || path.indexOf('\0') != -1) {
+            return false;
+        }
+
+        for (final String part : path.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A file in the batch.
+     */
+    public static class Entry {
+
+        private final String path;
+        private final long length;
+
+        @Nullable
+        private final File file;
+
+        /**
+         * Constructor.
+         *
+         * @param path The path of the file, relative to the directory of the batch.
+         * @param length The size of the file.
+         * @param file The local file, or <code>null</code> when receiving.
+         */
+        public Entry(final String path, final long length, @Nullable final File file) {
+            Validate.notEmpty(path, "Path can not be empty");
+
+            this.path = path;
+            this.length = length;
+            this.file = file;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Nullable
+        public File getFile() {
+            return file;
+        }
+    }
+}
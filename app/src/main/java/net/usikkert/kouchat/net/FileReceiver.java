@@ -23,18 +23,21 @@
 package net.usikkert.kouchat.net;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
-import net.usikkert.kouchat.util.ByteCounter;
+import net.usikkert.kouchat.util.TransferTelemetry;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -66,8 +69,8 @@ public class FileReceiver implements FileTransfer {
     /** The unique ID of this file transfer. */
     private final int id;
 
-    /** Keeps count of the transfer speed. */
-    private final ByteCounter bCounter;
+    /** Measures the transfer speed. */
+    private final TransferTelemetry telemetry;
 
     /** Percent of the file received. */
     private int percent;
@@ -98,13 +101,53 @@ public class FileReceiver implements FileTransfer {
     @Nullable
     private Socket sock;
 
-    /** The output stream to the file. */
+    /** The file to save to. */
     @Nullable
-    private FileOutputStream fos;
+    private RandomAccessFile raf;
 
-    /** The input stream from the other user. */
+    /** Number of bytes already received in a previous file transfer, when resuming. */
+    private long resumeOffset;
+
+    /** The checksum of the bytes already received, when resuming. */
+    private long resumeChecksum;
+
+    /** If the file sender offered to send the file over several connections in parallel. */
+    private boolean parallel;
+
+    /** If the file sender can resume the file transfer, if it fails. */
+    private boolean resumable;
+
+    /** If the file should be verified with a checksum. */
+    private boolean checksum;
+
+    /** If the file sender offered to send the file compressed, and compression is enabled. */
+    private boolean compression;
+
+    /** Shares the bandwidth with the other file transfers. */
+    private final BandwidthGovernor bandwidthGovernor;
+
+    /** This file transfer's share of the bandwidth, while transferring. */
     @Nullable
-    private InputStream is;
+    private BandwidthGovernor.Share bandwidthShare;
+
+    /** The weight of this file transfer, compared to the other file transfers. */
+    private int weight;
+
+    /** Coalesces the progress updates to the listener. */
+    private final ProgressDispatcher progressDispatcher;
+
+    /** Accepts connections on the shared file transfer port. */
+    private final FileTransferAcceptor fileTransferAcceptor;
+
+    /** If the file sender can present a token, so the shared file transfer port can be used. */
+    private boolean token;
+
+    /** The registration with the shared file transfer port, when used. */
+    @Nullable
+    private FileTransferAcceptor.Registration registration;
+
+    /** The number of files, if receiving a batch of files into a directory. */
+    private int batchFiles;
 
     /**
      * Constructor. Creates a new file receiver.
@@ -113,32 +156,55 @@ public class FileReceiver implements FileTransfer {
      * @param file The file the user is sending.
      * @param size The size of the file, in bytes.
      * @param id The unique ID of this file transfer.
+     * @param bandwidthGovernor Shares the bandwidth with the other file transfers.
+     * @param fileTransferAcceptor Accepts connections on the shared file transfer port.
+     * @param progressDispatcher Coalesces the progress updates to the listener.
      */
-    public FileReceiver(final User user, final File file, final long size, final int id) {
+    public FileReceiver(final User user, final File file, final long size, final int id,
+                        final BandwidthGovernor bandwidthGovernor, final FileTransferAcceptor fileTransferAcceptor,
+                        final ProgressDispatcher progressDispatcher) {
         this.user = user;
         this.file = file;
         this.size = size;
         this.id = id;
+        this.bandwidthGovernor = bandwidthGovernor;
+        this.weight = bandwidthGovernor.getDefaultWeight(Direction.RECEIVE);
+        this.fileTransferAcceptor = fileTransferAcceptor;
+        this.progressDispatcher = progressDispatcher;
         this.originalFileName = file.getName();
 
-        bCounter = new ByteCounter();
+        telemetry = new TransferTelemetry();
     }
 
     /**
      * Starts a server connection which the sender can use to connect
      * for transferring the file, and returns the opened port.
      *
+     * <p>If the file sender can present a token, the shared file transfer port is used.
+     * If not, or the shared port is not available, a new port is opened for this file transfer.</p>
+     *
      * @return The port which the sender can connect to.
      * @throws ServerException If the server could not be started.
      */
     public int startServer() throws ServerException {
+        if (token) {
+            try {
+                registration = fileTransferAcceptor.register();
+                return fileTransferAcceptor.getPort();
+            }
+
+            catch (final ServerException e) {
+                LOG.log(Level.WARNING, "Could not use the shared file transfer port, opening a new port", e);
+            }
+        }
+
         int port = Constants.NETWORK_FILE_TRANSFER_PORT;
         boolean done = false;
         int counter = 0;
 
         while (!done && counter < 50) {
             try {
-                sSock = new ServerSocket(port);
+                sSock = openServerSocket(port);
                 final TimeoutThread tt = new TimeoutThread();
                 tt.start();
                 done = true;
@@ -161,6 +227,28 @@ public class FileReceiver implements FileTransfer {
         return port;
     }
 
+    /**
+     * Opens a server socket with a channel, so the file can be received directly into the file channel.
+     *
+     * @param port The port to listen on.
+     * @return The opened server socket.
+     * @throws IOException If the port could not be opened.
+     */
+    private ServerSocket openServerSocket(final int port) throws IOException {
+        final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+
+        try {
+            serverSocketChannel.socket().bind(new InetSocketAddress(port));
+        }
+
+        catch (final IOException e) {
+            serverSocketChannel.close();
+            throw e;
+        }
+
+        return serverSocketChannel.socket();
+    }
+
     /**
      * Waits for an incoming connection, then receives the
      * file from the other user.
@@ -174,35 +262,69 @@ public class FileReceiver implements FileTransfer {
         cancel = false;
 
         try {
-            if (sSock != null) {
-                sock = sSock.accept();
+            final IncomingConnections connections = getIncomingConnections();
+
+            if (connections != null) {
+                sock = acceptConnection();
                 listener.statusTransferring();
-                fos = new FileOutputStream(file);
-                is = sock.getInputStream();
-
-                final byte[] b = new byte[1024];
-                transferred = 0;
-                percent = 0;
-                int tmpTransferred = 0;
-                int tmpPercent = 0;
-                int transCounter = 0;
-                bCounter.prepare();
-
-                while (!cancel && (tmpTransferred = is.read(b)) != -1) {
-                    fos.write(b, 0, tmpTransferred);
-                    transferred += tmpTransferred;
-                    percent = (int) ((transferred * 100) / size);
-                    bCounter.addBytes(tmpTransferred);
-                    transCounter++;
-
-                    if (percent > tmpPercent || transCounter >= 250) {
-                        transCounter = 0;
-                        tmpPercent = percent;
-                        listener.transferUpdate();
+
+                final SocketChannel socketChannel = sock.getChannel();
+                final long start = readStartPosition(socketChannel);
+
+                transferred = start;
+                percent = size > 0 ? (int) ((transferred * 100) / size) : 0;
+                telemetry.prepare();
+                registerBandwidth();
+
+                final ReceiverProgressListener progressListener = new ReceiverProgressListener();
+
+                if (isBatchTransfer()) {
+                    final BatchFileReceiver batchFileReceiver = new BatchFileReceiver(
+                            file, originalFileName, batchFiles, size, progressListener, listener, checksum);
+
+                    if (isCompressedTransfer()) {
+                        batchFileReceiver.setCompression(telemetry);
+                    }
+
+                    batchFileReceiver.receive(socketChannel);
+                }
+
+                else if (isParallelTransfer()) {
+                    raf = openFile();
+
+                    final ParallelFileReceiver parallelFileReceiver =
+                            new ParallelFileReceiver(connections, raf.getChannel(), size, progressListener, checksum);
+
+                    if (parallelFileReceiver.receive(socketChannel)) {
+                        transferred = size;
+                    }
+                }
+
+                else {
+                    raf = openFile();
+
+                    final CRC32 crc = checksum ? new CRC32() : null;
+
+                    if (isCompressedTransfer()) {
+                        CompressedTransfer.receive(socketChannel, raf.getChannel(), start, size,
+                                                   progressListener, crc, telemetry);
+                    }
+
+                    else {
+                        ChannelTransfer.receiveFile(socketChannel, raf.getChannel(), start, size,
+                                                    progressListener, crc);
+                    }
+
+                    if (crc != null && !cancel && transferred == size) {
+                        verifyChecksum(socketChannel, crc);
                     }
                 }
 
                 if (!cancel && transferred == size) {
+                    if (raf != null) {
+                        raf.getChannel().force(false);
+                    }
+
                     received = true;
                     listener.statusCompleted();
                 }
@@ -220,6 +342,8 @@ public class FileReceiver implements FileTransfer {
 
         finally {
             stopReceiver();
+            releaseBandwidth();
+            releaseRegistration();
             cleanupConnections();
         }
 
@@ -227,42 +351,352 @@ public class FileReceiver implements FileTransfer {
     }
 
     /**
-     * Sets all connections to null.
+     * Prepares to resume a failed file transfer, by continuing to save to the partially received file.
+     * The checksum of the bytes already received is sent to the file sender, to make sure it's the same file.
+     *
+     * @param partialFile The partially received file.
+     * @throws IOException If the partial file could not be read.
      */
-    private void cleanupConnections() {
-        is = null;
-        fos = null;
-        sock = null;
-        sSock = null;
+    public void prepareResume(final File partialFile) throws IOException {
+        final RandomAccessFile partialRaf = new RandomAccessFile(partialFile, "r");
+
+        try {
+            final long length = partialRaf.length();
+            final long checksum = ChannelTransfer.checksum(partialRaf.getChannel(), length);
+
+            file = partialFile;
+            resumeOffset = length;
+            resumeChecksum = checksum;
+        }
+
+        finally {
+            partialRaf.close();
+        }
     }
 
     /**
-     * Closes the connection to the user.
+     * Gets the file transfer options to send to the file sender when accepting the file.
+     *
+     * @return The options to use for this file transfer.
      */
-    private void stopReceiver() {
-        try {
-            if (is != null) {
-                is.close();
+    public FileTransferOptions getAcceptOptions() {
+        final FileTransferOptions options = new FileTransferOptions();
+
+        if (isBatchTransfer()) {
+            options.add(FileTransferOptions.BATCH);
+        }
+
+        else if (resumeOffset > 0) {
+            options.add(FileTransferOptions.RESUME, resumeOffset + ":" + resumeChecksum);
+        }
+
+        else if (parallel) {
+            options.add(FileTransferOptions.PARALLEL);
+        }
+
+        if (checksum) {
+            options.add(FileTransferOptions.CHECKSUM);
+        }
+
+        if (isCompressedTransfer()) {
+            options.add(FileTransferOptions.DEFLATE);
+        }
+
+        final FileTransferAcceptor.Registration currentRegistration = registration;
+
+        if (currentRegistration != null) {
+            options.add(FileTransferOptions.TOKEN, String.valueOf(currentRegistration.getToken()));
+        }
+
+        return options;
+    }
+
+    /**
+     * Sets if the file sender offered to send the file over several connections in parallel.
+     * Not used when resuming.
+     *
+     * @param parallel If parallel transfer was offered.
+     */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Sets if the file sender can resume the file transfer, if it fails. The length of the partially
+     * received file is then used to tell where to resume from, so the file is not set to the full size
+     * before receiving.
+     *
+     * @param resumable If the file transfer can be resumed.
+     */
+    public void setResumable(final boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Sets the number of files, if receiving a batch of files. The file to save to is then used
+     * as the directory to save the files in.
+     *
+     * @param batchFiles The number of files in the batch, or <code>0</code> if receiving a single file.
+     */
+    public void setBatchFiles(final int batchFiles) {
+        this.batchFiles = batchFiles;
+    }
+
+    /**
+     * Checks if receiving a batch of files into a directory.
+     *
+     * @return If this is a batch transfer.
+     */
+    public boolean isBatchTransfer() {
+        return batchFiles > 0;
+    }
+
+    /**
+     * Sets if the file should be verified with a checksum calculated while it's received.
+     * Must be supported by the file sender.
+     *
+     * @param checksum If a checksum should be used.
+     */
+    public void setChecksum(final boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Sets if the file should be received compressed. Must be supported by the file sender.
+     * Not used with parallel transfers.
+     *
+     * @param compression If compression should be used.
+     */
+    public void setCompression(final boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Compares the checksum of the bytes received with the checksum the file sender sends after the file.
+     *
+     * @param socketChannel The channel from the file sender.
+     * @param crc The checksum of the bytes received.
+     * @throws IOException If the checksum could not be read, or did not match.
+     */
+    private void verifyChecksum(final SocketChannel socketChannel, final CRC32 crc) throws IOException {
+        final long expectedChecksum = ChannelTransfer.readLong(socketChannel);
+
+        if (expectedChecksum != crc.getValue()) {
+            throw new IOException("Checksum mismatch for " + originalFileName + ", expected " + expectedChecksum +
+                                          " but got " + crc.getValue());
+        }
+    }
+
+    /**
+     * Sets if the file sender can present a token when connecting, so the shared file transfer port
+     * can be used. Must be set before {@link #startServer()}.
+     *
+     * @param token If the file sender supports tokens.
+     */
+    public void setToken(final boolean token) {
+        this.token = token;
+    }
+
+    /**
+     * Gets the connections from the file sender, either from the shared file transfer port,
+     * or the port opened for this file transfer.
+     *
+     * @return The incoming connections, or <code>null</code> if no port is open.
+     */
+    @Nullable
+    private IncomingConnections getIncomingConnections() {
+        if (registration != null) {
+            return registration;
+        }
+
+        if (sSock != null) {
+            return new ServerSocketConnections(sSock);
+        }
+
+        return null;
+    }
+
+    /**
+     * Waits for the first connection from the file sender.
+     *
+     * @return The connection.
+     * @throws IOException If the file sender didn't connect.
+     */
+    private Socket acceptConnection() throws IOException {
+        final FileTransferAcceptor.Registration currentRegistration = registration;
+
+        if (currentRegistration != null) {
+            final SocketChannel socketChannel = currentRegistration.accept(FileTransferAcceptor.CONNECT_TIMEOUT);
+
+            if (socketChannel == null) {
+                throw new IOException("No connection from " + user.getNick() + " on the shared file transfer port");
             }
+
+            return socketChannel.socket();
         }
 
-        catch (final IOException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+        final ServerSocket serverSocket = sSock;
+
+        if (serverSocket == null) {
+            throw new IOException("Server socket closed");
+        }
+
+        return serverSocket.accept();
+    }
+
+    /**
+     * Removes the registration with the shared file transfer port, so the token can't be used anymore.
+     */
+    private void releaseRegistration() {
+        final FileTransferAcceptor.Registration currentRegistration = registration;
+
+        if (currentRegistration != null) {
+            fileTransferAcceptor.unregister(currentRegistration);
+            registration = null;
+        }
+    }
+
+    /**
+     * Gets a share of the bandwidth for this file transfer, with the weight of this file transfer.
+     */
+    private synchronized void registerBandwidth() {
+        bandwidthShare = bandwidthGovernor.register(weight);
+    }
+
+    /**
+     * Gives this file transfer's share of the bandwidth back to the other file transfers.
+     */
+    private void releaseBandwidth() {
+        final BandwidthGovernor.Share share = bandwidthShare;
+
+        if (share != null) {
+            bandwidthGovernor.unregister(share);
+        }
+    }
+
+    private boolean isParallelTransfer() {
+        return parallel && resumeOffset == 0 && !isBatchTransfer();
+    }
+
+    /**
+     * Checks if the file should be received compressed. Parallel transfers are not compressed,
+     * since each connection sends its own part of the file.
+     *
+     * @return If this is a compressed transfer.
+     */
+    private boolean isCompressedTransfer() {
+        return compression && !isParallelTransfer();
+    }
+
+    /**
+     * Gets the number of bytes already received in a previous file transfer, when resuming.
+     *
+     * @return The number of bytes to resume from, or <code>0</code> if not resuming.
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * When resuming, the file sender starts by telling where in the file it starts sending from.
+     * That's either the resume offset, or the start of the file if the checksum did not match.
+     *
+     * @param socketChannel The channel from the file sender.
+     * @return The position in the file to start saving to.
+     * @throws IOException If the start position could not be read, or is invalid.
+     */
+    private long readStartPosition(final SocketChannel socketChannel) throws IOException {
+        if (resumeOffset == 0) {
+            return 0;
+        }
+
+        final long start = ChannelTransfer.readLong(socketChannel);
+
+        if (start < 0 || start > resumeOffset) {
+            throw new IOException("Invalid start position from file sender: " + start);
         }
 
+        if (start < resumeOffset) {
+            LOG.log(Level.WARNING, "Partial file did not match, receiving " + originalFileName + " from the start");
+        }
+
+        return start;
+    }
+
+    /**
+     * Opens the file to save to. Unless the file transfer can be resumed, the file is set to the full size
+     * right away. The file system can then find room for the whole file at once, instead of growing it
+     * a little on every write.
+     *
+     * <p>A resumable file is left to grow as the bytes are received, so the length of the file always tells
+     * how much was received, even if the application is killed in the middle of the file transfer.
+     * Anything after the position to start receiving from is cut.</p>
+     *
+     * @return The opened file.
+     * @throws IOException If the file could not be opened.
+     */
+    private RandomAccessFile openFile() throws IOException {
+        final RandomAccessFile openedFile = new RandomAccessFile(file, "rw");
+
         try {
-            if (fos != null) {
-                fos.flush();
-            }
+            openedFile.setLength(isPreSized() ? size : transferred);
         }
 
         catch (final IOException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+            openedFile.close();
+            throw e;
         }
 
+        return openedFile;
+    }
+
+    /**
+     * Checks if the partially received file can be used to resume the file transfer, if it fails.
+     * Parallel transfers are never resumed, as the chunks arrive in any order.
+     *
+     * @return If the file transfer can be resumed.
+     */
+    public boolean isResumable() {
+        return resumable && !isParallelTransfer();
+    }
+
+    /**
+     * Checks if the file to save to is set to the full size before receiving.
+     *
+     * @return If the file is set to the full size.
+     */
+    private boolean isPreSized() {
+        return !isResumable();
+    }
+
+    /**
+     * Sets all connections to null.
+     */
+    private void cleanupConnections() {
+        raf = null;
+        sock = null;
+        sSock = null;
+    }
+
+    /**
+     * Closes the connection to the user.
+     */
+    private void stopReceiver() {
         try {
-            if (fos != null) {
-                fos.close();
+            if (raf != null) {
+                final boolean failed = !received && raf.getChannel().isOpen();
+
+                // The file was set to the full size when opened, so cut it after the bytes received
+                if (failed && isPreSized() && !isParallelTransfer()) {
+                    raf.setLength(transferred);
+                }
+
+                raf.close();
+
+                // The chunks of a parallel transfer arrive in any order, so the file is of no use
+                if (failed && isParallelTransfer() && !file.delete()) {
+                    LOG.log(Level.WARNING, "Could not delete partially received file " + file);
+                }
             }
         }
 
@@ -308,6 +742,8 @@ public class FileReceiver implements FileTransfer {
     public void cancel() {
         cancel = true;
         stopReceiver();
+        releaseBandwidth();
+        releaseRegistration();
 
         if (listener != null) {
             listener.statusFailed();
@@ -419,7 +855,27 @@ public class FileReceiver implements FileTransfer {
      */
     @Override
     public long getSpeed() {
-        return bCounter.getBytesPerSec();
+        return telemetry.getBytesPerSec();
+    }
+
+    /**
+     * Estimates how long it will take to complete the file transfer, at the current speed.
+     *
+     * @return The estimated number of seconds left, or -1 if unknown.
+     */
+    @Override
+    public long getEta() {
+        return telemetry.getEta(size - transferred);
+    }
+
+    /**
+     * Gets the telemetry with detailed information about the speed of the file transfer.
+     *
+     * @return The telemetry of this file transfer.
+     */
+    @Override
+    public TransferTelemetry getTelemetry() {
+        return telemetry;
     }
 
     /**
@@ -432,6 +888,30 @@ public class FileReceiver implements FileTransfer {
         return id;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int getWeight() {
+        return weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setWeight(final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+
+        this.weight = weight;
+
+        if (bandwidthShare != null) {
+            bandwidthGovernor.setWeight(bandwidthShare, weight);
+        }
+    }
+
     /**
      * Registers a file transfer listener, which will receive updates
      * when certain events happen in the progression of the file transfer.
@@ -440,8 +920,8 @@ public class FileReceiver implements FileTransfer {
      */
     @Override
     public void registerListener(final FileTransferListener listener) {
-        this.listener = listener;
-        listener.statusWaiting();
+        this.listener = progressDispatcher.wrap(listener);
+        this.listener.statusWaiting();
     }
 
     /**
@@ -495,7 +975,7 @@ public class FileReceiver implements FileTransfer {
 
         /**
          * The thread. Sleeps for 15 seconds, and then closes the
-         * server connection if it is not already closed.
+         * server connection if no one has connected yet.
          */
         @Override
         public void run() {
@@ -508,7 +988,8 @@ public class FileReceiver implements FileTransfer {
             }
 
             try {
-                if (sSock != null) {
+                // Keep accepting more connections for parallel transfers
+                if (sSock != null && sock == null) {
                     sSock.close();
                     sSock = null;
                 }
@@ -519,4 +1000,42 @@ public class FileReceiver implements FileTransfer {
             }
         }
     }
+
+    /**
+     * Updates the progress of the file transfer as the bytes are received.
+     * The progress is updated while holding a lock, as the bytes can be received from several threads.
+     */
+    private class ReceiverProgressListener implements ChannelTransfer.ProgressListener {
+
+        private int tmpPercent;
+        private long tmpTransferred;
+
+        @Override
+        public boolean isCanceled() {
+            return cancel;
+        }
+
+        @Override
+        public void bytesTransferred(final long bytes) {
+            synchronized (this) {
+                transferred += bytes;
+                percent = (int) Math.min(100, (transferred * 100) / size);
+                telemetry.addBytes(bytes);
+                tmpTransferred += bytes;
+
+                if (percent > tmpPercent || tmpTransferred >= ChannelTransfer.UPDATE_INTERVAL) {
+                    tmpTransferred = 0;
+                    tmpPercent = percent;
+                    listener.transferUpdate();
+                }
+            }
+
+            // Outside the lock, so the other connections don't have to wait while this one waits for bandwidth
+            final BandwidthGovernor.Share share = bandwidthShare;
+
+            if (share != null) {
+                share.acquire(bytes);
+            }
+        }
+    }
 }
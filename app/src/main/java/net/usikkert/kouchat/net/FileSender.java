@@ -23,17 +23,21 @@
 package net.usikkert.kouchat.net;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
-import net.usikkert.kouchat.util.ByteCounter;
+import net.usikkert.kouchat.util.TransferTelemetry;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -59,8 +63,8 @@ public class FileSender implements FileTransfer {
     /** The unique ID of this file transfer. */
     private final int id;
 
-    /** Keeps count of the transfer speed. */
-    private final ByteCounter bCounter;
+    /** Measures the transfer speed. */
+    private final TransferTelemetry telemetry;
 
     /** Percent of the file transferred. */
     private int percent;
@@ -80,31 +84,54 @@ public class FileSender implements FileTransfer {
     /** The file transfer listener. */
     private FileTransferListener listener;
 
-    /** The input stream from the file. */
+    /** The file channel, if sending a regular file. */
     @Nullable
-    private InputStream is;
+    private FileChannel fileChannel;
 
-    /** The output stream to the other user. */
+    /** The channel from the input stream of the file, if not sending a regular file. */
     @Nullable
-    private OutputStream os;
+    private ReadableByteChannel inputChannel;
 
     /** The socket connection to the other user. */
     @Nullable
     private Socket sock;
 
+    /** Shares the bandwidth with the other file transfers. */
+    private final BandwidthGovernor bandwidthGovernor;
+
+    /** This file transfer's share of the bandwidth, while transferring. */
+    @Nullable
+    private BandwidthGovernor.Share bandwidthShare;
+
+    /** The weight of this file transfer, compared to the other file transfers. */
+    private int weight;
+
+    /** Coalesces the progress updates to the listener. */
+    private final ProgressDispatcher progressDispatcher;
+
+    /** Connects to the user, and stops connecting if the file transfer is canceled. */
+    private final ChannelConnector connector;
+
     /**
      * Constructor. Creates a new file sender.
      *
      * @param user The user to send the file to.
      * @param file The file to send.
      * @param id The unique ID of this file transfer.
+     * @param bandwidthGovernor Shares the bandwidth with the other file transfers.
+     * @param progressDispatcher Coalesces the progress updates to the listener.
      */
-    public FileSender(final User user, final FileToSend file, final int id) {
+    public FileSender(final User user, final FileToSend file, final int id,
+                      final BandwidthGovernor bandwidthGovernor, final ProgressDispatcher progressDispatcher) {
         this.user = user;
         this.file = file;
         this.id = id;
+        this.bandwidthGovernor = bandwidthGovernor;
+        this.weight = bandwidthGovernor.getDefaultWeight(Direction.SEND);
+        this.progressDispatcher = progressDispatcher;
 
-        bCounter = new ByteCounter();
+        telemetry = new TransferTelemetry();
+        connector = new ChannelConnector();
         waiting = true;
     }
 
@@ -116,6 +143,18 @@ public class FileSender implements FileTransfer {
      * @return If the file transfer was successful.
      */
     public boolean transfer(final int port) {
+        return transfer(port, new FileTransferOptions());
+    }
+
+    /**
+     * Connects to the user at the specified port and transfers the file
+     * to that user, using the file transfer options from the user.
+     *
+     * @param port The port to use when connecting to the user.
+     * @param options The file transfer options the user asked for.
+     * @return If the file transfer was successful.
+     */
+    public boolean transfer(final int port, final FileTransferOptions options) {
         if (!cancel) {
             listener.statusConnecting();
 
@@ -123,56 +162,82 @@ public class FileSender implements FileTransfer {
             sent = false;
 
             try {
-                int counter = 0;
+                final InetSocketAddress address =
+                        new InetSocketAddress(InetAddress.getByName(user.getIpAddress()), port);
+                sock = connector.connect(address, ChannelConnector.CONNECT_TIMEOUT).socket();
+
+                if (!cancel) {
+                    listener.statusTransferring();
 
-                while (sock == null && counter < 10) {
-                    counter++;
+                    final SocketChannel socketChannel = sock.getChannel();
+                    final ChannelTransfer.ProgressListener progressListener = new SenderProgressListener();
+                    final long token = getToken(options);
 
-                    try {
-                        sock = new Socket(InetAddress.getByName(user.getIpAddress()), port);
+                    // Tells the user which file transfer this connection is for, on the shared port
+                    if (token != 0) {
+                        ChannelTransfer.writeLong(socketChannel, token);
                     }
 
-                    catch (final UnknownHostException e) {
-                        LOG.log(Level.SEVERE, e.toString(), e);
-                    }
+                    final FileBatch batch = file.getBatch();
+                    final long start = batch != null ? 0 : openFile(options);
 
-                    catch (final IOException e) {
-                        LOG.log(Level.SEVERE, e.toString(), e);
+                    final boolean useChecksum = options.has(FileTransferOptions.CHECKSUM);
+                    final CRC32 checksum = useChecksum ? new CRC32() : null;
+
+                    // Tells the user where in the file the transfer starts
+                    if (options.has(FileTransferOptions.RESUME)) {
+                        ChannelTransfer.writeLong(socketChannel, start);
                     }
 
-                    try {
-                        Thread.sleep(100);
+                    transferred = start;
+                    percent = file.length() > 0 ? (int) ((transferred * 100) / file.length()) : 0;
+                    telemetry.prepare();
+                    registerBandwidth();
+
+                    if (batch != null) {
+                        if (!options.has(FileTransferOptions.BATCH)) {
+                            throw new IOException(user.getNick() + " did not accept " + file.getName() + " as a batch");
+                        }
+
+                        final BatchFileSender batchFileSender =
+                                new BatchFileSender(batch, progressListener, listener, useChecksum);
+
+                        if (options.has(FileTransferOptions.DEFLATE)) {
+                            batchFileSender.setCompression(telemetry);
+                        }
+
+                        batchFileSender.send(socketChannel);
                     }
 
-                    catch (final InterruptedException e) {
-                        LOG.log(Level.SEVERE, e.toString(), e);
+                    else if (fileChannel != null && options.has(FileTransferOptions.PARALLEL)) {
+                        final ParallelFileSender parallelFileSender = new ParallelFileSender(
+                                (InetSocketAddress) sock.getRemoteSocketAddress(), connector, fileChannel,
+                                file.length(), progressListener, telemetry, useChecksum, token);
+
+                        if (parallelFileSender.send(socketChannel)) {
+                            transferred = file.length();
+                        }
                     }
-                }
 
-                if (sock != null && !cancel) {
-                    listener.statusTransferring();
-                    is = file.getInputStream();
-                    os = sock.getOutputStream();
-
-                    final byte[] b = new byte[1024];
-                    transferred = 0;
-                    percent = 0;
-                    int tmpTransferred = 0;
-                    int tmpPercent = 0;
-                    int transCounter = 0;
-                    bCounter.prepare();
-
-                    while (!cancel && (tmpTransferred = is.read(b)) != -1) {
-                        os.write(b, 0, tmpTransferred);
-                        transferred += tmpTransferred;
-                        percent = (int) ((transferred * 100) / file.length());
-                        bCounter.addBytes(tmpTransferred);
-                        transCounter++;
-
-                        if (percent > tmpPercent || transCounter >= 250) {
-                            transCounter = 0;
-                            tmpPercent = percent;
-                            listener.transferUpdate();
+                    else {
+                        if (options.has(FileTransferOptions.DEFLATE)) {
+                            final ReadableByteChannel source =
+                                    fileChannel != null ? fileChannel.position(start) : inputChannel;
+                            CompressedTransfer.send(source, socketChannel, file.length() - start,
+                                                    progressListener, checksum, telemetry);
+                        }
+
+                        else if (fileChannel != null) {
+                            ChannelTransfer.sendFile(fileChannel, socketChannel, start, file.length(),
+                                                     progressListener, checksum);
+                        }
+
+                        else {
+                            ChannelTransfer.copy(inputChannel, socketChannel, progressListener, checksum);
+                        }
+
+                        if (checksum != null && !cancel && transferred == file.length()) {
+                            ChannelTransfer.writeLong(socketChannel, checksum.getValue());
                         }
                     }
 
@@ -203,6 +268,7 @@ public class FileSender implements FileTransfer {
 
             finally {
                 stopSender();
+                releaseBandwidth();
                 cleanupConnections();
             }
         }
@@ -211,31 +277,131 @@ public class FileSender implements FileTransfer {
     }
 
     /**
-     * Sets all connections to null.
+     * Gets the token to present when connecting to the shared file transfer port of the user.
+     *
+     * @param options The file transfer options from the user.
+     * @return The token, or 0 if the user didn't ask for a token.
+     * @throws IOException If the token is invalid.
      */
-    private void cleanupConnections() {
-        is = null;
-        os = null;
-        sock = null;
+    private long getToken(final FileTransferOptions options) throws IOException {
+        final String token = options.get(FileTransferOptions.TOKEN);
+
+        if (token == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(token);
+        }
+
+        catch (final NumberFormatException e) {
+            throw new IOException("Invalid file transfer token: " + token);
+        }
     }
 
     /**
-     * Closes the connection to the user.
+     * Opens the file, and finds the position to start sending from.
+     *
+     * <p>When resuming, the checksum of the bytes the user already has is compared to the same bytes
+     * in the file. If they match, the file is sent from there. If not, the whole file is sent.
+     * An input stream is left positioned at the start position.</p>
+     *
+     * @param options The file transfer options from the user.
+     * @return The position in the file to start sending from.
+     * @throws IOException If the file could not be read.
      */
-    private void stopSender() {
+    private long openFile(final FileTransferOptions options) throws IOException {
+        fileChannel = file.getFileChannel();
+
+        if (fileChannel == null) {
+            inputChannel = openInputChannel();
+        }
+
+        final String resume = options.get(FileTransferOptions.RESUME);
+
+        if (resume == null) {
+            return 0;
+        }
+
+        final long offset;
+        final long expectedChecksum;
+
         try {
-            if (is != null) {
-                is.close();
-            }
+            offset = Long.parseLong(resume.substring(0, resume.indexOf(":")));
+            expectedChecksum = Long.parseLong(resume.substring(resume.indexOf(":") + 1));
         }
 
-        catch (final IOException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.log(Level.WARNING, "Invalid resume option: " + resume);
+            return 0;
+        }
+
+        if (offset <= 0 || offset > file.length()) {
+            return 0;
+        }
+
+        final long checksum = ChannelTransfer.checksum(
+                fileChannel != null ? fileChannel : inputChannel, offset);
+
+        if (checksum == expectedChecksum) {
+            LOG.log(Level.FINE, "Resuming " + file.getName() + " from " + offset);
+            return offset;
+        }
+
+        LOG.log(Level.WARNING, "Checksum mismatch, sending " + file.getName() + " from the start");
+
+        if (inputChannel != null) {
+            inputChannel.close();
+            inputChannel = openInputChannel();
         }
 
+        return 0;
+    }
+
+    /**
+     * Opens the input stream of the file as a channel.
+     *
+     * @return The channel to read the file from.
+     * @throws IOException If the file could not be opened.
+     */
+    private ReadableByteChannel openInputChannel() throws IOException {
+        return Channels.newChannel(file.getInputStream());
+    }
+
+    /**
+     * Gets a share of the bandwidth for this file transfer, with the weight of this file transfer.
+     */
+    private synchronized void registerBandwidth() {
+        bandwidthShare = bandwidthGovernor.register(weight);
+    }
+
+    /**
+     * Gives this file transfer's share of the bandwidth back to the other file transfers.
+     */
+    private void releaseBandwidth() {
+        final BandwidthGovernor.Share share = bandwidthShare;
+
+        if (share != null) {
+            bandwidthGovernor.unregister(share);
+        }
+    }
+
+    /**
+     * Sets all connections to null.
+     */
+    private void cleanupConnections() {
+        fileChannel = null;
+        inputChannel = null;
+        sock = null;
+    }
+
+    /**
+     * Closes the connection to the user.
+     */
+    private void stopSender() {
         try {
-            if (os != null) {
-                os.flush();
+            if (fileChannel != null) {
+                fileChannel.close();
             }
         }
 
@@ -244,8 +410,8 @@ public class FileSender implements FileTransfer {
         }
 
         try {
-            if (os != null) {
-                os.close();
+            if (inputChannel != null) {
+                inputChannel.close();
             }
         }
 
@@ -280,7 +446,9 @@ public class FileSender implements FileTransfer {
     @Override
     public void cancel() {
         cancel = true;
+        connector.cancel();
         stopSender();
+        releaseBandwidth();
         listener.statusFailed();
     }
 
@@ -361,7 +529,27 @@ public class FileSender implements FileTransfer {
      */
     @Override
     public long getSpeed() {
-        return bCounter.getBytesPerSec();
+        return telemetry.getBytesPerSec();
+    }
+
+    /**
+     * Estimates how long it will take to complete the file transfer, at the current speed.
+     *
+     * @return The estimated number of seconds left, or -1 if unknown.
+     */
+    @Override
+    public long getEta() {
+        return telemetry.getEta(file.length() - transferred);
+    }
+
+    /**
+     * Gets the telemetry with detailed information about the speed of the file transfer.
+     *
+     * @return The telemetry of this file transfer.
+     */
+    @Override
+    public TransferTelemetry getTelemetry() {
+        return telemetry;
     }
 
     /**
@@ -374,6 +562,30 @@ public class FileSender implements FileTransfer {
         return id;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int getWeight() {
+        return weight;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setWeight(final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+
+        this.weight = weight;
+
+        if (bandwidthShare != null) {
+            bandwidthGovernor.setWeight(bandwidthShare, weight);
+        }
+    }
+
     /**
      * Gets the file that is being transferred.
      *
@@ -400,7 +612,45 @@ public class FileSender implements FileTransfer {
      */
     @Override
     public void registerListener(final FileTransferListener listener) {
-        this.listener = listener;
-        listener.statusWaiting();
+        this.listener = progressDispatcher.wrap(listener);
+        this.listener.statusWaiting();
+    }
+
+    /**
+     * Updates the progress of the file transfer as the bytes are sent.
+     * The progress is updated while holding a lock, as the bytes can be sent from several threads.
+     */
+    private class SenderProgressListener implements ChannelTransfer.ProgressListener {
+
+        private int tmpPercent;
+        private long tmpTransferred;
+
+        @Override
+        public boolean isCanceled() {
+            return cancel;
+        }
+
+        @Override
+        public void bytesTransferred(final long bytes) {
+            synchronized (this) {
+                transferred += bytes;
+                percent = (int) Math.min(100, (transferred * 100) / file.length());
+                telemetry.addBytes(bytes);
+                tmpTransferred += bytes;
+
+                if (percent > tmpPercent || tmpTransferred >= ChannelTransfer.UPDATE_INTERVAL) {
+                    tmpTransferred = 0;
+                    tmpPercent = percent;
+                    listener.transferUpdate();
+                }
+            }
+
+            // Outside the lock, so the other connections don't have to wait while this one waits for bandwidth
+            final BandwidthGovernor.Share share = bandwidthShare;
+
+            if (share != null) {
+                share.acquire(bytes);
+            }
+        }
     }
 }
@@ -28,6 +28,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Abstraction around a file to send to another user.
@@ -40,9 +43,17 @@ public class FileToSend {
     private final String name;
     private final long length;
 
+    @Nullable
+    private final File file;
+
+    @Nullable
+    private final FileBatch batch;
+
     public FileToSend(final File file) {
         Validate.notNull(file, "File to send can not be null");
 
+        this.file = file;
+        this.batch = null;
         this.inputStreamOpener = new FileInputStreamOpener(file);
         this.name = file.getName();
         this.length = file.length();
@@ -53,11 +64,29 @@ public class FileToSend {
                       final long length) {
         Validate.notNull(inputStreamOpener, "InputStreamOpener can not be null");
 
+        this.file = null;
+        this.batch = null;
         this.inputStreamOpener = inputStreamOpener;
         this.name = name;
         this.length = length;
     }
 
+    /**
+     * Creates a file to send that is a batch of several files, sent together over one connection.
+     * The files are read one at a time from the batch, so there is no input stream.
+     *
+     * @param batch The files to send.
+     */
+    public FileToSend(final FileBatch batch) {
+        Validate.notNull(batch, "Batch can not be null");
+
+        this.file = null;
+        this.batch = batch;
+        this.inputStreamOpener = new BatchInputStreamOpener(batch);
+        this.name = batch.getName();
+        this.length = batch.getLength();
+    }
+
     public long length() {
         return length;
     }
@@ -70,6 +99,49 @@ public class FileToSend {
         return inputStreamOpener.open();
     }
 
+    /**
+     * Checks if this is a regular file, that can be opened as a file channel.
+     *
+     * @return If this is a regular file.
+     */
+    public boolean isRegularFile() {
+        return file != null && file.isFile();
+    }
+
+    /**
+     * Checks if this is a batch of several files.
+     *
+     * @return If this is a batch.
+     */
+    public boolean isBatch() {
+        return batch != null;
+    }
+
+    /**
+     * Gets the files to send, if this is a batch.
+     *
+     * @return The batch, or <code>null</code> if this is a single file.
+     */
+    @Nullable
+    public FileBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * Opens a file channel, if this is a regular file. Other sources have to use {@link #getInputStream()}.
+     *
+     * @return The file channel, or <code>null</code> if this is not a regular file.
+     * @throws FileNotFoundException If the file could not be opened.
+     */
+    @Nullable
+    public FileChannel getFileChannel() throws FileNotFoundException {
+        if (!isRegularFile()) {
+            return null;
+        }
+
+        return new FileInputStream(file).getChannel();
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
@@ -102,6 +174,20 @@ public class FileToSend {
         InputStream open() throws FileNotFoundException;
     }
 
+    static class BatchInputStreamOpener implements InputStreamOpener {
+
+        private final FileBatch batch;
+
+        BatchInputStreamOpener(final FileBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public InputStream open() throws FileNotFoundException {
+            throw new FileNotFoundException(batch.getName() + " is a batch of " + batch.size() + " files");
+        }
+    }
+
     static class FileInputStreamOpener implements InputStreamOpener {
 
         private final File file;
@@ -24,6 +24,7 @@ package net.usikkert.kouchat.net;
 
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.TransferTelemetry;
 
 /**
  * This is the interface for both sending and receiving file transfers
@@ -87,12 +88,26 @@ public interface FileTransfer {
     long getFileSize();
 
     /**
-     * Gets the number of bytes transferred per second.
+     * Gets the number of bytes transferred per second, as a moving average.
      *
      * @return The speed in bytes per second.
      */
     long getSpeed();
 
+    /**
+     * Estimates how long it will take to complete the file transfer, at the current speed.
+     *
+     * @return The estimated number of seconds left, or -1 if unknown.
+     */
+    long getEta();
+
+    /**
+     * Gets the telemetry with detailed information about the speed of the file transfer.
+     *
+     * @return The telemetry of this file transfer.
+     */
+    TransferTelemetry getTelemetry();
+
     /**
      * Gets the ID of this file transfer. The ID is unique during the session, and starts with 1.
      *
@@ -100,6 +115,21 @@ public interface FileTransfer {
      */
     int getId();
 
+    /**
+     * Gets the weight of this file transfer, used to share the bandwidth with the other file transfers.
+     *
+     * @return The weight of this file transfer.
+     */
+    int getWeight();
+
+    /**
+     * Sets the weight of this file transfer, used to share the bandwidth with the other file transfers.
+     * Takes effect at once, also if the file transfer is ongoing.
+     *
+     * @param weight The new weight, must be positive.
+     */
+    void setWeight(int weight);
+
     /**
      * Cancels the file transfer.
      */
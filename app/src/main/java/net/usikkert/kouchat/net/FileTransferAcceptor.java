@@ -0,0 +1,385 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Accepts connections for all the incoming file transfers on one shared port.
+ *
+ * <p>A file receiver registers with the acceptor, and gets a one time token that is sent to the
+ * file sender in <code>SENDFILEACCEPT</code>. The file sender writes the token as the first 8 bytes
+ * on every connection, and the acceptor hands the connection to the file receiver with that token.
+ * Connections with an unknown token, or that don't send the token in {@link #TOKEN_TIMEOUT} ms,
+ * are closed.</p>
+ *
+ * <p>The port is opened when the first file receiver registers, using the first available port
+ * starting from {@link Constants#NETWORK_FILE_TRANSFER_PORT}, and stays open until {@link #stop()}.</p>
+ *
+ * @author Christian Ihle
+ * @see FileTransferOptions#TOKEN
+ */
+public class FileTransferAcceptor {
+
+    private static final Logger LOG = Logger.getLogger(FileTransferAcceptor.class);
+
+    /** Milliseconds to wait for the file sender to connect after accepting the file. */
+    public static final int CONNECT_TIMEOUT = 15000;
+
+    /** Milliseconds to wait for the token after a connection is accepted. */
+    static final int TOKEN_TIMEOUT = 5000;
+
+    /** Max milliseconds to wait before checking if a registration has been closed. */
+    private static final int POLL_INTERVAL = 500;
+
+    /** Number of ports to try before giving up. */
+    private static final int MAX_PORTS = 50;
+
+    private final int firstPort;
+    private final Map<Long, Registration> registrations;
+    private final SecureRandom random;
+
+    @Nullable
+    private ServerSocketChannel serverSocketChannel;
+
+    @Nullable
+    private ExecutorService executorService;
+
+    /**
+     * Constructor. Uses the default file transfer port.
+     */
+    public FileTransferAcceptor() {
+        this(Constants.NETWORK_FILE_TRANSFER_PORT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param firstPort The first port to try. Use 0 for any available port.
+     */
+    FileTransferAcceptor(final int firstPort) {
+        this.firstPort = firstPort;
+
+        registrations = new ConcurrentHashMap<>();
+        random = new SecureRandom();
+    }
+
+    /**
+     * Registers a new file transfer, and opens the shared port if it's not open already.
+     *
+     * @return The registration with the token to send to the file sender, and the connections from the sender.
+     * @throws ServerException If the shared port could not be opened.
+     */
+    public synchronized Registration register() throws ServerException {
+        start();
+
+        long token = 0;
+
+        while (token == 0 || registrations.containsKey(token)) {
+            token = random.nextLong() & Long.MAX_VALUE;
+        }
+
+        final Registration registration = new Registration(token);
+        registrations.put(token, registration);
+
+        return registration;
+    }
+
+    /**
+     * Removes the registration of a file transfer, so the token can't be used anymore.
+     * Connections waiting for the file transfer are closed.
+     *
+     * @param registration The registration to remove.
+     */
+    public void unregister(final Registration registration) {
+        registrations.remove(registration.getToken());
+        registration.close();
+    }
+
+    /**
+     * Gets the shared port.
+     *
+     * @return The port, or -1 if not open.
+     */
+    public synchronized int getPort() {
+        if (serverSocketChannel == null) {
+            return -1;
+        }
+
+        return serverSocketChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the number of file transfers waiting for connections.
+     *
+     * @return The number of registrations.
+     */
+    public int getNumberOfRegistrations() {
+        return registrations.size();
+    }
+
+    /**
+     * Closes the shared port, and all the registrations.
+     */
+    public synchronized void stop() {
+        for (final Registration registration : registrations.values()) {
+            unregister(registration);
+        }
+
+        if (serverSocketChannel != null) {
+            try {
+                serverSocketChannel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.warning("Failed to close the file transfer port: %s", e.getMessage());
+            }
+
+            serverSocketChannel = null;
+        }
+
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+
+    private void start() throws ServerException {
+        if (serverSocketChannel != null) {
+            return;
+        }
+
+        final ServerSocketChannel openedChannel = openServerSocketChannel();
+        final ExecutorService tokenReaders = Executors.newCachedThreadPool();
+
+        serverSocketChannel = openedChannel;
+        executorService = tokenReaders;
+
+        final Thread acceptorThread = new Thread("FileTransferAcceptor") {
+            @Override
+            public void run() {
+                acceptConnections(openedChannel, tokenReaders);
+            }
+        };
+
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+
+        LOG.fine("Listening for file transfers on port %s", openedChannel.socket().getLocalPort());
+    }
+
+    private ServerSocketChannel openServerSocketChannel() throws ServerException {
+        final int lastPort = firstPort == 0 ? 0 : firstPort + MAX_PORTS - 1;
+
+        for (int port = firstPort; port <= lastPort; port++) {
+            try {
+                final ServerSocketChannel channel = ServerSocketChannel.open();
+
+                try {
+                    channel.socket().bind(new InetSocketAddress(port));
+                    return channel;
+                }
+
+                catch (final IOException e) {
+                    channel.close();
+                    LOG.warning("Could not open %s: %s", port, e.getMessage());
+                }
+            }
+
+            catch (final IOException e) {
+                throw new ServerException("Could not open the file transfer port", e);
+            }
+        }
+
+        throw new ServerException("No available file transfer port between " + firstPort + " and " + lastPort);
+    }
+
+    private void acceptConnections(final ServerSocketChannel channel, final ExecutorService tokenReaders) {
+        while (channel.isOpen()) {
+            try {
+                final SocketChannel socketChannel = channel.accept();
+
+                tokenReaders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        route(socketChannel);
+                    }
+                });
+            }
+
+            catch (final IOException e) {
+                if (channel.isOpen()) {
+                    LOG.warning("Failed to accept file transfer connection: %s", e.getMessage());
+                }
+            }
+
+            catch (final RuntimeException e) {
+                // The executor is shut down when stopping
+                LOG.fine("Stopped accepting file transfer connections: %s", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the token from the new connection, and hands the connection to the file transfer with that token.
+     */
+    private void route(final SocketChannel socketChannel) {
+        final Socket socket = socketChannel.socket();
+
+        try {
+            // The stream of a socket from a channel supports timeouts, unlike reading from the channel itself
+            socket.setSoTimeout(TOKEN_TIMEOUT);
+            final long token = new DataInputStream(socket.getInputStream()).readLong();
+            socket.setSoTimeout(0);
+
+            final Registration registration = registrations.get(token);
+
+            if (registration != null && registration.offer(socketChannel)) {
+                return;
+            }
+
+            LOG.warning("Closing file transfer connection from %s with unknown token",
+                        socket.getRemoteSocketAddress());
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to read file transfer token from %s: %s",
+                        socket.getRemoteSocketAddress(), e.getMessage());
+        }
+
+        close(socketChannel);
+    }
+
+    private static void close(final SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to close file transfer connection: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * The registration of a single file transfer, with the connections that presented its token.
+     */
+    public static final class Registration implements IncomingConnections {
+
+        private final long token;
+        private final BlockingQueue<SocketChannel> connections;
+        private volatile boolean closed;
+
+        private Registration(final long token) {
+            this.token = token;
+            connections = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * Gets the token the file sender must present when connecting.
+         *
+         * @return The token.
+         */
+        public long getToken() {
+            return token;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>Returns <code>null</code> at once if the registration has been closed.</p>
+         */
+        @Nullable
+        @Override
+        public SocketChannel accept(final int timeout) throws IOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+            try {
+                while (!closed) {
+                    final long left = deadline - System.nanoTime();
+
+                    if (left <= 0) {
+                        return null;
+                    }
+
+                    final SocketChannel socketChannel = connections.poll(
+                            Math.min(left, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)), TimeUnit.NANOSECONDS);
+
+                    if (socketChannel != null) {
+                        return socketChannel;
+                    }
+                }
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return null;
+        }
+
+        private boolean offer(final SocketChannel socketChannel) {
+            if (closed) {
+                return false;
+            }
+
+            connections.add(socketChannel);
+
+            // Closed while adding, so nobody will take the connection
+            if (closed && connections.remove(socketChannel)) {
+                return false;
+            }
+
+            return true;
+        }
+
+        private void close() {
+            closed = true;
+
+            SocketChannel socketChannel = connections.poll();
+
+            while (socketChannel != null) {
+                FileTransferAcceptor.close(socketChannel);
+                socketChannel = connections.poll();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Optional extensions to the file transfer messages, like resuming a failed transfer.
+ *
+ * <p>The options are added between the user code and the port or file size, like this:
+ * <code>(code)&lt;resume,other=value&gt;[size]{hash}fileName</code>. Older clients ignore everything
+ * between those, and just use the plain file transfer.</p>
+ *
+ * <p>The sender lists the options it supports in <code>SENDFILE</code>, and the receiver answers with
+ * the options to use in <code>SENDFILEACCEPT</code>. An option is only used when both ends agree.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FileTransferOptions {
+
+    /**
+     * Resume a failed transfer. Sent without a value in <code>SENDFILE</code>, and with the number of bytes
+     * already received and the checksum of those bytes in <code>SENDFILEACCEPT</code>: <code>resume=offset:crc</code>.
+     */
+    public static final String RESUME = "resume";
+
+    /**
+     * Send the file in chunks over several connections in parallel. Sent without a value in both messages.
+     * Only offered for large regular files, and not used together with {@link #RESUME}.
+     */
+    public static final String PARALLEL = "parallel";
+
+    /**
+     * Verify the file with a CRC32 checksum calculated while it's transferred. Sent without a value
+     * in both messages. The checksum of all the bytes sent follows the file data, or each chunk
+     * when combined with {@link #PARALLEL}.
+     */
+    public static final String CHECKSUM = "checksum";
+
+    /**
+     * Connect to the shared file transfer port, and present a token to find the file transfer.
+     * Sent without a value in <code>SENDFILE</code>, and with the token in <code>SENDFILEACCEPT</code>:
+     * <code>token=number</code>. The token is written as the first 8 bytes of every connection.
+     *
+     * @see FileTransferAcceptor
+     */
+    public static final String TOKEN = "token";
+
+    /**
+     * Send several files over one connection. Sent with the number of files in <code>SENDBATCH</code>:
+     * <code>batch=files</code>, and without a value in <code>SENDFILEACCEPT</code>. Not used together with
+     * {@link #RESUME} or {@link #PARALLEL}.
+     *
+     * @see FileBatch
+     */
+    public static final String BATCH = "batch";
+
+    /**
+     * Send the file compressed with DEFLATE. Sent without a value in both <code>SENDFILE</code>
+     * and <code>SENDFILEACCEPT</code>. Not used together with {@link #PARALLEL}.
+     *
+     * @see CompressedTransfer
+     */
+    public static final String DEFLATE = "deflate";
+
+    private final Map<String, String> options;
+
+    public FileTransferOptions() {
+        options = new LinkedHashMap<>();
+    }
+
+    /**
+     * Parses the options from the part of a message between the user code and the port or file size.
+     *
+     * @param text The text to parse. Can be empty.
+     * @return The parsed options.
+     */
+    public static FileTransferOptions parse(final String text) {
+        Validate.notNull(text, "Text can not be null");
+
+        final FileTransferOptions fileTransferOptions = new FileTransferOptions();
+        final int start = text.indexOf("<");
+        final int end = text.indexOf(">");
+
+        if (start == -1 || end <= start) {
+            return fileTransferOptions;
+        }
+
+        for (final String option : text.substring(start + 1, end).split(",")) {
+            final int equals = option.indexOf("=");
+
+            if (equals == -1) {
+                fileTransferOptions.add(option);
+            } else {
+                fileTransferOptions.add(option.substring(0, equals), option.substring(equals + 1));
+            }
+        }
+
+        return fileTransferOptions;
+    }
+
+    /**
+     * Adds an option without a value.
+     *
+     * @param key The name of the option.
+     * @return These options.
+     */
+    public FileTransferOptions add(final String key) {
+        return add(key, "");
+    }
+
+    /**
+     * Adds an option with a value.
+     *
+     * @param key The name of the option.
+     * @param value The value of the option.
+     * @return These options.
+     */
+    public FileTransferOptions add(final String key, final String value) {
+        Validate.notEmpty(key, "Key can not be empty");
+        Validate.notNull(value, "Value can not be null");
+
+        options.put(key, value);
+        return this;
+    }
+
+    public boolean has(final String key) {
+        return options.containsKey(key);
+    }
+
+    @Nullable
+    public String get(final String key) {
+        return options.get(key);
+    }
+
+    public boolean isEmpty() {
+        return options.isEmpty();
+    }
+
+    /**
+     * Formats the options for a message.
+     *
+     * @return The options, or an empty string if there are none.
+     */
+    @Override
+    public String toString() {
+        if (options.isEmpty()) {
+            return "";
+        }
+
+        final StringBuilder text = new StringBuilder("<");
+
+        for (final Map.Entry<String, String> option : options.entrySet()) {
+            if (text.length() > 1) {
+                text.append(",");
+            }
+
+            text.append(option.getKey());
+
+            if (!option.getValue().isEmpty()) {
+                text.append("=").append(option.getValue());
+            }
+        }
+
+        return text.append(">").toString();
+    }
+}
@@ -0,0 +1,48 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Incoming connections from the user sending a file.
+ *
+ * @author Christian Ihle
+ * @see ServerSocketConnections
+ * @see FileTransferAcceptor.Registration
+ */
+public interface IncomingConnections {
+
+    /**
+     * Waits for the next connection from the user sending the file.
+     *
+     * @param timeout Max milliseconds to wait.
+     * @return The connection, or <code>null</code> if the user didn't connect in time.
+     * @throws IOException If accepting connections fails.
+     */
+    @Nullable
+    SocketChannel accept(int timeout) throws IOException;
+}
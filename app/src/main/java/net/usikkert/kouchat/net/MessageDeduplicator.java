@@ -22,30 +22,56 @@
 
 package net.usikkert.kouchat.net;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.net.tcp.TCPReceiverListener;
+import net.usikkert.kouchat.net.tcp.TCPUserActivityListener;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
 
 /**
- * Proxy that listens for messages from both multicast and tcp and forwards from only one source at
- * a time (per user) to avoid duplicates.
+ * Proxy that listens for messages from both multicast and tcp and forwards only one copy of each message.
+ *
+ * <p>Messages with a sequence number are forwarded from whichever source is first, using a
+ * {@link SequenceWindow} per sender to drop later copies. Messages from older clients without sequence
+ * numbers are forwarded from only one source at a time (per user), tcp if the user has a tcp connection.</p>
+ *
+ * <p>Until the tcp framing has been negotiated, messages are sent over tcp with the older framing,
+ * which has no room for the sequence number. A copy like that is matched by content against the
+ * recent messages with a sequence number, so only one of them is forwarded.
+ * See {@link RecentCopies}.</p>
+ *
+ * <p>Gaps in the sequence numbers of main chat messages are given to the {@link MessageRepairer},
+ * and NACKs from other users are handled by it instead of being forwarded.</p>
+ *
+ * <p>Idle and client messages from users without a tcp connection are also given to the
+ * {@link TCPUserActivityListener}, as a hint that it might be a good time to connect again.</p>
+ *
+ * <p>The sequence windows of a user are forgotten when the user goes offline, since the user starts
+ * over from 0 after a restart.</p>
  *
  * @author Christian Ihle
  */
-public class MessageDeduplicator implements ReceiverListener, TCPReceiverListener {
+public class MessageDeduplicator implements ReceiverListener, TCPReceiverListener, UserListListener {
 
     private static final Logger LOG = Logger.getLogger(MessageDeduplicator.class);
 
     private final Controller controller;
     private final Pattern privateMessagePattern;
+    private final Map<Integer, SequenceWindow> mainChatWindows;
+    private final Map<Integer, SequenceWindow> privateChatWindows;
+    private final RecentCopies recentCopies;
 
     @Nullable
     private ReceiverListener mainChatListener;
@@ -53,11 +79,20 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
     @Nullable
     private ReceiverListener privateChatListener;
 
+    @Nullable
+    private TCPUserActivityListener userActivityListener;
+
+    @Nullable
+    private MessageRepairer messageRepairer;
+
     public MessageDeduplicator(final Controller controller) {
         Validate.notNull(controller, "Controller can not be null");
 
         this.controller = controller;
         this.privateMessagePattern = Pattern.compile("^(\\d+)!(PRIVMSG)#.+");
+        this.mainChatWindows = new HashMap<>();
+        this.privateChatWindows = new HashMap<>();
+        this.recentCopies = new RecentCopies();
     }
 
     public void registerMainChatReceiverListener(final ReceiverListener theListener) {
@@ -68,27 +103,154 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
         this.privateChatListener = theListener;
     }
 
+    public void registerUserActivityListener(final TCPUserActivityListener theListener) {
+        this.userActivityListener = theListener;
+    }
+
+    public void registerMessageRepairer(final MessageRepairer theMessageRepairer) {
+        this.messageRepairer = theMessageRepairer;
+    }
+
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        final User user = parseUserFromMessage(message);
+        final long sequenceNumber = MessageSequence.getSequenceNumber(message);
+        final String messageWithoutSequence = MessageSequence.removeSequenceNumber(message);
 
-        if (user == null || !user.isTcpEnabled()) {
+        if (MessageRepairer.isNack(messageWithoutSequence)) {
+            if (messageRepairer != null) {
+                messageRepairer.nackArrived(messageWithoutSequence);
+            }
+
+            return;
+        }
+
+        final User user = parseUserFromMessage(messageWithoutSequence);
+
+        if (sequenceNumber != MessageSequence.NO_SEQUENCE_NUMBER) {
+            if (isFirstCopy(messageWithoutSequence, sequenceNumber)
+                    && !recentCopies.isCopy(messageWithoutSequence, true)) {
+                LOG.fine("Multicast message: " + messageWithoutSequence);
+                forwardMessageToListener(messageWithoutSequence, ipAddress);
+            }
+        }
+
+        else if (user == null || !user.isTcpEnabled()) {
             if (user == null || !user.isMe()) {
                 LOG.fine("Multicast message: " + message);
             }
 
             forwardMessageToListener(message, ipAddress);
         }
+
+        if (user != null && !user.isMe() && !user.isTcpEnabled()) {
+            notifyUserActivity(messageWithoutSequence, user);
+        }
     }
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
-        if (user.isTcpEnabled()) {
+        final long sequenceNumber = MessageSequence.getSequenceNumber(message);
+
+        if (sequenceNumber != MessageSequence.NO_SEQUENCE_NUMBER) {
+            final String messageWithoutSequence = MessageSequence.removeSequenceNumber(message);
+
+            if (isFirstCopy(messageWithoutSequence, sequenceNumber)
+                    && !recentCopies.isCopy(messageWithoutSequence, true)) {
+                LOG.fine("TCP message: " + messageWithoutSequence);
+                forwardMessageToListener(messageWithoutSequence, ipAddress);
+            }
+        }
+
+        else if (user.isTcpEnabled()) {
+            if (mightHaveSequenceNumber(message) && recentCopies.isCopy(message, false)) {
+                LOG.fine("Dropping copy of message without sequence number: " + message);
+                return;
+            }
+
             LOG.fine("TCP message: " + message);
             forwardMessageToListener(message, ipAddress);
         }
     }
 
+    @Override
+    public void userAdded(final int pos, final User user) {
+        // Nothing to do here
+    }
+
+    @Override
+    public void userChanged(final int pos, final User user) {
+        // Nothing to do here
+    }
+
+    @Override
+    public synchronized void userRemoved(final int pos, final User user) {
+        mainChatWindows.remove(user.getCode());
+        privateChatWindows.remove(user.getCode());
+    }
+
+    /**
+     * Checks if this is the first copy of the message to arrive from any source. Main chat and private chat
+     * messages have separate sequence numbers.
+     *
+     * @param message The message, without the sequence number.
+     * @param sequenceNumber The sequence number of the message.
+     * @return If this is the first copy.
+     */
+    private boolean isFirstCopy(final String message, final long sequenceNumber) {
+        final int userCode = parseUserCodeFromMessage(message);
+
+        if (userCode == -1) {
+            return false;
+        }
+
+        final boolean privateMessage = privateMessagePattern.matcher(message).matches();
+        final SequenceWindow sequenceWindow = getSequenceWindow(privateMessage ? privateChatWindows : mainChatWindows, userCode);
+        final long highest = sequenceWindow.getHighest();
+        final boolean firstCopy = sequenceWindow.register(sequenceNumber);
+
+        if (firstCopy && !privateMessage) {
+            checkForGap(userCode, sequenceWindow, highest, sequenceNumber);
+        }
+
+        return firstCopy;
+    }
+
+    /**
+     * Gives the missing sequence numbers to the {@link MessageRepairer}, if any messages were skipped
+     * since the highest sequence number seen from the user.
+     */
+    private void checkForGap(final int userCode, final SequenceWindow sequenceWindow,
+                             final long highest, final long sequenceNumber) {
+        if (messageRepairer == null || highest == MessageSequence.NO_SEQUENCE_NUMBER || sequenceNumber <= highest + 1) {
+            return;
+        }
+
+        final User user = controller.getUser(userCode);
+
+        if (user != null && !user.isMe()) {
+            messageRepairer.gapDetected(userCode, sequenceWindow, highest + 1, sequenceNumber - 1);
+        }
+    }
+
+    private synchronized SequenceWindow getSequenceWindow(final Map<Integer, SequenceWindow> windows, final int userCode) {
+        SequenceWindow sequenceWindow = windows.get(userCode);
+
+        if (sequenceWindow == null) {
+            sequenceWindow = new SequenceWindow();
+            windows.put(userCode, sequenceWindow);
+        }
+
+        return sequenceWindow;
+    }
+
+    /**
+     * Checks if the type of message gets a sequence number when sent by a client that supports it.
+     * Only these can arrive as a copy without the sequence number.
+     */
+    private boolean mightHaveSequenceNumber(final String message) {
+        return MessageSequence.isSequenced(message) || privateMessagePattern.matcher(message).matches();
+    }
+
     private void forwardMessageToListener(final String message, final String ipAddress) {
         final Matcher privateMessageMatcher = privateMessagePattern.matcher(message);
 
@@ -105,16 +267,120 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
         }
     }
 
+    private void notifyUserActivity(final String message, final User user) {
+        if (userActivityListener == null) {
+            return;
+        }
+
+        final String type = parseTypeFromMessage(message);
+
+        if (NetworkMessageType.IDLE.equals(type)) {
+            userActivityListener.idleArrived(user);
+        } else if (NetworkMessageType.CLIENT.equals(type)) {
+            userActivityListener.clientInfoArrived(user);
+        }
+    }
+
+    @Nullable
+    private String parseTypeFromMessage(final String message) {
+        final int typeStart = message.indexOf("!");
+        final int typeEnd = message.indexOf("#");
+
+        if (typeStart == -1 || typeEnd <= typeStart) {
+            return null;
+        }
+
+        return message.substring(typeStart + 1, typeEnd);
+    }
+
     @Nullable
     private User parseUserFromMessage(final String message) {
+        final int userCode = parseUserCodeFromMessage(message);
+
+        if (userCode == -1) {
+            return null;
+        }
+
+        return controller.getUser(userCode);
+    }
+
+    private int parseUserCodeFromMessage(final String message) {
         try {
-            final int msgCode = Integer.parseInt(message.substring(0, message.indexOf("!")));
-            return controller.getUser(msgCode);
+            return Integer.parseInt(message.substring(0, message.indexOf("!")));
         }
 
         catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
             LOG.warning("Failed to parse user from message: %s", e.getMessage());
-            return null;
+            return -1;
+        }
+    }
+
+    /**
+     * Remembers the messages forwarded in the last {@link #COPY_WINDOW} ms, with and without a sequence number.
+     * A message without a sequence number is a copy if the same message was forwarded with a sequence number,
+     * and the other way around. Each remembered message is only a match for a single copy, so a user
+     * writing the same message twice still gets both through.
+     */
+    private static class RecentCopies {
+
+        /** Milliseconds to remember a message. */
+        static final int COPY_WINDOW = 5000;
+
+        /** Max number of messages to remember. */
+        static final int MAX_COPIES = 256;
+
+        private final Map<String, RecentCopy> copies = new LinkedHashMap<>();
+
+        /**
+         * Checks if the message is a copy of a recent message of the other kind. If not, the message is remembered.
+         *
+         * @param message The message, without the sequence number.
+         * @param sequenced If the message had a sequence number.
+         * @return If the message is a copy, and should be dropped.
+         */
+        synchronized boolean isCopy(final String message, final boolean sequenced) {
+            final long now = System.currentTimeMillis();
+            final RecentCopy copy = copies.get(message);
+
+            if (copy != null && now - copy.time <= COPY_WINDOW) {
+                if (copy.sequenced != sequenced) {
+                    copy.count--;
+
+                    if (copy.count == 0) {
+                        copies.remove(message);
+                    }
+
+                    return true;
+                }
+
+                copy.count++;
+                return false;
+            }
+
+            copies.remove(message);
+
+            if (copies.size() >= MAX_COPIES) {
+                final Iterator<String> eldest = copies.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+
+            copies.put(message, new RecentCopy(sequenced, now));
+
+            return false;
+        }
+    }
+
+    private static class RecentCopy {
+
+        private final boolean sequenced;
+        private final long time;
+        private int count;
+
+        RecentCopy(final boolean sequenced, final long time) {
+            this.sequenced = sequenced;
+            this.time = time;
+            this.count = 1;
         }
     }
 }
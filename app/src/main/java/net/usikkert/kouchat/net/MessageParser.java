@@ -56,6 +56,7 @@ import net.usikkert.kouchat.util.Validate;
  *   <li>SENDFILEACCEPT</li>
  *   <li>SENDFILEABORT</li>
  *   <li>SENDFILE</li>
+ *   <li>SENDBATCH</li>
  *   <li>CLIENT</li>
  * </ul>
  *
@@ -218,8 +219,10 @@ public class MessageParser implements ReceiverListener {
                         final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
                         final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
                         final String fileName = msg.substring(rightCurly + 1, msg.length());
+                        final FileTransferOptions options =
+                                FileTransferOptions.parse(msg.substring(rightPara + 1, leftBracket));
 
-                        responder.fileSendAccepted(msgCode, fileName, fileHash, port);
+                        responder.fileSendAccepted(msgCode, fileName, fileHash, port, options);
                     }
                 }
 
@@ -238,7 +241,7 @@ public class MessageParser implements ReceiverListener {
                     }
                 }
 
-                else if (type.equals(SENDFILE)) {
+                else if (type.equals(SENDFILE) || type.equals(SENDBATCH)) {
                     final int leftPara = msg.indexOf("(");
                     final int rightPara = msg.indexOf(")");
                     final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
@@ -251,8 +254,18 @@ public class MessageParser implements ReceiverListener {
                         final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
                         final String fileName = msg.substring(rightCurly + 1, msg.length());
                         final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+                        final FileTransferOptions options =
+                                FileTransferOptions.parse(msg.substring(rightPara + 1, leftBracket));
 
-                        responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash);
+                        // A batch is only offered with SENDBATCH, so older clients don't take it for a single file
+                        if (type.equals(SENDBATCH) == options.has(FileTransferOptions.BATCH)) {
+                            responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash, options);
+                        }
+
+                        else {
+                            LOG.log(Level.WARNING, "Invalid file transfer offer. message=" + message +
+                                    ", ipAddress=" + ipAddress);
+                        }
                     }
                 }
 
@@ -0,0 +1,359 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Repairs gaps in the sequence numbers of multicast messages, using negative acknowledgements (NACK),
+ * like in Scalable Reliable Multicast (SRM).
+ *
+ * <p>The sender keeps the most recent messages in a {@link RetransmissionBuffer}. A receiver that detects
+ * a gap waits a random delay before sending a NACK with the missing sequence numbers to all users.
+ * Other receivers that miss the same messages postpone their own NACK when they see it, so a lost message
+ * does not cause a NACK from everyone at once. The sender resends the missing messages with unicast udp
+ * to the user that asked for them, or with multicast if either of them has private chat disabled.</p>
+ *
+ * <p>The format of the NACK is: <code>code!NACK#nick:senderCode:seq,seq,seq</code>.</p>
+ *
+ * <p>Older clients ignore the NACK.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageRepairer {
+
+    private static final Logger LOG = Logger.getLogger(MessageRepairer.class);
+
+    /** Number of sent messages to keep for repairs. */
+    static final int BUFFER_SIZE = 256;
+
+    /** Max number of missing messages to ask for in a single gap. */
+    static final int MAX_GAP = 64;
+
+    /** Max number of sequence numbers in a single NACK. */
+    static final int MAX_NACK_SIZE = 32;
+
+    /** Shortest random delay in milliseconds before sending the first NACK. */
+    static final int MIN_NACK_DELAY = 50;
+
+    /** Longest random delay in milliseconds before sending the first NACK. */
+    static final int MAX_NACK_DELAY = 250;
+
+    /** Shortest random delay in milliseconds before sending the NACK again, or after suppression. */
+    static final int MIN_RETRY_DELAY = 500;
+
+    /** Longest random delay in milliseconds before sending the NACK again, or after suppression. */
+    static final int MAX_RETRY_DELAY = 1000;
+
+    /** Number of times to send a NACK before giving up. */
+    static final int MAX_ATTEMPTS = 3;
+
+    private final Controller controller;
+    private final User me;
+    private final MessageSender messageSender;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final Random random;
+    private final RetransmissionBuffer retransmissionBuffer;
+    private final Map<Integer, PendingGap> pendingGaps;
+
+    @Nullable
+    private final UDPSender udpSender;
+
+    public MessageRepairer(final Controller controller,
+                           final Settings settings,
+                           final MessageSender messageSender,
+                           @Nullable final UDPSender udpSender,
+                           final ScheduledExecutorService scheduledExecutorService) {
+        this(controller, settings, messageSender, udpSender, scheduledExecutorService, new Random());
+    }
+
+    MessageRepairer(final Controller controller,
+                    final Settings settings,
+                    final MessageSender messageSender,
+                    @Nullable final UDPSender udpSender,
+                    final ScheduledExecutorService scheduledExecutorService,
+                    final Random random) {
+        Validate.notNull(controller, "Controller can not be null");
+        Validate.notNull(settings, "Settings can not be null");
+        Validate.notNull(messageSender, "Message sender can not be null");
+        Validate.notNull(scheduledExecutorService, "Scheduled executor service can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.controller = controller;
+        this.me = settings.getMe();
+        this.messageSender = messageSender;
+        this.udpSender = udpSender;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.random = random;
+        this.retransmissionBuffer = new RetransmissionBuffer(BUFFER_SIZE);
+        this.pendingGaps = new HashMap<>();
+    }
+
+    /**
+     * Keeps a message sent to all users, in case someone asks for it later.
+     *
+     * @param sequenceNumber The sequence number of the message.
+     * @param message The message, with the sequence number.
+     */
+    public void messageSent(final long sequenceNumber, final String message) {
+        retransmissionBuffer.add(sequenceNumber, message);
+    }
+
+    /**
+     * Notifies about missing sequence numbers from a user, and schedules a NACK if they are still missing
+     * after a short random delay.
+     *
+     * @param userCode The user code of the sender.
+     * @param sequenceWindow The sequence numbers already seen from the sender.
+     * @param firstMissing The first missing sequence number.
+     * @param lastMissing The last missing sequence number.
+     */
+    public synchronized void gapDetected(final int userCode, final SequenceWindow sequenceWindow,
+                                         final long firstMissing, final long lastMissing) {
+        PendingGap pendingGap = pendingGaps.get(userCode);
+
+        if (pendingGap == null) {
+            pendingGap = new PendingGap(userCode, sequenceWindow);
+            pendingGaps.put(userCode, pendingGap);
+        }
+
+        for (long sequenceNumber = Math.max(firstMissing, lastMissing - MAX_GAP + 1); sequenceNumber <= lastMissing;
+             sequenceNumber++) {
+            pendingGap.missing.add(sequenceNumber);
+        }
+
+        if (pendingGap.future == null) {
+            schedule(pendingGap, MIN_NACK_DELAY, MAX_NACK_DELAY);
+        }
+    }
+
+    /**
+     * Handles a NACK from another user. Resends the missing messages if the NACK is for messages sent by me.
+     * Otherwise the NACK is used to postpone my own NACK for the same messages.
+     *
+     * @param message The NACK, without the sequence number.
+     */
+    public void nackArrived(final String message) {
+        final Nack nack = parseNack(message);
+
+        if (nack == null || nack.nackerCode == me.getCode()) {
+            return;
+        }
+
+        if (nack.senderCode == me.getCode()) {
+            resend(nack);
+        } else {
+            suppress(nack);
+        }
+    }
+
+    /**
+     * Checks if the message is a NACK.
+     *
+     * @param message The message to check, without the sequence number.
+     * @return If it's a NACK.
+     */
+    public static boolean isNack(final String message) {
+        final int typeStart = message.indexOf("!");
+
+        return typeStart != -1 && message.startsWith(NetworkMessageType.NACK + "#", typeStart + 1);
+    }
+
+    private void resend(final Nack nack) {
+        final User nacker = controller.getUser(nack.nackerCode);
+
+        if (nacker == null) {
+            return;
+        }
+
+        final boolean unicast = udpSender != null && nacker.getPrivateChatPort() > 0;
+
+        for (final Long sequenceNumber : nack.sequenceNumbers) {
+            final String bufferedMessage = retransmissionBuffer.get(sequenceNumber);
+
+            if (bufferedMessage == null) {
+                continue;
+            }
+
+            LOG.fine("Resending message %s to %s", sequenceNumber, nacker.getNick());
+
+            if (unicast) {
+                udpSender.send(bufferedMessage, nacker.getIpAddress(), nacker.getPrivateChatPort());
+            }
+
+            // Other users that already have the message drop it as a duplicate
+            else {
+                messageSender.send(bufferedMessage);
+            }
+        }
+    }
+
+    private synchronized void suppress(final Nack nack) {
+        final PendingGap pendingGap = pendingGaps.get(nack.senderCode);
+
+        if (pendingGap == null || pendingGap.future == null) {
+            return;
+        }
+
+        for (final Long sequenceNumber : nack.sequenceNumbers) {
+            if (pendingGap.missing.contains(sequenceNumber)) {
+                pendingGap.future.cancel(false);
+                schedule(pendingGap, MIN_RETRY_DELAY, MAX_RETRY_DELAY);
+                return;
+            }
+        }
+    }
+
+    private synchronized void sendNack(final PendingGap pendingGap) {
+        pendingGap.future = null;
+
+        final List<Long> stillMissing = new ArrayList<>();
+
+        for (final Long sequenceNumber : pendingGap.missing) {
+            if (!pendingGap.sequenceWindow.isRegistered(sequenceNumber)) {
+                stillMissing.add(sequenceNumber);
+            }
+        }
+
+        pendingGap.missing.retainAll(stillMissing);
+
+        if (stillMissing.isEmpty() || pendingGap.attempts >= MAX_ATTEMPTS) {
+            if (!stillMissing.isEmpty()) {
+                LOG.fine("Giving up on %s missing messages from %s", stillMissing.size(), pendingGap.userCode);
+            }
+
+            pendingGaps.remove(pendingGap.userCode);
+            return;
+        }
+
+        pendingGap.attempts++;
+        messageSender.send(createNack(pendingGap.userCode, stillMissing));
+        schedule(pendingGap, MIN_RETRY_DELAY, MAX_RETRY_DELAY);
+    }
+
+    private String createNack(final int userCode, final List<Long> sequenceNumbers) {
+        final StringBuilder nack = new StringBuilder();
+
+        nack.append(me.getCode()).append("!").append(NetworkMessageType.NACK).append("#").append(me.getNick())
+                .append(":").append(userCode).append(":");
+
+        for (int i = 0; i < sequenceNumbers.size() && i < MAX_NACK_SIZE; i++) {
+            if (i > 0) {
+                nack.append(",");
+            }
+
+            nack.append(sequenceNumbers.get(i));
+        }
+
+        return nack.toString();
+    }
+
+    private void schedule(final PendingGap pendingGap, final int minDelay, final int maxDelay) {
+        final int delay = minDelay + random.nextInt(maxDelay - minDelay + 1);
+
+        pendingGap.future = scheduledExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendNack(pendingGap);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Nullable
+    private Nack parseNack(final String message) {
+        try {
+            final int nackerCode = Integer.parseInt(message.substring(0, message.indexOf("!")));
+            final String content = message.substring(message.indexOf(":") + 1);
+            final int senderEnd = content.indexOf(":");
+            final int senderCode = Integer.parseInt(content.substring(0, senderEnd));
+            final List<Long> sequenceNumbers = new ArrayList<>();
+
+            for (final String sequenceNumber : content.substring(senderEnd + 1).split(",")) {
+                if (sequenceNumbers.size() < MAX_NACK_SIZE) {
+                    sequenceNumbers.add(Long.parseLong(sequenceNumber));
+                }
+            }
+
+            return new Nack(nackerCode, senderCode, sequenceNumbers);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.warning("Failed to parse NACK: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Missing sequence numbers from a single sender, waiting for the next NACK.
+     */
+    private static class PendingGap {
+
+        private final int userCode;
+        private final SequenceWindow sequenceWindow;
+        private final SortedSet<Long> missing;
+
+        @Nullable
+        private ScheduledFuture<?> future;
+
+        private int attempts;
+
+        PendingGap(final int userCode, final SequenceWindow sequenceWindow) {
+            this.userCode = userCode;
+            this.sequenceWindow = sequenceWindow;
+            this.missing = new TreeSet<>();
+        }
+    }
+
+    /**
+     * A parsed NACK.
+     */
+    private static class Nack {
+
+        private final int nackerCode;
+        private final int senderCode;
+        private final List<Long> sequenceNumbers;
+
+        Nack(final int nackerCode, final int senderCode, final List<Long> sequenceNumbers) {
+            this.nackerCode = nackerCode;
+            this.senderCode = senderCode;
+            this.sequenceNumbers = sequenceNumbers;
+        }
+    }
+}
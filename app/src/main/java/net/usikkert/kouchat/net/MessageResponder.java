@@ -147,8 +147,10 @@ public interface MessageResponder {
      * @param fileName The name of the file.
      * @param user The nick name of the user.
      * @param fileHash The hash code of the file.
+     * @param options The file transfer options supported by the user.
      */
-    void fileSend(int userCode, long byteSize, String fileName, String user, int fileHash);
+    void fileSend(int userCode, long byteSize, String fileName, String user, int fileHash,
+                  FileTransferOptions options);
 
     /**
      * A user has aborted a file transfer from the application user.
@@ -166,8 +168,9 @@ public interface MessageResponder {
      * @param fileName The name of the file.
      * @param fileHash The hash code of the file.
      * @param port The port to use for connecting to the other user.
+     * @param options The file transfer options to use.
      */
-    void fileSendAccepted(int userCode, String fileName, int fileHash, int port);
+    void fileSendAccepted(int userCode, String fileName, int fileHash, int port, FileTransferOptions options);
 
     /**
      * A user has sent information about it's client.
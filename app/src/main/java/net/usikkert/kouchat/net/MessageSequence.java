@@ -0,0 +1,160 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Adds and reads sequence numbers on network messages.
+ *
+ * <p>The sequence number is added as a trailer at the end of the message, using only characters
+ * at or below the space character: a marker followed by 8 characters with 4 bits each. Older clients
+ * trim messages from udp, so they will never notice the trailer. Tcp messages are not trimmed,
+ * so the trailer is removed before sending to older clients.</p>
+ *
+ * <p>Only the messages that are worth repairing if lost get a sequence number. Messages like idle
+ * and writing are replaced by the next one anyway.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class MessageSequence {
+
+    /** Marks the start of the trailer. */
+    private static final char MARKER = '\u0001';
+
+    /** The characters with the 4 bit values start here. */
+    private static final char NIBBLE_BASE = '\u0010';
+
+    private static final int NIBBLES = 8;
+    private static final int TRAILER_LENGTH = NIBBLES + 1;
+
+    /** Value returned when a message has no sequence number. */
+    public static final long NO_SEQUENCE_NUMBER = -1;
+
+    /** The types of messages to all users that should have a sequence number. */
+    private static final Set<String> SEQUENCED_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            NetworkMessageType.MSG, NetworkMessageType.TOPIC, NetworkMessageType.AWAY, NetworkMessageType.BACK,
+            NetworkMessageType.NICK, NetworkMessageType.SENDFILE, NetworkMessageType.SENDBATCH,
+            NetworkMessageType.SENDFILEACCEPT, NetworkMessageType.SENDFILEABORT)));
+
+    private MessageSequence() {
+        // Only static methods
+    }
+
+    /**
+     * Checks if a message to all users should have a sequence number, so it can be repaired if lost.
+     *
+     * @param message The message to check, in the format <code>code!TYPE#nick:...</code>.
+     * @return If the type of message should have a sequence number.
+     */
+    public static boolean isSequenced(final String message) {
+        final int typeStart = message.indexOf('!');
+        final int typeEnd = message.indexOf('#');
+
+        if (typeStart == -1 || typeEnd <= typeStart) {
+            return false;
+        }
+
+        return SEQUENCED_TYPES.contains(message.substring(typeStart + 1, typeEnd));
+    }
+
+    /**
+     * Adds the sequence number to the end of the message.
+     *
+     * @param message The message to add the sequence number to.
+     * @param sequenceNumber The sequence number. Only the lowest 32 bits are used.
+     * @return The message with the sequence number.
+     */
+    public static String addSequenceNumber(final String message, final long sequenceNumber) {
+        final StringBuilder builder = new StringBuilder(message.length() + TRAILER_LENGTH);
+        builder.append(message).append(MARKER);
+
+        for (int i = NIBBLES - 1; i >= 0; i--) {
+            builder.append((char) (NIBBLE_BASE + ((sequenceNumber >>> (i * 4)) & 0xF)));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Gets the sequence number from the end of the message.
+     *
+     * @param message The message to get the sequence number from.
+     * @return The sequence number, or {@link #NO_SEQUENCE_NUMBER} if the message has none.
+     */
+    public static long getSequenceNumber(final String message) {
+        final int start = message.length() - TRAILER_LENGTH;
+
+        if (start < 0 || message.charAt(start) != MARKER) {
+            return NO_SEQUENCE_NUMBER;
+        }
+
+        long sequenceNumber = 0;
+
+        for (int i = start + 1; i < message.length(); i++) {
+            final int nibble = message.charAt(i) - NIBBLE_BASE;
+
+            if (nibble < 0 || nibble > 0xF) {
+                return NO_SEQUENCE_NUMBER;
+            }
+
+            sequenceNumber = (sequenceNumber << 4) | nibble;
+        }
+
+        return sequenceNumber;
+    }
+
+    /**
+     * Removes whitespace from the start and end of the message, like {@link String#trim()}, but keeps the
+     * sequence number.
+     *
+     * @param message The message to trim.
+     * @return The trimmed message, with the sequence number if it had one.
+     */
+    public static String trim(final String message) {
+        final long sequenceNumber = getSequenceNumber(message);
+
+        if (sequenceNumber == NO_SEQUENCE_NUMBER) {
+            return message.trim();
+        }
+
+        return addSequenceNumber(removeSequenceNumber(message).trim(), sequenceNumber);
+    }
+
+    /**
+     * Removes the sequence number from the end of the message, if it has one.
+     *
+     * @param message The message to remove the sequence number from.
+     * @return The message without the sequence number.
+     */
+    public static String removeSequenceNumber(final String message) {
+        if (getSequenceNumber(message) == NO_SEQUENCE_NUMBER) {
+            return message;
+        }
+
+        return message.substring(0, message.length() - TRAILER_LENGTH);
+    }
+}
@@ -46,6 +46,12 @@ public interface NetworkMessageType {
     String SENDFILEACCEPT = "SENDFILEACCEPT";
     String SENDFILEABORT = "SENDFILEABORT";
     String SENDFILE = "SENDFILE";
+
+    /** Offer to send a batch of files over one connection. Ignored by older clients. */
+    String SENDBATCH = "SENDBATCH";
     String CLIENT = "CLIENT";
     String PRIVMSG = "PRIVMSG";
+
+    /** Request to resend missing messages. Ignored by older clients. */
+    String NACK = "NACK";
 }
@@ -271,8 +271,28 @@ public class NetworkMessages {
      */
     public void sendFileAccept(final User user, final int port,
             final int fileHash, final String fileName) throws CommandException {
+        sendFileAccept(user, port, fileHash, fileName, new FileTransferOptions());
+    }
+
+    /**
+     * Sends a message to notify the file sender that you
+     * accepted the file transfer, with the file transfer options to use.
+     *
+     * <p>Note: the network will be checked, and the user notified if this fails!</p>
+     *
+     * @param user The user sending a file.
+     * @param port The port the file sender can connect to on this client
+     *             to start the file transfer.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param options The file transfer options to use. Must be supported by the file sender.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileAccept(final User user, final int port, final int fileHash,
+                               final String fileName, final FileTransferOptions options) throws CommandException {
         final String msg = createMessage(SENDFILEACCEPT) +
                 "(" + user.getCode() + ")" +
+                options +
                 "[" + port + "]" +
                 "{" + fileHash + "}" +
                 fileName;
@@ -287,6 +307,10 @@ public class NetworkMessages {
 
     /**
      * Sends a message to notify another user that you want to send a file.
+     * Includes the file transfer options supported by this client.
+     *
+     * <p>A batch of files is offered with <code>SENDBATCH</code> instead, with the number of files,
+     * and the total size of the files.</p>
      *
      * <p>Note: the network will be checked, and the user notified if this fails!</p>
      *
@@ -295,8 +319,28 @@ public class NetworkMessages {
      * @throws CommandException If the message was not sent successfully.
      */
     public void sendFile(final User user, final FileToSend file) throws CommandException {
-        final String msg = createMessage(SENDFILE) +
+        final FileBatch batch = file.getBatch();
+        final FileTransferOptions options = new FileTransferOptions();
+
+        if (batch != null) {
+            options.add(FileTransferOptions.BATCH, String.valueOf(batch.size()));
+        }
+
+        else {
+            options.add(FileTransferOptions.RESUME);
+        }
+
+        options.add(FileTransferOptions.CHECKSUM)
+               .add(FileTransferOptions.TOKEN)
+               .add(FileTransferOptions.DEFLATE);
+
+        if (file.isRegularFile() && file.length() >= ParallelFileSender.MIN_FILE_SIZE) {
+            options.add(FileTransferOptions.PARALLEL);
+        }
+
+        final String msg = createMessage(batch != null ? SENDBATCH : SENDFILE) +
                 "(" + user.getCode() + ")" +
+                options +
                 "[" + file.length() + "]" +
                 "{" + file.hashCode() + "}" +
                 file.getName();
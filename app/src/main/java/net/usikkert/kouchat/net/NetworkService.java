@@ -23,6 +23,10 @@
 package net.usikkert.kouchat.net;
 
 import java.net.NetworkInterface;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import net.usikkert.kouchat.event.NetworkConnectionListener;
@@ -65,9 +69,21 @@ public class NetworkService implements NetworkConnectionListener {
     /** Proxy for deduplicating multicast and tcp messages. */
     private final MessageDeduplicator messageDeduplicator;
 
+    /** Repairs lost multicast messages. */
+    private final MessageRepairer messageRepairer;
+
     /** If private chat should be enabled. */
     private final boolean privateChatEnabled;
 
+    /** Sequence number for the next message to all users. */
+    private final AtomicLong mainChatSequence = new AtomicLong();
+
+    /**
+     * Sequence number for the next private message, per user code of the recipient. Kept when the user goes
+     * offline, since the user might still remember the last sequence number, and drop messages starting over.
+     */
+    private final ConcurrentMap<Integer, AtomicLong> privateChatSequences = new ConcurrentHashMap<>();
+
     /**
      * Constructor.
      *
@@ -89,6 +105,8 @@ public class NetworkService implements NetworkConnectionListener {
         connectionWorker = new ConnectionWorker(settings, errorHandler);
         tcpNetworkService = new TCPNetworkService(controller, settings, errorHandler);
         messageDeduplicator = new MessageDeduplicator(controller);
+        messageDeduplicator.registerUserActivityListener(tcpNetworkService);
+        controller.getUserList().addUserListListener(messageDeduplicator);
 
         if (privateChatEnabled) {
             udpReceiver = new UDPReceiver(settings, errorHandler);
@@ -101,6 +119,10 @@ public class NetworkService implements NetworkConnectionListener {
             udpSender = null;
         }
 
+        messageRepairer = new MessageRepairer(controller, settings, messageSender, udpSender,
+                                              Executors.newSingleThreadScheduledExecutor());
+        messageDeduplicator.registerMessageRepairer(messageRepairer);
+
         connectionWorker.registerNetworkConnectionListener(this);
     }
 
@@ -127,6 +149,10 @@ public class NetworkService implements NetworkConnectionListener {
         return connectionWorker;
     }
 
+    public TCPNetworkService getTCPNetworkService() {
+        return tcpNetworkService;
+    }
+
     /**
      * Checks if the connection thread is alive.
      *
@@ -184,8 +210,17 @@ public class NetworkService implements NetworkConnectionListener {
      * @return If the message was sent or not.
      */
     public boolean sendMessageToAllUsers(final String message) {
-        tcpNetworkService.sendMessageToAll(message);
-        return messageSender.send(message);
+        if (!MessageSequence.isSequenced(message)) {
+            tcpNetworkService.sendMessageToAll(message);
+            return messageSender.send(message);
+        }
+
+        final long sequenceNumber = mainChatSequence.getAndIncrement();
+        final String sequencedMessage = MessageSequence.addSequenceNumber(message, sequenceNumber);
+
+        messageRepairer.messageSent(sequenceNumber, sequencedMessage);
+        tcpNetworkService.sendMessageToAll(sequencedMessage);
+        return messageSender.send(sequencedMessage);
     }
 
     /**
@@ -197,8 +232,11 @@ public class NetworkService implements NetworkConnectionListener {
      */
     public boolean sendMessageToUser(final String message, final User user) {
         if (privateChatEnabled) {
-            tcpNetworkService.sendMessageToUser(message, user);
-            return udpSender.send(message, user.getIpAddress(), user.getPrivateChatPort());
+            final long sequenceNumber = getPrivateChatSequence(user).getAndIncrement();
+            final String sequencedMessage = MessageSequence.addSequenceNumber(message, sequenceNumber);
+
+            tcpNetworkService.sendMessageToUser(sequencedMessage, user);
+            return udpSender.send(sequencedMessage, user.getIpAddress(), user.getPrivateChatPort());
         }
 
         else {
@@ -206,6 +244,19 @@ public class NetworkService implements NetworkConnectionListener {
         }
     }
 
+    /**
+     * Gets the sequence numbers for private messages to a user, so each user gets a sequence without gaps.
+     *
+     * @param user The user to send private messages to.
+     * @return The sequence numbers for the user.
+     */
+    private AtomicLong getPrivateChatSequence(final User user) {
+        final AtomicLong newSequence = new AtomicLong();
+        final AtomicLong existingSequence = privateChatSequences.putIfAbsent(user.getCode(), newSequence);
+
+        return existingSequence != null ? existingSequence : newSequence;
+    }
+
     /**
      * Checks the state of the network, and tries to keep the best possible
      * network connection up.
@@ -0,0 +1,280 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Receives a file sent in chunks over several connections in parallel, by {@link ParallelFileSender}.
+ *
+ * <p>Each chunk is written directly to its position in the file, so the chunks can arrive in any order.
+ * The transfer is complete when every chunk has arrived at least once.</p>
+ *
+ * <p>With checksums, a chunk only counts as arrived if the checksum matched.</p>
+ *
+ * <p>The progress is counted once for each chunk that arrived, so a chunk that is received again
+ * is not counted twice. The file must already be set to the full size.</p>
+ *
+ * @author Christian Ihle
+ * @see ParallelFileSender
+ */
+public class ParallelFileReceiver {
+
+    private static final Logger LOG = Logger.getLogger(ParallelFileReceiver.class);
+
+    /** Milliseconds to wait for a new connection when there are no connections left. */
+    static final int IDLE_TIMEOUT = 15000;
+
+    /** Milliseconds to block while waiting for another connection, before checking if the transfer is done. */
+    static final int ACCEPT_TIMEOUT = 500;
+
+    private final IncomingConnections connections;
+    private final FileChannel fileChannel;
+    private final long length;
+    private final ChannelTransfer.ProgressListener listener;
+    private final ChannelTransfer.ProgressListener chunkListener;
+    private final boolean checksum;
+    private final BitSet receivedChunks;
+    private final int numberOfChunks;
+
+    private int activeConnections;
+    private long lastActivity;
+
+    /**
+     * Constructor.
+     *
+     * @param connections To accept more connections from.
+     * @param fileChannel The file to save to, already set to the full size.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @param checksum If each chunk should be verified with a checksum.
+     */
+    public ParallelFileReceiver(final IncomingConnections connections, final FileChannel fileChannel, final long length,
+                                final ChannelTransfer.ProgressListener listener, final boolean checksum) {
+        Validate.notNull(connections, "Incoming connections can not be null");
+        Validate.notNull(fileChannel, "File channel can not be null");
+        Validate.notNull(listener, "Progress listener can not be null");
+
+        this.connections = connections;
+        this.fileChannel = fileChannel;
+        this.length = length;
+        this.listener = listener;
+        this.chunkListener = new ParallelFileSender.ChunkProgressListener(listener);
+        this.checksum = checksum;
+
+        numberOfChunks = ParallelFileSender.getNumberOfChunks(length);
+        receivedChunks = new BitSet(numberOfChunks);
+    }
+
+    /**
+     * Receives the file, starting with the connection that is already open, and accepting more
+     * connections until all the chunks have arrived.
+     *
+     * @param firstChannel The first connection from the user.
+     * @return If all the chunks were received.
+     * @throws IOException If accepting connections fails.
+     */
+    public boolean receive(final SocketChannel firstChannel) throws IOException {
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+
+        try {
+            startConnection(executorService, firstChannel);
+
+            while (!listener.isCanceled() && !isComplete() && !isIdle()) {
+                final SocketChannel socketChannel = connections.accept(ACCEPT_TIMEOUT);
+
+                if (socketChannel != null) {
+                    startConnection(executorService, socketChannel);
+                }
+            }
+        }
+
+        finally {
+            executorService.shutdown();
+            waitForConnections(executorService);
+        }
+
+        return isComplete();
+    }
+
+    private void waitForConnections(final ExecutorService executorService) {
+        try {
+            if (!executorService.awaitTermination(ACCEPT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executorService.shutdownNow();
+            }
+        }
+
+        catch (final InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startConnection(final ExecutorService executorService, final SocketChannel socketChannel) {
+        synchronized (this) {
+            activeConnections++;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                receiveChunks(socketChannel);
+            }
+        });
+    }
+
+    private void receiveChunks(final SocketChannel socketChannel) {
+        final ByteBuffer header = ByteBuffer.allocate(ParallelFileSender.HEADER_SIZE);
+
+        try {
+            while (!listener.isCanceled() && readHeader(socketChannel, header)) {
+                final long position = header.getLong();
+                final int chunkLength = header.getInt();
+                final int chunk = getChunk(position, chunkLength);
+
+                final CRC32 crc = checksum ? new CRC32() : null;
+                final long received = ChannelTransfer.receiveFile(socketChannel, fileChannel, position,
+                                                                  position + chunkLength, chunkListener, crc);
+
+                if (received < chunkLength) {
+                    break;
+                }
+
+                if ((crc == null || verifyChecksum(socketChannel, chunk, crc)) && chunkReceived(chunk)) {
+                    listener.bytesTransferred(chunkLength);
+                }
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to receive chunk: %s", e.getMessage());
+        }
+
+        finally {
+            try {
+                socketChannel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.warning("Failed to close connection: %s", e.getMessage());
+            }
+
+            connectionFinished();
+        }
+    }
+
+    /**
+     * Compares the checksum of the chunk with the checksum from the sender, and tells the sender if it matched.
+     *
+     * @return If the checksum matched.
+     */
+    private boolean verifyChecksum(final SocketChannel socketChannel, final int chunk, final CRC32 crc)
+            throws IOException {
+        final boolean match = ChannelTransfer.readLong(socketChannel) == crc.getValue();
+
+        if (!match) {
+            LOG.warning("Checksum mismatch for chunk %s", chunk);
+        }
+
+        final ByteBuffer answer = ByteBuffer.allocate(1);
+        answer.put(match ? ParallelFileSender.CHUNK_OK : ParallelFileSender.CHUNK_BAD);
+        answer.flip();
+
+        while (answer.hasRemaining()) {
+            socketChannel.write(answer);
+        }
+
+        return match;
+    }
+
+    /**
+     * Reads the header of the next chunk.
+     *
+     * @return If there was a header, or <code>false</code> if the sender closed the connection.
+     */
+    private boolean readHeader(final SocketChannel socketChannel, final ByteBuffer header) throws IOException {
+        header.clear();
+
+        if (socketChannel.read(header) == -1) {
+            return false;
+        }
+
+        ChannelTransfer.readFully(socketChannel, header);
+        header.flip();
+
+        return true;
+    }
+
+    private int getChunk(final long position, final int chunkLength) throws IOException {
+        final long chunk = position / ParallelFileSender.CHUNK_SIZE;
+
+        if (position < 0 || position % ParallelFileSender.CHUNK_SIZE != 0 || chunk >= numberOfChunks
+                || chunkLength != Math.min(ParallelFileSender.CHUNK_SIZE, length - position)) {
+            throw new IOException("Invalid chunk: position=" + position + ", length=" + chunkLength);
+        }
+
+        return (int) chunk;
+    }
+
+    /**
+     * Marks the chunk as received.
+     *
+     * @return If this is the first time the chunk was received.
+     */
+    private synchronized boolean chunkReceived(final int chunk) {
+        lastActivity = System.currentTimeMillis();
+
+        if (receivedChunks.get(chunk)) {
+            return false;
+        }
+
+        receivedChunks.set(chunk);
+
+        return true;
+    }
+
+    private synchronized void connectionFinished() {
+        activeConnections--;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private synchronized boolean isComplete() {
+        return receivedChunks.cardinality() == numberOfChunks;
+    }
+
+    private synchronized boolean isIdle() {
+        return activeConnections == 0 && System.currentTimeMillis() - lastActivity > IDLE_TIMEOUT;
+    }
+}
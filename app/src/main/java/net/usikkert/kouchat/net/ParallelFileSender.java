@@ -0,0 +1,405 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.TransferTelemetry;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Sends a file in chunks over several connections in parallel, to get more throughput on links where
+ * a single connection can't use all the bandwidth.
+ *
+ * <p>Each connection sends chunks from a shared queue. A chunk starts with a header with the position
+ * in the file and the length of the chunk, followed by the data. A chunk that fails is put back in the
+ * queue to be sent again on another connection, up to {@link #MAX_ATTEMPTS} times.</p>
+ *
+ * <p>With checksums, each chunk is followed by the CRC32 of the chunk, and the receiver answers with
+ * {@link #CHUNK_OK} or {@link #CHUNK_BAD}. A bad chunk is sent again like a failed chunk.</p>
+ *
+ * <p>The progress is counted once for each chunk, when the whole chunk is sent, or accepted by the receiver
+ * when using checksums. A chunk that is sent again is then not counted twice.</p>
+ *
+ * <p>The transfer starts with a single connection. Another connection is added every
+ * {@link #CHECK_INTERVAL} ms for as long as the speed measured by the {@link TransferTelemetry} keeps
+ * increasing, up to {@link #MAX_CONNECTIONS}. The connections are opened with the same
+ * {@link ChannelConnector} as the first one, so they time out, and stop when the file transfer is canceled.</p>
+ *
+ * @author Christian Ihle
+ * @see ParallelFileReceiver
+ */
+public class ParallelFileSender {
+
+    private static final Logger LOG = Logger.getLogger(ParallelFileSender.class);
+
+    /** Number of bytes in each chunk. */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /** Files smaller than this are sent using a single connection. */
+    public static final long MIN_FILE_SIZE = 8 * CHUNK_SIZE;
+
+    /** Number of bytes in the header of each chunk. The position as a long, and the length as an int. */
+    static final int HEADER_SIZE = 12;
+
+    /** Answer from the receiver when the checksum of a chunk matched. */
+    static final byte CHUNK_OK = 1;
+
+    /** Answer from the receiver when the checksum of a chunk did not match. */
+    static final byte CHUNK_BAD = 0;
+
+    /** Max number of connections to use. */
+    static final int MAX_CONNECTIONS = 8;
+
+    /** Number of times to try sending a chunk before giving up. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** Milliseconds between each time the speed is checked. */
+    static final int CHECK_INTERVAL = 1000;
+
+    /** How much faster the transfer must be to add another connection. */
+    static final double SPEED_INCREASE = 1.1;
+
+    private final InetSocketAddress address;
+    private final ChannelConnector connector;
+    private final FileChannel fileChannel;
+    private final long length;
+    private final ChannelTransfer.ProgressListener listener;
+    private final ChannelTransfer.ProgressListener chunkListener;
+    private final TransferTelemetry telemetry;
+    private final boolean checksum;
+    private final long token;
+    private final LinkedList<Integer> pendingChunks;
+    private final int[] attempts;
+
+    private int activeConnections;
+    private boolean failed;
+
+    /**
+     * Constructor.
+     *
+     * @param address The address of the user to send the file to.
+     * @param connector Opens the extra connections to the user.
+     * @param fileChannel The file to send.
+     * @param length The length of the file.
+     * @param listener Progress listener.
+     * @param telemetry The telemetry updated by the progress listener, to check the speed.
+     * @param checksum If each chunk should be verified with a checksum.
+     * @param token The token to write first on each new connection, or 0 for no token.
+     */
+    public ParallelFileSender(final InetSocketAddress address, final ChannelConnector connector,
+                              final FileChannel fileChannel, final long length,
+                              final ChannelTransfer.ProgressListener listener, final TransferTelemetry telemetry,
+                              final boolean checksum, final long token) {
+        Validate.notNull(address, "Address can not be null");
+        Validate.notNull(connector, "Connector can not be null");
+        Validate.notNull(fileChannel, "File channel can not be null");
+        Validate.notNull(listener, "Progress listener can not be null");
+        Validate.notNull(telemetry, "Telemetry can not be null");
+
+        this.address = address;
+        this.connector = connector;
+        this.fileChannel = fileChannel;
+        this.length = length;
+        this.listener = listener;
+        this.chunkListener = new ChunkProgressListener(listener);
+        this.telemetry = telemetry;
+        this.checksum = checksum;
+        this.token = token;
+
+        final int chunks = getNumberOfChunks(length);
+        pendingChunks = new LinkedList<>();
+        attempts = new int[chunks];
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            pendingChunks.add(chunk);
+        }
+    }
+
+    /**
+     * Sends the file, starting with the connection that is already open.
+     *
+     * @param firstChannel The first connection to the user.
+     * @return If all the chunks were sent.
+     */
+    public boolean send(final SocketChannel firstChannel) {
+        final ThreadPoolExecutor executorService = createExecutorService();
+        long previousSpeed = 0;
+
+        try {
+            startConnection(executorService, firstChannel);
+
+            while (!listener.isCanceled()) {
+                synchronized (this) {
+                    if (failed || (pendingChunks.isEmpty() && activeConnections == 0)) {
+                        break;
+                    }
+
+                    wait(CHECK_INTERVAL);
+                }
+
+                final long speed = telemetry.getBytesPerSec();
+
+                if (shouldAddConnection(speed, previousSpeed)) {
+                    previousSpeed = speed;
+                    openConnection(executorService);
+                }
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.warning("Interrupted while sending file");
+            Thread.currentThread().interrupt();
+        }
+
+        finally {
+            executorService.shutdownNow();
+        }
+
+        synchronized (this) {
+            return !failed && !listener.isCanceled() && pendingChunks.isEmpty() && activeConnections == 0;
+        }
+    }
+
+    /**
+     * Adds another connection if the speed increased since the last connection was added,
+     * or there are chunks left to send and no connections left to send them.
+     */
+    private synchronized boolean shouldAddConnection(final long speed, final long previousSpeed) {
+        if (pendingChunks.isEmpty() || failed) {
+            return false;
+        }
+
+        if (activeConnections == 0) {
+            return true;
+        }
+
+        return activeConnections < MAX_CONNECTIONS && speed > previousSpeed * SPEED_INCREASE;
+    }
+
+    /**
+     * Creates a thread pool with one thread for each connection, up to {@link #MAX_CONNECTIONS}.
+     */
+    private ThreadPoolExecutor createExecutorService() {
+        final ThreadPoolExecutor executorService = new ThreadPoolExecutor(
+                MAX_CONNECTIONS, MAX_CONNECTIONS, CHECK_INTERVAL, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "ParallelFileSender");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        executorService.allowCoreThreadTimeOut(true);
+
+        return executorService;
+    }
+
+    private void openConnection(final ThreadPoolExecutor executorService) {
+        try {
+            final SocketChannel socketChannel = connector.connect(address, ChannelConnector.CONNECT_TIMEOUT);
+
+            if (token != 0) {
+                try {
+                    ChannelTransfer.writeLong(socketChannel, token);
+                }
+
+                catch (final IOException e) {
+                    socketChannel.close();
+                    throw e;
+                }
+            }
+
+            startConnection(executorService, socketChannel);
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to open another connection: %s", e.getMessage());
+
+            synchronized (this) {
+                if (activeConnections == 0) {
+                    failed = true;
+                }
+            }
+        }
+    }
+
+    private void startConnection(final ThreadPoolExecutor executorService, final SocketChannel socketChannel) {
+        synchronized (this) {
+            activeConnections++;
+        }
+
+        LOG.fine("Starting connection %s to %s", activeConnections, address);
+
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendChunks(socketChannel);
+            }
+        });
+    }
+
+    private void sendChunks(final SocketChannel socketChannel) {
+        Integer chunk = null;
+
+        try {
+            while (!listener.isCanceled() && (chunk = nextChunk()) != null) {
+                sendChunk(socketChannel, chunk);
+                chunk = null;
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to send chunk %s: %s", chunk, e.getMessage());
+            chunkFailed(chunk);
+        }
+
+        finally {
+            try {
+                socketChannel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.warning("Failed to close connection: %s", e.getMessage());
+            }
+
+            connectionFinished();
+        }
+    }
+
+    private void sendChunk(final SocketChannel socketChannel, final int chunk) throws IOException {
+        final long position = (long) chunk * CHUNK_SIZE;
+        final int chunkLength = (int) Math.min(CHUNK_SIZE, length - position);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(position);
+        header.putInt(chunkLength);
+        header.flip();
+
+        while (header.hasRemaining()) {
+            socketChannel.write(header);
+        }
+
+        final CRC32 crc = checksum ? new CRC32() : null;
+        final long sent = ChannelTransfer.sendFile(fileChannel, socketChannel, position, position + chunkLength,
+                                                   chunkListener, crc);
+
+        if (sent < chunkLength) {
+            if (!listener.isCanceled()) {
+                throw new IOException("Only sent " + sent + " of " + chunkLength + " bytes");
+            }
+
+            return;
+        }
+
+        if (crc != null) {
+            ChannelTransfer.writeLong(socketChannel, crc.getValue());
+            final ByteBuffer answer = ByteBuffer.allocate(1);
+            ChannelTransfer.readFully(socketChannel, answer);
+
+            if (answer.get(0) != CHUNK_OK) {
+                LOG.warning("Checksum mismatch for chunk %s, sending it again", chunk);
+                chunkFailed(chunk);
+                return;
+            }
+        }
+
+        listener.bytesTransferred(chunkLength);
+    }
+
+    private synchronized Integer nextChunk() {
+        if (failed) {
+            return null;
+        }
+
+        return pendingChunks.poll();
+    }
+
+    private synchronized void chunkFailed(final Integer chunk) {
+        if (chunk == null) {
+            return;
+        }
+
+        attempts[chunk]++;
+
+        if (attempts[chunk] >= MAX_ATTEMPTS) {
+            LOG.warning("Giving up on chunk %s after %s attempts", chunk, attempts[chunk]);
+            failed = true;
+        } else {
+            pendingChunks.addFirst(chunk);
+        }
+
+        notifyAll();
+    }
+
+    private synchronized void connectionFinished() {
+        activeConnections--;
+        notifyAll();
+    }
+
+    /**
+     * Only passes on if the file transfer is canceled. The bytes of a chunk are counted
+     * when the whole chunk is done instead.
+     */
+    static class ChunkProgressListener implements ChannelTransfer.ProgressListener {
+
+        private final ChannelTransfer.ProgressListener listener;
+
+        ChunkProgressListener(final ChannelTransfer.ProgressListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return listener.isCanceled();
+        }
+
+        @Override
+        public void bytesTransferred(final long bytes) {
+            // Nothing to do here
+        }
+    }
+
+    /**
+     * Gets the number of chunks needed for a file.
+     *
+     * @param length The length of the file.
+     * @return The number of chunks.
+     */
+    static int getNumberOfChunks(final long length) {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+}
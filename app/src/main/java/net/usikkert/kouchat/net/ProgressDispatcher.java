@@ -0,0 +1,218 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Limits how often the file transfer listeners are told about progress, and tells them on a thread
+ * of its own, so the file transfers never wait for the user interface.
+ *
+ * <p>A file transfer can report progress hundreds of times per second on a fast network.
+ * The updates are coalesced, so each listener gets at most one {@link FileTransferListener#transferUpdate()}
+ * per interval, showing the latest state of the file transfer when it's delivered.</p>
+ *
+ * <p>The status changes are delivered right away on the thread of the file transfer, after any
+ * update still waiting, so the listener always gets the final progress before the transfer is
+ * completed or failed, and never an update after.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ProgressDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(ProgressDispatcher.class);
+
+    /** Default milliseconds between each progress update, for 4 updates per second. */
+    public static final long DEFAULT_INTERVAL = 250;
+
+    private final long intervalNanos;
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * Constructor.
+     *
+     * @param interval Minimum milliseconds between each progress update to a listener.
+     */
+    public ProgressDispatcher(final long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval can not be negative");
+        }
+
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ProgressDispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduledExecutorService = executor;
+    }
+
+    /**
+     * Wraps the listener of a file transfer, to coalesce the progress updates.
+     *
+     * @param listener The listener to wrap.
+     * @return A listener to give the file transfer instead.
+     */
+    public FileTransferListener wrap(final FileTransferListener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+
+        return new CoalescingListener(listener);
+    }
+
+    /**
+     * Stops the thread delivering the updates. Updates waiting to be delivered are dropped.
+     */
+    public void stop() {
+        scheduledExecutorService.shutdownNow();
+    }
+
+    /**
+     * Delivers to one listener. Deliveries are synchronized, so they never overlap.
+     */
+    private class CoalescingListener implements FileTransferListener, Runnable {
+
+        private final FileTransferListener listener;
+        private final Object deliveryLock;
+
+        /** If an update is waiting to be delivered. Guarded by this. */
+        private boolean pending;
+
+        /** When the last update was delivered. Guarded by this. */
+        private long lastUpdate;
+
+        /** If the last update has been delivered at least once. Guarded by this. */
+        private boolean updated;
+
+        CoalescingListener(final FileTransferListener listener) {
+            this.listener = listener;
+            deliveryLock = new Object();
+        }
+
+        @Override
+        public void transferUpdate() {
+            final long delay;
+
+            synchronized (this) {
+                if (pending) {
+                    return;
+                }
+
+                pending = true;
+                delay = updated ? Math.max(0, lastUpdate + intervalNanos - System.nanoTime()) : 0;
+            }
+
+            try {
+                scheduledExecutorService.schedule(this, delay, TimeUnit.NANOSECONDS);
+            }
+
+            catch (final RuntimeException e) {
+                LOG.fine("Dropped progress update: %s", e.toString());
+            }
+        }
+
+        /**
+         * Delivers the update waiting, on the thread of the dispatcher.
+         */
+        @Override
+        public void run() {
+            synchronized (deliveryLock) {
+                deliverPendingUpdate();
+            }
+        }
+
+        @Override
+        public void statusWaiting() {
+            synchronized (deliveryLock) {
+                listener.statusWaiting();
+            }
+        }
+
+        @Override
+        public void statusConnecting() {
+            synchronized (deliveryLock) {
+                listener.statusConnecting();
+            }
+        }
+
+        @Override
+        public void statusTransferring() {
+            synchronized (deliveryLock) {
+                listener.statusTransferring();
+            }
+        }
+
+        @Override
+        public void statusCompleted() {
+            synchronized (deliveryLock) {
+                deliverPendingUpdate();
+                listener.statusCompleted();
+            }
+        }
+
+        @Override
+        public void statusFailed() {
+            synchronized (deliveryLock) {
+                deliverPendingUpdate();
+                listener.statusFailed();
+            }
+        }
+
+        @Override
+        public void fileCompleted(final File file) {
+            synchronized (deliveryLock) {
+                listener.fileCompleted(file);
+            }
+        }
+
+        /**
+         * Must be called while holding the delivery lock.
+         */
+        private void deliverPendingUpdate() {
+            synchronized (this) {
+                if (!pending) {
+                    return;
+                }
+
+                pending = false;
+                updated = true;
+                lastUpdate = System.nanoTime();
+            }
+
+            listener.transferUpdate();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded ring buffer with the most recent messages sent to all users, indexed by sequence number.
+ * Used for resending messages that other users are missing.
+ *
+ * @author Christian Ihle
+ */
+public class RetransmissionBuffer {
+
+    private final String[] messages;
+    private final long[] sequenceNumbers;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Number of messages to keep.
+     */
+    public RetransmissionBuffer(final int capacity) {
+        messages = new String[capacity];
+        sequenceNumbers = new long[capacity];
+    }
+
+    /**
+     * Stores the message, replacing the oldest message if full.
+     *
+     * @param sequenceNumber The sequence number of the message.
+     * @param message The message, with the sequence number.
+     */
+    public synchronized void add(final long sequenceNumber, final String message) {
+        final int index = getIndex(sequenceNumber);
+
+        messages[index] = message;
+        sequenceNumbers[index] = sequenceNumber;
+    }
+
+    /**
+     * Gets the message with the sequence number, if it's still in the buffer.
+     *
+     * @param sequenceNumber The sequence number of the message.
+     * @return The message, or <code>null</code> if it's too old.
+     */
+    @Nullable
+    public synchronized String get(final long sequenceNumber) {
+        final int index = getIndex(sequenceNumber);
+
+        if (messages[index] == null || sequenceNumbers[index] != sequenceNumber) {
+            return null;
+        }
+
+        return messages[index];
+    }
+
+    private int getIndex(final long sequenceNumber) {
+        return (int) (sequenceNumber % messages.length);
+    }
+}
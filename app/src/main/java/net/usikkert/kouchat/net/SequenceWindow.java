@@ -0,0 +1,135 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Sliding window over the most recent sequence numbers from a single sender, to detect duplicates.
+ *
+ * <p>Uses a bitmap of {@link #WINDOW_SIZE} bits, where bit 0 is the highest sequence number seen so far.
+ * Sequence numbers older than the window are treated as duplicates.</p>
+ *
+ * @author Christian Ihle
+ */
+public class SequenceWindow {
+
+    /** Number of sequence numbers to remember. */
+    static final int WINDOW_SIZE = 256;
+
+    private final long[] bitmap;
+
+    private long highest;
+    private boolean empty;
+
+    public SequenceWindow() {
+        bitmap = new long[WINDOW_SIZE / 64];
+        empty = true;
+    }
+
+    /**
+     * Registers the sequence number, and checks if it's the first time it's seen.
+     *
+     * @param sequenceNumber The sequence number to register.
+     * @return If this is the first time, and not a duplicate.
+     */
+    public synchronized boolean register(final long sequenceNumber) {
+        if (empty) {
+            empty = false;
+            highest = sequenceNumber;
+            setBit(0);
+            return true;
+        }
+
+        if (sequenceNumber > highest) {
+            shift(sequenceNumber - highest);
+            highest = sequenceNumber;
+            setBit(0);
+            return true;
+        }
+
+        final long offset = highest - sequenceNumber;
+
+        if (offset >= WINDOW_SIZE || isBitSet((int) offset)) {
+            return false;
+        }
+
+        setBit((int) offset);
+        return true;
+    }
+
+    /**
+     * Gets the highest sequence number seen.
+     *
+     * @return The highest sequence number, or {@link MessageSequence#NO_SEQUENCE_NUMBER} if none.
+     */
+    public synchronized long getHighest() {
+        return empty ? MessageSequence.NO_SEQUENCE_NUMBER : highest;
+    }
+
+    /**
+     * Checks if the sequence number has been seen. Numbers older than the window count as seen.
+     *
+     * @param sequenceNumber The sequence number to check.
+     * @return If it has been seen.
+     */
+    public synchronized boolean isRegistered(final long sequenceNumber) {
+        if (empty || sequenceNumber > highest) {
+            return false;
+        }
+
+        final long offset = highest - sequenceNumber;
+
+        return offset >= WINDOW_SIZE || isBitSet((int) offset);
+    }
+
+    private void shift(final long distance) {
+        if (distance >= WINDOW_SIZE) {
+            for (int i = 0; i < bitmap.length; i++) {
+                bitmap[i] = 0;
+            }
+
+            return;
+        }
+
+        final int words = (int) (distance / 64);
+        final int bits = (int) (distance % 64);
+
+        for (int i = bitmap.length - 1; i >= 0; i--) {
+            final int source = i - words;
+            long value = source >= 0 ? bitmap[source] << bits : 0;
+
+            if (bits > 0 && source - 1 >= 0) {
+                value |= bitmap[source - 1] >>> (64 - bits);
+            }
+
+            bitmap[i] = value;
+        }
+    }
+
+    private void setBit(final int offset) {
+        bitmap[offset / 64] |= 1L << (offset % 64);
+    }
+
+    private boolean isBitSet(final int offset) {
+        return (bitmap[offset / 64] & (1L << (offset % 64))) != 0;
+    }
+}
@@ -0,0 +1,70 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Incoming connections accepted from a server socket used by a single file transfer.
+ *
+ * @author Christian Ihle
+ */
+public class ServerSocketConnections implements IncomingConnections {
+
+    private final ServerSocket serverSocket;
+
+    /**
+     * Constructor.
+     *
+     * @param serverSocket A server socket opened with a channel.
+     */
+    public ServerSocketConnections(final ServerSocket serverSocket) {
+        Validate.notNull(serverSocket, "Server socket can not be null");
+
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nullable
+    @Override
+    public SocketChannel accept(final int timeout) throws IOException {
+        serverSocket.setSoTimeout(timeout);
+
+        try {
+            return serverSocket.accept().getChannel();
+        }
+
+        catch (final SocketTimeoutException e) {
+            return null;
+        }
+    }
+}
@@ -19,39 +19,120 @@
  *   License along with KouChat.                                           *
  *   If not, see <http://www.gnu.org/licenses/>.                           *
  ***************************************************************************/
-
 package net.usikkert.kouchat.net;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
 
 /**
  * This class keeps a list of all the ongoing file transfers.
  *
+ * <p>The file transfers are indexed by id, by user, and by file, so lookups don't have to search
+ * through all the file transfers. All the methods are thread safe, and the methods returning
+ * lists return a copy, so the lists can be used without locking.</p>
+ *
+ * <p>File transfers that are complete or canceled are removed automatically the next time
+ * they are found by a lookup, in case nobody removed them explicitly.</p>
+ *
  * @author Christian Ihle
  */
 public class TransferList {
 
-    /** The list of all the file senders. */
-    private final List<FileSender> senders;
+    /** All the file senders. */
+    private final Registry<FileSender> senders;
 
-    /** The list of all the file receivers. */
-    private final List<FileReceiver> receivers;
+    /** All the file receivers. */
+    private final Registry<FileReceiver> receivers;
+
+    /** Files from failed file transfers, that can be resumed. */
+    private final Map<String, File> partialFiles;
 
     /** Counter for unique file transfer id's. */
     private int fileTransferIdCounter;
 
+    /** Shares the bandwidth between the file transfers. */
+    private final BandwidthGovernor bandwidthGovernor;
+
+    /** Accepts connections for the file receivers on the shared file transfer port. */
+    private final FileTransferAcceptor fileTransferAcceptor;
+
+    /** Coalesces the progress updates from the file transfers to their listeners. */
+    private final ProgressDispatcher progressDispatcher;
+
+    /** Total bytes sent to each user, by nick name. */
+    private final Map<String, Long> bytesSent;
+
+    /** Total bytes received from each user, by nick name. */
+    private final Map<String, Long> bytesReceived;
+
     /**
      * Constructor.
+     *
+     * @param bandwidthGovernor Shares the bandwidth between the file transfers.
+     * @param fileTransferAcceptor Accepts connections for the file receivers on the shared file transfer port.
+     * @param progressDispatcher Coalesces the progress updates from the file transfers to their listeners.
+     */
+    public TransferList(final BandwidthGovernor bandwidthGovernor, final FileTransferAcceptor fileTransferAcceptor,
+                        final ProgressDispatcher progressDispatcher) {
+        Validate.notNull(bandwidthGovernor, "Bandwidth governor can not be null");
+        Validate.notNull(fileTransferAcceptor, "File transfer acceptor can not be null");
+        Validate.notNull(progressDispatcher, "Progress dispatcher can not be null");
+
+        this.bandwidthGovernor = bandwidthGovernor;
+        this.fileTransferAcceptor = fileTransferAcceptor;
+        this.progressDispatcher = progressDispatcher;
+        senders = new Registry<>();
+        receivers = new Registry<>();
+        partialFiles = new HashMap<>();
+        bytesSent = new HashMap<>();
+        bytesReceived = new HashMap<>();
+    }
+
+    /**
+     * Remembers the file from a failed file transfer, so the transfer can be resumed
+     * if the same user sends the same file again.
+     *
+     * @param user The user sending the file.
+     * @param fileName The original name of the file.
+     * @param size The size of the complete file.
+     * @param file The partially received file.
+     */
+    public synchronized void addPartialFile(final User user, final String fileName, final long size,
+                                            final File file) {
+        partialFiles.put(createPartialFileKey(user, fileName, size), file);
+    }
+
+    /**
+     * Removes and returns the file from a failed file transfer, if there is one that can be resumed.
+     *
+     * @param user The user sending the file.
+     * @param fileName The original name of the file.
+     * @param size The size of the complete file.
+     * @return The partially received file, or <code>null</code> if there is none,
+     *         or the file is missing or already complete.
      */
-    public TransferList() {
-        senders = new ArrayList<>();
-        receivers = new ArrayList<>();
+    @Nullable
+    public synchronized File removePartialFile(final User user, final String fileName, final long size) {
+        final File file = partialFiles.remove(createPartialFileKey(user, fileName, size));
+
+        if (file == null || !file.isFile() || file.length() == 0 || file.length() >= size) {
+            return null;
+        }
+
+        return file;
+    }
+
+    private String createPartialFileKey(final User user, final String fileName, final long size) {
+        return user.getCode() + ":" + size + ":" + fileName;
     }
 
     /**
@@ -61,9 +142,11 @@ public class TransferList {
      * @param file The file to send.
      * @return The file sender object that was added to the transfer list.
      */
-    public FileSender addFileSender(final User user, final FileToSend file) {
-        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter);
-        senders.add(fileSender);
+    public synchronized FileSender addFileSender(final User user, final FileToSend file) {
+        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter,
+                                                     bandwidthGovernor, progressDispatcher);
+        senders.add(fileSender, createFileKey(user, file.getName()),
+                    createFileKey(user, file.getName(), file.hashCode()));
 
         return fileSender;
     }
@@ -73,8 +156,14 @@ public class TransferList {
      *
      * @param fileSender The file sender to remove.
      */
-    public void removeFileSender(final FileSender fileSender) {
-        senders.remove(fileSender);
+    public synchronized void removeFileSender(final FileSender fileSender) {
+        final User user = fileSender.getUser();
+        final FileToSend file = fileSender.getFile();
+
+        if (senders.remove(fileSender, createFileKey(user, file.getName()),
+                           createFileKey(user, file.getName(), file.hashCode()))) {
+            addBytes(bytesSent, fileSender);
+        }
     }
 
     /**
@@ -86,17 +175,8 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     @Nullable
-    public FileSender getFileSender(final User user, final String fileName, final int fileHash) {
-        FileSender fileSender = null;
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getFile().getName().equals(fileName) && fs.getFile().hashCode() == fileHash) {
-                fileSender = fs;
-                break;
-            }
-        }
-
-        return fileSender;
+    public synchronized FileSender getFileSender(final User user, final String fileName, final int fileHash) {
+        return evictIfDone(senders.getByFile(user, createFileKey(user, fileName, fileHash)));
     }
 
     /**
@@ -107,17 +187,8 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     @Nullable
-    public FileSender getFileSender(final User user, final String fileName) {
-        FileSender fileSender = null;
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getFile().getName().equals(fileName)) {
-                fileSender = fs;
-                break;
-            }
-        }
-
-        return fileSender;
+    public synchronized FileSender getFileSender(final User user, final String fileName) {
+        return evictIfDone(senders.getByFile(user, createFileKey(user, fileName)));
     }
 
     /**
@@ -128,14 +199,8 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     @Nullable
-    public FileSender getFileSender(final User user, final int id) {
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getId() == id) {
-                return fs;
-            }
-        }
-
-        return null;
+    public synchronized FileSender getFileSender(final User user, final int id) {
+        return evictIfDone(senders.getById(user, id));
     }
 
     /**
@@ -144,16 +209,9 @@ public class TransferList {
      * @param user The given user.
      * @return A list of all the file senders for the user.
      */
-    public List<FileSender> getFileSenders(final User user) {
-        final List<FileSender> list = new ArrayList<>();
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user) {
-                list.add(fs);
-            }
-        }
-
-        return list;
+    public synchronized List<FileSender> getFileSenders(final User user) {
+        evictDone();
+        return senders.getByUser(user);
     }
 
     /**
@@ -161,14 +219,9 @@ public class TransferList {
      *
      * @return A list of all the file senders.
      */
-    public List<FileSender> getFileSenders() {
-        final List<FileSender> list = new ArrayList<>();
-
-        for (final FileSender fs : senders) {
-            list.add(fs);
-        }
-
-        return list;
+    public synchronized List<FileSender> getFileSenders() {
+        evictDone();
+        return senders.getAll();
     }
 
     /**
@@ -179,9 +232,10 @@ public class TransferList {
      * @param size The size of the file, in bytes.
      * @return The file receiver object that was added to the transfer list.
      */
-    public FileReceiver addFileReceiver(final User user, final File file, final long size) {
-        final FileReceiver fileReceiver = new FileReceiver(user, file, size, ++fileTransferIdCounter);
-        receivers.add(fileReceiver);
+    public synchronized FileReceiver addFileReceiver(final User user, final File file, final long size) {
+        final FileReceiver fileReceiver = new FileReceiver(user, file, size, ++fileTransferIdCounter,
+                                                           bandwidthGovernor, fileTransferAcceptor, progressDispatcher);
+        receivers.add(fileReceiver, createFileKey(user, fileReceiver.getOriginalFileName()));
 
         return fileReceiver;
     }
@@ -191,8 +245,11 @@ public class TransferList {
      *
      * @param fileReceiver The file receiver to remove.
      */
-    public void removeFileReceiver(final FileReceiver fileReceiver) {
-        receivers.remove(fileReceiver);
+    public synchronized void removeFileReceiver(final FileReceiver fileReceiver) {
+        if (receivers.remove(fileReceiver,
+                             createFileKey(fileReceiver.getUser(), fileReceiver.getOriginalFileName()))) {
+            addBytes(bytesReceived, fileReceiver);
+        }
     }
 
     /**
@@ -201,37 +258,24 @@ public class TransferList {
      * @param user The given user.
      * @return A list of all the file receivers for the user.
      */
-    public List<FileReceiver> getFileReceivers(final User user) {
-        final List<FileReceiver> list = new ArrayList<>();
-
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user) {
-                list.add(fr);
-            }
-        }
-
-        return list;
+    public synchronized List<FileReceiver> getFileReceivers(final User user) {
+        evictDone();
+        return receivers.getByUser(user);
     }
 
     /**
      * Gets the file receiver object for the specified user and file.
      *
+     * <p>The file is found using the name the file had when the file transfer was added,
+     * which is the name used by the file sender, even if the file was saved with another name.</p>
+     *
      * @param user The file receiver user.
      * @param fileName The name of the file being received.
      * @return The file receiver object, or <code>null</code> if none was found.
      */
     @Nullable
-    public FileReceiver getFileReceiver(final User user, final String fileName) {
-        FileReceiver fileReceiver = null;
-
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user && fr.getFile().getName().equals(fileName)) {
-                fileReceiver = fr;
-                break;
-            }
-        }
-
-        return fileReceiver;
+    public synchronized FileReceiver getFileReceiver(final User user, final String fileName) {
+        return evictIfDone(receivers.getByFile(user, createFileKey(user, fileName)));
     }
 
     /**
@@ -242,14 +286,8 @@ public class TransferList {
      * @return The file receiver object, or <code>null</code> if none was found.
      */
     @Nullable
-    public FileReceiver getFileReceiver(final User user, final int id) {
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user && fr.getId() == id) {
-                return fr;
-            }
-        }
-
-        return null;
+    public synchronized FileReceiver getFileReceiver(final User user, final int id) {
+        return evictIfDone(receivers.getById(user, id));
     }
 
     /**
@@ -257,14 +295,38 @@ public class TransferList {
      *
      * @return A list of all the file receivers.
      */
-    public List<FileReceiver> getFileReceivers() {
-        final List<FileReceiver> list = new ArrayList<>();
+    public synchronized List<FileReceiver> getFileReceivers() {
+        evictDone();
+        return receivers.getAll();
+    }
 
-        for (final FileReceiver fr : receivers) {
-            list.add(fr);
-        }
+    /**
+     * Gets the total number of bytes sent to each user, by file transfers that are done.
+     *
+     * @return A copy of the totals, with the nick name of the user as key.
+     */
+    public synchronized Map<String, Long> getBytesSent() {
+        return new HashMap<>(bytesSent);
+    }
+
+    /**
+     * Gets the total number of bytes received from each user, by file transfers that are done.
+     *
+     * @return A copy of the totals, with the nick name of the user as key.
+     */
+    public synchronized Map<String, Long> getBytesReceived() {
+        return new HashMap<>(bytesReceived);
+    }
 
-        return list;
+    /**
+     * Adds the bytes transferred by a file transfer that is done to the total for the user.
+     */
+    private void addBytes(final Map<String, Long> totals, final FileTransfer fileTransfer) {
+        final String nick = fileTransfer.getUser().getNick();
+        final Long total = totals.get(nick);
+        final long bytes = fileTransfer.getTelemetry().getTotalBytes();
+
+        totals.put(nick, total != null ? total + bytes : bytes);
     }
 
     /**
@@ -276,7 +338,7 @@ public class TransferList {
      * if none of them was found.
      */
     @Nullable
-    public FileTransfer getFileTransfer(final User user, final String fileName) {
+    public synchronized FileTransfer getFileTransfer(final User user, final String fileName) {
         final FileReceiver fileReceiver = getFileReceiver(user, fileName);
 
         if (fileReceiver != null) {
@@ -295,7 +357,7 @@ public class TransferList {
      * if none of them was found.
      */
     @Nullable
-    public FileTransfer getFileTransfer(final User user, final int id) {
+    public synchronized FileTransfer getFileTransfer(final User user, final int id) {
         final FileReceiver fileReceiver = getFileReceiver(user, id);
 
         if (fileReceiver != null) {
@@ -304,4 +366,166 @@ public class TransferList {
             return getFileSender(user, id);
         }
     }
+
+    private String createFileKey(final User user, final String fileName) {
+        return user.getCode() + ":" + fileName;
+    }
+
+    private String createFileKey(final User user, final String fileName, final int fileHash) {
+        return user.getCode() + ":" + fileHash + ":" + fileName;
+    }
+
+    /**
+     * Removes the file transfer if it's complete or canceled.
+     *
+     * @return The file transfer, or <code>null</code> if it was removed.
+     */
+    @Nullable
+    private <T extends FileTransfer> T evictIfDone(@Nullable final T fileTransfer) {
+        if (fileTransfer == null || !isDone(fileTransfer)) {
+            return fileTransfer;
+        }
+
+        if (fileTransfer instanceof FileSender) {
+            removeFileSender((FileSender) fileTransfer);
+        } else {
+            removeFileReceiver((FileReceiver) fileTransfer);
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes all the file transfers that are complete or canceled.
+     */
+    private void evictDone() {
+        for (final FileSender fileSender : senders.getAll()) {
+            evictIfDone(fileSender);
+        }
+
+        for (final FileReceiver fileReceiver : receivers.getAll()) {
+            evictIfDone(fileReceiver);
+        }
+    }
+
+    private boolean isDone(final FileTransfer fileTransfer) {
+        return fileTransfer.isTransferred() || fileTransfer.isCanceled();
+    }
+
+    /**
+     * Indexes of file transfers of one direction. Not thread safe, the transfer list does the locking.
+     *
+     * @param <T> The type of file transfer.
+     */
+    private static final class Registry<T extends FileTransfer> {
+
+        /** The file transfers by id, in the order they were added. */
+        private final Map<Integer, T> byId = new LinkedHashMap<>();
+
+        /** The file transfers by user code, and then by id. */
+        private final Map<Integer, Map<Integer, T>> byUser = new HashMap<>();
+
+        /** The file transfers by file key, and then by id. */
+        private final Map<String, Map<Integer, T>> byFile = new HashMap<>();
+
+        public void add(final T fileTransfer, final String... fileKeys) {
+            final Integer id = fileTransfer.getId();
+
+            byId.put(id, fileTransfer);
+            addToIndex(byUser, fileTransfer.getUser().getCode(), id, fileTransfer);
+
+            for (final String fileKey : fileKeys) {
+                addToIndex(byFile, fileKey, id, fileTransfer);
+            }
+        }
+
+        public boolean remove(final T fileTransfer, final String... fileKeys) {
+            final Integer id = fileTransfer.getId();
+
+            if (byId.get(id) != fileTransfer) {
+                return false;
+            }
+
+            byId.remove(id);
+            removeFromIndex(byUser, fileTransfer.getUser().getCode(), id);
+
+            for (final String fileKey : fileKeys) {
+                removeFromIndex(byFile, fileKey, id);
+            }
+
+            return true;
+        }
+
+        @Nullable
+        public T getById(final User user, final int id) {
+            final T fileTransfer = byId.get(id);
+
+            if (fileTransfer != null && fileTransfer.getUser() == user) {
+                return fileTransfer;
+            }
+
+            return null;
+        }
+
+        /**
+         * Gets the first file transfer added with the file key, to the same user object.
+         */
+        @Nullable
+        public T getByFile(final User user, final String fileKey) {
+            final Map<Integer, T> fileTransfers = byFile.get(fileKey);
+
+            if (fileTransfers != null) {
+                for (final T fileTransfer : fileTransfers.values()) {
+                    if (fileTransfer.getUser() == user) {
+                        return fileTransfer;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        public List<T> getByUser(final User user) {
+            final List<T> list = new ArrayList<>();
+            final Map<Integer, T> fileTransfers = byUser.get(user.getCode());
+
+            if (fileTransfers != null) {
+                for (final T fileTransfer : fileTransfers.values()) {
+                    if (fileTransfer.getUser() == user) {
+                        list.add(fileTransfer);
+                    }
+                }
+            }
+
+            return list;
+        }
+
+        public List<T> getAll() {
+            return new ArrayList<>(byId.values());
+        }
+
+        private <K> void addToIndex(final Map<K, Map<Integer, T>> index, final K key, final Integer id,
+                                    final T fileTransfer) {
+            Map<Integer, T> fileTransfers = index.get(key);
+
+            if (fileTransfers == null) {
+                fileTransfers = new LinkedHashMap<>();
+                index.put(key, fileTransfers);
+            }
+
+            fileTransfers.put(id, fileTransfer);
+        }
+
+        private <K> void removeFromIndex(final Map<K, Map<Integer, T>> index, final K key, final Integer id) {
+            final Map<Integer, T> fileTransfers = index.get(key);
+
+            if (fileTransfers != null) {
+                fileTransfers.remove(id);
+
+                if (fileTransfers.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
 }
@@ -89,7 +89,8 @@ public class UDPReceiver implements Runnable {
 
                 udpSocket.receive(packet);
                 final String ip = packet.getAddress().getHostAddress();
-                final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
+                final String message = MessageSequence.trim(
+                        new String(packet.getData(), 0, packet.getLength(), Constants.MESSAGE_CHARSET));
                 LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
 
                 if (listener != null) {
@@ -0,0 +1,170 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Logger;
+
+/**
+ * Version 2 of the tcp framing, where several messages can be packed into one frame.
+ *
+ * <p>A frame starts with the length of the rest of the frame in bytes. Then follows each message,
+ * as the length of the message in bytes and the message encoded as standard UTF-8.
+ * All lengths are unsigned variable length integers, using 7 bits per byte with the highest bit
+ * set on all but the last byte.</p>
+ *
+ * <p>A message can not be split over several frames, so a message too large for a frame of its own
+ * is dropped with a warning when writing, instead of making the other side close the connection.</p>
+ *
+ * @author Christian Ihle
+ */
+public class BatchedTCPFraming implements TCPFraming {
+
+    private static final Logger LOG = Logger.getLogger(BatchedTCPFraming.class);
+
+    /** Frames larger than this are split when writing, and rejected when reading. */
+    static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    @Override
+    public void write(final List<String> messages, final DataOutputStream outputStream) throws IOException {
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+        for (final String message : messages) {
+            final byte[] encodedMessage = message.getBytes(Constants.MESSAGE_CHARSET);
+
+            if (encodedMessage.length + 5 > MAX_FRAME_SIZE) {
+                LOG.warning("Dropping message of %d bytes, larger than the max frame size", encodedMessage.length);
+                continue;
+            }
+
+            if (frame.size() > 0 && frame.size() + encodedMessage.length + 5 > MAX_FRAME_SIZE) {
+                writeFrame(frame, outputStream);
+                frame.reset();
+            }
+
+            writeVarInt(encodedMessage.length, frame);
+            frame.write(encodedMessage);
+        }
+
+        if (frame.size() > 0) {
+            writeFrame(frame, outputStream);
+        }
+    }
+
+    @Override
+    public List<String> read(final DataInputStream inputStream) throws IOException {
+        final int frameSize = readVarInt(inputStream);
+
+        if (frameSize > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + frameSize);
+        }
+
+        final byte[] frame = new byte[frameSize];
+        inputStream.readFully(frame);
+
+        final ByteArrayInputStream frameStream = new ByteArrayInputStream(frame);
+        final List<String> messages = new ArrayList<>();
+
+        while (frameStream.available() > 0) {
+            final int messageSize = readVarInt(frameStream);
+
+            if (messageSize > frameStream.available()) {
+                throw new IOException("Message length outside of frame: " + messageSize);
+            }
+
+            final byte[] encodedMessage = new byte[messageSize];
+            frameStream.read(encodedMessage, 0, messageSize);
+            messages.add(new String(encodedMessage, Constants.MESSAGE_CHARSET));
+        }
+
+        return messages;
+    }
+
+    private void writeFrame(final ByteArrayOutputStream frame, final DataOutputStream outputStream) throws IOException {
+        writeVarInt(frame.size(), outputStream);
+        frame.writeTo(outputStream);
+    }
+
+    /**
+     * Writes a non-negative integer using 1 to 5 bytes.
+     *
+     * @param value The value to write.
+     * @param outputStream The stream to write to.
+     * @throws IOException If writing failed.
+     */
+    static void writeVarInt(final int value, final OutputStream outputStream) throws IOException {
+        int remaining = value;
+
+        while ((remaining & ~0x7F) != 0) {
+            outputStream.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+
+        outputStream.write(remaining);
+    }
+
+    /**
+     * Reads an integer written by {@link #writeVarInt(int, OutputStream)}.
+     *
+     * @param inputStream The stream to read from.
+     * @return The value.
+     * @throws IOException If reading failed, or the value is invalid.
+     */
+    static int readVarInt(final InputStream inputStream) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int currentByte;
+
+        do {
+            if (shift > 28) {
+                throw new IOException("Variable length integer is too long");
+            }
+
+            currentByte = inputStream.read();
+
+            if (currentByte < 0) {
+                throw new EOFException();
+            }
+
+            value |= (currentByte & 0x7F) << shift;
+            shift += 7;
+        } while ((currentByte & 0x80) != 0);
+
+        if (value < 0) {
+            throw new IOException("Variable length integer is negative");
+        }
+
+        return value;
+    }
+}
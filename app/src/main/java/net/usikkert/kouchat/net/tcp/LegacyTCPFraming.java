@@ -0,0 +1,54 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import net.usikkert.kouchat.net.MessageSequence;
+
+/**
+ * The original tcp framing, with one message per frame using {@link DataOutputStream#writeUTF(String)}.
+ *
+ * <p>Used with all clients until both sides have agreed to use {@link BatchedTCPFraming}.
+ * Sequence numbers are removed from the messages, since older clients don't expect them.</p>
+ *
+ * @author Christian Ihle
+ */
+public class LegacyTCPFraming implements TCPFraming {
+
+    @Override
+    public void write(final List<String> messages, final DataOutputStream outputStream) throws IOException {
+        for (final String message : messages) {
+            outputStream.writeUTF(MessageSequence.removeSequenceNumber(message));
+        }
+    }
+
+    @Override
+    public List<String> read(final DataInputStream inputStream) throws IOException {
+        return Collections.singletonList(inputStream.readUTF());
+    }
+}
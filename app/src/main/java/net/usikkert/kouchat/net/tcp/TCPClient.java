@@ -22,10 +22,14 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
@@ -35,13 +39,54 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Client for communicating over a tcp socket.
  *
+ * <p>Messages are sent from a separate writer thread, using a bounded queue. Sending a message never
+ * blocks the caller, even if the user on the other side is slow to read. What happens when the queue
+ * fills up is decided by the {@link TCPSlowConsumerPolicy}.</p>
+ *
+ * <p>All clients start out with the {@link LegacyTCPFraming}, and can switch to the {@link BatchedTCPFraming}
+ * if both sides support it. The switch is negotiated separately for each direction, so it's safe even
+ * if messages are already on the way:</p>
+ *
+ * <ol>
+ *   <li>The connecting side offers the batched framing, right after identifying itself.</li>
+ *   <li>The side receiving an offer answers with an acknowledgement, and writes everything after that
+ *       using the batched framing.</li>
+ *   <li>The side receiving an acknowledgement reads everything after that using the batched framing.
+ *       If it has not sent an acknowledgement itself yet, it does so now, and switches its own writing.</li>
+ * </ol>
+ *
+ * <p>Clients not supporting the batched framing will just ignore the offer, and keep using the legacy framing.</p>
+ *
+ * <p>Clients using the batched framing also send heartbeats, with the sender's heartbeat interval.
+ * This makes it possible to detect a dead connection without waiting for the multicast idle messages.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPClient implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(TCPClient.class);
 
+    /** Offer to switch to the batched framing. */
+    static final String MESSAGE_FRAMING_OFFER = "SYS-FRAMING:2";
+
+    /** Acknowledgement of the batched framing. The last message written with the legacy framing. */
+    static final String MESSAGE_FRAMING_ACK = "SYS-FRAMING-ACK:2";
+
+    /** Heartbeat, followed by the heartbeat interval of the sender. */
+    static final String MESSAGE_HEARTBEAT = "SYS-HEARTBEAT:";
+
+    /** Max number of messages waiting to be written. */
+    private static final int QUEUE_CAPACITY = 500;
+
+    /** Max number of messages to write before flushing. */
+    private static final int MAX_BATCH_SIZE = 50;
+
+    /** Max number of milliseconds a write can be blocked before a slow client is disconnected. */
+    private static final int MAX_STALL_TIME = 5000;
+
     private final Socket socket;
+    private final TCPSlowConsumerPolicy slowConsumerPolicy;
+    private final TCPOutboundQueue outboundQueue;
 
     @Nullable
     private DataInputStream inputStream;
@@ -50,68 +95,101 @@ public class TCPClient implements Runnable {
     private DataOutputStream outputStream; // TODO how is this outside of Java?
 
     @Nullable
-    private TCPClientListener clientListener;
+    private volatile TCPClientListener clientListener;
+
+    private volatile boolean connected;
+    private volatile boolean disconnecting;
+
+    /** If the listener has been told about the disconnect. Both the reader and the writer can fail. */
+    private final AtomicBoolean disconnectNotified = new AtomicBoolean();
+
+    /** When the current write started, or 0 if not writing. */
+    private volatile long writeStartedTime;
 
-    private boolean connected;
-    private boolean disconnecting;
+    /** Framing for reading. Only used by the reader thread. */
+    private volatile TCPFraming inputFraming;
+
+    /** Framing for writing. Only used by the writer thread. */
+    private volatile TCPFraming outputFraming;
+
+    /** If an acknowledgement of the batched framing has been queued for sending. */
+    private volatile boolean framingAckSent;
+
+    /** When the last message of any kind was read. */
+    private volatile long lastReceivedTime;
+
+    /** The heartbeat interval of the other side, or 0 if no heartbeat has arrived. */
+    private volatile long otherHeartbeatInterval;
 
     public TCPClient(final Socket socket) {
+        this(socket, TCPSlowConsumerPolicy.DISCONNECT);
+    }
+
+    public TCPClient(final Socket socket, final TCPSlowConsumerPolicy slowConsumerPolicy) {
         Validate.notNull(socket, "Socket can not be null");
+        Validate.notNull(slowConsumerPolicy, "Slow consumer policy can not be null");
+
         this.socket = socket;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.outboundQueue = new TCPOutboundQueue(QUEUE_CAPACITY);
+        this.inputFraming = new LegacyTCPFraming();
+        this.outputFraming = inputFraming;
     }
 
     @Override
     public void run() {
         try {
             while (connected && inputStream != null) {
-                final String message = inputStream.readUTF();
-                LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
+                final List<String> messages = inputFraming.read(inputStream);
+                lastReceivedTime = System.currentTimeMillis();
 
-                if (clientListener != null) {
-                    clientListener.messageArrived(message, this);
+                for (final String message : messages) {
+                    LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
+
+                    if (!handleControlMessage(message) && clientListener != null) {
+                        clientListener.messageArrived(message, this);
+                    }
                 }
             }
         }
 
         catch (final IOException e) {
-            LOG.severe(e.toString());
-            connected = false;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
+            connectionFailed(e);
         }
     }
 
+    /**
+     * Queues a message for sending. Returns immediately.
+     *
+     * @param message The message to send.
+     */
     public void send(final String message) {
         if (!connected || outputStream == null) {
             return;
         }
 
-        try {
-            outputStream.writeUTF(message);
-            LOG.fine("Sent message: %s", message);
+        if (slowConsumerPolicy == TCPSlowConsumerPolicy.DISCONNECT && getStallTime() > MAX_STALL_TIME) {
+            LOG.warning("Write to %s has been blocked for %d ms. Disconnecting.", getIPAddress(), getStallTime());
+            disconnect();
+            return;
         }
 
-        catch (final IOException e) {
-            LOG.severe(e.toString());
-            connected = false;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
+        if (!outboundQueue.offer(message)) {
+            handleFullQueue(message);
         }
     }
 
     public boolean connect() {
         try {
-            inputStream = new DataInputStream(socket.getInputStream());
-            outputStream = new DataOutputStream(socket.getOutputStream());
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
             LOG.fine("Connected to %s:%s", getIPAddress(), socket.getPort());
 
             connected = true;
+            lastReceivedTime = System.currentTimeMillis();
             new Thread(this, getClass().getSimpleName()).start();
+            startWriterThread();
 
             return true;
         }
@@ -122,16 +200,69 @@ public class TCPClient implements Runnable {
         }
     }
 
+    /**
+     * Offers the other side to switch to the batched framing. Should only be done by the connecting side.
+     */
+    public void offerBatchedFraming() {
+        send(MESSAGE_FRAMING_OFFER);
+    }
+
+    /**
+     * Checks if both reading and writing is done using the batched framing.
+     * Only clients that support the batched framing support the other extensions to the protocol.
+     *
+     * @return If the batched framing is used in both directions.
+     */
+    public boolean isBatchedFraming() {
+        return inputFraming instanceof BatchedTCPFraming && outputFraming instanceof BatchedTCPFraming;
+    }
+
+    /**
+     * Sends a heartbeat, if the other side supports it.
+     *
+     * @param heartbeatInterval The number of milliseconds between each heartbeat from this side.
+     */
+    public void sendHeartbeat(final long heartbeatInterval) {
+        if (isBatchedFraming()) {
+            send(MESSAGE_HEARTBEAT + heartbeatInterval);
+        }
+    }
+
+    /**
+     * Checks if the other side has sent anything within the expected time. The time is based on the
+     * slowest heartbeat interval of the two sides, and always true if the other side is not sending heartbeats.
+     *
+     * @param heartbeatInterval The number of milliseconds between each heartbeat from this side.
+     * @param missedHeartbeats Number of heartbeats that can be missed before the connection is dead.
+     * @return If the connection is alive.
+     */
+    public boolean isAlive(final long heartbeatInterval, final int missedHeartbeats) {
+        if (!isReceivingHeartbeats()) {
+            return true;
+        }
+
+        final long slowestInterval = Math.max(heartbeatInterval, otherHeartbeatInterval);
+
+        return System.currentTimeMillis() - lastReceivedTime <= slowestInterval * missedHeartbeats;
+    }
+
+    /**
+     * Checks if the other side is sending heartbeats. It doesn't if it's an older version, or heartbeats
+     * are disabled in the settings. Known after the first heartbeat arrives.
+     *
+     * @return If heartbeats have arrived from the other side.
+     */
+    public boolean isReceivingHeartbeats() {
+        return isBatchedFraming() && otherHeartbeatInterval > 0;
+    }
+
     public void disconnect() {
         try {
             LOG.fine("Disconnected from %s:%s", getIPAddress(), socket.getPort());
             connected = false;
             disconnecting = true;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
-
+            outboundQueue.close();
+            notifyDisconnected();
             socket.close();
         }
 
@@ -159,4 +290,159 @@ public class TCPClient implements Runnable {
     public boolean isConnected() {
         return connected;
     }
+
+    /**
+     * Gets the number of messages waiting to be written.
+     *
+     * @return The number of queued messages.
+     */
+    public int getQueueSize() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * Gets the number of milliseconds the current write has been blocked.
+     *
+     * @return Milliseconds since the current write started, or 0 if not writing.
+     */
+    public long getStallTime() {
+        final long startedTime = writeStartedTime;
+
+        if (startedTime == 0) {
+            return 0;
+        }
+
+        return System.currentTimeMillis() - startedTime;
+    }
+
+    private void handleFullQueue(final String message) {
+        if (slowConsumerPolicy == TCPSlowConsumerPolicy.DISCONNECT) {
+            LOG.warning("Queue to %s is full. Disconnecting.", getIPAddress());
+            disconnect();
+            return;
+        }
+
+        if (!TCPOutboundQueue.isPresenceMessage(message)) {
+            final int dropped = outboundQueue.dropPresenceMessages();
+            LOG.fine("Queue to %s is full. Dropped %d presence messages.", getIPAddress(), dropped);
+
+            if (outboundQueue.offer(message)) {
+                return;
+            }
+        }
+
+        LOG.warning("Queue to %s is full. Dropped message: %s", getIPAddress(), message);
+    }
+
+    private void startWriterThread() {
+        final Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeMessages();
+            }
+        }, getClass().getSimpleName() + "Writer");
+
+        writerThread.start();
+    }
+
+    /**
+     * Writes queued messages until disconnected. All the messages that are queued while a write
+     * is in progress are written together, and flushed once.
+     */
+    private void writeMessages() {
+        try {
+            while (connected && outputStream != null) {
+                final List<String> messages = outboundQueue.takeBatch(MAX_BATCH_SIZE);
+
+                // The queue was closed
+                if (messages.isEmpty()) {
+                    return;
+                }
+
+                writeStartedTime = System.currentTimeMillis();
+                int start = 0;
+
+                for (int i = 0; i < messages.size(); i++) {
+                    // Everything after the acknowledgement is written using the batched framing
+                    if (messages.get(i).equals(MESSAGE_FRAMING_ACK)) {
+                        outputFraming.write(messages.subList(start, i + 1), outputStream);
+                        outputFraming = new BatchedTCPFraming();
+                        start = i + 1;
+                    }
+                }
+
+                outputFraming.write(messages.subList(start, messages.size()), outputStream);
+                outputStream.flush();
+                LOG.fine("Sent %d messages to %s: %s", messages.size(), getIPAddress(), messages);
+                writeStartedTime = 0;
+            }
+        }
+
+        catch (final IOException e) {
+            connectionFailed(e);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.warning("Writer to %s was interrupted", getIPAddress());
+        }
+    }
+
+    /**
+     * Handles the messages used for negotiating the framing, and heartbeats.
+     *
+     * @param message The message to check.
+     * @return If it was a control message, and should not be given to the listener.
+     */
+    private boolean handleControlMessage(final String message) {
+        if (message.startsWith(MESSAGE_HEARTBEAT)) {
+            try {
+                otherHeartbeatInterval = Long.parseLong(message.substring(MESSAGE_HEARTBEAT.length()));
+            }
+
+            catch (final NumberFormatException e) {
+                LOG.warning("Invalid heartbeat from %s: %s", getIPAddress(), message);
+            }
+
+            return true;
+        }
+
+        if (message.equals(MESSAGE_FRAMING_OFFER)) {
+            sendFramingAck();
+            return true;
+        }
+
+        if (message.equals(MESSAGE_FRAMING_ACK)) {
+            // Everything after the acknowledgement is read using the batched framing
+            inputFraming = new BatchedTCPFraming();
+            sendFramingAck();
+            return true;
+        }
+
+        return false;
+    }
+
+    private synchronized void sendFramingAck() {
+        if (!framingAckSent) {
+            framingAckSent = true;
+            send(MESSAGE_FRAMING_ACK);
+        }
+    }
+
+    private void connectionFailed(final IOException e) {
+        LOG.severe(e.toString());
+        connected = false;
+        outboundQueue.close();
+        notifyDisconnected();
+    }
+
+    /**
+     * Tells the listener about the disconnect, only the first time.
+     */
+    private void notifyDisconnected() {
+        final TCPClientListener listener = clientListener;
+
+        if (disconnectNotified.compareAndSet(false, true) && listener != null) {
+            listener.disconnected(this);
+        }
+    }
 }
@@ -23,16 +23,21 @@
 package net.usikkert.kouchat.net.tcp;
 
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Tools;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -40,20 +45,47 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Handles all the tcp connections.
  *
+ * <p>Connecting to users and identifying incoming connections is event driven, with timeouts
+ * handled by a scheduled executor, so no threads are waiting while a user is joining.</p>
+ *
+ * <p>When a user loses the last connection, it's tried again as decided by the {@link TCPReconnectScheduler}.</p>
+ *
+ * <p>The scheduled executor is shut down on {@link #disconnect()}, and a new one is started on the next
+ * {@link #connect()}, so no threads or tasks are left behind between logons.</p>
+ *
+ * <p>If enabled in the settings, messages to all users are sent through the {@link TCPGossip} overlay
+ * to users supporting it, and directly to the rest. Gossip from other users is always handled.</p>
+ *
  * @author Christian Ihle
  */
-public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener, Runnable {
+public class TCPConnectionHandler implements TCPConnectionListener, TCPUserClientListener, TCPConnectorListener,
+        TCPUserIdentifierListener, TCPReconnectListener, TCPGossipListener {
 
     private static final Logger LOG = Logger.getLogger(TCPConnectionHandler.class);
 
+    /** Milliseconds between each check for users with a missing connection, or too many connections. */
+    static final int CLIENT_CHECK_INTERVAL = 15_000;
+
     private final Controller controller;
     private final Settings settings;
     private final ExecutorService executorService;
     private final Map<User, TCPUserClient> userClients;
+    private final ConcurrentMap<User, TCPConnector> userConnectors;
+
+    /** Started again on connect, if shut down by disconnect. Used by the reconnect scheduler and gossip. */
+    private volatile ScheduledExecutorService scheduledExecutorService;
+    private volatile TCPReconnectScheduler reconnectScheduler;
+    private volatile TCPGossip gossip;
 
     @Nullable
     private TCPReceiverListener listener;
 
+    @Nullable
+    private ScheduledFuture<?> heartbeatTask;
+
+    @Nullable
+    private ScheduledFuture<?> clientCheckTask;
+
     private boolean connected;
 
     public TCPConnectionHandler(final Controller controller, final Settings settings) {
@@ -63,78 +95,140 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         this.controller = controller;
         this.settings = settings;
         this.executorService = Executors.newCachedThreadPool();
-        this.userClients = new HashMap<>();
+        this.userClients = new ConcurrentHashMap<>();
+        this.userConnectors = new ConcurrentHashMap<>();
+
+        startScheduledExecutor();
+    }
 
-        new Thread(this, TCPConnectionHandler.class.getSimpleName()).start();
+    private void startScheduledExecutor() {
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        reconnectScheduler = new TCPReconnectScheduler(scheduledExecutorService, this);
+        gossip = new TCPGossip(settings.getMe().getCode(), scheduledExecutorService, this);
     }
 
     @Override
     public void socketAdded(final Socket socket) {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                LOG.fine("Add socket start");
-
-                final TCPClient client = new TCPClient(socket);
-                final TCPUserIdentifier userIdentifier = new TCPUserIdentifier(controller, settings, client);
+        LOG.fine("Add socket start");
 
-                if (!client.connect()) {
-                    LOG.warning("Add socket done. Connection failed.");
-                    client.disconnect();
-                    return;
-                }
+        final TCPClient client = new TCPClient(socket, settings.getTcpSlowConsumerPolicy());
+        final TCPUserIdentifier userIdentifier =
+                new TCPUserIdentifier(controller, settings, client, scheduledExecutorService, this);
+        userIdentifier.start();
 
-                final User user = userIdentifier.waitForUser();
+        if (!client.connect()) {
+            LOG.warning("Add socket done. Connection failed.");
+            client.disconnect();
+        }
+    }
 
-                if (user == null) {
-                    LOG.warning("Add socket done. No user found.");
-                    client.disconnect();
-                    return;
-                }
+    @Override
+    public void userIdentified(final User user, final TCPClient client) {
+        addClient(user, client);
+        reconnectScheduler.connectionSucceeded(user);
 
-                addClient(user, client);
+        LOG.fine("Add socket done. user=%s", user.getNick());
+    }
 
-                LOG.fine("Add socket done. user=%s", user.getNick());
-            }
-        });
+    @Override
+    public void identificationFailed(final TCPClient client) {
+        LOG.warning("Add socket done. No user found.");
+        client.disconnect();
     }
 
     public void userAdded(final User user) {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                LOG.fine("Add user start for user=%s", user.getNick());
+        LOG.fine("Add user start for user=%s", user.getNick());
+
+        if (userAddedAndConnected(user)) {
+            LOG.fine("Add user done. Already added. user=%s", user.getNick());
+            return;
+        }
+
+        final TCPConnector tcpConnector = new TCPConnector(user, executorService, scheduledExecutorService, this);
+
+        if (userConnectors.putIfAbsent(user, tcpConnector) == null) {
+            tcpConnector.start();
+        } else {
+            LOG.fine("Add user done. Already connecting. user=%s", user.getNick());
+        }
+    }
 
-                if (userAddedAndConnected(user)) {
-                    LOG.fine("Add user done. Already added. user=%s", user.getNick());
-                    return;
-                }
+    /**
+     * Notifies a connector waiting for the tcp port of the user that the user has changed.
+     *
+     * @param user The user that changed.
+     */
+    public void userChanged(final User user) {
+        final TCPConnector tcpConnector = userConnectors.get(user);
 
-                final TCPConnector tcpConnector = new TCPConnector(user);
-                final Socket socket = tcpConnector.connect();
+        if (tcpConnector != null) {
+            tcpConnector.portChanged();
+        }
+    }
 
-                if (socket == null) {
-                    LOG.warning("Add user done. Unable to connect using tcp. Giving up."); // Never tries again
-                    return;
-                }
+    @Override
+    public void socketConnected(final User user, final Socket socket) {
+        userConnectors.remove(user);
+        final TCPClient client = new TCPClient(socket, settings.getTcpSlowConsumerPolicy());
+
+        if (!client.connect()) {
+            LOG.warning("Add user done. Connection failed.");
+            client.disconnect();
+            reconnectScheduler.connectionFailed(user);
+            return;
+        }
 
-                final TCPClient client = new TCPClient(socket);
+        addClient(user, client);
+        reconnectScheduler.connectionSucceeded(user);
+        client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode());
+        client.offerBatchedFraming();
 
-                if (!client.connect()) {
-                    LOG.warning("Add user done. Connection failed. Giving up."); // Never tries again
-                    client.disconnect();
-                    return;
-                }
+        LOG.fine("Add user done for user=%s", user.getNick());
+    }
 
-                addClient(user, client);
-                client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode());
+    @Override
+    public void connectionFailed(final User user) {
+        userConnectors.remove(user);
 
-                LOG.fine("Add user done for user=%s", user.getNick());
-            }
-        });
+        LOG.warning("Add user done. Unable to connect using tcp.");
+        reconnectScheduler.connectionFailed(user);
+    }
+
+    @Override
+    public void connectionLost(final User user) {
+        // Ignoring clients disconnected after the user was removed
+        if (connected && userClients.containsKey(user)) {
+            reconnectScheduler.connectionLost(user);
+        }
+    }
+
+    @Override
+    public void reconnect(final User user) {
+        if (!connected) {
+            reconnectScheduler.userRemoved(user);
+            return;
+        }
+
+        if (userAddedAndConnected(user)) {
+            reconnectScheduler.connectionSucceeded(user);
+            return;
+        }
+
+        userAdded(user);
+    }
+
+    public TCPReconnectScheduler getReconnectScheduler() {
+        return reconnectScheduler;
     }
 
     public void userRemoved(final User user) {
+        reconnectScheduler.userRemoved(user);
+        final TCPConnector tcpConnector = userConnectors.remove(user);
+
+        if (tcpConnector != null) {
+            tcpConnector.cancel();
+        }
+
         final TCPUserClient userClient = userClients.remove(user);
 
         if (userClient != null) {
@@ -143,17 +237,61 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
     }
 
     public void connect() {
+        if (scheduledExecutorService.isShutdown()) {
+            startScheduledExecutor();
+        }
+
         connected = true;
+
+        clientCheckTask = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkClients();
+            }
+        }, CLIENT_CHECK_INTERVAL, CLIENT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+        final long heartbeatInterval = settings.getTcpHeartbeatInterval();
+
+        if (heartbeatInterval <= 0) {
+            LOG.fine("Heartbeats are disabled");
+            return;
+        }
+
+        heartbeatTask = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHeartbeats(heartbeatInterval);
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
     }
 
     public void disconnect() {
         connected = false;
 
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+
+        if (clientCheckTask != null) {
+            clientCheckTask.cancel(false);
+            clientCheckTask = null;
+        }
+
+        for (final TCPConnector tcpConnector : userConnectors.values()) {
+            tcpConnector.cancel();
+        }
+
+        userConnectors.clear();
+        reconnectScheduler.clear();
+        gossip.clear();
+
         for (final TCPUserClient userClient : userClients.values()) {
             userClient.disconnect();
         }
 
         userClients.clear();
+        scheduledExecutorService.shutdownNow();
     }
 
     private void addClient(final User user, final TCPClient client) {
@@ -166,10 +304,32 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         }
     }
 
+    /**
+     * Queues the message for sending to every user with a tcp connection. Does not wait for the
+     * messages to be written, so a slow user will not delay the others.
+     *
+     * @param message The message to send.
+     */
     public void sendMessageToAll(final String message) {
-        for (final TCPUserClient userClient : userClients.values()) {
-            userClient.send(message);
+        if (!settings.isTcpGossip()) {
+            for (final TCPUserClient userClient : userClients.values()) {
+                userClient.send(message);
+            }
+
+            return;
+        }
+
+        final List<User> gossipPeers = new ArrayList<>();
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            if (entry.getValue().isBatchedFraming()) {
+                gossipPeers.add(entry.getKey());
+            } else {
+                entry.getValue().send(message);
+            }
         }
+
+        gossip.broadcast(message, gossipPeers);
     }
 
     public void sendMessageToUser(final String message, final User user) {
@@ -186,38 +346,95 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
-        if (listener != null) {
+        if (TCPGossip.isGossipMessage(message)) {
+            gossip.messageArrived(message, user, getGossipPeers());
+        }
+
+        else if (listener != null) {
             listener.messageArrived(message, ipAddress, user);
         }
     }
 
+    @Override
+    public void sendGossip(final String message, final User peer) {
+        sendMessageToUser(message, peer);
+    }
+
+    @Override
+    public void gossipArrived(final String message, final int originCode, final User peer) {
+        if (!getGossipPeers().contains(peer)) {
+            LOG.warning("Dropping gossip from %s, which is not a gossip peer: %s", peer.getNick(), message);
+            return;
+        }
+
+        final User user = parseUserFromMessage(message, peer);
+
+        if (user == null || user.getCode() != originCode) {
+            LOG.warning("Dropping gossip from %s, with a sender not matching the id %d: %s",
+                        peer.getNick(), originCode, message);
+            return;
+        }
+
+        // The message might be forwarded by another user, so using the ip address of the original sender
+        if (!user.isMe() && listener != null) {
+            listener.messageArrived(message, user.getIpAddress(), user);
+        }
+    }
+
+    private List<User> getGossipPeers() {
+        final List<User> gossipPeers = new ArrayList<>();
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            if (entry.getValue().isBatchedFraming()) {
+                gossipPeers.add(entry.getKey());
+            }
+        }
+
+        return gossipPeers;
+    }
+
+    @Nullable
+    private User parseUserFromMessage(final String message, final User peer) {
+        try {
+            final int userCode = Integer.parseInt(message.substring(0, message.indexOf("!")));
+            return controller.getUser(userCode);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.warning("Failed to parse user from gossip from %s: %s", peer.getNick(), message);
+            return null;
+        }
+    }
+
+    private void checkHeartbeats(final long heartbeatInterval) {
+        for (final TCPUserClient userClient : userClients.values()) {
+            userClient.checkHeartbeats(heartbeatInterval);
+        }
+    }
+
     private boolean userAddedAndConnected(final User user) {
         final TCPUserClient userClient = userClients.get(user);
 
         return userClient != null && userClient.getClientCount() > 0;
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            Tools.sleep(15_000);
-
-            if (!connected) {
-                continue;
-            }
+    private void checkClients() {
+        if (!connected) {
+            return;
+        }
 
-            for (final User user : userClients.keySet()) {
-                final TCPUserClient userClient = userClients.get(user);
-                final int clientCount = userClient.getClientCount();
-
-                if (clientCount == 0) {
-                    LOG.warning("User %s has lost all tcp connections. Trying to reconnect.", user.getNick());
-                    userAdded(user);
-                } else if (clientCount > 1) {
-                    LOG.warning("User %s has too many (%d) tcp connections. Trying to close.",
-                                user.getNick(), clientCount);
-                    userClient.disconnectAdditionalClients();
-                }
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            final User user = entry.getKey();
+            final TCPUserClient userClient = entry.getValue();
+            final int clientCount = userClient.getClientCount();
+
+            // Safety net in case a lost connection was missed. Does nothing if already reconnecting.
+            if (clientCount == 0) {
+                reconnectScheduler.connectionLost(user);
+            } else if (clientCount > 1) {
+                LOG.warning("User %s has too many (%d) tcp connections. Trying to close.",
+                            user.getNick(), clientCount);
+                userClient.disconnectAdditionalClients();
             }
         }
     }
@@ -27,10 +27,13 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -38,34 +41,149 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Creates a tcp connection to a user.
  *
+ * <p>The tcp port of the user is usually not known when the user is added, since it arrives later
+ * in the client information. Instead of waiting for it, the connector waits for a call to
+ * {@link #portChanged()}, and gives up if the port has not arrived before the timeout.
+ * The result is given to the {@link TCPConnectorListener}.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPConnector {
 
     private static final Logger LOG = Logger.getLogger(TCPConnector.class);
     private static final int SOCKET_CONNECT_TIMEOUT = 10_000;
+    private static final int PORT_TIMEOUT = 5_000;
+
+    private enum State {
+        CREATED,
+        WAITING_FOR_PORT,
+        CONNECTING,
+        DONE
+    }
 
     private final User user;
-    private final Sleeper sleeper;
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final TCPConnectorListener listener;
+
+    private State state;
+
+    @Nullable
+    private ScheduledFuture<?> portTimeout;
 
-    public TCPConnector(final User user) {
+    public TCPConnector(final User user,
+                        final ExecutorService executorService,
+                        final ScheduledExecutorService scheduledExecutorService,
+                        final TCPConnectorListener listener) {
         Validate.notNull(user, "User can not be null");
+        Validate.notNull(executorService, "Executor service can not be null");
+        Validate.notNull(scheduledExecutorService, "Scheduled executor service can not be null");
+        Validate.notNull(listener, "Listener can not be null");
 
         this.user = user;
-        this.sleeper = new Sleeper();
+        this.executorService = executorService;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.listener = listener;
+        this.state = State.CREATED;
     }
 
-    @Nullable
-    public Socket connect() {
-        LOG.fine("Connecting to user=%s", user.getNick());
+    /**
+     * Starts connecting to the user. Connects right away if the port is known, or else waits for it to arrive.
+     */
+    public synchronized void start() {
+        if (state != State.CREATED) {
+            return;
+        }
+
+        if (user.getTcpChatPort() > 0) {
+            connectInBackground();
+        }
+
+        else {
+            LOG.fine("Waiting for tcp port from user=%s", user.getNick());
+            state = State.WAITING_FOR_PORT;
+
+            portTimeout = scheduledExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    portTimedOut();
+                }
+            }, PORT_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notifies the connector that the tcp port of the user may have changed.
+     * Starts connecting if the connector was waiting for the port.
+     */
+    public synchronized void portChanged() {
+        if (state == State.WAITING_FOR_PORT && user.getTcpChatPort() > 0) {
+            cancelPortTimeout();
+            connectInBackground();
+        }
+    }
+
+    /**
+     * Stops the connector without notifying the listener. A socket connected after this is closed.
+     */
+    public synchronized void cancel() {
+        cancelPortTimeout();
+        state = State.DONE;
+    }
+
+    private void portTimedOut() {
+        synchronized (this) {
+            if (state != State.WAITING_FOR_PORT) {
+                return;
+            }
 
-        waitForPort();
+            state = State.DONE;
+        }
+
+        LOG.warning("User has no tcp port. Giving up. user=%s", user.getNick());
+        listener.connectionFailed(user);
+    }
+
+    private void cancelPortTimeout() {
+        if (portTimeout != null) {
+            portTimeout.cancel(false);
+            portTimeout = null;
+        }
+    }
+
+    private void connectInBackground() {
+        state = State.CONNECTING;
+
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+    private void connect() {
+        final Socket socket = openSocket();
 
-        if (user.getTcpChatPort() <= 0) {
-            LOG.warning("User has no tcp port. Giving up.");
-            return null;
+        synchronized (this) {
+            if (state != State.CONNECTING) {
+                LOG.fine("Connector was cancelled. user=%s", user.getNick());
+                closeSocket(socket);
+                return;
+            }
+
+            state = State.DONE;
         }
 
+        if (socket == null) {
+            listener.connectionFailed(user);
+        } else {
+            listener.socketConnected(user, socket);
+        }
+    }
+
+    @Nullable
+    private Socket openSocket() {
         try {
             LOG.fine("Connecting to: %s@%s:%s", user.getNick(), user.getIpAddress(), user.getTcpChatPort());
             final Socket socket = new Socket();
@@ -83,12 +201,17 @@ public class TCPConnector {
         return null;
     }
 
-    private void waitForPort() {
-        int tries = 0;
+    private void closeSocket(@Nullable final Socket socket) {
+        if (socket == null) {
+            return;
+        }
 
-        while (user.getTcpChatPort() <= 0 && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
+        try {
+            socket.close();
+        }
+
+        catch (final IOException e) {
+            LOG.warning(e.getMessage());
         }
     }
 }
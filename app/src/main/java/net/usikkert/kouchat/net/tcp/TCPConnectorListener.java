@@ -0,0 +1,50 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.net.Socket;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Listener for the result of a {@link TCPConnector}.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPConnectorListener {
+
+    /**
+     * A tcp socket has been connected to the user.
+     *
+     * @param user The user the socket is connected to.
+     * @param socket The connected socket.
+     */
+    void socketConnected(User user, Socket socket);
+
+    /**
+     * It was not possible to connect to the user.
+     *
+     * @param user The user it failed to connect to.
+     */
+    void connectionFailed(User user);
+}
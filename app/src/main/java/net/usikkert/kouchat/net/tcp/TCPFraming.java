@@ -0,0 +1,54 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The format used for writing messages to, and reading messages from, a tcp connection.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPFraming {
+
+    /**
+     * Writes the messages to the output stream, in order. Does not flush.
+     *
+     * @param messages The messages to write.
+     * @param outputStream The stream to write to.
+     * @throws IOException If writing failed.
+     */
+    void write(List<String> messages, DataOutputStream outputStream) throws IOException;
+
+    /**
+     * Blocks until the next frame has been read from the input stream.
+     *
+     * @param inputStream The stream to read from.
+     * @return The messages in the frame, in the order they were written.
+     * @throws IOException If reading failed, or the connection was closed.
+     */
+    List<String> read(DataInputStream inputStream) throws IOException;
+}
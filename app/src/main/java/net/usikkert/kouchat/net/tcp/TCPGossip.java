@@ -0,0 +1,445 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Gossip overlay for sending chat messages to all the tcp peers, based on epidemic broadcast trees (Plumtree).
+ *
+ * <p>Instead of sending every message directly to every peer, each peer is either an eager peer or a lazy peer.
+ * Messages are pushed in full to the eager peers, which push them further to their eager peers.
+ * The lazy peers only get a short notice with the id of the message, so they can ask for it if it never
+ * arrives from anyone else. The number of eager peers starts out at about log2 of the number of peers,
+ * and each notice is only sent to that many lazy peers, picked at random for each message.</p>
+ *
+ * <p>The eager peers form a spanning tree that repairs itself:</p>
+ *
+ * <ul>
+ *   <li>A peer sending a message that has already arrived is moved to the lazy peers, and told to do the same.</li>
+ *   <li>A message that is announced by a lazy peer, but not arrived within {@link #MISSING_TIMEOUT} ms,
+ *       is requested from the lazy peer, which is then moved to the eager peers on both sides.</li>
+ * </ul>
+ *
+ * <p>Only peers using the batched framing take part, since older clients don't understand the control messages.</p>
+ *
+ * <p>The id of a message starts with the user code of the original sender, which is given to the listener
+ * with the message so it can be checked against the message itself.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPGossip {
+
+    private static final Logger LOG = Logger.getLogger(TCPGossip.class);
+
+    /** A full message: <code>SYS-GOSSIP:id:message</code>. */
+    static final String MESSAGE_GOSSIP = "SYS-GOSSIP:";
+
+    /** Notice about a message: <code>SYS-IHAVE:id</code>. */
+    static final String MESSAGE_IHAVE = "SYS-IHAVE:";
+
+    /** Request for a missing message, and to become an eager peer: <code>SYS-GRAFT:id</code>. */
+    static final String MESSAGE_GRAFT = "SYS-GRAFT:";
+
+    /** Request to become a lazy peer. */
+    static final String MESSAGE_PRUNE = "SYS-PRUNE";
+
+    /** Milliseconds to wait for an announced message before asking for it. */
+    static final int MISSING_TIMEOUT = 1000;
+
+    /** Number of recent messages to remember, for detecting duplicates and answering requests. */
+    private static final int MESSAGE_CACHE_SIZE = 1000;
+
+    private final int myCode;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final TCPGossipListener listener;
+    private final Random random;
+
+    private final Set<User> eagerPeers;
+    private final Set<User> lazyPeers;
+    private final RecentMessages recentMessages;
+    private final Map<String, MissingMessage> missingMessages;
+
+    private long nextMessageNumber;
+
+    public TCPGossip(final int myCode,
+                     final ScheduledExecutorService scheduledExecutorService,
+                     final TCPGossipListener listener) {
+        this(myCode, scheduledExecutorService, listener, new Random());
+    }
+
+    TCPGossip(final int myCode,
+              final ScheduledExecutorService scheduledExecutorService,
+              final TCPGossipListener listener,
+              final Random random) {
+        Validate.notNull(scheduledExecutorService, "Scheduled executor service can not be null");
+        Validate.notNull(listener, "Listener can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.myCode = myCode;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.listener = listener;
+        this.random = random;
+
+        this.eagerPeers = new HashSet<>();
+        this.lazyPeers = new HashSet<>();
+        this.missingMessages = new HashMap<>();
+        this.recentMessages = new RecentMessages();
+    }
+
+    /**
+     * Checks if the message is one of the control messages used by the gossip overlay.
+     *
+     * @param message The message to check.
+     * @return If it's a gossip message.
+     */
+    public static boolean isGossipMessage(final String message) {
+        return message.startsWith(MESSAGE_GOSSIP) || message.startsWith(MESSAGE_IHAVE) ||
+                message.startsWith(MESSAGE_GRAFT) || message.equals(MESSAGE_PRUNE);
+    }
+
+    /**
+     * Sends a new message from the application user to all the peers.
+     *
+     * @param message The message to send.
+     * @param peers All the peers currently taking part in the gossip.
+     */
+    public synchronized void broadcast(final String message, final Collection<User> peers) {
+        final String messageId = myCode + "." + nextMessageNumber++;
+
+        recentMessages.put(messageId, message);
+        push(messageId, message, null, peers);
+    }
+
+    /**
+     * Handles a gossip control message from a peer.
+     *
+     * @param message The control message.
+     * @param peer The peer that sent the message.
+     * @param peers All the peers currently taking part in the gossip.
+     */
+    public void messageArrived(final String message, final User peer, final Collection<User> peers) {
+        GossipMessage messageToDeliver = null;
+
+        synchronized (this) {
+            updatePeers(peers);
+
+            if (message.startsWith(MESSAGE_GOSSIP)) {
+                messageToDeliver = gossipArrived(message, peer, peers);
+            } else if (message.startsWith(MESSAGE_IHAVE)) {
+                iHaveArrived(message.substring(MESSAGE_IHAVE.length()), peer);
+            } else if (message.startsWith(MESSAGE_GRAFT)) {
+                graftArrived(message.substring(MESSAGE_GRAFT.length()), peer);
+            } else if (message.equals(MESSAGE_PRUNE)) {
+                LOG.fine("Prune from %s", peer.getNick());
+                moveToLazy(peer);
+            }
+        }
+
+        if (messageToDeliver != null) {
+            listener.gossipArrived(messageToDeliver.message, messageToDeliver.originCode, peer);
+        }
+    }
+
+    /**
+     * Forgets all the peers and messages.
+     */
+    public synchronized void clear() {
+        for (final MissingMessage missingMessage : missingMessages.values()) {
+            missingMessage.cancelTimeout();
+        }
+
+        missingMessages.clear();
+        recentMessages.clear();
+        eagerPeers.clear();
+        lazyPeers.clear();
+    }
+
+    synchronized boolean isEagerPeer(final User peer) {
+        return eagerPeers.contains(peer);
+    }
+
+    synchronized boolean isLazyPeer(final User peer) {
+        return lazyPeers.contains(peer);
+    }
+
+    @Nullable
+    private GossipMessage gossipArrived(final String message, final User peer, final Collection<User> peers) {
+        final int idEnd = message.indexOf(':', MESSAGE_GOSSIP.length());
+
+        if (idEnd == -1) {
+            LOG.warning("Invalid gossip from %s: %s", peer.getNick(), message);
+            return null;
+        }
+
+        final String messageId = message.substring(MESSAGE_GOSSIP.length(), idEnd);
+        final String chatMessage = message.substring(idEnd + 1);
+        final int originCode = getOriginCode(messageId);
+
+        if (originCode == -1) {
+            LOG.warning("Invalid gossip id from %s: %s", peer.getNick(), message);
+            return null;
+        }
+
+        if (recentMessages.containsKey(messageId)) {
+            LOG.fine("Duplicate gossip %s from %s. Pruning.", messageId, peer.getNick());
+            moveToLazy(peer);
+            listener.sendGossip(MESSAGE_PRUNE, peer);
+            return null;
+        }
+
+        recentMessages.put(messageId, chatMessage);
+        moveToEager(peer);
+
+        final MissingMessage missingMessage = missingMessages.remove(messageId);
+
+        if (missingMessage != null) {
+            missingMessage.cancelTimeout();
+        }
+
+        push(messageId, chatMessage, peer, peers);
+
+        return new GossipMessage(chatMessage, originCode);
+    }
+
+    /**
+     * Gets the user code of the original sender from the id of a message.
+     *
+     * @param messageId The id of the message, as <code>code.number</code>.
+     * @return The user code, or -1 if the id is invalid.
+     */
+    static int getOriginCode(final String messageId) {
+        final int codeEnd = messageId.indexOf('.');
+
+        if (codeEnd <= 0) {
+            return -1;
+        }
+
+        try {
+            final int originCode = Integer.parseInt(messageId.substring(0, codeEnd));
+            return originCode >= 0 ? originCode : -1;
+        }
+
+        catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void iHaveArrived(final String messageId, final User peer) {
+        if (recentMessages.containsKey(messageId)) {
+            return;
+        }
+
+        MissingMessage missingMessage = missingMessages.get(messageId);
+
+        if (missingMessage == null) {
+            missingMessage = new MissingMessage();
+            missingMessages.put(messageId, missingMessage);
+            scheduleMissingTimeout(messageId, missingMessage);
+        }
+
+        if (!missingMessage.announcers.contains(peer)) {
+            missingMessage.announcers.add(peer);
+        }
+    }
+
+    private void graftArrived(final String messageId, final User peer) {
+        LOG.fine("Graft %s from %s", messageId, peer.getNick());
+        moveToEager(peer);
+
+        final String chatMessage = recentMessages.get(messageId);
+
+        if (chatMessage != null) {
+            listener.sendGossip(MESSAGE_GOSSIP + messageId + ":" + chatMessage, peer);
+        }
+    }
+
+    private synchronized void missingTimedOut(final String messageId) {
+        final MissingMessage missingMessage = missingMessages.get(messageId);
+
+        if (missingMessage == null) {
+            return;
+        }
+
+        if (missingMessage.announcers.isEmpty()) {
+            LOG.warning("Gave up on missing gossip %s", messageId);
+            missingMessages.remove(messageId);
+            return;
+        }
+
+        final User announcer = missingMessage.announcers.remove(0);
+        LOG.fine("Gossip %s is missing. Asking %s.", messageId, announcer.getNick());
+
+        moveToEager(announcer);
+        listener.sendGossip(MESSAGE_GRAFT + messageId, announcer);
+        scheduleMissingTimeout(messageId, missingMessage);
+    }
+
+    private void scheduleMissingTimeout(final String messageId, final MissingMessage missingMessage) {
+        missingMessage.timeout = scheduledExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                missingTimedOut(messageId);
+            }
+        }, MISSING_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void push(final String messageId, final String chatMessage, @Nullable final User sender,
+                      final Collection<User> peers) {
+        updatePeers(peers);
+
+        final List<User> lazyPeersToNotify = new ArrayList<>();
+
+        for (final User peer : peers) {
+            if (peer.equals(sender)) {
+                continue;
+            }
+
+            if (eagerPeers.contains(peer)) {
+                listener.sendGossip(MESSAGE_GOSSIP + messageId + ":" + chatMessage, peer);
+            } else {
+                lazyPeersToNotify.add(peer);
+            }
+        }
+
+        // Keeps the number of writes per message at about log2 of the peers, instead of one per peer
+        final int lazyTarget = getEagerTarget(peers.size());
+
+        if (lazyPeersToNotify.size() > lazyTarget) {
+            Collections.shuffle(lazyPeersToNotify, random);
+        }
+
+        for (final User peer : lazyPeersToNotify.subList(0, Math.min(lazyTarget, lazyPeersToNotify.size()))) {
+            listener.sendGossip(MESSAGE_IHAVE + messageId, peer);
+        }
+    }
+
+    /**
+     * Forgets peers that are gone, and makes new peers eager until there are enough eager peers.
+     *
+     * @param peers All the peers currently taking part in the gossip.
+     */
+    private void updatePeers(final Collection<User> peers) {
+        eagerPeers.retainAll(peers);
+        lazyPeers.retainAll(peers);
+
+        final int eagerTarget = getEagerTarget(peers.size());
+
+        for (final User peer : peers) {
+            if (!eagerPeers.contains(peer) && !lazyPeers.contains(peer)) {
+                if (eagerPeers.size() < eagerTarget) {
+                    eagerPeers.add(peer);
+                } else {
+                    lazyPeers.add(peer);
+                }
+            }
+        }
+
+        for (final MissingMessage missingMessage : missingMessages.values()) {
+            missingMessage.announcers.retainAll(peers);
+        }
+    }
+
+    /**
+     * Gets the number of eager peers to start out with: one more than log2 of the number of peers.
+     *
+     * @param numberOfPeers Number of peers taking part in the gossip.
+     * @return The number of eager peers to aim for.
+     */
+    static int getEagerTarget(final int numberOfPeers) {
+        return Math.min(numberOfPeers, 33 - Integer.numberOfLeadingZeros(numberOfPeers));
+    }
+
+    private void moveToEager(final User peer) {
+        lazyPeers.remove(peer);
+        eagerPeers.add(peer);
+    }
+
+    private void moveToLazy(final User peer) {
+        eagerPeers.remove(peer);
+        lazyPeers.add(peer);
+    }
+
+    /**
+     * A chat message that arrived through the overlay, with the user code from the id of the message.
+     */
+    private static final class GossipMessage {
+
+        private final String message;
+        private final int originCode;
+
+        private GossipMessage(final String message, final int originCode) {
+            this.message = message;
+            this.originCode = originCode;
+        }
+    }
+
+    /**
+     * The most recent messages, by id. Forgets the oldest when full.
+     */
+    private static final class RecentMessages extends LinkedHashMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > MESSAGE_CACHE_SIZE;
+        }
+    }
+
+    /**
+     * A message that has been announced, but not arrived yet.
+     */
+    private static final class MissingMessage {
+
+        private final List<User> announcers = new ArrayList<>();
+
+        @Nullable
+        private ScheduledFuture<?> timeout;
+
+        private void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
+    }
+}
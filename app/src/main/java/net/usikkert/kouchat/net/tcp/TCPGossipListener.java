@@ -0,0 +1,50 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Listener for the {@link TCPGossip} overlay.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPGossipListener {
+
+    /**
+     * Sends a gossip control message to a single peer.
+     *
+     * @param message The message to send.
+     * @param peer The peer to send to.
+     */
+    void sendGossip(String message, User peer);
+
+    /**
+     * A new chat message has arrived through the gossip overlay, and should be delivered if it's valid.
+     *
+     * @param message The chat message, as sent by the original sender.
+     * @param originCode The user code of the original sender, from the id of the message.
+     * @param peer The peer that forwarded the message.
+     */
+    void gossipArrived(String message, int originCode, User peer);
+}
@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.util.List;
+
 import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
@@ -34,7 +36,7 @@ import net.usikkert.kouchat.util.Validate;
  *
  * @author Christian Ihle
  */
-public class TCPNetworkService implements UserListListener {
+public class TCPNetworkService implements UserListListener, TCPUserActivityListener {
 
     private final TCPConnectionHandler tcpConnectionHandler;
     private final TCPServer tcpServer;
@@ -69,7 +71,7 @@ public class TCPNetworkService implements UserListListener {
 
     @Override
     public void userChanged(final int pos, final User user) {
-
+        tcpConnectionHandler.userChanged(user);
     }
 
     @Override
@@ -88,4 +90,23 @@ public class TCPNetworkService implements UserListListener {
     public void registerReceiverListener(final TCPReceiverListener listener) {
         tcpConnectionHandler.registerReceiverListener(listener);
     }
+
+    @Override
+    public void idleArrived(final User user) {
+        tcpConnectionHandler.getReconnectScheduler().idleArrived(user);
+    }
+
+    @Override
+    public void clientInfoArrived(final User user) {
+        tcpConnectionHandler.getReconnectScheduler().clientInfoArrived(user);
+    }
+
+    /**
+     * Gets a description of the reconnect state of every user missing a tcp connection.
+     *
+     * @return A list with one description per user.
+     */
+    public List<String> getReconnectStates() {
+        return tcpConnectionHandler.getReconnectScheduler().getReconnectStates();
+    }
 }
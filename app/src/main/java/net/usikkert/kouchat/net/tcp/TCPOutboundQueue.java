@@ -0,0 +1,151 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A bounded queue of messages waiting to be written to a tcp client.
+ *
+ * <p>Messages are taken out in batches, so that everything that was queued while the previous
+ * write was in progress can be written in one go.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPOutboundQueue {
+
+    private final Deque<String> messages;
+    private final int capacity;
+
+    private boolean closed;
+
+    public TCPOutboundQueue(final int capacity) {
+        this.messages = new ArrayDeque<>();
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a message to the end of the queue, if there is room.
+     *
+     * @param message The message to add.
+     * @return If the message was added. False if the queue is full or closed.
+     */
+    public synchronized boolean offer(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        if (closed || messages.size() >= capacity) {
+            return false;
+        }
+
+        messages.add(message);
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * Waits until at least one message is available, and then takes out all the queued messages,
+     * up to <code>maxMessages</code>.
+     *
+     * @param maxMessages The max number of messages to take out.
+     * @return The messages, in the order they were added. Empty if the queue was closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized List<String> takeBatch(final int maxMessages) throws InterruptedException {
+        while (messages.isEmpty() && !closed) {
+            wait();
+        }
+
+        final List<String> batch = new ArrayList<>(Math.min(maxMessages, messages.size()));
+
+        while (!messages.isEmpty() && batch.size() < maxMessages) {
+            batch.add(messages.poll());
+        }
+
+        return batch;
+    }
+
+    /**
+     * Removes all queued presence messages, like idle and writing, to make room for more important messages.
+     *
+     * @return The number of messages removed.
+     */
+    public synchronized int dropPresenceMessages() {
+        int dropped = 0;
+        final Iterator<String> iterator = messages.iterator();
+
+        while (iterator.hasNext()) {
+            if (isPresenceMessage(iterator.next())) {
+                iterator.remove();
+                dropped++;
+            }
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Closes the queue, and removes any remaining messages. Threads waiting for messages are woken up.
+     */
+    public synchronized void close() {
+        closed = true;
+        messages.clear();
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Checks if the message only tells about the state of the sender, and will be
+     * replaced by the next message of the same kind anyway.
+     *
+     * @param message The message to check.
+     * @return If the message is a presence message.
+     */
+    public static boolean isPresenceMessage(final String message) {
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+
+        if (exclamation < 0 || hash < exclamation) {
+            return false;
+        }
+
+        final String type = message.substring(exclamation + 1, hash);
+
+        return type.equals(IDLE) || type.equals(WRITING) || type.equals(STOPPEDWRITING);
+    }
+}
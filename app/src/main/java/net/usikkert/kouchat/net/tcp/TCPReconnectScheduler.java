@@ -0,0 +1,299 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides when to try connecting to users that are missing a tcp connection.
+ *
+ * <p>Each failed attempt doubles the delay before the next attempt, up to {@link #MAX_DELAY}.
+ * The delay is randomized by up to half, so users that lost their connections at the same
+ * time don't all try again at the same time.</p>
+ *
+ * <p>After {@link #CIRCUIT_BREAKER_FAILURES} failures in a row, the circuit breaker opens, and the
+ * user is only tried once every {@link #CIRCUIT_OPEN_TIME}.</p>
+ *
+ * <p>Activity from the user on multicast can trigger an attempt right away. An idle message
+ * can do this once between each scheduled attempt, as long as the circuit breaker is closed.
+ * Client information means the user has (re)started, and always triggers an attempt.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPReconnectScheduler implements TCPUserActivityListener {
+
+    private static final Logger LOG = Logger.getLogger(TCPReconnectScheduler.class);
+
+    /** Delay before the first attempt. */
+    static final int INITIAL_DELAY = 1000;
+
+    /** Max delay between attempts while the circuit breaker is closed. */
+    static final int MAX_DELAY = 120_000;
+
+    /** Number of failed attempts in a row before the circuit breaker opens. */
+    static final int CIRCUIT_BREAKER_FAILURES = 8;
+
+    /** Delay between attempts while the circuit breaker is open. */
+    static final int CIRCUIT_OPEN_TIME = 600_000;
+
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final TCPReconnectListener listener;
+    private final Random random;
+    private final Map<User, ReconnectState> reconnectStates;
+
+    public TCPReconnectScheduler(final ScheduledExecutorService scheduledExecutorService,
+                                 final TCPReconnectListener listener) {
+        this(scheduledExecutorService, listener, new Random());
+    }
+
+    TCPReconnectScheduler(final ScheduledExecutorService scheduledExecutorService,
+                          final TCPReconnectListener listener,
+                          final Random random) {
+        Validate.notNull(scheduledExecutorService, "Scheduled executor service can not be null");
+        Validate.notNull(listener, "Listener can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.listener = listener;
+        this.random = random;
+        this.reconnectStates = new HashMap<>();
+    }
+
+    /**
+     * Registers that a user with a tcp connection has lost it. Schedules an attempt to connect again,
+     * unless one is already scheduled or in progress.
+     *
+     * @param user The user that lost the connection.
+     */
+    public synchronized void connectionLost(final User user) {
+        final ReconnectState state = getOrCreateState(user);
+
+        if (!state.isWaiting()) {
+            final long delay = getDelay(state.failures);
+            LOG.warning("User %s has lost all tcp connections. Trying to reconnect in %d ms.", user.getNick(), delay);
+            schedule(user, state, delay);
+        }
+    }
+
+    /**
+     * Registers a failed attempt to connect to the user, and schedules the next attempt.
+     *
+     * @param user The user it failed to connect to.
+     */
+    public synchronized void connectionFailed(final User user) {
+        final ReconnectState state = getOrCreateState(user);
+
+        state.failures++;
+        state.attemptInProgress = false;
+        state.idleTriggerUsed = false;
+
+        if (state.isCircuitOpen()) {
+            LOG.warning("Too many failed attempts to connect to %s. Trying again in %d minutes.",
+                        user.getNick(), TimeUnit.MILLISECONDS.toMinutes(CIRCUIT_OPEN_TIME));
+        }
+
+        schedule(user, state, getDelay(state.failures));
+    }
+
+    /**
+     * Registers a working connection to the user, and forgets all the failed attempts.
+     *
+     * @param user The user with a working connection.
+     */
+    public synchronized void connectionSucceeded(final User user) {
+        removeState(user);
+    }
+
+    /**
+     * Stops any attempts to connect to the user.
+     *
+     * @param user The user to stop connecting to.
+     */
+    public synchronized void userRemoved(final User user) {
+        removeState(user);
+    }
+
+    /**
+     * Stops all attempts to connect.
+     */
+    public synchronized void clear() {
+        for (final ReconnectState state : reconnectStates.values()) {
+            state.cancelAttempt();
+        }
+
+        reconnectStates.clear();
+    }
+
+    @Override
+    public synchronized void idleArrived(final User user) {
+        final ReconnectState state = reconnectStates.get(user);
+
+        if (state != null && state.nextAttempt != null && !state.idleTriggerUsed && !state.isCircuitOpen()) {
+            LOG.fine("Idle from %s. Trying to connect right away.", user.getNick());
+            state.idleTriggerUsed = true;
+            schedule(user, state, 0);
+        }
+    }
+
+    @Override
+    public synchronized void clientInfoArrived(final User user) {
+        final ReconnectState state = reconnectStates.get(user);
+
+        if (state != null && state.nextAttempt != null) {
+            LOG.fine("Client info from %s. Trying to connect right away.", user.getNick());
+            schedule(user, state, 0);
+        }
+    }
+
+    /**
+     * Gets a description of the reconnect state of every user missing a tcp connection.
+     *
+     * @return A list with one description per user.
+     */
+    public synchronized List<String> getReconnectStates() {
+        final List<String> states = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+
+        for (final Map.Entry<User, ReconnectState> entry : reconnectStates.entrySet()) {
+            final ReconnectState state = entry.getValue();
+            final String status;
+
+            if (state.attemptInProgress) {
+                status = "connecting";
+            } else if (state.nextAttempt != null) {
+                status = "next attempt in " + Math.max(0, state.nextAttemptTime - now) + " ms";
+            } else {
+                status = "idle";
+            }
+
+            states.add(entry.getKey().getNick() + ": failures=" + state.failures +
+                               ", circuit=" + (state.isCircuitOpen() ? "open" : "closed") + ", " + status);
+        }
+
+        return states;
+    }
+
+    /**
+     * Gets the delay before the next attempt, with jitter.
+     *
+     * @param failures Number of failed attempts in a row.
+     * @return The delay in milliseconds.
+     */
+    long getDelay(final int failures) {
+        if (failures >= CIRCUIT_BREAKER_FAILURES) {
+            return CIRCUIT_OPEN_TIME;
+        }
+
+        final long delay = Math.min(MAX_DELAY, (long) INITIAL_DELAY << failures);
+        final long halfDelay = delay / 2;
+
+        return halfDelay + (long) (random.nextDouble() * halfDelay);
+    }
+
+    private ReconnectState getOrCreateState(final User user) {
+        ReconnectState state = reconnectStates.get(user);
+
+        if (state == null) {
+            state = new ReconnectState();
+            reconnectStates.put(user, state);
+        }
+
+        return state;
+    }
+
+    private void removeState(final User user) {
+        final ReconnectState state = reconnectStates.remove(user);
+
+        if (state != null) {
+            state.cancelAttempt();
+        }
+    }
+
+    private void schedule(final User user, final ReconnectState state, final long delay) {
+        state.cancelAttempt();
+        state.nextAttemptTime = System.currentTimeMillis() + delay;
+
+        state.nextAttempt = scheduledExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt(user, state);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(final User user, final ReconnectState state) {
+        synchronized (this) {
+            if (reconnectStates.get(user) != state) {
+                return;
+            }
+
+            state.nextAttempt = null;
+            state.attemptInProgress = true;
+        }
+
+        LOG.fine("Trying to connect to %s. failures=%d", user.getNick(), state.failures);
+        listener.reconnect(user);
+    }
+
+    /**
+     * The state of the attempts to connect to a single user.
+     */
+    private static final class ReconnectState {
+
+        private int failures;
+        private boolean attemptInProgress;
+        private boolean idleTriggerUsed;
+        private long nextAttemptTime;
+
+        @Nullable
+        private ScheduledFuture<?> nextAttempt;
+
+        private boolean isWaiting() {
+            return nextAttempt != null || attemptInProgress;
+        }
+
+        private boolean isCircuitOpen() {
+            return failures >= CIRCUIT_BREAKER_FAILURES;
+        }
+
+        private void cancelAttempt() {
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+                nextAttempt = null;
+            }
+        }
+    }
+}
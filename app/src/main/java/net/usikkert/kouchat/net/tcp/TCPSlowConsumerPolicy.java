@@ -0,0 +1,45 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+/**
+ * What to do with a tcp client when the user on the other side is unable to read messages
+ * as fast as they are sent.
+ *
+ * @author Christian Ihle
+ */
+public enum TCPSlowConsumerPolicy {
+
+    /**
+     * Keeps the connection, but drops queued presence messages like idle and writing to make room
+     * for new messages. The new message is dropped if the queue is still full.
+     */
+    DROP_PRESENCE,
+
+    /**
+     * Disconnects the client when the queue is full, or a write has been blocked for too long.
+     * The user on the other side will then get messages using multicast until the tcp connection
+     * is established again.
+     */
+    DISCONNECT
+}
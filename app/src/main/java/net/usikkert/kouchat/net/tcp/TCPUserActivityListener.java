@@ -0,0 +1,49 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Listener for activity from users without a tcp connection. The activity is proof that the user
+ * is still there, and is a good time to try connecting again.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPUserActivityListener {
+
+    /**
+     * The user sent an idle message using multicast.
+     *
+     * @param user The user that sent the message.
+     */
+    void idleArrived(User user);
+
+    /**
+     * The user sent client information using multicast. This usually means the user just logged on,
+     * or is starting over.
+     *
+     * @param user The user that sent the message.
+     */
+    void clientInfoArrived(User user);
+}
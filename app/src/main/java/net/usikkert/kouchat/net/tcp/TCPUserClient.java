@@ -22,8 +22,8 @@
 
 package net.usikkert.kouchat.net.tcp;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Logger;
@@ -40,16 +40,19 @@ public class TCPUserClient implements TCPClientListener {
     private static final Logger LOG = Logger.getLogger(TCPUserClient.class);
     private static final String MESSAGE_DISCONNECT_ADDITIONAL = "SYS-DISCONNECT-ADDITIONAL";
 
+    /** Number of heartbeats a client can miss before it's considered dead. */
+    private static final int MISSED_HEARTBEATS = 3;
+
     private final List<TCPClient> clients;
     private final User user;
-    private final TCPReceiverListener listener;
+    private final TCPUserClientListener listener;
 
-    public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener) {
+    public TCPUserClient(final TCPClient client, final User user, final TCPUserClientListener listener) {
         Validate.notNull(client, "Client can not be null");
         Validate.notNull(user, "User can not be null");
         Validate.notNull(listener, "TCP message listener can not be null");
 
-        this.clients = new ArrayList<>();
+        this.clients = new CopyOnWriteArrayList<>();
         this.user = user;
         this.listener = listener;
 
@@ -80,6 +83,7 @@ public class TCPUserClient implements TCPClientListener {
 
         if (clients.isEmpty()) {
             user.setTcpEnabled(false);
+            listener.connectionLost(user);
         }
     }
 
@@ -117,6 +121,52 @@ public class TCPUserClient implements TCPClientListener {
         }
     }
 
+    /**
+     * Sends heartbeats to the clients that support it, and disconnects clients that have missed too many
+     * heartbeats from the other side. If at least one client receiving heartbeats is alive, the user is marked
+     * as idle, the same way as when receiving an idle message using multicast.
+     *
+     * @param heartbeatInterval The number of milliseconds between each heartbeat.
+     */
+    public void checkHeartbeats(final long heartbeatInterval) {
+        boolean aliveWithHeartbeats = false;
+
+        for (final TCPClient client : clients) {
+            if (!client.isAlive(heartbeatInterval, MISSED_HEARTBEATS)) {
+                LOG.warning("Client for %s missed %d heartbeats. Disconnecting.", user.getNick(), MISSED_HEARTBEATS);
+                client.disconnect();
+            }
+
+            else {
+                client.sendHeartbeat(heartbeatInterval);
+
+                // The other side might have heartbeats disabled, so only the ones sending count
+                if (client.isReceivingHeartbeats()) {
+                    aliveWithHeartbeats = true;
+                }
+            }
+        }
+
+        if (aliveWithHeartbeats) {
+            user.setLastIdle(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Checks if the client used for sending messages to the user is using the batched framing.
+     *
+     * @return If messages are sent using the batched framing.
+     */
+    public boolean isBatchedFraming() {
+        for (final TCPClient client : clients) {
+            if (!client.isDisconnecting()) {
+                return client.isBatchedFraming();
+            }
+        }
+
+        return false;
+    }
+
     public int getClientCount() {
         return clients.size();
     }
@@ -22,6 +22,9 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,7 +32,6 @@ import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -38,11 +40,15 @@ import org.jetbrains.annotations.Nullable;
  * Message listener for a client that will identify the user on the other side
  * if that user sends its user code as the first message.
  *
+ * <p>The result is given to the {@link TCPUserIdentifierListener} as soon as the first message arrives,
+ * or when the client disconnects or the timeout is reached without any message.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPUserIdentifier implements TCPClientListener {
 
     private static final Logger LOG = Logger.getLogger(TCPUserIdentifier.class);
+    private static final int IDENTIFY_TIMEOUT = 5_000;
 
     /**
      * Identification format consisting of both the user sending the message and the user expected
@@ -54,67 +60,100 @@ public class TCPUserIdentifier implements TCPClientListener {
     private final Controller controller;
     private final Settings settings;
     private final TCPClient client;
-    private final Sleeper sleeper;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final TCPUserIdentifierListener listener;
+
+    private boolean done;
 
     @Nullable
-    private String message;
+    private ScheduledFuture<?> timeout;
 
-    public TCPUserIdentifier(final Controller controller, final Settings settings, final TCPClient client) {
+    public TCPUserIdentifier(final Controller controller,
+                             final Settings settings,
+                             final TCPClient client,
+                             final ScheduledExecutorService scheduledExecutorService,
+                             final TCPUserIdentifierListener listener) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(client, "Client can not be null");
+        Validate.notNull(scheduledExecutorService, "Scheduled executor service can not be null");
+        Validate.notNull(listener, "Listener can not be null");
 
         this.controller = controller;
         this.settings = settings;
         this.client = client;
-        this.sleeper = new Sleeper();
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.listener = listener;
 
         client.registerClientListener(this);
     }
 
-    @Override
-    public void messageArrived(final String theMessage, final TCPClient theClient) {
-        client.registerClientListener(null);
-        LOG.fine("Received message: %s", theMessage);
+    /**
+     * Starts the timeout for the identification. Should be done before the client is connected.
+     */
+    public synchronized void start() {
+        if (done) {
+            return;
+        }
 
-        this.message = theMessage;
+        timeout = scheduledExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (finish()) {
+                    LOG.warning("No identification received in time. clientIP=%s", client.getIPAddress());
+                    listener.identificationFailed(client);
+                }
+            }
+        }, IDENTIFY_TIMEOUT, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public void disconnected(final TCPClient theClient) {
-
-    }
-
-    @Nullable
-    public User waitForUser() {
-        waitForMessage();
+    public void messageArrived(final String message, final TCPClient theClient) {
+        if (!finish()) {
+            return;
+        }
 
-        final User user = userFromMessage();
+        LOG.fine("Received message: %s", message);
+        final User user = userFromMessage(message);
 
-        if (user != null && !user.getIpAddress().equals(client.getIPAddress())) {
-            LOG.warning("Unexpected client ip connected. user=%s, userIP=%s, clientIP=%s",
-                        user.getNick(), user.getIpAddress(), client.getIPAddress());
-            return null;
+        if (user == null) {
+            listener.identificationFailed(client);
+        } else {
+            listener.userIdentified(user, client);
         }
+    }
 
-        return user;
+    @Override
+    public void disconnected(final TCPClient theClient) {
+        if (finish()) {
+            LOG.fine("Disconnected before identification. clientIP=%s", client.getIPAddress());
+            listener.identificationFailed(client);
+        }
     }
 
-    private void waitForMessage() {
-        int tries = 0;
+    /**
+     * Marks the identification as done, so the result is only given once.
+     *
+     * @return If this was the first call.
+     */
+    private synchronized boolean finish() {
+        if (done) {
+            return false;
+        }
+
+        done = true;
+        client.registerClientListener(null);
 
-        while (message == null && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
         }
+
+        return true;
     }
 
     @Nullable
-    private User userFromMessage() {
-        if (message == null) {
-            return null;
-        }
-
+    private User userFromMessage(final String message) {
         final Matcher messageMatcher = messagePattern.matcher(message);
 
         if (!messageMatcher.matches()) {
@@ -133,7 +172,15 @@ public class TCPUserIdentifier implements TCPClientListener {
                 return null;
             }
 
-            return controller.getUser(userCode);
+            final User user = controller.getUser(userCode);
+
+            if (user != null && !user.getIpAddress().equals(client.getIPAddress())) {
+                LOG.warning("Unexpected client ip connected. user=%s, userIP=%s, clientIP=%s",
+                            user.getNick(), user.getIpAddress(), client.getIPAddress());
+                return null;
+            }
+
+            return user;
         }
 
         catch (final NumberFormatException e) {
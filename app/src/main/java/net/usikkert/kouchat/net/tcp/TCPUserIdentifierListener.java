@@ -0,0 +1,48 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Listener for the result of a {@link TCPUserIdentifier}.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPUserIdentifierListener {
+
+    /**
+     * The user on the other side of the client has been identified.
+     *
+     * @param user The identified user.
+     * @param client The client connected to the user.
+     */
+    void userIdentified(User user, TCPClient client);
+
+    /**
+     * The user on the other side of the client could not be identified, and the client should be closed.
+     *
+     * @param client The client connected to the unknown user.
+     */
+    void identificationFailed(TCPClient client);
+}
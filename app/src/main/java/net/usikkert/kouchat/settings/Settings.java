@@ -28,6 +28,7 @@ import java.util.List;
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.event.SettingsListener;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.tcp.TCPSlowConsumerPolicy;
 import net.usikkert.kouchat.util.Tools;
 
 import org.jetbrains.annotations.NonNls;
@@ -88,6 +89,47 @@ public class Settings {
     /** The location to store logs. */
     private String logLocation;
 
+    /** Max milliseconds before lines in the chat logs are written to disk, or 0 to write each line right away. */
+    private int logFlushInterval;
+
+    /** Kilobytes of lines in the chat logs to write to disk at once, without waiting for the interval. */
+    private int logFlushSize;
+
+    /** Max kilobytes in each chat log file before starting a new one, or 0 for no limit. */
+    private int logMaxSize;
+
+    /** Number of old compressed chat log files to keep for each chat, or 0 to keep them all. */
+    private int logKeepFiles;
+
+    // Network tuning
+
+    /** What to do with tcp connections to users that are too slow to read messages. */
+    private TCPSlowConsumerPolicy tcpSlowConsumerPolicy;
+
+    /** Milliseconds between each heartbeat on tcp connections. */
+    private int tcpHeartbeatInterval;
+
+    /** If messages to all users should be sent through the gossip overlay on tcp. */
+    private boolean tcpGossip;
+
+    /** If received files should be verified with a checksum, when the sender supports it. */
+    private boolean fileTransferChecksum;
+
+    /** If received files should be transferred compressed, when the sender supports it. */
+    private boolean fileTransferCompression;
+
+    /** Max kilobytes per second for all the file transfers together, or 0 for no limit. */
+    private int fileTransferBandwidthLimit;
+
+    /** Max kilobytes per second for all the file transfers together while chatting, or 0 for no limit. */
+    private int fileTransferChatBandwidthLimit;
+
+    /** The share of the bandwidth new file transfers sending files get, compared to the other file transfers. */
+    private int fileTransferSendWeight;
+
+    /** The share of the bandwidth new file transfers receiving files get, compared to the other file transfers. */
+    private int fileTransferReceiveWeight;
+
     /**
      * Constructor.
      *
@@ -107,6 +149,17 @@ public class Settings {
         smileys = true;
         systemTray = true;
         lookAndFeel = "";
+        tcpSlowConsumerPolicy = TCPSlowConsumerPolicy.DISCONNECT;
+        tcpHeartbeatInterval = 5000;
+        fileTransferChecksum = true;
+        fileTransferCompression = true;
+        fileTransferChatBandwidthLimit = 1024;
+        fileTransferSendWeight = 1;
+        fileTransferReceiveWeight = 1;
+        logFlushInterval = 1000;
+        logFlushSize = 64;
+        logMaxSize = 10 * 1024;
+        logKeepFiles = 100;
     }
 
     /**
@@ -351,6 +404,87 @@ public class Settings {
         this.logLocation = logLocation;
     }
 
+    /**
+     * Gets the max milliseconds before lines in the chat logs are written to disk.
+     *
+     * @return Milliseconds between each write, or 0 if each line is written right away.
+     */
+    public int getLogFlushInterval() {
+        return logFlushInterval;
+    }
+
+    /**
+     * Sets the max milliseconds before lines in the chat logs are written to disk. The lines are written
+     * by a thread of their own, so a slow disk doesn't hold up the chat. A longer interval means fewer
+     * writes, but more lines lost if the application crashes.
+     *
+     * <p>Use 0 to write and flush each line right away, on the thread logging it.
+     * Takes effect the next time a log file is opened.</p>
+     *
+     * @param logFlushInterval Milliseconds between each write, or 0 to write each line right away.
+     */
+    public void setLogFlushInterval(final int logFlushInterval) {
+        this.logFlushInterval = logFlushInterval;
+    }
+
+    /**
+     * Gets the kilobytes of lines in the chat logs to write to disk at once, without waiting for the interval.
+     *
+     * @return Kilobytes to write at once.
+     */
+    public int getLogFlushSize() {
+        return logFlushSize;
+    }
+
+    /**
+     * Sets the kilobytes of lines in the chat logs to write to disk at once, without waiting for the interval.
+     * Only used when the {@link #getLogFlushInterval()} is more than 0.
+     *
+     * @param logFlushSize Kilobytes to write at once.
+     */
+    public void setLogFlushSize(final int logFlushSize) {
+        this.logFlushSize = logFlushSize;
+    }
+
+    /**
+     * Gets the max kilobytes in each chat log file before starting a new one.
+     *
+     * @return Max kilobytes in each log file, or 0 for no limit.
+     */
+    public int getLogMaxSize() {
+        return logMaxSize;
+    }
+
+    /**
+     * Sets the max kilobytes in each chat log file before starting a new one. A new log file is also
+     * started when the day changes. The old log file is then compressed in the background.
+     * Takes effect the next time a log file is opened.
+     *
+     * @param logMaxSize Max kilobytes in each log file, or 0 for no limit.
+     */
+    public void setLogMaxSize(final int logMaxSize) {
+        this.logMaxSize = logMaxSize;
+    }
+
+    /**
+     * Gets the number of old compressed chat log files to keep for each chat.
+     *
+     * @return Number of log files to keep, or 0 to keep them all.
+     */
+    public int getLogKeepFiles() {
+        return logKeepFiles;
+    }
+
+    /**
+     * Sets the number of old compressed chat log files to keep for each chat. The oldest are deleted
+     * when there are more. Log files that are not compressed are never deleted.
+     *
+     * @param logKeepFiles Number of log files to keep, or 0 to keep them all.
+     */
+    public void setLogKeepFiles(final int logKeepFiles) {
+        this.logKeepFiles = logKeepFiles;
+    }
+
     /**
      * If balloon notifications are enabled.
      *
@@ -410,4 +544,178 @@ public class Settings {
     public void setNetworkInterface(final String networkInterface) {
         this.networkInterface = networkInterface;
     }
+
+    /**
+     * Gets what to do with tcp connections to users that are too slow to read messages.
+     *
+     * @return The policy for slow tcp connections.
+     */
+    public TCPSlowConsumerPolicy getTcpSlowConsumerPolicy() {
+        return tcpSlowConsumerPolicy;
+    }
+
+    /**
+     * Sets what to do with tcp connections to users that are too slow to read messages.
+     * Only affects new connections.
+     *
+     * @param tcpSlowConsumerPolicy The policy for slow tcp connections.
+     */
+    public void setTcpSlowConsumerPolicy(final TCPSlowConsumerPolicy tcpSlowConsumerPolicy) {
+        this.tcpSlowConsumerPolicy = tcpSlowConsumerPolicy;
+    }
+
+    /**
+     * Gets the number of milliseconds between each heartbeat on tcp connections.
+     *
+     * @return The heartbeat interval.
+     */
+    public int getTcpHeartbeatInterval() {
+        return tcpHeartbeatInterval;
+    }
+
+    /**
+     * Sets the number of milliseconds between each heartbeat on tcp connections.
+     * A connection is closed after missing 3 heartbeats. Use 0 to disable heartbeats.
+     * Takes effect the next time the network comes up.
+     *
+     * @param tcpHeartbeatInterval The heartbeat interval.
+     */
+    public void setTcpHeartbeatInterval(final int tcpHeartbeatInterval) {
+        this.tcpHeartbeatInterval = tcpHeartbeatInterval;
+    }
+
+    /**
+     * Checks if messages to all users should be sent through the gossip overlay on tcp,
+     * instead of directly to every user.
+     *
+     * @return If the gossip overlay is used for sending.
+     */
+    public boolean isTcpGossip() {
+        return tcpGossip;
+    }
+
+    /**
+     * Sets if messages to all users should be sent through the gossip overlay on tcp,
+     * instead of directly to every user. Gossip from other users is handled either way.
+     *
+     * @param tcpGossip If the gossip overlay should be used for sending.
+     */
+    public void setTcpGossip(final boolean tcpGossip) {
+        this.tcpGossip = tcpGossip;
+    }
+
+    /**
+     * Checks if received files should be verified with a checksum, when the sender supports it.
+     *
+     * @return If file transfers use a checksum.
+     */
+    public boolean isFileTransferChecksum() {
+        return fileTransferChecksum;
+    }
+
+    /**
+     * Sets if received files should be verified with a checksum, when the sender supports it.
+     * The checksum is calculated by reading the file again after each part is transferred.
+     *
+     * @param fileTransferChecksum If file transfers should use a checksum.
+     */
+    public void setFileTransferChecksum(final boolean fileTransferChecksum) {
+        this.fileTransferChecksum = fileTransferChecksum;
+    }
+
+    /**
+     * Checks if received files should be transferred compressed, when the sender supports it.
+     *
+     * @return If file transfers use compression.
+     */
+    public boolean isFileTransferCompression() {
+        return fileTransferCompression;
+    }
+
+    /**
+     * Sets if received files should be transferred compressed, when the sender supports it.
+     * Compression makes text and similar files faster to transfer on slow networks. Only used for
+     * the types of files that usually compress well, and turned off by the sender if the file does not.
+     *
+     * @param fileTransferCompression If file transfers should use compression.
+     */
+    public void setFileTransferCompression(final boolean fileTransferCompression) {
+        this.fileTransferCompression = fileTransferCompression;
+    }
+
+    /**
+     * Gets the max kilobytes per second to use for all the file transfers together.
+     *
+     * @return The bandwidth limit, or 0 if there is no limit.
+     */
+    public int getFileTransferBandwidthLimit() {
+        return fileTransferBandwidthLimit;
+    }
+
+    /**
+     * Sets the max kilobytes per second to use for all the file transfers together.
+     * Takes effect at once, also for ongoing file transfers.
+     *
+     * @param fileTransferBandwidthLimit The bandwidth limit, or 0 for no limit.
+     */
+    public void setFileTransferBandwidthLimit(final int fileTransferBandwidthLimit) {
+        this.fileTransferBandwidthLimit = Math.max(0, fileTransferBandwidthLimit);
+    }
+
+    /**
+     * Gets the max kilobytes per second to use for all the file transfers together while chatting.
+     *
+     * @return The bandwidth limit while chatting, or 0 if there is no limit.
+     */
+    public int getFileTransferChatBandwidthLimit() {
+        return fileTransferChatBandwidthLimit;
+    }
+
+    /**
+     * Sets the max kilobytes per second to use for all the file transfers together while chatting.
+     * Keeps the file transfers from delaying the chat messages.
+     *
+     * @param fileTransferChatBandwidthLimit The bandwidth limit while chatting, or 0 for no limit.
+     */
+    public void setFileTransferChatBandwidthLimit(final int fileTransferChatBandwidthLimit) {
+        this.fileTransferChatBandwidthLimit = Math.max(0, fileTransferChatBandwidthLimit);
+    }
+
+    /**
+     * Gets the weight of new file transfers sending files. A file transfer gets a part of the bandwidth limit
+     * matching its part of the total weight of all the file transfers.
+     *
+     * @return The weight of new file transfers sending files.
+     */
+    public int getFileTransferSendWeight() {
+        return fileTransferSendWeight;
+    }
+
+    /**
+     * Sets the weight of new file transfers sending files. The default is 1.
+     *
+     * @param fileTransferSendWeight The weight, at least 1.
+     */
+    public void setFileTransferSendWeight(final int fileTransferSendWeight) {
+        this.fileTransferSendWeight = Math.max(1, fileTransferSendWeight);
+    }
+
+    /**
+     * Gets the weight of new file transfers receiving files. A file transfer gets a part of the bandwidth limit
+     * matching its part of the total weight of all the file transfers.
+     *
+     * @return The weight of new file transfers receiving files.
+     */
+    public int getFileTransferReceiveWeight() {
+        return fileTransferReceiveWeight;
+    }
+
+    /**
+     * Sets the weight of new file transfers receiving files. The default is 1.
+     *
+     * @param fileTransferReceiveWeight The weight, at least 1.
+     */
+    public void setFileTransferReceiveWeight(final int fileTransferReceiveWeight) {
+        this.fileTransferReceiveWeight = Math.max(1, fileTransferReceiveWeight);
+    }
 }
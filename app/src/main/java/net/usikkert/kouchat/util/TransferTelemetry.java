@@ -0,0 +1,297 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the speed of a file transfer, using {@link System#nanoTime()}.
+ *
+ * <p>The bytes transferred are sampled every {@link #SAMPLE_INTERVAL} milliseconds. The speed is
+ * available in several forms:</p>
+ *
+ * <ul>
+ *   <li>{@link #getBytesPerSec()}: an exponentially weighted moving average of the samples,
+ *       which is stable enough to show to the user.</li>
+ *   <li>{@link #getWindowBytesPerSec()}: the exact speed of the last {@link #WINDOW} milliseconds.</li>
+ *   <li>{@link #getAverageBytesPerSec()}: the speed of the whole transfer.</li>
+ *   <li>{@link #getMinBytesPerSec()} and {@link #getMaxBytesPerSec()}: the lowest and highest
+ *       moving average seen during the transfer.</li>
+ * </ul>
+ *
+ * <p>Run {@link #prepare()} just before starting the transfer, and {@link #addBytes(long)}
+ * every time bytes are transferred. Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TransferTelemetry {
+
+    /** Milliseconds between each sample. */
+    static final long SAMPLE_INTERVAL = 250;
+
+    /** Milliseconds of samples to use for the sliding window. */
+    static final long WINDOW = 5000;
+
+    /** How much weight each new sample gets in the moving average. */
+    static final double ALPHA = 0.25;
+
+    /** Time when the transfer started. */
+    private long startTime;
+
+    /** Time of the last sample. */
+    private long sampleTime;
+
+    /** Bytes added since the last sample. */
+    private long sampleBytes;
+
+    /** Bytes transferred since the transfer started. */
+    private long totalBytes;
+
+    /** Bytes sent or received on the network, when different from the bytes transferred. */
+    private long wireBytes;
+
+    /** The samples in the sliding window, as pairs of time and bytes. */
+    private final ArrayDeque<long[]> window;
+
+    /** Bytes in the samples of the sliding window. */
+    private long windowBytes;
+
+    /** The moving average, in bytes per second. */
+    private double movingAverage;
+
+    /** If there has been at least one sample. */
+    private boolean sampled;
+
+    private long minBytesPerSec;
+    private long maxBytesPerSec;
+
+    /**
+     * Constructor.
+     */
+    public TransferTelemetry() {
+        window = new ArrayDeque<>();
+        prepare();
+    }
+
+    /**
+     * Use when starting the transfer to register the current time, and reset the counters.
+     */
+    public synchronized void prepare() {
+        startTime = currentTime();
+        sampleTime = startTime;
+        sampleBytes = 0;
+        totalBytes = 0;
+        wireBytes = 0;
+        window.clear();
+        windowBytes = 0;
+        movingAverage = 0;
+        sampled = false;
+        minBytesPerSec = 0;
+        maxBytesPerSec = 0;
+    }
+
+    /**
+     * Adds the number of bytes transferred since the last time.
+     *
+     * @param bytes Number of bytes transferred.
+     */
+    public synchronized void addBytes(final long bytes) {
+        sampleBytes += bytes;
+        totalBytes += bytes;
+        sample(currentTime());
+    }
+
+    /**
+     * Adds the number of bytes sent or received on the network, for transfers where that is different
+     * from the number of bytes transferred, like with compression.
+     *
+     * @param bytes Number of bytes on the network.
+     */
+    public synchronized void addWireBytes(final long bytes) {
+        wireBytes += bytes;
+    }
+
+    /**
+     * Gets the moving average of the speed. Falls towards 0 if the transfer stops.
+     *
+     * @return The speed in bytes per second.
+     */
+    public synchronized long getBytesPerSec() {
+        sample(currentTime());
+        return Math.round(movingAverage);
+    }
+
+    /**
+     * Gets the speed of the last {@link #WINDOW} milliseconds.
+     *
+     * @return The speed in bytes per second.
+     */
+    public synchronized long getWindowBytesPerSec() {
+        final long now = currentTime();
+        sample(now);
+
+        if (window.isEmpty()) {
+            return 0;
+        }
+
+        final long windowStart = window.peekFirst()[0];
+        return bytesPerSec(windowBytes, now - windowStart);
+    }
+
+    /**
+     * Gets the speed of the whole transfer.
+     *
+     * @return The speed in bytes per second.
+     */
+    public synchronized long getAverageBytesPerSec() {
+        return bytesPerSec(totalBytes, currentTime() - startTime);
+    }
+
+    /**
+     * Gets the lowest moving average seen during the transfer.
+     *
+     * @return The speed in bytes per second.
+     */
+    public synchronized long getMinBytesPerSec() {
+        return minBytesPerSec;
+    }
+
+    /**
+     * Gets the highest moving average seen during the transfer.
+     *
+     * @return The speed in bytes per second.
+     */
+    public synchronized long getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    /**
+     * Gets the number of bytes transferred since {@link #prepare()}.
+     *
+     * @return Bytes transferred.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets the number of bytes sent or received on the network since {@link #prepare()}.
+     *
+     * @return Bytes on the network, or the bytes transferred if no network bytes were added.
+     */
+    public synchronized long getTotalWireBytes() {
+        if (wireBytes == 0) {
+            return totalBytes;
+        }
+
+        return wireBytes;
+    }
+
+    /**
+     * Gets the speed on the network of the whole transfer.
+     *
+     * @return The speed in bytes per second.
+     */
+    public synchronized long getAverageWireBytesPerSec() {
+        return bytesPerSec(getTotalWireBytes(), currentTime() - startTime);
+    }
+
+    /**
+     * Estimates how long it will take to transfer the rest of the bytes, at the current speed.
+     *
+     * @param bytesLeft The number of bytes left to transfer.
+     * @return The estimated number of seconds left, or -1 if the speed is unknown.
+     */
+    public synchronized long getEta(final long bytesLeft) {
+        if (bytesLeft <= 0) {
+            return 0;
+        }
+
+        final long bytesPerSec = getBytesPerSec();
+
+        if (bytesPerSec <= 0) {
+            return -1;
+        }
+
+        return (bytesLeft + bytesPerSec - 1) / bytesPerSec;
+    }
+
+    /**
+     * Gets the current time in nanoseconds. Overridden by tests.
+     *
+     * @return The current time.
+     */
+    protected long currentTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Takes a new sample if at least {@link #SAMPLE_INTERVAL} milliseconds have passed since the last sample,
+     * and updates the moving average and the sliding window.
+     */
+    private void sample(final long now) {
+        final long elapsed = now - sampleTime;
+
+        if (elapsed < TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL)) {
+            return;
+        }
+
+        final long sampleBytesPerSec = bytesPerSec(sampleBytes, elapsed);
+
+        if (sampled) {
+            movingAverage += ALPHA * (sampleBytesPerSec - movingAverage);
+        } else {
+            movingAverage = sampleBytesPerSec;
+        }
+
+        final long average = Math.round(movingAverage);
+
+        if (!sampled || average < minBytesPerSec) {
+            minBytesPerSec = average;
+        }
+
+        if (!sampled || average > maxBytesPerSec) {
+            maxBytesPerSec = average;
+        }
+
+        window.addLast(new long[] {sampleTime, sampleBytes});
+        windowBytes += sampleBytes;
+
+        while (!window.isEmpty() && now - window.peekFirst()[0] > TimeUnit.MILLISECONDS.toNanos(WINDOW)) {
+            windowBytes -= window.removeFirst()[1];
+        }
+
+        sampled = true;
+        sampleTime = now;
+        sampleBytes = 0;
+    }
+
+    private long bytesPerSec(final long bytes, final long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+
+        return (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+}
@@ -30,7 +30,10 @@ import java.util.List;
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
+import net.usikkert.kouchat.net.BandwidthGovernor;
 import net.usikkert.kouchat.net.ConnectionWorker;
+import net.usikkert.kouchat.net.TransferList;
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
 import net.usikkert.kouchat.settings.Settings;
 
 import org.junit.Before;
@@ -48,13 +51,17 @@ public class JMXBeanLoaderTest {
     public ExpectedException expectedException = ExpectedException.none();
     private Controller controller;
     private ConnectionWorker connectionWorker;
+    private TCPNetworkService tcpNetworkService;
     private Settings settings;
     private ErrorHandler errorHandler;
 
     @Before
     public void setUp() {
         controller = mock(Controller.class);
+        when(controller.getBandwidthGovernor()).thenReturn(mock(BandwidthGovernor.class));
+        when(controller.getTransferList()).thenReturn(mock(TransferList.class));
         connectionWorker = mock(ConnectionWorker.class);
+        tcpNetworkService = mock(TCPNetworkService.class);
         settings = mock(Settings.class);
         errorHandler = mock(ErrorHandler.class);
     }
@@ -64,7 +71,7 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Controller can not be null");
 
-        new JMXBeanLoader(null, connectionWorker, settings, errorHandler);
+        new JMXBeanLoader(null, connectionWorker, tcpNetworkService, settings, errorHandler);
     }
 
     @Test
@@ -72,7 +79,15 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("ConnectionWorker can not be null");
 
-        new JMXBeanLoader(controller, null, settings, errorHandler);
+        new JMXBeanLoader(controller, null, tcpNetworkService, settings, errorHandler);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTCPNetworkServiceIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("TCP network service can not be null");
+
+        new JMXBeanLoader(controller, connectionWorker, null, settings, errorHandler);
     }
 
     @Test
@@ -80,7 +95,7 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Settings can not be null");
 
-        new JMXBeanLoader(controller, connectionWorker, null, errorHandler);
+        new JMXBeanLoader(controller, connectionWorker, tcpNetworkService, null, errorHandler);
     }
 
     @Test
@@ -88,20 +103,23 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Error handler can not be null");
 
-        new JMXBeanLoader(controller, connectionWorker, settings, null);
+        new JMXBeanLoader(controller, connectionWorker, tcpNetworkService, settings, null);
     }
 
     @Test
-    public void getJMXBeansShouldIncludeThreeBeans() {
-        final JMXBeanLoader beanLoader = new JMXBeanLoader(controller, connectionWorker, settings, errorHandler);
+    public void getJMXBeansShouldIncludeSixBeans() {
+        final JMXBeanLoader beanLoader = new JMXBeanLoader(controller, connectionWorker, tcpNetworkService, settings, errorHandler);
 
         final List<JMXBean> jmxBeans = beanLoader.getJMXBeans();
         assertNotNull(jmxBeans);
 
-        assertEquals(3, jmxBeans.size());
+        assertEquals(6, jmxBeans.size());
         assertTrue(containsBeanOfType(jmxBeans, NetworkInformation.class));
         assertTrue(containsBeanOfType(jmxBeans, ControllerInformation.class));
         assertTrue(containsBeanOfType(jmxBeans, GeneralInformation.class));
+        assertTrue(containsBeanOfType(jmxBeans, TCPInformation.class));
+        assertTrue(containsBeanOfType(jmxBeans, BandwidthInformation.class));
+        assertTrue(containsBeanOfType(jmxBeans, TransferInformation.class));
     }
 
     private boolean containsBeanOfType(final List<JMXBean> jmxBeans, final Class<?> theClass) {
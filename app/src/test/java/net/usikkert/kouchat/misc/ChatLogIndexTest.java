@@ -0,0 +1,396 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link ChatLogIndex}.
+ *
+ * @author Christian Ihle
+ */
+public class ChatLogIndexTest {
+
+    private static final String FIRST_TIME = "2026.10.19-12.00.00-000";
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private ChatLogIndex index;
+    private RotatingLogWriter writer;
+    private long time;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.getRoot();
+        index = new ChatLogIndex(directory, "test", 3, 2);
+        writer = createWriter(FIRST_TIME, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        assertTrue(writer.awaitCompression(5000));
+        assertTrue(index.awaitMerge(5000));
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfDirectoryIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Directory can not be null");
+
+        new ChatLogIndex(null, "test");
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfPrefixIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Prefix can not be empty");
+
+        new ChatLogIndex(directory, " ");
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSegmentSizeIsNotPositive() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Segment size must be positive, and max segments more than 1");
+
+        new ChatLogIndex(directory, "test", 0, 2);
+    }
+
+    @Test
+    public void addShouldThrowExceptionIfLineIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Line can not be null");
+
+        index.add(writer.getFile(), 0, 1000, null);
+    }
+
+    @Test
+    public void tokenizeShouldSplitOnEverythingButLettersAndDigits() {
+        assertEquals(Arrays.asList("amy", "sent", "kou", "png", "to", "peter", "2", "times"),
+                     ChatLogIndex.tokenize("<Amy>: Sent kou.png to Peter, 2 times!", 0));
+        assertEquals(Arrays.asList("blåbær", "øl"), ChatLogIndex.tokenize("BLÅBÆR-øl", 0));
+        assertEquals(Arrays.asList(), ChatLogIndex.tokenize(" *** ", 0));
+    }
+
+    @Test
+    public void textStartShouldSkipTheTimeOfDay() {
+        assertEquals(10, ChatLogIndex.textStart("[12:34:56] <Amy>: hello"));
+        assertEquals(0, ChatLogIndex.textStart("<Amy>: hello"));
+        assertEquals(0, ChatLogIndex.textStart("[hello]"));
+    }
+
+    @Test
+    public void searchShouldNotFindTheTimeOfDay() throws IOException {
+        log(1000, "[12:34:56] <Amy>: hello");
+
+        assertTrue(index.search("12", 10).isEmpty());
+        assertEquals(1, index.search("hello", 10).size());
+    }
+
+    @Test
+    public void searchShouldReturnEmptyListWhenNothingIsFound() throws IOException {
+        log(1000, "<Amy>: hello");
+
+        assertTrue(index.search("goodbye", 10).isEmpty());
+        assertTrue(index.search("", 10).isEmpty());
+        assertTrue(index.search("...", 10).isEmpty());
+        assertTrue(index.search("hello", 0).isEmpty());
+    }
+
+    @Test
+    public void searchShouldOnlyFindLinesWithAllTheWords() throws IOException {
+        log(1000, "<Amy>: the cat is here");
+        log(2000, "<Peter>: the dog is here");
+        log(3000, "<Amy>: the cat and the dog");
+
+        final List<ChatLogIndex.Hit> hits = index.search("Dog CAT", 10);
+
+        assertEquals(1, hits.size());
+        assertEquals(3000, hits.get(0).getTime());
+        assertEquals("<Amy>: the cat and the dog", hits.get(0).getLine());
+    }
+
+    @Test
+    public void searchShouldRankLinesWithTheWordsMoreTimesHigher() throws IOException {
+        log(1000, "<Amy>: hello hello there");
+        log(2000, "<Amy>: hello there");
+
+        final List<ChatLogIndex.Hit> hits = index.search("hello there", 10);
+
+        assertEquals(2, hits.size());
+        assertEquals(1000, hits.get(0).getTime());
+        assertEquals(2000, hits.get(1).getTime());
+        assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+    }
+
+    @Test
+    public void searchShouldRankRareWordsHigherThanCommonWords() throws IOException {
+        log(1000, "cat dog dog");
+        log(2000, "cat cat dog");
+        log(3000, "cat");
+        log(4000, "cat");
+        log(5000, "cat");
+
+        final List<ChatLogIndex.Hit> hits = index.search("cat dog", 10);
+
+        assertEquals(2, hits.size());
+        assertEquals("cat dog dog", hits.get(0).getLine());
+        assertEquals("cat cat dog", hits.get(1).getLine());
+    }
+
+    @Test
+    public void searchShouldPutNewLinesFirstWhenJustAsGood() throws IOException {
+        log(1000, "<Amy>: hello");
+        log(2000, "<Peter>: hello");
+        log(3000, "<Zelda>: hello");
+        log(4000, "<Dolly>: hello");
+
+        final List<ChatLogIndex.Hit> hits = index.search("hello", 3);
+
+        assertEquals(3, hits.size());
+        assertEquals(4000, hits.get(0).getTime());
+        assertEquals(3000, hits.get(1).getTime());
+        assertEquals(2000, hits.get(2).getTime());
+    }
+
+    @Test
+    public void searchShouldReadLinesWithLettersOutsideAscii() throws IOException {
+        log(1000, "<Amy>: blåbær");
+        log(2000, "<Amy>: blåbærsyltetøy og blåbær");
+
+        final List<ChatLogIndex.Hit> hits = index.search("BLÅBÆR", 10);
+
+        assertEquals(2, hits.size());
+        assertEquals(inLogCharset("<Amy>: blåbærsyltetøy og blåbær"), hits.get(0).getLine());
+        assertEquals(inLogCharset("<Amy>: blåbær"), hits.get(1).getLine());
+    }
+
+    @Test
+    public void searchShouldFindLinesInAllTheSegments() throws IOException {
+        for (int i = 1; i <= 5; i++) {
+            log(i * 1000, "<Amy>: line " + i);
+        }
+
+        assertEquals(5, index.size());
+        assertEquals(1, listSegmentFiles().size());
+
+        final List<ChatLogIndex.Hit> hits = index.search("line", 10);
+
+        assertEquals(5, hits.size());
+        assertEquals(5000, hits.get(0).getTime());
+        assertEquals("<Amy>: line 5", hits.get(0).getLine());
+        assertEquals(1000, hits.get(4).getTime());
+        assertEquals("<Amy>: line 1", hits.get(4).getLine());
+    }
+
+    @Test
+    public void addShouldSaveTheSegmentToAFileWhenItsFull() throws IOException {
+        log(1000, "<Amy>: line 1");
+        log(2000, "<Amy>: line 2");
+        assertTrue(listSegmentFiles().isEmpty());
+
+        log(3000, "<Amy>: line 3");
+        final List<String> segmentFiles = listSegmentFiles();
+        assertEquals(1, segmentFiles.size());
+        assertTrue(segmentFiles.get(0).matches("test-\\d{4}\\.\\d{2}\\.\\d{2}-\\d{2}\\.\\d{2}\\.\\d{2}-\\d{3}\\.idx"));
+    }
+
+    @Test
+    public void newIndexShouldFindTheLinesSavedByAnEarlierIndex() throws IOException {
+        for (int i = 1; i <= 4; i++) {
+            log(i * 1000, "<Amy>: line " + i);
+        }
+
+        index.save();
+        assertEquals(2, listSegmentFiles().size());
+
+        final ChatLogIndex newIndex = new ChatLogIndex(directory, "test", 3, 2);
+        assertEquals(4, newIndex.size());
+
+        final List<ChatLogIndex.Hit> hits = newIndex.search("line", 10);
+
+        assertEquals(4, hits.size());
+        assertEquals("<Amy>: line 4", hits.get(0).getLine());
+        assertEquals(4000, hits.get(0).getTime());
+        assertEquals("<Amy>: line 1", hits.get(3).getLine());
+    }
+
+    @Test
+    public void newIndexShouldSkipSegmentFilesThatAreBroken() throws IOException {
+        for (int i = 1; i <= 3; i++) {
+            log(i * 1000, "<Amy>: line " + i);
+        }
+
+        assertTrue(new File(directory, "test-2026.10.19-11.00.00-000.idx").createNewFile());
+
+        final ChatLogIndex newIndex = new ChatLogIndex(directory, "test", 3, 2);
+        assertEquals(3, newIndex.size());
+        assertEquals(3, newIndex.search("line", 10).size());
+    }
+
+    @Test
+    public void segmentFilesShouldBeMergedInTheBackgroundWhenThereAreTooMany() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            log(i * 1000, "<Amy>: line " + i);
+        }
+
+        assertTrue(index.awaitMerge(5000));
+
+        final List<String> segmentFiles = listSegmentFiles();
+        assertEquals(1, segmentFiles.size());
+        assertTrue(segmentFiles.get(0).endsWith("-merged.idx"));
+        assertEquals(10, index.size());
+
+        final List<ChatLogIndex.Hit> hits = index.search("line", 20);
+        assertEquals(10, hits.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("<Amy>: line " + (10 - i), hits.get(i).getLine());
+            assertEquals((10 - i) * 1000, hits.get(i).getTime());
+        }
+
+        assertEquals(1, index.search("7", 10).size());
+        assertEquals("<Amy>: line 7", index.search("7", 10).get(0).getLine());
+    }
+
+    @Test
+    public void mergeShouldLeaveOutTheLinesFromLogFilesThatAreGone() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            log(i * 1000, "<Amy>: old line " + i);
+        }
+
+        writer.close();
+        assertTrue(writer.getFile().delete());
+        writer = createWriter("2026.10.19-13.00.00-000", 0);
+
+        for (int i = 1; i <= 6; i++) {
+            log(i * 1000, "<Amy>: new line " + i);
+        }
+
+        assertTrue(index.awaitMerge(5000));
+
+        assertEquals(1, listSegmentFiles().size());
+        assertEquals(6, index.size());
+        assertTrue(index.search("old", 10).isEmpty());
+        assertEquals(6, index.search("line", 10).size());
+    }
+
+    @Test
+    public void searchShouldSkipLinesInLogFilesThatAreGone() throws IOException {
+        log(1000, "<Amy>: hello");
+        writer.close();
+        assertTrue(writer.getFile().delete());
+
+        writer = createWriter("2026.10.19-13.00.00-000", 0);
+        log(2000, "<Peter>: hello");
+
+        final List<ChatLogIndex.Hit> hits = index.search("hello", 10);
+
+        assertEquals(1, hits.size());
+        assertEquals("<Peter>: hello", hits.get(0).getLine());
+    }
+
+    @Test
+    public void searchShouldReadLinesFromCompressedLogFiles() throws Exception {
+        writer.close();
+        writer = createWriter(FIRST_TIME, 20);
+
+        for (int i = 1; i <= 5; i++) {
+            log(i * 1000, "<Amy>: line " + i);
+        }
+
+        writer.close();
+        assertTrue(writer.awaitCompression(5000));
+        assertTrue(new File(directory, "test-" + FIRST_TIME + ".log.gz").exists());
+        assertFalse(new File(directory, "test-" + FIRST_TIME + ".log").exists());
+
+        final List<ChatLogIndex.Hit> hits = index.search("line", 10);
+
+        assertEquals(5, hits.size());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("<Amy>: line " + (5 - i), hits.get(i).getLine());
+        }
+    }
+
+    private void log(final long lineTime, final String line) throws IOException {
+        time = lineTime;
+        writer.writeLine(line);
+        writer.flush();
+    }
+
+    /**
+     * The line as it's read back from the log file, in case the charset can't write all the letters.
+     */
+    private String inLogCharset(final String line) {
+        return new String(line.getBytes(RotatingLogWriter.CHARSET), RotatingLogWriter.CHARSET);
+    }
+
+    private RotatingLogWriter createWriter(final String firstTime, final long maxSize) throws IOException {
+        final RotatingLogWriter newWriter = new RotatingLogWriter(directory, "test", firstTime, maxSize, 0, index) {
+            @Override
+            long currentTimeMillis() {
+                return time;
+            }
+        };
+
+        newWriter.open();
+
+        return newWriter;
+    }
+
+    private List<String> listSegmentFiles() {
+        final String[] names = directory.list();
+        assertNotNull(names);
+        Arrays.sort(names);
+
+        final List<String> segmentFiles = new ArrayList<>();
+
+        for (final String name : names) {
+            if (name.endsWith(ChatLogIndex.SEGMENT_SUFFIX)) {
+                segmentFiles.add(name);
+            }
+        }
+
+        return segmentFiles;
+    }
+}
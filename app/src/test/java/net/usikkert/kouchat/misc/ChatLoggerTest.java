@@ -25,12 +25,27 @@ package net.usikkert.kouchat.misc;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.Tools;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Test of {@link ChatLogger}.
@@ -43,6 +58,9 @@ public class ChatLoggerTest {
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private ChatLogger chatLogger;
     private Settings settings;
     private ErrorHandler errorHandler;
@@ -50,7 +68,7 @@ public class ChatLoggerTest {
     @Before
     public void setUp() {
         settings = new Settings();
-        settings.setLogLocation(System.getProperty("java.io.tmpdir"));
+        settings.setLogLocation(temporaryFolder.getRoot().getPath());
 
         errorHandler = mock(ErrorHandler.class);
 
@@ -115,4 +133,206 @@ public class ChatLoggerTest {
         settings.setLogging(false);
         assertFalse(chatLogger.isOpen());
     }
+
+    @Test
+    public void appendShouldAddTheLinesLoggedToTheIndex() {
+        settings.setLogFlushInterval(0);
+        chatLogger.open();
+
+        chatLogger.append("[12:00:00] <Amy>: hello there");
+
+        final List<ChatLogIndex.Hit> hits = chatLogger.getIndex().search("hello", 10);
+        assertEquals(1, hits.size());
+        assertEquals("[12:00:00] <Amy>: hello there", hits.get(0).getLine());
+
+        chatLogger.close();
+    }
+
+    @Test
+    public void appendShouldNotAddTheLineToTheIndexWhenNotLogging() {
+        assertFalse(chatLogger.isOpen());
+
+        chatLogger.append("[12:00:00] <Amy>: hello there");
+
+        assertTrue(chatLogger.getIndex().search("hello", 10).isEmpty());
+    }
+
+    @Test
+    public void closeShouldSaveTheIndexSoTheLinesCanBeFoundAfterARestart() {
+        chatLogger.open();
+        chatLogger.append("[12:00:00] <Amy>: hello there");
+        chatLogger.close();
+
+        final ChatLogger newChatLogger = new ChatLogger(settings, errorHandler);
+        final List<ChatLogIndex.Hit> hits = newChatLogger.getIndex().search("hello", 10);
+
+        assertEquals(1, hits.size());
+        assertEquals("[12:00:00] <Amy>: hello there", hits.get(0).getLine());
+    }
+
+    @Test
+    public void getIndexShouldReturnNullForLoggersWithCustomPrefix() {
+        assertNull(new ChatLogger("Amy", settings, errorHandler).getIndex());
+    }
+
+    @Test
+    public void appendShouldWriteEachLineRightAwayWhenTheFlushIntervalIsZero() throws IOException {
+        final ChatLogger logger = createLogger(0, 64);
+
+        logger.append("First line");
+        logger.append("Second line");
+
+        assertEquals(2, readLines().size());
+
+        logger.close();
+    }
+
+    @Test
+    public void closeShouldWaitForAllTheLinesToBeWritten() throws IOException {
+        final ChatLogger logger = createLogger(60000, 64);
+
+        for (int i = 0; i < 1000; i++) {
+            logger.append("Line " + i);
+        }
+
+        logger.close();
+
+        final List<String> lines = readLines();
+        assertEquals(1000, lines.size());
+        assertEquals("Line 0", lines.get(0));
+        assertEquals("Line 999", lines.get(999));
+        assertFalse(logger.isOpen());
+    }
+
+    @Test
+    public void linesShouldBeWrittenAfterTheFlushInterval() throws Exception {
+        final ChatLogger logger = createLogger(100, 64);
+
+        logger.append("A line");
+
+        assertEquals(1, waitForLines(1).size());
+
+        logger.close();
+    }
+
+    @Test
+    public void linesShouldBeWrittenWithoutWaitingForTheIntervalWhenTheyFillTheFlushSize() throws Exception {
+        final ChatLogger logger = createLogger(60000, 1);
+
+        for (int i = 0; i < 100; i++) {
+            logger.append("Line number " + i);
+        }
+
+        assertTrue(waitForLines(1).size() > 0);
+
+        logger.close();
+    }
+
+    @Test
+    public void openShouldStartTheBackgroundWriterAgainAfterClose() throws IOException {
+        final ChatLogger logger = createLogger(60000, 64);
+
+        logger.append("First line");
+        logger.close();
+        logger.append("Not logged");
+        logger.open();
+        logger.append("Second line");
+        logger.close();
+
+        assertEquals(2, readLines().size());
+    }
+
+    @Test
+    public void groupCommitWriterShouldRejectLinesAfterStop() throws IOException {
+        final ChatLogger.GroupCommitWriter groupCommitWriter = createGroupCommitWriter();
+
+        assertTrue(groupCommitWriter.append("First line"));
+        groupCommitWriter.stop();
+        assertFalse(groupCommitWriter.append("Not logged"));
+
+        assertEquals(Collections.singletonList("First line"), readLines());
+    }
+
+    @Test
+    public void groupCommitWriterShouldWriteAllTheAcceptedLinesWhenStoppedWhileAppending() throws Exception {
+        final ChatLogger.GroupCommitWriter groupCommitWriter = createGroupCommitWriter();
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        final List<Future<Integer>> results = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            results.add(executorService.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int accepted = 0;
+
+                    while (groupCommitWriter.append("Line " + accepted)) {
+                        accepted++;
+                    }
+
+                    return accepted;
+                }
+            }));
+        }
+
+        Thread.sleep(100);
+        groupCommitWriter.stop();
+
+        int accepted = 0;
+
+        for (final Future<Integer> result : results) {
+            accepted += result.get(10, TimeUnit.SECONDS);
+        }
+
+        executorService.shutdown();
+
+        assertTrue(accepted > 0);
+        assertEquals(accepted, readLines().size());
+    }
+
+    private ChatLogger.GroupCommitWriter createGroupCommitWriter() throws IOException {
+        final RotatingLogWriter writer = new RotatingLogWriter(
+                temporaryFolder.getRoot(), "test", Tools.dateToString(null, RotatingLogWriter.TIME_FORMAT), 0, 0);
+        writer.open();
+
+        final ChatLogger.GroupCommitWriter groupCommitWriter = new ChatLogger.GroupCommitWriter(writer, 60000, 64 * 1024);
+        groupCommitWriter.start();
+
+        return groupCommitWriter;
+    }
+
+    private ChatLogger createLogger(final int flushInterval, final int flushSize) {
+        settings.setLogLocation(temporaryFolder.getRoot().getPath());
+        settings.setLogFlushInterval(flushInterval);
+        settings.setLogFlushSize(flushSize);
+
+        final ChatLogger logger = new ChatLogger("test", settings, errorHandler);
+        logger.open();
+        assertTrue(logger.isOpen());
+
+        return logger;
+    }
+
+    private List<String> readLines() throws IOException {
+        final File[] files = temporaryFolder.getRoot().listFiles();
+
+        if (files == null || files.length == 0) {
+            return Collections.emptyList();
+        }
+
+        assertEquals(1, files.length);
+
+        return Files.readAllLines(files[0].toPath(), Charset.defaultCharset());
+    }
+
+    private List<String> waitForLines(final int count) throws Exception {
+        final long end = System.currentTimeMillis() + 5000;
+        List<String> lines = readLines();
+
+        while (lines.size() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+            lines = readLines();
+        }
+
+        return lines;
+    }
 }
@@ -26,16 +26,22 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.message.CoreMessages;
+import net.usikkert.kouchat.net.BandwidthGovernor;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.FileToSend;
+import net.usikkert.kouchat.net.FileTransferAcceptor;
+import net.usikkert.kouchat.net.ProgressDispatcher;
 import net.usikkert.kouchat.net.TransferList;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.ui.UserInterface;
@@ -46,7 +52,9 @@ import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -61,6 +69,9 @@ public class CommandParserTest {
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private CommandParser parser;
 
     private MessageController messageController;
@@ -697,7 +708,8 @@ public class CommandParserTest {
                         "/quit - quit from the chat\n" +
                         "/receive <nick> <id> - accept a file transfer request from a user\n" +
                         "/reject <nick> <id> - reject a file transfer request from a user\n" +
-                        "/send <nick> <file> - send a file to a user\n" +
+                        "/search <words> - search the main chat logs for lines with all the words\n" +
+                        "/send <nick>[,<nick>...] <file or directory> - send a file to one or more users\n" +
                         "/topic <optional new topic> - prints the current topic, or changes the topic\n" +
                         "/transfers - shows a list of all file transfers and their status\n" +
                         "/users - show the user list\n" +
@@ -865,16 +877,30 @@ public class CommandParserTest {
     }
 
     @Test
-    public void sendShouldReturnIfFileIsDirectory() throws CommandException {
-        setupSomeOne();
+    public void sendShouldSendDirectoryAsBatch() throws CommandException {
+        final User someOne = setupSomeOne();
+        doNothing().when(parser).sendFile(any(User.class), any(FileToSend.class));
+
+        parser.parse("/send SomeOne src/test/resources");
+
+        final ArgumentCaptor<FileToSend> fileCaptor = ArgumentCaptor.forClass(FileToSend.class);
+        verify(parser).sendFile(eq(someOne), fileCaptor.capture());
+        verify(messageController, never()).showSystemMessage(anyString());
+
+        final FileToSend fileToSend = fileCaptor.getValue();
+        assertTrue(fileToSend.isBatch());
+        assertEquals("resources", fileToSend.getName());
+        assertTrue(fileToSend.getBatch().size() >= 2);
+    }
 
-        final File directory = new File("target");
-        assertTrue(directory.exists());
-        assertFalse(directory.isFile());
+    @Test
+    public void sendShouldReturnIfDirectoryIsEmpty() throws CommandException, IOException {
+        setupSomeOne();
+        final File directory = temporaryFolder.newFolder("empty");
 
-        parser.parse("/send SomeOne target");
+        parser.parse("/send SomeOne " + directory.getPath());
 
-        verify(messageController).showSystemMessage("/send - no such file 'target'");
+        verify(messageController).showSystemMessage("/send - no files to send in '" + directory.getPath() + "'");
         verify(parser, never()).sendFile(any(User.class), any(FileToSend.class));
     }
 
@@ -923,6 +949,44 @@ public class CommandParserTest {
         verify(parser).sendFile(someOne, new FileToSend(file));
     }
 
+    @Test
+    public void sendShouldSendFileToAllUsersSeparatedByComma() throws CommandException {
+        final User someOne = setupSomeOne();
+        final User other = new User("Other", 87654321);
+        when(controller.getUser("Other")).thenReturn(other);
+        doNothing().when(parser).sendFile(ArgumentMatchers.<User>anyList(), any(FileToSend.class));
+
+        final File file = new File("src/test/resources/test-messages.properties");
+
+        parser.parse("/send SomeOne,Other,SomeOne src/test/resources/test-messages.properties");
+
+        verify(messageController, never()).showSystemMessage(anyString());
+        verify(parser).sendFile(Arrays.asList(someOne, other), new FileToSend(file));
+        verify(parser, never()).sendFile(any(User.class), any(FileToSend.class));
+    }
+
+    @Test
+    public void sendShouldShowSystemMessageIfOneOfTheUsersDoesNotExist() throws CommandException {
+        setupSomeOne();
+
+        parser.parse("/send SomeOne,NoOne src/test/resources/test-messages.properties");
+
+        verify(messageController).showSystemMessage("/send - no such user 'NoOne'");
+        verify(parser, never()).sendFile(ArgumentMatchers.<User>anyList(), any(FileToSend.class));
+        verify(parser, never()).sendFile(any(User.class), any(FileToSend.class));
+    }
+
+    @Test
+    public void sendShouldShowSystemMessageIfOneOfTheUsersIsMe() throws CommandException {
+        setupSomeOne();
+        when(controller.getUser("MySelf")).thenReturn(me);
+
+        parser.parse("/send SomeOne,MySelf src/test/resources/test-messages.properties");
+
+        verify(messageController).showSystemMessage("/send - no point in doing that!");
+        verify(parser, never()).sendFile(ArgumentMatchers.<User>anyList(), any(FileToSend.class));
+    }
+
     @Test
     public void sendFileShouldSendUsingControllerAndAddToTransferListAndShowFileTransfer() throws CommandException {
         final User user = new User("User", 123456);
@@ -954,6 +1018,42 @@ public class CommandParserTest {
         verify(messageController).showSystemMessage("Trying to send the file picture.png (#2) [54.00MB] to Kelly");
     }
 
+    @Test
+    public void sendFileToSeveralUsersShouldAddAFileSenderForEachUser() throws CommandException {
+        final User kelly = new User("Kelly", 123456);
+        final User peter = new User("Peter", 654321);
+        final FileToSend file = new FileToSend(new File(""));
+        final FileSender fileSender = mock(FileSender.class);
+
+        when(transferList.addFileSender(any(User.class), any(FileToSend.class))).thenReturn(fileSender);
+
+        parser.sendFile(Arrays.asList(kelly, peter), file);
+
+        verify(controller).sendFile(kelly, file);
+        verify(controller).sendFile(peter, file);
+
+        verify(transferList).addFileSender(kelly, file);
+        verify(transferList).addFileSender(peter, file);
+
+        verify(userInterface, times(2)).showTransfer(fileSender);
+    }
+
+    @Test
+    public void sendFileToSeveralUsersShouldSkipUsersThatCanNotReceiveTheFile() throws CommandException {
+        final User kelly = new User("Kelly", 123456);
+        final User peter = new User("Peter", 654321);
+        final FileToSend file = new FileToSend(new File(""));
+
+        doThrow(new CommandException("Kelly is away")).when(controller).sendFile(kelly, file);
+        when(transferList.addFileSender(any(User.class), any(FileToSend.class))).thenReturn(mock(FileSender.class));
+
+        parser.sendFile(Arrays.asList(kelly, peter), file);
+
+        verify(messageController).showSystemMessage("Kelly is away");
+        verify(transferList, never()).addFileSender(eq(kelly), any(FileToSend.class));
+        verify(transferList).addFileSender(peter, file);
+    }
+
     /*
      * /msg
      */
@@ -1229,6 +1329,51 @@ public class CommandParserTest {
                                                             "  #4 image4.png [504.00KB] (14%, 84.00KB/s) from Kelly");
     }
 
+    /*
+     * /search
+     */
+
+    @Test
+    public void searchShouldReturnIfNoArguments() {
+        parser.parse("/search  ");
+
+        verify(messageController).showSystemMessage("/search - missing argument <words>");
+        verify(messageController, never()).searchChatLog(anyString(), anyInt());
+    }
+
+    @Test
+    public void searchShouldShowSearchResultsWhenNothingIsFound() {
+        when(messageController.searchChatLog("kou png", 10)).thenReturn(Collections.<ChatLogIndex.Hit>emptyList());
+
+        parser.parse("/search kou png ");
+
+        verify(messageController).showSearchResults("Search: no lines with 'kou png'");
+        verify(messageController, never()).showSystemMessage(anyString());
+    }
+
+    @Test
+    public void searchShouldShowTheDateAndTimeAndLineOfEachHit() {
+        when(dateTools.dateToString(any(Date.class), anyString())).thenCallRealMethod();
+
+        final List<ChatLogIndex.Hit> hits = Arrays.asList(
+                new ChatLogIndex.Hit(new DateTime(2026, 10, 19, 9, 45, 10).getMillis(),
+                                     "*** Amy changed the topic to: kou.png", 1.5, 2),
+                new ChatLogIndex.Hit(new DateTime(2026, 10, 19, 8, 30).getMillis(),
+                                     "[08:30:00] <Peter>: got kou.png", 1.5, 1),
+                new ChatLogIndex.Hit(new DateTime(2026, 10, 18, 22, 15).getMillis(),
+                                     "[22:15:00] <Amy>: sent kou.png", 1.5, 0));
+
+        when(messageController.searchChatLog("kou.png", 10)).thenReturn(hits);
+
+        parser.parse("/search kou.png");
+
+        verify(messageController).showSearchResults("Search: best lines with 'kou.png':\n" +
+                                                            "  [09:45:10, 19. Oct. 26] *** Amy changed the topic to: kou.png\n" +
+                                                            "  [08:30:00, 19. Oct. 26] <Peter>: got kou.png\n" +
+                                                            "  [22:15:00, 18. Oct. 26] <Amy>: sent kou.png");
+        verify(messageController, never()).showSystemMessage(anyString());
+    }
+
     /*
      * /quit
      */
@@ -1342,7 +1487,9 @@ public class CommandParserTest {
 
     private FileSender createFileSender(final int id, final String fileName, final long fileSize, final int percent,
                                         final long speed, final String nick) {
-        final FileSender fileSender = spy(new FileSender(new User(nick, 1), createFileToSend(fileName, 1024 * fileSize), id));
+        final FileSender fileSender = spy(new FileSender(new User(nick, 1), createFileToSend(fileName, 1024 * fileSize),
+                                                         id, mock(BandwidthGovernor.class),
+                                                         mock(ProgressDispatcher.class)));
 
         when(fileSender.getPercent()).thenReturn(percent);
         when(fileSender.getSpeed()).thenReturn(1024 * speed);
@@ -1353,7 +1500,9 @@ public class CommandParserTest {
     private FileReceiver createFileReceiver(final int id, final String fileName, final long fileSize, final int percent,
                                             final long speed, final String nick) {
         final FileReceiver fileReceiver =
-                spy(new FileReceiver(new User(nick, 1), createFile(fileName, 0), 1024 * fileSize, id));
+                spy(new FileReceiver(new User(nick, 1), createFile(fileName, 0), 1024 * fileSize, id,
+                                     mock(BandwidthGovernor.class), mock(FileTransferAcceptor.class),
+                                     mock(ProgressDispatcher.class)));
 
         when(fileReceiver.getPercent()).thenReturn(percent);
         when(fileReceiver.getSpeed()).thenReturn(1024 * speed);
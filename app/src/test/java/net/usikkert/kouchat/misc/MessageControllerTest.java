@@ -22,8 +22,12 @@
 
 package net.usikkert.kouchat.misc;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
+import java.util.List;
+
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.ui.ChatWindow;
@@ -97,6 +101,31 @@ public class MessageControllerTest {
         new MessageController(chatWindow, userInterface, settings, null);
     }
 
+    @Test
+    public void showSearchResultsShouldNotLogTheResults() {
+        when(settings.getSysColor()).thenReturn(100);
+
+        messageController.showSearchResults("Search: no lines with 'hello'");
+
+        verify(chatWindow).appendToChat(endsWith(" *** Search: no lines with 'hello'"), eq(100));
+        verifyZeroInteractions(chatLogger);
+    }
+
+    @Test
+    public void searchChatLogShouldSearchTheIndexOfTheChatLogger() {
+        final ChatLogIndex index = mock(ChatLogIndex.class);
+        final List<ChatLogIndex.Hit> hits = Arrays.asList(new ChatLogIndex.Hit(1000, "<Amy>: hello", 1.0, 0));
+        when(index.search("hello", 10)).thenReturn(hits);
+        when(chatLogger.getIndex()).thenReturn(index);
+
+        assertSame(hits, messageController.searchChatLog("hello", 10));
+    }
+
+    @Test
+    public void searchChatLogShouldReturnEmptyListWhenTheChatLoggerHasNoIndex() {
+        assertTrue(messageController.searchChatLog("hello", 10).isEmpty());
+    }
+
     @Test
     public void shutdownShouldCloseTheChatLogger() {
         messageController.shutdown();
@@ -0,0 +1,293 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link RotatingLogWriter}.
+ *
+ * @author Christian Ihle
+ */
+public class RotatingLogWriterTest {
+
+    private static final String FIRST_TIME = "2019.03.14-23.59.00-000";
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private long time;
+
+    @Before
+    public void setUp() {
+        directory = temporaryFolder.getRoot();
+
+        final Calendar calendar = Calendar.getInstance();
+        calendar.set(2019, Calendar.MARCH, 14, 23, 59, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        time = calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfPrefixIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Prefix can not be empty");
+
+        new RotatingLogWriter(directory, "", FIRST_TIME, 0, 0);
+    }
+
+    @Test
+    public void openShouldAppendToTheFirstLogFile() throws IOException {
+        final File firstFile = new File(directory, "test-" + FIRST_TIME + ".log");
+
+        RotatingLogWriter writer = createWriter(0, 0);
+        writer.writeLine("First line");
+        writer.close();
+
+        writer = createWriter(0, 0);
+        writer.writeLine("Second line");
+        writer.close();
+
+        assertEquals(Arrays.asList("First line", "Second line"), readLines(firstFile));
+    }
+
+    @Test
+    public void writeLineShouldThrowExceptionWhenClosed() throws IOException {
+        final RotatingLogWriter writer = createWriter(0, 0);
+        writer.close();
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Log file is closed");
+
+        writer.writeLine("Line");
+    }
+
+    @Test
+    public void writeLineShouldStartNewLogFileWhenTheMaxSizeIsReached() throws Exception {
+        final RotatingLogWriter writer = createWriter(50, 0);
+
+        for (int i = 0; i < 10; i++) {
+            time += 1000;
+            writer.writeLine("Line number " + i);
+        }
+
+        writer.close();
+        assertTrue(writer.awaitCompression(5000));
+
+        final File[] files = listFiles();
+        assertEquals(4, files.length);
+
+        final List<String> lines = new ArrayList<>();
+
+        for (int i = 0; i < files.length - 1; i++) {
+            assertTrue(files[i].getName().endsWith(".log.gz"));
+            assertTrue(files[i].length() > 0);
+            lines.addAll(readLines(files[i]));
+        }
+
+        assertTrue(files[3].getName().endsWith(".log"));
+        lines.addAll(readLines(files[3]));
+
+        assertEquals(10, lines.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Line number " + i, lines.get(i));
+        }
+    }
+
+    @Test
+    public void writeLineShouldStartNewLogFileWhenTheDayChanges() throws Exception {
+        final RotatingLogWriter writer = createWriter(0, 0);
+        writer.writeLine("Before midnight");
+        writer.writeLine("Still before midnight");
+
+        time += 60 * 1000;
+        writer.writeLine("Day changed");
+
+        assertEquals("test-2019.03.15-00.00.00-000.log", writer.getFile().getName());
+
+        writer.close();
+        assertTrue(writer.awaitCompression(5000));
+
+        assertEquals(Arrays.asList("Before midnight", "Still before midnight"),
+                     readLines(new File(directory, "test-" + FIRST_TIME + ".log.gz")));
+        assertEquals(Arrays.asList("Day changed"), readLines(writer.getFile()));
+        assertFalse(new File(directory, "test-" + FIRST_TIME + ".log").exists());
+    }
+
+    @Test
+    public void writeLineShouldNotStartNewLogFileWhenTheDayChangesBeforeTheFirstLine() throws Exception {
+        final RotatingLogWriter writer = createWriter(0, 0);
+
+        time += 60 * 1000;
+        writer.writeLine("Day changed");
+        writer.close();
+
+        assertEquals(1, listFiles().length);
+        assertEquals("test-" + FIRST_TIME + ".log", writer.getFile().getName());
+    }
+
+    @Test
+    public void oldestCompressedLogFilesShouldBeDeletedWhenThereAreMoreThanTheNumberToKeep() throws Exception {
+        assertTrue(new File(directory, "other-2019.01.01-00.00.00-000.log.gz").createNewFile());
+        assertTrue(new File(directory, "test-notes.log.gz").createNewFile());
+
+        final RotatingLogWriter writer = createWriter(10, 2);
+
+        for (int i = 0; i < 6; i++) {
+            time += 1000;
+            writer.writeLine("Line " + i);
+        }
+
+        writer.close();
+        assertTrue(writer.awaitCompression(5000));
+
+        final List<String> names = new ArrayList<>();
+
+        for (final File file : listFiles()) {
+            names.add(file.getName());
+        }
+
+        assertEquals(Arrays.asList("other-2019.01.01-00.00.00-000.log.gz",
+                                   "test-2019.03.14-23.59.04-000.log.gz",
+                                   "test-2019.03.14-23.59.05-000.log.gz",
+                                   "test-2019.03.14-23.59.06-000.log",
+                                   "test-notes.log.gz"),
+                     names);
+    }
+
+    @Test
+    public void linesShouldBeAddedToTheIndexWithTheirOffsetWhenFlushed() throws IOException {
+        final ChatLogIndex index = mock(ChatLogIndex.class);
+        final RotatingLogWriter writer = createWriter(0, 0, index);
+        final File file = writer.getFile();
+        final int separator = System.getProperty("line.separator").length();
+
+        writer.writeLine("First line");
+        time += 1000;
+        writer.writeLine("Second line");
+        verifyZeroInteractions(index);
+
+        writer.flush();
+        verify(index).add(file, 0, time - 1000, "First line");
+        verify(index).add(file, 10 + separator, time, "Second line");
+
+        writer.writeLine("Third line");
+        writer.close();
+        verify(index).add(file, 21 + separator * 2, time, "Third line");
+    }
+
+    @Test
+    public void linesShouldBeAddedToTheIndexWhenStartingNewLogFile() throws Exception {
+        final ChatLogIndex index = mock(ChatLogIndex.class);
+        final RotatingLogWriter writer = createWriter(0, 0, index);
+        final File firstFile = writer.getFile();
+
+        writer.writeLine("Before midnight");
+        time += 60 * 1000;
+        writer.writeLine("Day changed");
+
+        verify(index).add(firstFile, 0, time - 60 * 1000, "Before midnight");
+        verifyNoMoreInteractions(index);
+
+        writer.close();
+        assertTrue(writer.awaitCompression(5000));
+        verify(index).add(writer.getFile(), 0, time, "Day changed");
+    }
+
+    private RotatingLogWriter createWriter(final long maxSize, final int keepFiles) throws IOException {
+        return createWriter(maxSize, keepFiles, null);
+    }
+
+    private RotatingLogWriter createWriter(final long maxSize, final int keepFiles,
+                                           final ChatLogIndex index) throws IOException {
+        final RotatingLogWriter writer = new RotatingLogWriter(directory, "test", FIRST_TIME, maxSize, keepFiles,
+                                                               index) {
+            @Override
+            long currentTimeMillis() {
+                return time;
+            }
+        };
+
+        writer.open();
+
+        return writer;
+    }
+
+    private File[] listFiles() {
+        final File[] files = directory.listFiles();
+        assertNotNull(files);
+        Arrays.sort(files);
+
+        return files;
+    }
+
+    private List<String> readLines(final File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+
+        if (file.getName().endsWith(".gz")) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+
+        try {
+            final List<String> lines = new ArrayList<>();
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+
+            return lines;
+        }
+
+        finally {
+            reader.close();
+        }
+    }
+}
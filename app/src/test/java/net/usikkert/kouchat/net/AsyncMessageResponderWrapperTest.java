@@ -56,9 +56,11 @@ public class AsyncMessageResponderWrapperTest {
     private ExecutorService executorService;
     private Sleeper sleeper;
     private WaitingList waitingList;
+    private FileTransferOptions options;
 
     @Before
     public void setUp() {
+        options = new FileTransferOptions();
         messageResponder = mock(MessageResponder.class);
         controller = mock(Controller.class);
         waitingList = mock(WaitingList.class);
@@ -276,7 +278,7 @@ public class AsyncMessageResponderWrapperTest {
     public void fileSendShouldAskUserToIdentifyIfNewUser() {
         when(controller.isNewUser(100)).thenReturn(true);
 
-        wrapper.fileSend(100, 3000, "fileName", "user", 98765);
+        wrapper.fileSend(100, 3000, "fileName", "user", 98765, options);
 
         verify(wrapper).askUserToIdentify(100);
     }
@@ -285,14 +287,14 @@ public class AsyncMessageResponderWrapperTest {
     public void fileSendShouldNotAskUserToIdentifyIfExistingUser() {
         when(controller.isNewUser(100)).thenReturn(false);
 
-        wrapper.fileSend(100, 3000, "fileName", "user", 98765);
+        wrapper.fileSend(100, 3000, "fileName", "user", 98765, options);
 
         verify(wrapper, never()).askUserToIdentify(anyInt());
     }
 
     @Test
     public void fileSendShouldWaitForUserToIdentifyAndPassThroughUsingExecutor() {
-        wrapper.fileSend(100, 3000, "fileName", "user", 98765);
+        wrapper.fileSend(100, 3000, "fileName", "user", 98765, options);
 
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
@@ -303,7 +305,7 @@ public class AsyncMessageResponderWrapperTest {
         runnableCaptor.getValue().run();
 
         verify(wrapper).waitForUserToIdentify(100);
-        verify(messageResponder).fileSend(100, 3000, "fileName", "user", 98765);
+        verify(messageResponder).fileSend(100, 3000, "fileName", "user", 98765, options);
     }
 
     @Test
@@ -315,7 +317,7 @@ public class AsyncMessageResponderWrapperTest {
 
     @Test
     public void fileSendAcceptedShouldPassThroughUsingExecutor() {
-        wrapper.fileSendAccepted(100, "fileName", 98765, 1050);
+        wrapper.fileSendAccepted(100, "fileName", 98765, 1050, options);
 
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
@@ -324,7 +326,7 @@ public class AsyncMessageResponderWrapperTest {
         verify(executorService).execute(runnableCaptor.capture());
         runnableCaptor.getValue().run();
 
-        verify(messageResponder).fileSendAccepted(100, "fileName", 98765, 1050);
+        verify(messageResponder).fileSendAccepted(100, "fileName", 98765, 1050, options);
     }
 
     @Test
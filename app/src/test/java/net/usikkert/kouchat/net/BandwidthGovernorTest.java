@@ -0,0 +1,277 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link BandwidthGovernor}.
+ *
+ * @author Christian Ihle
+ */
+public class BandwidthGovernorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private BandwidthGovernor governor;
+    private Settings settings;
+
+    @Before
+    public void setUp() {
+        settings = new Settings();
+        settings.setFileTransferBandwidthLimit(0);
+        settings.setFileTransferChatBandwidthLimit(0);
+
+        governor = new BandwidthGovernor(settings);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSettingsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Settings can not be null");
+
+        new BandwidthGovernor(null);
+    }
+
+    @Test
+    public void registerShouldThrowExceptionIfWeightIsNotPositive() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Weight must be positive");
+
+        governor.register(0);
+    }
+
+    @Test
+    public void getTotalRateShouldBeZeroWithoutLimit() {
+        assertEquals(0, governor.getTotalRate());
+    }
+
+    @Test
+    public void getTotalRateShouldConvertTheLimitToBytes() {
+        settings.setFileTransferBandwidthLimit(100);
+
+        assertEquals(100 * 1024, governor.getTotalRate());
+    }
+
+    @Test
+    public void getTotalRateShouldUseTheChatLimitOnlyWhileChatting() {
+        settings.setFileTransferBandwidthLimit(100);
+        settings.setFileTransferChatBandwidthLimit(10);
+
+        assertFalse(governor.isChatActive());
+        assertEquals(100 * 1024, governor.getTotalRate());
+
+        governor.chatActivity();
+
+        assertTrue(governor.isChatActive());
+        assertEquals(10 * 1024, governor.getTotalRate());
+    }
+
+    @Test
+    public void getTotalRateShouldUseTheChatLimitWhileChattingWithoutLimit() {
+        settings.setFileTransferChatBandwidthLimit(10);
+        governor.chatActivity();
+
+        assertEquals(10 * 1024, governor.getTotalRate());
+    }
+
+    @Test
+    public void getTotalRateShouldNotUseTheChatLimitIfTheLimitIsLower() {
+        settings.setFileTransferBandwidthLimit(5);
+        settings.setFileTransferChatBandwidthLimit(10);
+        governor.chatActivity();
+
+        assertEquals(5 * 1024, governor.getTotalRate());
+    }
+
+    @Test
+    public void getRateShouldShareTheLimitByWeight() {
+        settings.setFileTransferBandwidthLimit(300);
+
+        final BandwidthGovernor.Share share1 = governor.register(1);
+        final BandwidthGovernor.Share share2 = governor.register(2);
+
+        assertEquals(2, governor.getNumberOfShares());
+        assertEquals(100 * 1024, governor.getRate(share1));
+        assertEquals(200 * 1024, governor.getRate(share2));
+
+        governor.unregister(share2);
+
+        assertEquals(1, governor.getNumberOfShares());
+        assertEquals(300 * 1024, governor.getRate(share1));
+    }
+
+    @Test
+    public void unregisterTwiceShouldOnlyRemoveTheWeightOnce() {
+        settings.setFileTransferBandwidthLimit(300);
+
+        final BandwidthGovernor.Share share1 = governor.register(1);
+        final BandwidthGovernor.Share share2 = governor.register(2);
+
+        governor.unregister(share1);
+        governor.unregister(share1);
+
+        assertEquals(300 * 1024, governor.getRate(share2));
+    }
+
+    @Test
+    public void setWeightShouldChangeTheRateOfTheShare() {
+        settings.setFileTransferBandwidthLimit(300);
+
+        final BandwidthGovernor.Share share1 = governor.register(1);
+        final BandwidthGovernor.Share share2 = governor.register(1);
+
+        governor.setWeight(share2, 2);
+
+        assertEquals(2, share2.getWeight());
+        assertEquals(100 * 1024, governor.getRate(share1));
+        assertEquals(200 * 1024, governor.getRate(share2));
+    }
+
+    @Test
+    public void setWeightShouldNotChangeTheTotalWeightWhenUnregistered() {
+        settings.setFileTransferBandwidthLimit(300);
+
+        final BandwidthGovernor.Share share1 = governor.register(1);
+        final BandwidthGovernor.Share share2 = governor.register(2);
+
+        governor.unregister(share2);
+        governor.setWeight(share2, 5);
+
+        assertEquals(300 * 1024, governor.getRate(share1));
+    }
+
+    @Test
+    public void setWeightShouldThrowExceptionIfWeightIsNotPositive() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Weight must be positive");
+
+        governor.setWeight(governor.register(1), 0);
+    }
+
+    @Test
+    public void getDefaultWeightShouldUseTheWeightFromTheSettings() {
+        settings.setFileTransferSendWeight(3);
+        settings.setFileTransferReceiveWeight(2);
+
+        assertEquals(3, governor.getDefaultWeight(FileTransfer.Direction.SEND));
+        assertEquals(2, governor.getDefaultWeight(FileTransfer.Direction.RECEIVE));
+    }
+
+    @Test
+    public void acquireShouldNotWaitWithoutLimit() {
+        final BandwidthGovernor.Share share = governor.register(BandwidthGovernor.DEFAULT_WEIGHT);
+        final long start = System.currentTimeMillis();
+
+        share.acquire(100 * 1024 * 1024);
+
+        assertTrue(System.currentTimeMillis() - start < 100);
+    }
+
+    @Test
+    public void acquireShouldWaitUntilTheBytesAreWithinTheLimit() {
+        settings.setFileTransferBandwidthLimit(100);
+
+        final BandwidthGovernor.Share share = governor.register(BandwidthGovernor.DEFAULT_WEIGHT);
+        final long start = System.currentTimeMillis();
+
+        share.acquire(50 * 1024);
+
+        assertTrue(System.currentTimeMillis() - start >= 400);
+    }
+
+    @Test
+    public void acquireShouldUseTheBandwidthTheOtherSharesAreNotUsing() {
+        settings.setFileTransferBandwidthLimit(100);
+
+        final BandwidthGovernor.Share share = governor.register(1);
+        governor.register(1);
+
+        final long start = System.currentTimeMillis();
+
+        // 1 second at the guaranteed 50 kB/s, but the other share is not transferring
+        share.acquire(50 * 1024);
+
+        final long time = System.currentTimeMillis() - start;
+
+        assertTrue("Time: " + time, time >= 400);
+        assertTrue("Time: " + time, time < 850);
+    }
+
+    @Test
+    public void acquireShouldNotHoldUpOtherThreadsUsingTheSameShare() throws InterruptedException {
+        settings.setFileTransferBandwidthLimit(1);
+
+        final BandwidthGovernor.Share share = governor.register(BandwidthGovernor.DEFAULT_WEIGHT);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                share.acquire(100 * 1024);
+            }
+        };
+
+        thread.start();
+        Thread.sleep(100);
+
+        final long start = System.currentTimeMillis();
+
+        synchronized (share) {
+            // The lock of the share is only held while updating the tokens, not while waiting
+            assertTrue(thread.isAlive());
+        }
+
+        assertTrue(System.currentTimeMillis() - start < 100);
+
+        governor.unregister(share);
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void acquireShouldStopWaitingWhenUnregistered() throws InterruptedException {
+        settings.setFileTransferBandwidthLimit(1);
+
+        final BandwidthGovernor.Share share = governor.register(BandwidthGovernor.DEFAULT_WEIGHT);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                share.acquire(100 * 1024);
+            }
+        };
+
+        thread.start();
+        Thread.sleep(100);
+        governor.unregister(share);
+        thread.join(1000);
+
+        assertFalse(thread.isAlive());
+    }
+}
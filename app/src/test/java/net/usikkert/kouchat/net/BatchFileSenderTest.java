@@ -0,0 +1,252 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.util.TransferTelemetry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+
+/**
+ * Test of {@link BatchFileSender} and {@link BatchFileReceiver}.
+ *
+ * @author Christian Ihle
+ */
+public class BatchFileSenderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ServerSocketChannel serverSocketChannel;
+    private InetSocketAddress address;
+    private ExecutorService executorService;
+
+    private File sourceDirectory;
+    private File targetDirectory;
+    private FileTransferListener senderListener;
+    private FileTransferListener receiverListener;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        address = (InetSocketAddress) serverSocketChannel.socket().getLocalSocketAddress();
+
+        executorService = Executors.newSingleThreadExecutor();
+
+        sourceDirectory = temporaryFolder.newFolder("photos");
+        targetDirectory = new File(temporaryFolder.getRoot(), "received");
+        senderListener = mock(FileTransferListener.class);
+        receiverListener = mock(FileTransferListener.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocketChannel.close();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void shouldTransferAllTheFilesOverOneConnection() throws Exception {
+        transferFiles(false, false);
+    }
+
+    @Test
+    public void shouldTransferAllTheFilesOverOneConnectionWithChecksum() throws Exception {
+        transferFiles(true, false);
+    }
+
+    @Test
+    public void shouldTransferAllTheFilesOverOneConnectionWithCompression() throws Exception {
+        transferFiles(true, true);
+    }
+
+    @Test
+    public void receiveShouldNotOverwriteExistingFiles() throws Exception {
+        createFile("a.txt", 10);
+        assertTrue(targetDirectory.mkdir());
+        assertTrue(new File(targetDirectory, "a.txt").createNewFile());
+
+        final FileBatch batch = FileBatch.fromDirectory(sourceDirectory);
+
+        try {
+            transfer(batch, false, false);
+            fail("Should fail");
+        }
+
+        catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage().startsWith("File already exists"));
+        }
+
+        assertEquals(0, new File(targetDirectory, "a.txt").length());
+    }
+
+    @Test
+    public void sendShouldFailIfAFileChangedSizeAfterTheBatchWasCreated() throws Exception {
+        createFile("a.txt", 10);
+        final FileBatch batch = FileBatch.fromDirectory(sourceDirectory);
+        createFile("a.txt", 5);
+
+        try {
+            transfer(batch, false, false);
+            fail("Should fail");
+        }
+
+        catch (final IOException e) {
+            assertEquals("a.txt changed size after the batch was offered", e.getMessage());
+        }
+    }
+
+    private void transferFiles(final boolean checksum, final boolean compression) throws Exception {
+        final byte[] first = createFile("first.jpg", 100000);
+        final byte[] empty = createFile("empty.txt", 0);
+        final byte[] nested = createFile("sub/dir/nested.jpg", 54321);
+
+        final FileBatch batch = FileBatch.fromDirectory(sourceDirectory);
+        final AtomicLong received = transfer(batch, checksum, compression);
+
+        assertEquals(batch.getLength(), received.get());
+        assertArrayEquals(empty, Files.readAllBytes(new File(targetDirectory, "empty.txt").toPath()));
+        assertArrayEquals(first, Files.readAllBytes(new File(targetDirectory, "first.jpg").toPath()));
+        assertArrayEquals(nested, Files.readAllBytes(new File(targetDirectory, "sub/dir/nested.jpg").toPath()));
+
+        final InOrder senderOrder = inOrder(senderListener);
+        senderOrder.verify(senderListener).fileCompleted(new File(sourceDirectory, "empty.txt"));
+        senderOrder.verify(senderListener).fileCompleted(new File(sourceDirectory, "first.jpg"));
+        senderOrder.verify(senderListener).fileCompleted(new File(sourceDirectory, "sub/dir/nested.jpg"));
+
+        final String targetPath = targetDirectory.getCanonicalPath();
+        final InOrder receiverOrder = inOrder(receiverListener);
+        receiverOrder.verify(receiverListener).fileCompleted(new File(targetPath, "empty.txt"));
+        receiverOrder.verify(receiverListener).fileCompleted(new File(targetPath, "first.jpg"));
+        receiverOrder.verify(receiverListener).fileCompleted(new File(targetPath, "sub/dir/nested.jpg"));
+    }
+
+    private AtomicLong transfer(final FileBatch batch, final boolean checksum, final boolean compression)
+            throws Exception {
+        final AtomicLong received = new AtomicLong();
+
+        final Future<Boolean> receiveResult = executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final SocketChannel socketChannel = serverSocketChannel.accept();
+
+                try {
+                    final BatchFileReceiver receiver = new BatchFileReceiver(
+                            targetDirectory, batch.getName(), batch.size(), batch.getLength(),
+                            new CountingProgressListener(received), receiverListener, checksum);
+
+                    if (compression) {
+                        receiver.setCompression(new TransferTelemetry());
+                    }
+
+                    return receiver.receive(socketChannel);
+                }
+
+                finally {
+                    socketChannel.close();
+                }
+            }
+        });
+
+        final SocketChannel socketChannel = SocketChannel.open(address);
+
+        try {
+            final BatchFileSender sender = new BatchFileSender(batch, new CountingProgressListener(new AtomicLong()),
+                                                               senderListener, checksum);
+
+            if (compression) {
+                sender.setCompression(new TransferTelemetry());
+            }
+
+            assertTrue(sender.send(socketChannel));
+        }
+
+        finally {
+            socketChannel.close();
+        }
+
+        assertTrue(receiveResult.get(10, TimeUnit.SECONDS));
+
+        return received;
+    }
+
+    private byte[] createFile(final String path, final int size) throws IOException {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        final File file = new File(sourceDirectory, path);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+
+        return data;
+    }
+
+    private static class CountingProgressListener implements ChannelTransfer.ProgressListener {
+
+        private final AtomicLong bytes;
+
+        CountingProgressListener(final AtomicLong bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void bytesTransferred(final long transferred) {
+            bytes.addAndGet(transferred);
+        }
+    }
+}
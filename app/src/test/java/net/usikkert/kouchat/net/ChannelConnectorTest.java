@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link ChannelConnector}.
+ *
+ * @author Christian Ihle
+ */
+public class ChannelConnectorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ChannelConnector connector;
+    private ExecutorService executorService;
+    private InetSocketAddress unusedAddress;
+
+    @Before
+    public void setUp() throws Exception {
+        connector = new ChannelConnector();
+        executorService = Executors.newSingleThreadExecutor();
+        unusedAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), findUnusedPort());
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void connectShouldThrowExceptionIfAddressIsNull() throws Exception {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Address can not be null");
+
+        connector.connect(null, 1000);
+    }
+
+    @Test
+    public void connectShouldReturnBlockingChannelConnectedToTheAddress() throws Exception {
+        final ServerSocketChannel server = openServer(0);
+
+        try {
+            final InetSocketAddress address = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+            final SocketChannel channel = connector.connect(address, 1000);
+
+            assertTrue(channel.isConnected());
+            assertTrue(channel.isBlocking());
+
+            channel.close();
+        }
+
+        finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectShouldTryAgainUntilTheUserIsListening() throws Exception {
+        final Future<SocketChannel> result = connectInBackground(5000);
+
+        Thread.sleep(300);
+        final ServerSocketChannel server = openServer(unusedAddress.getPort());
+
+        try {
+            final SocketChannel channel = result.get(5, TimeUnit.SECONDS);
+
+            assertTrue(channel.isConnected());
+            channel.close();
+        }
+
+        finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectShouldGiveUpAtTheDeadline() throws Exception {
+        final long start = System.nanoTime();
+
+        try {
+            connector.connect(unusedAddress, 300);
+            fail("Should fail");
+        }
+
+        catch (final ConnectException e) {
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue("Gave up after " + elapsed + " ms", elapsed >= 250);
+            assertTrue("Gave up after " + elapsed + " ms", elapsed < 3000);
+        }
+    }
+
+    @Test
+    public void cancelShouldStopTheConnectionAttemptAtOnce() throws Exception {
+        final Future<SocketChannel> result = connectInBackground(60000);
+
+        Thread.sleep(200);
+        final long start = System.nanoTime();
+        connector.cancel();
+
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Should fail");
+        }
+
+        catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        }
+
+        assertTrue(connector.isCanceled());
+    }
+
+    @Test
+    public void connectShouldFailRightAwayIfCanceledBefore() throws Exception {
+        connector.cancel();
+
+        expectedException.expect(InterruptedIOException.class);
+        expectedException.expectMessage("Connect canceled");
+
+        connector.connect(unusedAddress, 60000);
+    }
+
+    private Future<SocketChannel> connectInBackground(final long timeout) {
+        return executorService.submit(new Callable<SocketChannel>() {
+            @Override
+            public SocketChannel call() throws Exception {
+                return connector.connect(unusedAddress, timeout);
+            }
+        });
+    }
+
+    private ServerSocketChannel openServer(final int port) throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        return server;
+    }
+
+    private int findUnusedPort() throws Exception {
+        final ServerSocketChannel server = openServer(0);
+        final int port = server.socket().getLocalPort();
+        server.close();
+
+        return port;
+    }
+}
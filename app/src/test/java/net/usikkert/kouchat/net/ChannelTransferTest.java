@@ -0,0 +1,332 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link ChannelTransfer}.
+ *
+ * @author Christian Ihle
+ */
+public class ChannelTransferTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private byte[] data;
+    private CountingProgressListener progressListener;
+
+    @Before
+    public void setUp() {
+        data = new byte[ChannelTransfer.CHUNK_SIZE * 3 + 123];
+        new Random(42).nextBytes(data);
+
+        progressListener = new CountingProgressListener();
+    }
+
+    @Test
+    public void sendFileShouldSendTheWholeFile() throws IOException {
+        final File source = createFile(data);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final FileChannel sourceChannel = new FileInputStream(source).getChannel();
+
+        try {
+            final long sent = ChannelTransfer.sendFile(sourceChannel, Channels.newChannel(target), 0, data.length,
+                                                       progressListener);
+
+            assertEquals(data.length, sent);
+            assertArrayEquals(data, target.toByteArray());
+            assertEquals(data.length, progressListener.bytes);
+            assertEquals(4, progressListener.updates);
+        }
+
+        finally {
+            sourceChannel.close();
+        }
+    }
+
+    @Test
+    public void sendFileShouldStopWhenCanceled() throws IOException {
+        final File source = createFile(data);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final FileChannel sourceChannel = new FileInputStream(source).getChannel();
+        progressListener.cancelAfter = 1;
+
+        try {
+            final long sent = ChannelTransfer.sendFile(sourceChannel, Channels.newChannel(target), 0, data.length,
+                                                       progressListener);
+
+            assertEquals(ChannelTransfer.CHUNK_SIZE, sent);
+        }
+
+        finally {
+            sourceChannel.close();
+        }
+    }
+
+    @Test
+    public void receiveFileShouldReceiveTheWholeFile() throws IOException {
+        final File target = temporaryFolder.newFile();
+        final FileChannel targetChannel = new FileOutputStream(target).getChannel();
+
+        try {
+            final long received = ChannelTransfer.receiveFile(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                              targetChannel, 0, data.length, progressListener);
+
+            assertEquals(data.length, received);
+            assertEquals(data.length, progressListener.bytes);
+        }
+
+        finally {
+            targetChannel.close();
+        }
+
+        assertArrayEquals(data, readFile(target));
+    }
+
+    @Test
+    public void receiveFileShouldStopWhenTheOtherUserCloses() throws IOException {
+        final File target = temporaryFolder.newFile();
+        final FileChannel targetChannel = new FileOutputStream(target).getChannel();
+
+        try {
+            final long received = ChannelTransfer.receiveFile(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                              targetChannel, 0, data.length + 100, progressListener);
+
+            assertEquals(data.length, received);
+        }
+
+        finally {
+            targetChannel.close();
+        }
+    }
+
+    @Test
+    public void sendFileShouldStartFromTheStartPosition() throws IOException {
+        final File source = createFile(data);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final FileChannel sourceChannel = new FileInputStream(source).getChannel();
+
+        try {
+            final long sent = ChannelTransfer.sendFile(sourceChannel, Channels.newChannel(target), 1000, data.length,
+                                                       progressListener);
+
+            assertEquals(data.length - 1000, sent);
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), target.toByteArray());
+        }
+
+        finally {
+            sourceChannel.close();
+        }
+    }
+
+    @Test
+    public void receiveFileShouldContinueFromTheStartPosition() throws IOException {
+        final File target = createFile(Arrays.copyOf(data, 1000));
+        final FileChannel targetChannel = new RandomAccessFile(target, "rw").getChannel();
+
+        try {
+            final long received = ChannelTransfer.receiveFile(
+                    Channels.newChannel(new ByteArrayInputStream(data, 1000, data.length - 1000)),
+                    targetChannel, 1000, data.length, progressListener);
+
+            assertEquals(data.length - 1000, received);
+        }
+
+        finally {
+            targetChannel.close();
+        }
+
+        assertArrayEquals(data, readFile(target));
+    }
+
+    @Test
+    public void checksumShouldBeCRC32OfTheFirstBytes() throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, 1000);
+
+        assertEquals(crc.getValue(), ChannelTransfer.checksum(Channels.newChannel(new ByteArrayInputStream(data)), 1000));
+    }
+
+    @Test
+    public void checksumShouldReturnMinusOneIfTheChannelIsTooShort() throws IOException {
+        assertEquals(-1, ChannelTransfer.checksum(Channels.newChannel(new ByteArrayInputStream(data)), data.length + 1));
+    }
+
+    @Test
+    public void copyShouldCopyEverything() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        final long copied = ChannelTransfer.copy(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                 Channels.newChannel(target), progressListener);
+
+        assertEquals(data.length, copied);
+        assertArrayEquals(data, target.toByteArray());
+        assertEquals(data.length, progressListener.bytes);
+    }
+
+    @Test
+    public void sendFileShouldCalculateTheChecksumOfTheSentBytes() throws IOException {
+        final File source = createFile(data);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final FileChannel sourceChannel = new FileInputStream(source).getChannel();
+        final CRC32 crc = new CRC32();
+
+        try {
+            final long sent = ChannelTransfer.sendFile(sourceChannel, Channels.newChannel(target), 1000, data.length,
+                                                       progressListener, crc);
+
+            assertEquals(data.length - 1000, sent);
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), target.toByteArray());
+            assertEquals(expectedChecksum(1000, data.length), crc.getValue());
+        }
+
+        finally {
+            sourceChannel.close();
+        }
+    }
+
+    @Test
+    public void receiveFileShouldCalculateTheChecksumOfTheReceivedBytes() throws IOException {
+        final File target = temporaryFolder.newFile();
+        final FileChannel targetChannel = new RandomAccessFile(target, "rw").getChannel();
+        final CRC32 crc = new CRC32();
+
+        try {
+            final long received = ChannelTransfer.receiveFile(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                              targetChannel, 0, data.length, progressListener, crc);
+
+            assertEquals(data.length, received);
+            assertEquals(data.length, progressListener.bytes);
+            assertEquals(expectedChecksum(0, data.length), crc.getValue());
+        }
+
+        finally {
+            targetChannel.close();
+        }
+
+        assertArrayEquals(data, readFile(target));
+    }
+
+    @Test
+    public void copyShouldCalculateTheChecksumOfTheCopiedBytes() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final CRC32 crc = new CRC32();
+
+        final long copied = ChannelTransfer.copy(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                 Channels.newChannel(target), progressListener, crc);
+
+        assertEquals(data.length, copied);
+        assertArrayEquals(data, target.toByteArray());
+        assertEquals(expectedChecksum(0, data.length), crc.getValue());
+    }
+
+    @Test
+    public void writeLongAndReadLongShouldUseTheSameFormat() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        ChannelTransfer.writeLong(Channels.newChannel(target), 1234567890123L);
+
+        assertEquals(8, target.size());
+        assertEquals(1234567890123L, ChannelTransfer.readLong(
+                Channels.newChannel(new ByteArrayInputStream(target.toByteArray()))));
+    }
+
+    private long expectedChecksum(final int from, final int to) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, from, to - from);
+
+        return crc.getValue();
+    }
+
+    private File createFile(final byte[] content) throws IOException {
+        final File file = temporaryFolder.newFile();
+        final FileOutputStream outputStream = new FileOutputStream(file);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        return file;
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            final byte[] content = new byte[(int) file.length()];
+            int read = 0;
+
+            while (read < content.length) {
+                read += inputStream.read(content, read, content.length - read);
+            }
+
+            return Arrays.copyOf(content, read);
+        }
+
+        finally {
+            inputStream.close();
+        }
+    }
+
+    private static class CountingProgressListener implements ChannelTransfer.ProgressListener {
+
+        private long bytes;
+        private int updates;
+        private int cancelAfter = Integer.MAX_VALUE;
+
+        @Override
+        public boolean isCanceled() {
+            return updates >= cancelAfter;
+        }
+
+        @Override
+        public void bytesTransferred(final long theBytes) {
+            bytes += theBytes;
+            updates++;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.util.TransferTelemetry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link CompressedTransfer}.
+ *
+ * @author Christian Ihle
+ */
+public class CompressedTransferTest {
+
+    private static final int HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private byte[] text;
+    private byte[] random;
+    private CountingProgressListener progressListener;
+    private TransferTelemetry telemetry;
+
+    @Before
+    public void setUp() {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; builder.length() < CompressedTransfer.BLOCK_SIZE * 5; i++) {
+            builder.append("[12:34:56] <Christian>: line number ").append(i).append(" of the chat log\n");
+        }
+
+        text = builder.toString().getBytes();
+        random = new byte[CompressedTransfer.BLOCK_SIZE * 5 + 123];
+        new Random(42).nextBytes(random);
+
+        progressListener = new CountingProgressListener();
+        telemetry = new TransferTelemetry();
+    }
+
+    @Test
+    public void isCompressibleShouldBeTrueForTextFiles() {
+        assertTrue(CompressedTransfer.isCompressible("kouchat.log"));
+        assertTrue(CompressedTransfer.isCompressible("notes.txt"));
+        assertTrue(CompressedTransfer.isCompressible("DATA.CSV"));
+    }
+
+    @Test
+    public void isCompressibleShouldBeFalseForFilesThatAreAlreadyCompressed() {
+        assertFalse(CompressedTransfer.isCompressible("photo.jpg"));
+        assertFalse(CompressedTransfer.isCompressible("video.mp4"));
+        assertFalse(CompressedTransfer.isCompressible("archive.zip"));
+        assertFalse(CompressedTransfer.isCompressible("no-extension"));
+    }
+
+    @Test
+    public void compressibleFileShouldBeSentCompressed() throws IOException {
+        final byte[] wire = send(text);
+
+        assertTrue("Expected compression, got " + wire.length + " bytes", wire.length < text.length / 4);
+        assertEquals(wire.length, telemetry.getTotalWireBytes());
+        assertEquals(text.length, progressListener.bytes);
+
+        assertArrayEquals(text, receive(wire, text.length));
+    }
+
+    @Test
+    public void incompressibleFileShouldBeSentUncompressed() throws IOException {
+        final byte[] wire = send(random);
+
+        assertEquals(random.length + 6 * HEADER_SIZE, wire.length);
+        assertArrayEquals(random, receive(wire, random.length));
+    }
+
+    @Test
+    public void compressionShouldStopWhenTheFirstBlocksDoNotCompress() throws IOException {
+        final int probeSize = CompressedTransfer.BLOCK_SIZE * CompressedTransfer.PROBE_BLOCKS;
+        final byte[] data = new byte[probeSize + text.length];
+        System.arraycopy(random, 0, data, 0, probeSize);
+        System.arraycopy(text, 0, data, probeSize, text.length);
+
+        final byte[] wire = send(data);
+        final int blocks = (data.length + CompressedTransfer.BLOCK_SIZE - 1) / CompressedTransfer.BLOCK_SIZE;
+
+        assertEquals(data.length + blocks * HEADER_SIZE, wire.length);
+        assertArrayEquals(data, receive(wire, data.length));
+    }
+
+    @Test
+    public void checksumShouldBeOfTheUncompressedBytes() throws IOException {
+        final CRC32 expected = new CRC32();
+        expected.update(text, 0, text.length);
+
+        final CRC32 sent = new CRC32();
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedTransfer.send(Channels.newChannel(new ByteArrayInputStream(text)), Channels.newChannel(wire),
+                                text.length, progressListener, sent, telemetry);
+
+        final CRC32 received = new CRC32();
+        final File target = temporaryFolder.newFile();
+        final FileChannel targetChannel = new RandomAccessFile(target, "rw").getChannel();
+
+        try {
+            CompressedTransfer.receive(Channels.newChannel(new ByteArrayInputStream(wire.toByteArray())),
+                                       targetChannel, 0, text.length, progressListener, received, telemetry);
+        }
+
+        finally {
+            targetChannel.close();
+        }
+
+        assertEquals(expected.getValue(), sent.getValue());
+        assertEquals(expected.getValue(), received.getValue());
+    }
+
+    @Test
+    public void receiveShouldContinueFromTheStartPosition() throws IOException {
+        final byte[] wire = send(Arrays.copyOfRange(text, 1000, text.length));
+        final File target = temporaryFolder.newFile();
+        final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+
+        try {
+            raf.write(text, 0, 1000);
+
+            final long received = CompressedTransfer.receive(
+                    Channels.newChannel(new ByteArrayInputStream(wire)), raf.getChannel(), 1000, text.length,
+                    progressListener, null, telemetry);
+
+            assertEquals(text.length - 1000, received);
+        }
+
+        finally {
+            raf.close();
+        }
+
+        assertArrayEquals(text, readFile(target));
+    }
+
+    @Test
+    public void sendShouldStopWhenCanceled() throws IOException {
+        progressListener.cancelAfter = 2;
+
+        final long sent = CompressedTransfer.send(Channels.newChannel(new ByteArrayInputStream(text)),
+                                                  Channels.newChannel(new ByteArrayOutputStream()), text.length,
+                                                  progressListener, null, telemetry);
+
+        assertEquals(CompressedTransfer.BLOCK_SIZE * 2, sent);
+    }
+
+    @Test(expected = EOFException.class)
+    public void receiveShouldFailWhenTheOtherUserCloses() throws IOException {
+        final byte[] wire = send(text);
+
+        receive(Arrays.copyOf(wire, wire.length - 10), text.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void receiveShouldFailWhenTheBlockIsLargerThanTheBlockSize() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(CompressedTransfer.BLOCK_SIZE + 1).putInt(0);
+
+        receive(header.array(), text.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void receiveShouldFailWhenTheCompressedBlockIsInvalid() throws IOException {
+        final ByteBuffer block = ByteBuffer.allocate(HEADER_SIZE + 100);
+        block.putInt(1000).putInt(100);
+
+        receive(block.array(), 1000);
+    }
+
+    private byte[] send(final byte[] data) throws IOException {
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+        final long sent = CompressedTransfer.send(Channels.newChannel(new ByteArrayInputStream(data)),
+                                                  Channels.newChannel(wire), data.length, progressListener,
+                                                  null, telemetry);
+        assertEquals(data.length, sent);
+
+        return wire.toByteArray();
+    }
+
+    private byte[] receive(final byte[] wire, final long length) throws IOException {
+        final File target = temporaryFolder.newFile();
+        final FileChannel targetChannel = new RandomAccessFile(target, "rw").getChannel();
+
+        try {
+            final long received = CompressedTransfer.receive(Channels.newChannel(new ByteArrayInputStream(wire)),
+                                                             targetChannel, 0, length, progressListener,
+                                                             null, new TransferTelemetry());
+            assertEquals(length, received);
+        }
+
+        finally {
+            targetChannel.close();
+        }
+
+        return readFile(target);
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            final byte[] content = new byte[(int) file.length()];
+            int read = 0;
+
+            while (read < content.length) {
+                read += inputStream.read(content, read, content.length - read);
+            }
+
+            return Arrays.copyOf(content, read);
+        }
+
+        finally {
+            inputStream.close();
+        }
+    }
+
+    private static class CountingProgressListener implements ChannelTransfer.ProgressListener {
+
+        private long bytes;
+        private int updates;
+        private int cancelAfter = Integer.MAX_VALUE;
+
+        @Override
+        public boolean isCanceled() {
+            return updates >= cancelAfter;
+        }
+
+        @Override
+        public void bytesTransferred(final long theBytes) {
+            bytes += theBytes;
+            updates++;
+        }
+    }
+}
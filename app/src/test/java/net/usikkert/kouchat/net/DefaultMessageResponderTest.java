@@ -370,7 +370,7 @@ public class DefaultMessageResponderTest {
         assertEquals("swing", user.getClient());
         assertEquals("linux", user.getOperatingSystem());
         assertEquals(4000, user.getPrivateChatPort());
-        assertEquals(5000, user.getTcpChatPort());
+        verify(controller).changeTcpChatPort(100, 5000);
     }
 
     @Test
@@ -385,6 +385,7 @@ public class DefaultMessageResponderTest {
         assertEquals("<unknown>", user.getOperatingSystem());
         assertEquals(0, user.getPrivateChatPort());
         assertEquals(0, user.getTcpChatPort());
+        verify(controller, never()).changeTcpChatPort(anyInt(), anyInt());
     }
 
     private void verifyTopic(final Topic topic, final String expectedTopic, final String expectedNick,
@@ -0,0 +1,186 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link FileBatch}.
+ *
+ * @author Christian Ihle
+ */
+public class FileBatchTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void constructorShouldThrowExceptionIfNameIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Name can not be empty");
+
+        new FileBatch("", Arrays.<FileBatch.Entry>asList());
+    }
+
+    @Test
+    public void constructorShouldSumTheLengthOfTheEntries() {
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(
+                new FileBatch.Entry("a.jpg", 100, null),
+                new FileBatch.Entry("b/c.jpg", 250, null)));
+
+        assertEquals("photos", batch.getName());
+        assertEquals(2, batch.size());
+        assertEquals(350, batch.getLength());
+    }
+
+    @Test
+    public void fromDirectoryShouldIncludeFilesInSubDirectoriesSortedByPath() throws IOException {
+        final File directory = temporaryFolder.newFolder("photos");
+        createFile(new File(directory, "b.txt"), 3);
+        createFile(new File(directory, "a/z.txt"), 5);
+        createFile(new File(directory, "a/y/x.txt"), 7);
+        assertTrue(new File(directory, "empty").mkdir());
+
+        final FileBatch batch = FileBatch.fromDirectory(directory);
+
+        assertEquals("photos", batch.getName());
+        assertEquals(15, batch.getLength());
+
+        final List<FileBatch.Entry> entries = batch.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("a/y/x.txt", entries.get(0).getPath());
+        assertEquals(7, entries.get(0).getLength());
+        assertEquals(new File(directory, "a/y/x.txt"), entries.get(0).getFile());
+        assertEquals("a/z.txt", entries.get(1).getPath());
+        assertEquals("b.txt", entries.get(2).getPath());
+    }
+
+    @Test
+    public void readManifestShouldReturnTheEntriesWritten() throws IOException {
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(
+                new FileBatch.Entry("a.jpg", 100, new File("a.jpg")),
+                new FileBatch.Entry("sub/æøå.jpg", 0, new File("æøå.jpg"))));
+
+        final FileBatch readBatch = FileBatch.readManifest(
+                Channels.newChannel(new ByteArrayInputStream(writeManifest(batch))), "photos", 2, 100);
+
+        assertEquals(2, readBatch.size());
+        assertEquals("a.jpg", readBatch.getEntries().get(0).getPath());
+        assertEquals(100, readBatch.getEntries().get(0).getLength());
+        assertNull(readBatch.getEntries().get(0).getFile());
+        assertEquals("sub/æøå.jpg", readBatch.getEntries().get(1).getPath());
+        assertEquals(0, readBatch.getEntries().get(1).getLength());
+    }
+
+    @Test
+    public void readManifestShouldThrowExceptionIfTheNumberOfFilesIsWrong() throws IOException {
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(new FileBatch.Entry("a.jpg", 100, null)));
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Expected 2 files in the manifest, but got 1");
+
+        FileBatch.readManifest(Channels.newChannel(new ByteArrayInputStream(writeManifest(batch))), "photos", 2, 100);
+    }
+
+    @Test
+    public void readManifestShouldThrowExceptionIfTheTotalSizeIsWrong() throws IOException {
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(new FileBatch.Entry("a.jpg", 100, null)));
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Expected 99 bytes in the manifest, but got 100");
+
+        FileBatch.readManifest(Channels.newChannel(new ByteArrayInputStream(writeManifest(batch))), "photos", 1, 99);
+    }
+
+    @Test
+    public void readManifestShouldThrowExceptionIfAPathIsOutsideTheDirectory() throws IOException {
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(new FileBatch.Entry("a/../../b.jpg", 1, null)));
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Invalid path in manifest: a/../../b.jpg");
+
+        FileBatch.readManifest(Channels.newChannel(new ByteArrayInputStream(writeManifest(batch))), "photos", 1, 1);
+    }
+
+    @Test
+    public void readManifestShouldThrowExceptionIfAPathIsUsedTwice() throws IOException {
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(
+                new FileBatch.Entry("a.jpg", 1, null),
+                new FileBatch.Entry("a.jpg", 1, null)));
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Invalid path in manifest: a.jpg");
+
+        FileBatch.readManifest(Channels.newChannel(new ByteArrayInputStream(writeManifest(batch))), "photos", 2, 2);
+    }
+
+    @Test
+    public void isValidPathShouldOnlyAcceptRelativePathsDownIntoSubDirectories() {
+        assertTrue(FileBatch.isValidPath("a.jpg"));
+        assertTrue(FileBatch.isValidPath("sub/dir/a.jpg"));
+        assertTrue(FileBatch.isValidPath("..a.jpg"));
+
+        assertFalse(FileBatch.isValidPath(""));
+        assertFalse(FileBatch.isValidPath("/etc/passwd"));
+        assertFalse(FileBatch.isValidPath("../a.jpg"));
+        assertFalse(FileBatch.isValidPath("sub/../../a.jpg"));
+        assertFalse(FileBatch.isValidPath("./a.jpg"));
+        assertFalse(FileBatch.isValidPath("sub//a.jpg"));
+        assertFalse(FileBatch.isValidPath("sub/"));
+        assertFalse(FileBatch.isValidPath("..\\a.jpg"));
+        assertFalse(FileBatch.isValidPath("C:/a.jpg"));
+    }
+
+    private byte[] writeManifest(final FileBatch batch) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeManifest(Channels.newChannel(out));
+
+        return out.toByteArray();
+    }
+
+    private void createFile(final File file, final int size) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[size]);
+        out.close();
+    }
+}
@@ -23,12 +23,25 @@
 package net.usikkert.kouchat.net;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
 
+import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Test of {@link FileReceiver}.
@@ -37,9 +50,22 @@ import org.junit.Test;
  */
 public class FileReceiverTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
     @Test
     public void getOriginalFileNameShouldReturnTheNameOfTheFileFromTheConstructorEvenAfterChange() {
-        final FileReceiver fileReceiver = new FileReceiver(new User("Test", 123), new File("cows.gif"), 100, 1);
+        final FileReceiver fileReceiver = new FileReceiver(new User("Test", 123), new File("cows.gif"), 100, 1,
+                                                           mock(BandwidthGovernor.class),
+                                                           mock(FileTransferAcceptor.class),
+                                                           mock(ProgressDispatcher.class));
 
         assertEquals("cows.gif", fileReceiver.getOriginalFileName());
         assertEquals("cows.gif", fileReceiver.getFileName());
@@ -51,4 +77,120 @@ public class FileReceiverTest {
         assertEquals("chickens.jpg", fileReceiver.getFileName());
         assertEquals("chickens.jpg", fileReceiver.getFile().getName());
     }
+
+    @Test
+    public void transferShouldSaveTheWholeFile() throws Exception {
+        final File target = new File(temporaryFolder.getRoot(), "target.bin");
+
+        assertTrue(transfer(target, 100000, 100000));
+        assertEquals(100000, target.length());
+    }
+
+    @Test
+    public void transferShouldCutTheFileAfterTheBytesReceivedWhenTheTransferFails() throws Exception {
+        final File target = new File(temporaryFolder.getRoot(), "target.bin");
+
+        assertFalse(transfer(target, 100000, 30000));
+        assertEquals(30000, target.length());
+    }
+
+    @Test
+    public void transferShouldOnlyGrowTheFileAsTheBytesAreReceivedWhenResumable() throws Exception {
+        final File target = new File(temporaryFolder.getRoot(), "target.bin");
+        final FileReceiver fileReceiver = createFileReceiver(target, 200000);
+        fileReceiver.setResumable(true);
+
+        final int port = fileReceiver.startServer();
+
+        final Future<Boolean> result = executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileReceiver.transfer();
+            }
+        });
+
+        final Socket socket = new Socket("localhost", port);
+
+        try {
+            socket.getOutputStream().write(new byte[ChannelTransfer.CHUNK_SIZE]);
+            socket.getOutputStream().flush();
+
+            final long stopTime = System.currentTimeMillis() + 10000;
+
+            while (fileReceiver.getTransferred() < ChannelTransfer.CHUNK_SIZE && System.currentTimeMillis() < stopTime) {
+                Thread.sleep(10);
+            }
+
+            // As if the application was killed now, before the file could be cut
+            assertEquals(ChannelTransfer.CHUNK_SIZE, fileReceiver.getTransferred());
+            assertEquals(ChannelTransfer.CHUNK_SIZE, target.length());
+        }
+
+        finally {
+            socket.close();
+        }
+
+        assertFalse(result.get(10, TimeUnit.SECONDS));
+        assertEquals(ChannelTransfer.CHUNK_SIZE, target.length());
+    }
+
+    @Test
+    public void isResumableShouldBeFalseForParallelTransfers() {
+        final FileReceiver fileReceiver = createFileReceiver(new File("cows.gif"), 100);
+
+        assertFalse(fileReceiver.isResumable());
+
+        fileReceiver.setResumable(true);
+        assertTrue(fileReceiver.isResumable());
+
+        fileReceiver.setParallel(true);
+        assertFalse(fileReceiver.isResumable());
+    }
+
+    private FileReceiver createFileReceiver(final File target, final int size) {
+        final FileReceiver fileReceiver = new FileReceiver(new User("Test", 123), target, size, 1,
+                                                           mock(BandwidthGovernor.class),
+                                                           mock(FileTransferAcceptor.class),
+                                                           new ProgressDispatcher(ProgressDispatcher.DEFAULT_INTERVAL));
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        fileReceiver.accept();
+
+        return fileReceiver;
+    }
+
+    private boolean transfer(final File target, final int size, final int bytesToSend) throws Exception {
+        final FileReceiver fileReceiver = createFileReceiver(target, size);
+
+        final int port = fileReceiver.startServer();
+
+        final Future<Boolean> result = executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileReceiver.transfer();
+            }
+        });
+
+        final byte[] data = new byte[bytesToSend];
+        new Random(bytesToSend).nextBytes(data);
+
+        final Socket socket = new Socket("localhost", port);
+
+        try {
+            final OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(data);
+            outputStream.flush();
+        }
+
+        finally {
+            socket.shutdownOutput();
+        }
+
+        try {
+            return result.get(10, TimeUnit.SECONDS);
+        }
+
+        finally {
+            socket.close();
+        }
+    }
 }
@@ -0,0 +1,194 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FileTransferAcceptor}.
+ *
+ * @author Christian Ihle
+ */
+public class FileTransferAcceptorTest {
+
+    private FileTransferAcceptor acceptor;
+
+    @Before
+    public void setUp() {
+        acceptor = new FileTransferAcceptor(0);
+    }
+
+    @After
+    public void tearDown() {
+        acceptor.stop();
+    }
+
+    @Test
+    public void portShouldOnlyBeOpenedWhenRegistering() throws ServerException {
+        assertEquals(-1, acceptor.getPort());
+
+        acceptor.register();
+
+        assertTrue(acceptor.getPort() > 0);
+    }
+
+    @Test
+    public void registerShouldGiveUniquePositiveTokens() throws ServerException {
+        final FileTransferAcceptor.Registration registration1 = acceptor.register();
+        final FileTransferAcceptor.Registration registration2 = acceptor.register();
+
+        assertTrue(registration1.getToken() > 0);
+        assertTrue(registration2.getToken() > 0);
+        assertNotEquals(registration1.getToken(), registration2.getToken());
+        assertEquals(2, acceptor.getNumberOfRegistrations());
+    }
+
+    @Test
+    public void connectionShouldBeRoutedToTheRegistrationWithTheToken() throws Exception {
+        final FileTransferAcceptor.Registration registration1 = acceptor.register();
+        final FileTransferAcceptor.Registration registration2 = acceptor.register();
+
+        final SocketChannel client = connect(registration2.getToken());
+        client.write(ByteBuffer.wrap(new byte[] {42}));
+
+        final SocketChannel accepted = registration2.accept(1000);
+        assertNotNull(accepted);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(1);
+        ChannelTransfer.readFully(accepted, buffer);
+        assertEquals(42, buffer.get(0));
+
+        assertNull(registration1.accept(100));
+
+        client.close();
+        accepted.close();
+    }
+
+    @Test
+    public void severalConnectionsShouldBeRoutedToTheSameRegistration() throws Exception {
+        final FileTransferAcceptor.Registration registration = acceptor.register();
+
+        final SocketChannel client1 = connect(registration.getToken());
+        final SocketChannel client2 = connect(registration.getToken());
+
+        assertNotNull(registration.accept(1000));
+        assertNotNull(registration.accept(1000));
+
+        client1.close();
+        client2.close();
+    }
+
+    @Test
+    public void connectionWithUnknownTokenShouldBeClosed() throws Exception {
+        final FileTransferAcceptor.Registration registration = acceptor.register();
+        final SocketChannel client = connect(registration.getToken() + 1);
+
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        assertNull(registration.accept(100));
+
+        client.close();
+    }
+
+    @Test
+    public void tokenShouldNotWorkAfterUnregister() throws Exception {
+        final FileTransferAcceptor.Registration registration = acceptor.register();
+        acceptor.unregister(registration);
+
+        final SocketChannel client = connect(registration.getToken());
+
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        assertEquals(0, acceptor.getNumberOfRegistrations());
+
+        client.close();
+    }
+
+    @Test
+    public void acceptShouldReturnNullAfterTheTimeout() throws Exception {
+        final FileTransferAcceptor.Registration registration = acceptor.register();
+        final long start = System.currentTimeMillis();
+
+        assertNull(registration.accept(200));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+    }
+
+    @Test
+    public void acceptShouldStopWaitingWhenUnregistered() throws Exception {
+        final FileTransferAcceptor.Registration registration = acceptor.register();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                }
+
+                catch (final InterruptedException e) {
+                    // Unregister anyway
+                }
+
+                acceptor.unregister(registration);
+            }
+        }.start();
+
+        final long start = System.currentTimeMillis();
+
+        assertNull(registration.accept(FileTransferAcceptor.CONNECT_TIMEOUT));
+        assertTrue(System.currentTimeMillis() - start < FileTransferAcceptor.CONNECT_TIMEOUT);
+    }
+
+    @Test
+    public void stopShouldCloseThePort() throws Exception {
+        acceptor.register();
+        final int port = acceptor.getPort();
+
+        acceptor.stop();
+
+        assertEquals(-1, acceptor.getPort());
+        assertEquals(0, acceptor.getNumberOfRegistrations());
+
+        try {
+            SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+            fail("Port should be closed");
+        }
+
+        catch (final IOException e) {
+            // Expected
+        }
+    }
+
+    private SocketChannel connect(final long token) throws IOException {
+        final SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", acceptor.getPort()));
+        ChannelTransfer.writeLong(client, token);
+
+        return client;
+    }
+}
@@ -0,0 +1,70 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link FileTransferOptions}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class FileTransferOptionsTest {
+
+    @Test
+    public void parseShouldReturnNoOptionsFromEmptyText() {
+        final FileTransferOptions options = FileTransferOptions.parse("");
+
+        assertTrue(options.isEmpty());
+        assertEquals("", options.toString());
+    }
+
+    @Test
+    public void parseShouldHandleOptionsWithAndWithoutValues() {
+        final FileTransferOptions options = FileTransferOptions.parse("<resume=1000:5678,other>");
+
+        assertEquals("1000:5678", options.get("resume"));
+        assertTrue(options.has("other"));
+        assertEquals("", options.get("other"));
+        assertFalse(options.has("missing"));
+    }
+
+    @Test
+    public void toStringShouldFormatTheOptions() {
+        final FileTransferOptions options = new FileTransferOptions()
+                .add("resume")
+                .add("other", "value");
+
+        assertEquals("<resume,other=value>", options.toString());
+    }
+
+    @Test
+    public void toStringAndParseShouldGiveTheSameOptions() {
+        final FileTransferOptions options = new FileTransferOptions().add("resume", "1:2");
+
+        assertEquals("<resume=1:2>", FileTransferOptions.parse(options.toString()).toString());
+    }
+}
@@ -0,0 +1,199 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageDeduplicator}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageDeduplicatorTest {
+
+    private MessageDeduplicator deduplicator;
+
+    private ReceiverListener mainChatListener;
+    private ReceiverListener privateChatListener;
+    private MessageRepairer messageRepairer;
+    private User user;
+
+    @Before
+    public void setUp() {
+        final Controller controller = mock(Controller.class);
+        mainChatListener = mock(ReceiverListener.class);
+        privateChatListener = mock(ReceiverListener.class);
+
+        user = new User("Peer", 200);
+        when(controller.getUser(200)).thenReturn(user);
+
+        deduplicator = new MessageDeduplicator(controller);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+        deduplicator.registerPrivateChatReceiverListener(privateChatListener);
+
+        messageRepairer = mock(MessageRepairer.class);
+        deduplicator.registerMessageRepairer(messageRepairer);
+    }
+
+    @Test
+    public void firstCopyShouldWinWhenMulticastArrivesFirst() {
+        user.setTcpEnabled(true);
+        final String message = MessageSequence.addSequenceNumber("200!MSG#Peer:hello", 1);
+
+        deduplicator.messageArrived(message, "192.168.1.2");
+        deduplicator.messageArrived(message, "192.168.1.2", user);
+
+        verify(mainChatListener, times(1)).messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+    }
+
+    @Test
+    public void firstCopyShouldWinWhenTcpArrivesFirst() {
+        user.setTcpEnabled(true);
+        final String message = MessageSequence.addSequenceNumber("200!MSG#Peer:hello", 1);
+
+        deduplicator.messageArrived(message, "192.168.1.2", user);
+        deduplicator.messageArrived(message, "192.168.1.2");
+
+        verify(mainChatListener, times(1)).messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+    }
+
+    @Test
+    public void copyWithoutSequenceNumberOverTcpShouldBeDroppedWhenMulticastArrivesFirst() {
+        user.setTcpEnabled(true);
+
+        // The tcp copy was sent before the framing was negotiated, so the sequence number is missing
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:hello", 1), "192.168.1.2");
+        deduplicator.messageArrived("200!MSG#Peer:hello", "192.168.1.2", user);
+
+        verify(mainChatListener, times(1)).messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+    }
+
+    @Test
+    public void multicastCopyShouldBeDroppedWhenTcpCopyWithoutSequenceNumberArrivesFirst() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("200!PRIVMSG#Peer:(100)hi", "192.168.1.2", user);
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!PRIVMSG#Peer:(100)hi", 0), "192.168.1.2");
+
+        verify(privateChatListener, times(1)).messageArrived("200!PRIVMSG#Peer:(100)hi", "192.168.1.2");
+    }
+
+    @Test
+    public void sameMessageWrittenTwiceShouldBeForwardedTwiceWhenCopiesArriveWithoutSequenceNumber() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:ok", 1), "192.168.1.2");
+        deduplicator.messageArrived("200!MSG#Peer:ok", "192.168.1.2", user);
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:ok", 2), "192.168.1.2");
+        deduplicator.messageArrived("200!MSG#Peer:ok", "192.168.1.2", user);
+
+        verify(mainChatListener, times(2)).messageArrived("200!MSG#Peer:ok", "192.168.1.2");
+    }
+
+    @Test
+    public void presenceMessagesWithoutSequenceNumberShouldAlwaysUseTcpWhenEnabled() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("200!IDLE#Peer:[192.168.1.2]", "192.168.1.2", user);
+        deduplicator.messageArrived("200!IDLE#Peer:[192.168.1.2]", "192.168.1.2", user);
+
+        verify(mainChatListener, times(2)).messageArrived("200!IDLE#Peer:[192.168.1.2]", "192.168.1.2");
+    }
+
+    @Test
+    public void privateMessagesShouldHaveTheirOwnSequenceNumbers() {
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:hello", 1), "192.168.1.2");
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!PRIVMSG#Peer:(100)hi", 1), "192.168.1.2");
+
+        verify(mainChatListener).messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+        verify(privateChatListener).messageArrived("200!PRIVMSG#Peer:(100)hi", "192.168.1.2");
+    }
+
+    @Test
+    public void userRemovedShouldForgetTheSequenceNumbersOfTheUser() {
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:before", 1000), "192.168.1.2");
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!PRIVMSG#Peer:(100)before", 50), "192.168.1.2");
+
+        deduplicator.userRemoved(0, user);
+
+        // After a restart the user starts over from 0
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:after", 0), "192.168.1.2");
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!PRIVMSG#Peer:(100)after", 0), "192.168.1.2");
+
+        verify(mainChatListener).messageArrived("200!MSG#Peer:after", "192.168.1.2");
+        verify(privateChatListener).messageArrived("200!PRIVMSG#Peer:(100)after", "192.168.1.2");
+    }
+
+    @Test
+    public void messagesWithoutSequenceNumberShouldUseTcpWhenEnabled() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+        verifyZeroInteractions(mainChatListener);
+
+        deduplicator.messageArrived("200!MSG#Peer:hello", "192.168.1.2", user);
+        verify(mainChatListener).messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+    }
+
+    @Test
+    public void messagesWithoutSequenceNumberShouldUseMulticastWhenTcpIsDisabled() {
+        deduplicator.messageArrived("200!MSG#Peer:hello", "192.168.1.2", user);
+        verifyZeroInteractions(mainChatListener);
+
+        deduplicator.messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+        verify(mainChatListener).messageArrived("200!MSG#Peer:hello", "192.168.1.2");
+    }
+
+    @Test
+    public void skippedSequenceNumbersShouldBeGivenToTheRepairer() {
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:one", 1), "192.168.1.2");
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:four", 4), "192.168.1.2");
+
+        verify(messageRepairer).gapDetected(eq(200), any(SequenceWindow.class), eq(2L), eq(3L));
+    }
+
+    @Test
+    public void consecutiveSequenceNumbersShouldNotBeGivenToTheRepairer() {
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:one", 1), "192.168.1.2");
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!MSG#Peer:two", 2), "192.168.1.2");
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!PRIVMSG#Peer:(100)hi", 5), "192.168.1.2");
+
+        verifyZeroInteractions(messageRepairer);
+    }
+
+    @Test
+    public void nackShouldBeGivenToTheRepairerAndNotForwarded() {
+        deduplicator.messageArrived(MessageSequence.addSequenceNumber("200!NACK#Peer:100:1,2", 7), "192.168.1.2");
+
+        verify(messageRepairer).nackArrived("200!NACK#Peer:100:1,2");
+        verifyZeroInteractions(mainChatListener);
+    }
+}
@@ -114,6 +114,52 @@ public class MessageParserTest {
                                      "Linux", 40656, 0);
     }
 
+    @Test
+    public void messageArrivedShouldParseFileAcceptWithoutOptions() {
+        messageParser.messageArrived("10066122!SENDFILEACCEPT#Christian:(1234)[20103]{8578765}some_file.txt",
+                                     "192.168.1.1");
+
+        final ArgumentCaptor<FileTransferOptions> optionsCaptor = ArgumentCaptor.forClass(FileTransferOptions.class);
+        verify(responder).fileSendAccepted(eq(10066122), eq("some_file.txt"), eq(8578765), eq(20103),
+                                           optionsCaptor.capture());
+        assertTrue(optionsCaptor.getValue().isEmpty());
+    }
+
+    @Test
+    public void messageArrivedShouldParseFileAcceptWithResumeOption() {
+        messageParser.messageArrived(
+                "10066122!SENDFILEACCEPT#Christian:(1234)<resume=1000:5678>[20103]{8578765}some<file>.txt",
+                "192.168.1.1");
+
+        final ArgumentCaptor<FileTransferOptions> optionsCaptor = ArgumentCaptor.forClass(FileTransferOptions.class);
+        verify(responder).fileSendAccepted(eq(10066122), eq("some<file>.txt"), eq(8578765), eq(20103),
+                                           optionsCaptor.capture());
+        assertEquals("1000:5678", optionsCaptor.getValue().get(FileTransferOptions.RESUME));
+    }
+
+    @Test
+    public void messageArrivedShouldParseBatchOfFiles() {
+        messageParser.messageArrived(
+                "10066122!SENDBATCH#Christian:(1234)<batch=2000,checksum,token>[20103]{8578765}photos",
+                "192.168.1.1");
+
+        final ArgumentCaptor<FileTransferOptions> optionsCaptor = ArgumentCaptor.forClass(FileTransferOptions.class);
+        verify(responder).fileSend(eq(10066122), eq(20103L), eq("photos"), eq("Christian"), eq(8578765),
+                                   optionsCaptor.capture());
+        assertEquals("2000", optionsCaptor.getValue().get(FileTransferOptions.BATCH));
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreBatchOfFilesOfferedAsSingleFile() {
+        messageParser.messageArrived(
+                "10066122!SENDFILE#Christian:(1234)<batch=2000>[20103]{8578765}photos",
+                "192.168.1.1");
+
+        verify(log).log(Level.WARNING, "Invalid file transfer offer. " +
+                "message=10066122!SENDFILE#Christian:(1234)<batch=2000>[20103]{8578765}photos, ipAddress=192.168.1.1");
+        verifyZeroInteractions(responder);
+    }
+
     @Test
     public void messageArrivedShouldParseClientWithTcpChatPort() {
         messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\",
@@ -0,0 +1,251 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link MessageRepairer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageRepairerTest {
+
+    private MessageRepairer repairer;
+
+    private MessageSender messageSender;
+    private UDPSender udpSender;
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> future;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        final Controller controller = mock(Controller.class);
+        final Settings settings = mock(Settings.class);
+        messageSender = mock(MessageSender.class);
+        udpSender = mock(UDPSender.class);
+        scheduledExecutorService = mock(ScheduledExecutorService.class);
+        future = mock(ScheduledFuture.class);
+        random = mock(Random.class);
+
+        when(settings.getMe()).thenReturn(new User("Me", 100));
+
+        final User peer = new User("Peer", 200);
+        peer.setIpAddress("192.168.1.2");
+        peer.setPrivateChatPort(40000);
+        when(controller.getUser(200)).thenReturn(peer);
+
+        doReturn(future).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        repairer = new MessageRepairer(controller, settings, messageSender, udpSender, scheduledExecutorService, random);
+    }
+
+    @Test
+    public void isNackShouldOnlyDetectTheNackType() {
+        assertTrue(MessageRepairer.isNack("200!NACK#Peer:100:1,2"));
+        assertFalse(MessageRepairer.isNack("200!MSG#Peer:NACK#"));
+        assertFalse(MessageRepairer.isNack("NACK#Peer"));
+    }
+
+    @Test
+    public void nackShouldResendBufferedMessagesToTheNacker() {
+        repairer.messageSent(1, "100!MSG#Me:one");
+        repairer.messageSent(2, "100!MSG#Me:two");
+        repairer.messageSent(3, "100!MSG#Me:three");
+
+        repairer.nackArrived("200!NACK#Peer:100:1,3");
+
+        verify(udpSender).send("100!MSG#Me:one", "192.168.1.2", 40000);
+        verify(udpSender).send("100!MSG#Me:three", "192.168.1.2", 40000);
+        verifyNoMoreInteractions(udpSender);
+    }
+
+    @Test
+    public void nackShouldSkipMessagesNoLongerInTheBuffer() {
+        repairer.messageSent(1, "100!MSG#Me:one");
+        repairer.messageSent(1 + MessageRepairer.BUFFER_SIZE, "100!MSG#Me:newer");
+
+        repairer.nackArrived("200!NACK#Peer:100:1");
+
+        verifyZeroInteractions(udpSender);
+    }
+
+    @Test
+    public void nackForAnotherSenderShouldNotResend() {
+        repairer.messageSent(1, "100!MSG#Me:one");
+
+        repairer.nackArrived("200!NACK#Peer:300:1");
+
+        verifyZeroInteractions(udpSender);
+    }
+
+    @Test
+    public void gapShouldSendNackAfterRandomDelay() {
+        when(random.nextInt(anyInt())).thenReturn(10);
+        final SequenceWindow window = new SequenceWindow();
+        window.register(1);
+        window.register(4);
+
+        repairer.gapDetected(300, window, 2, 3);
+
+        final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(task.capture(), eq(60L), eq(TimeUnit.MILLISECONDS));
+        verifyZeroInteractions(messageSender);
+
+        task.getValue().run();
+
+        verify(messageSender).send("100!NACK#Me:300:2,3");
+    }
+
+    @Test
+    public void gapShouldOnlyAskForMessagesStillMissing() {
+        final SequenceWindow window = new SequenceWindow();
+        window.register(1);
+        window.register(4);
+
+        repairer.gapDetected(300, window, 2, 3);
+        window.register(2);
+
+        final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+        task.getValue().run();
+
+        verify(messageSender).send("100!NACK#Me:300:3");
+    }
+
+    @Test
+    public void gapShouldNotSendNackWhenAllMessagesArrived() {
+        final SequenceWindow window = new SequenceWindow();
+        window.register(1);
+        window.register(3);
+
+        repairer.gapDetected(300, window, 2, 2);
+        window.register(2);
+
+        final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+        task.getValue().run();
+
+        verifyZeroInteractions(messageSender);
+    }
+
+    @Test
+    public void gapShouldGiveUpAfterMaxAttempts() {
+        final SequenceWindow window = new SequenceWindow();
+        window.register(1);
+        window.register(3);
+
+        repairer.gapDetected(300, window, 2, 2);
+
+        final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+
+        for (int i = 0; i <= MessageRepairer.MAX_ATTEMPTS; i++) {
+            verify(scheduledExecutorService, times(i + 1)).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+            task.getValue().run();
+        }
+
+        verify(messageSender, times(MessageRepairer.MAX_ATTEMPTS)).send("100!NACK#Me:300:2");
+    }
+
+    @Test
+    public void nackFromAnotherReceiverShouldPostponeOwnNack() {
+        final SequenceWindow window = new SequenceWindow();
+        window.register(1);
+        window.register(3);
+
+        repairer.gapDetected(300, window, 2, 2);
+        repairer.nackArrived("200!NACK#Peer:300:2");
+
+        verify(future).cancel(false);
+        verify(scheduledExecutorService, times(2)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void nackFromAnotherReceiverForOtherMessagesShouldNotPostpone() {
+        final SequenceWindow window = new SequenceWindow();
+        window.register(1);
+        window.register(3);
+
+        repairer.gapDetected(300, window, 2, 2);
+        repairer.nackArrived("200!NACK#Peer:300:5");
+
+        verifyZeroInteractions(future);
+    }
+
+    @Test
+    public void gapShouldSendNackWhenPrivateChatIsDisabled() {
+        repairer = new MessageRepairer(mock(Controller.class), mock(Settings.class), messageSender, null,
+                                       scheduledExecutorService, random);
+
+        repairer.gapDetected(300, new SequenceWindow(), 2, 2);
+
+        verify(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void nackShouldResendWithMulticastWhenPrivateChatIsDisabled() {
+        final Controller controller = mock(Controller.class);
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("Me", 100));
+        when(controller.getUser(200)).thenReturn(new User("Peer", 200));
+
+        repairer = new MessageRepairer(controller, settings, messageSender, null, scheduledExecutorService, random);
+
+        repairer.messageSent(1, "100!MSG#Me:one");
+        repairer.nackArrived("200!NACK#Peer:100:1");
+
+        verify(messageSender).send("100!MSG#Me:one");
+    }
+
+    @Test
+    public void nackShouldResendWithMulticastWhenTheNackerHasPrivateChatDisabled() {
+        final Controller controller = mock(Controller.class);
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("Me", 100));
+        when(controller.getUser(200)).thenReturn(new User("Peer", 200));
+
+        repairer = new MessageRepairer(controller, settings, messageSender, udpSender, scheduledExecutorService, random);
+
+        repairer.messageSent(1, "100!MSG#Me:one");
+        repairer.nackArrived("200!NACK#Peer:100:1");
+
+        verify(messageSender).send("100!MSG#Me:one");
+        verifyZeroInteractions(udpSender);
+    }
+}
@@ -0,0 +1,114 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageSequence}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageSequenceTest {
+
+    @Test
+    public void addSequenceNumberShouldOnlyUseCharactersRemovedByTrim() {
+        final String message = MessageSequence.addSequenceNumber("100!MSG#Christian:hello", 0xFFFFFFFFL);
+
+        assertEquals("100!MSG#Christian:hello".length() + 9, message.length());
+        assertEquals("100!MSG#Christian:hello", message.trim());
+    }
+
+    @Test
+    public void getSequenceNumberShouldReturnTheAddedNumber() {
+        for (final long sequenceNumber : new long[] {0, 1, 15, 16, 255, 123456789, 0xFFFFFFFFL}) {
+            final String message = MessageSequence.addSequenceNumber("100!IDLE#Christian:", sequenceNumber);
+
+            assertEquals(sequenceNumber, MessageSequence.getSequenceNumber(message));
+        }
+    }
+
+    @Test
+    public void getSequenceNumberShouldOnlyUseTheLowest32Bits() {
+        final String message = MessageSequence.addSequenceNumber("100!IDLE#Christian:", 0x100000005L);
+
+        assertEquals(5, MessageSequence.getSequenceNumber(message));
+    }
+
+    @Test
+    public void getSequenceNumberShouldReturnNoSequenceNumberForOrdinaryMessages() {
+        assertEquals(MessageSequence.NO_SEQUENCE_NUMBER, MessageSequence.getSequenceNumber("100!MSG#Christian:hello"));
+        assertEquals(MessageSequence.NO_SEQUENCE_NUMBER, MessageSequence.getSequenceNumber(""));
+        assertEquals(MessageSequence.NO_SEQUENCE_NUMBER, MessageSequence.getSequenceNumber("\u0001\u0010\u0010"));
+        assertEquals(MessageSequence.NO_SEQUENCE_NUMBER, MessageSequence.getSequenceNumber("x\u0001abcdefgh"));
+    }
+
+    @Test
+    public void isSequencedShouldBeTrueForChatMessages() {
+        assertTrue(MessageSequence.isSequenced("100!MSG#Christian:hello"));
+        assertTrue(MessageSequence.isSequenced("100!TOPIC#Christian:(Christian)[1234]topic"));
+        assertTrue(MessageSequence.isSequenced("100!AWAY#Christian:gone"));
+        assertTrue(MessageSequence.isSequenced("100!SENDFILE#Christian:(200)[1234]{5678}file.txt"));
+    }
+
+    @Test
+    public void isSequencedShouldBeFalseForPresenceMessages() {
+        assertFalse(MessageSequence.isSequenced("100!IDLE#Christian:[192.168.1.2]"));
+        assertFalse(MessageSequence.isSequenced("100!WRITING#Christian:"));
+        assertFalse(MessageSequence.isSequenced("100!EXPOSING#Christian:"));
+        assertFalse(MessageSequence.isSequenced("100!NACK#Christian:200:1"));
+    }
+
+    @Test
+    public void isSequencedShouldBeFalseForInvalidMessages() {
+        assertFalse(MessageSequence.isSequenced(""));
+        assertFalse(MessageSequence.isSequenced("MSG#Christian:hello"));
+        assertFalse(MessageSequence.isSequenced("100#Christian!MSG:hello"));
+    }
+
+    @Test
+    public void removeSequenceNumberShouldReturnTheOriginalMessage() {
+        final String message = MessageSequence.addSequenceNumber("100!MSG#Christian:hello", 42);
+
+        assertEquals("100!MSG#Christian:hello", MessageSequence.removeSequenceNumber(message));
+        assertEquals("100!MSG#Christian:hello", MessageSequence.removeSequenceNumber("100!MSG#Christian:hello"));
+    }
+
+    @Test
+    public void trimShouldKeepTheSequenceNumber() {
+        final String message = MessageSequence.addSequenceNumber(" 100!MSG#Christian:hello  ", 42);
+
+        final String trimmed = MessageSequence.trim(message);
+
+        assertEquals(42, MessageSequence.getSequenceNumber(trimmed));
+        assertEquals("100!MSG#Christian:hello", MessageSequence.removeSequenceNumber(trimmed));
+    }
+
+    @Test
+    public void trimShouldWorkLikeNormalTrimWithoutSequenceNumber() {
+        assertEquals("100!MSG#Christian:hello", MessageSequence.trim(" 100!MSG#Christian:hello\u0000\u0000"));
+    }
+}
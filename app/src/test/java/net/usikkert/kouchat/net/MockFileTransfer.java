@@ -26,6 +26,7 @@ import java.io.File;
 
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.TransferTelemetry;
 import net.usikkert.kouchat.util.Validate;
 
 /**
@@ -123,6 +124,26 @@ public class MockFileTransfer implements FileTransfer {
         return 100000;
     }
 
+    /**
+     * Returns the time left at ~100K/s.
+     *
+     * @return The seconds left.
+     */
+    @Override
+    public long getEta() {
+        return (getFileSize() - transferred) / getSpeed();
+    }
+
+    /**
+     * Returns a telemetry without any bytes.
+     *
+     * @return An empty telemetry.
+     */
+    @Override
+    public TransferTelemetry getTelemetry() {
+        return new TransferTelemetry();
+    }
+
     /**
      * Returns 1.
      *
@@ -133,6 +154,26 @@ public class MockFileTransfer implements FileTransfer {
         return 1;
     }
 
+    /**
+     * Returns 1.
+     *
+     * @return 1;
+     */
+    @Override
+    public int getWeight() {
+        return 1;
+    }
+
+    /**
+     * Does nothing.
+     *
+     * @param weight Not used.
+     */
+    @Override
+    public void setWeight(final int weight) {
+        // Nothing to do here
+    }
+
     /**
      * {@inheritDoc}
      */
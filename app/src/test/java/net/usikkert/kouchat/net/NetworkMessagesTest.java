@@ -24,6 +24,9 @@ package net.usikkert.kouchat.net;
 
 import static org.mockito.Mockito.*;
 
+import java.io.File;
+import java.util.Arrays;
+
 import net.usikkert.kouchat.misc.CommandException;
 import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
@@ -147,7 +150,7 @@ public class NetworkMessagesTest {
     /**
      * Tests sendFile().
      *
-     * Expects: 14394329!SENDFILE#Christian:(1234)[80800]{37563645}a_file.txt
+     * Expects: 14394329!SENDFILE#Christian:(1234)<resume,checksum,token,deflate>[80800]{37563645}a_file.txt
      *
      * @throws CommandException In case the message could not be sent.
      */
@@ -163,6 +166,7 @@ public class NetworkMessagesTest {
         final int fileHash = file.hashCode(); // Cannot be mocked it seems
 
         final String info = "(" + userCode + ")" +
+                "<resume,checksum,token,deflate>" +
                 "[" + fileLength + "]" +
                 "{" + fileHash + "}" +
                 fileName;
@@ -173,6 +177,33 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("SENDFILE") + info);
     }
 
+    /**
+     * Tests sendFile() with a batch of files.
+     *
+     * Expects: 14394329!SENDBATCH#Christian:(1234)<batch=2,checksum,token,deflate>[300]{37563645}photos
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileMessageWithBatch() throws CommandException {
+        final int userCode = 1234;
+        final FileBatch batch = new FileBatch("photos", Arrays.asList(
+                new FileBatch.Entry("a.jpg", 100, new File("a.jpg")),
+                new FileBatch.Entry("b.jpg", 200, new File("b.jpg"))));
+        final FileToSend file = new FileToSend(batch);
+
+        final String info = "(" + userCode + ")" +
+                "<batch=2,checksum,token,deflate>" +
+                "[300]" +
+                "{" + file.hashCode() + "}" +
+                "photos";
+
+        final User user = new User("TestUser", userCode);
+
+        messages.sendFile(user, file);
+        verify(service).sendMessageToAllUsers(createMessage("SENDBATCH") + info);
+    }
+
     /**
      * Tests sendFileAbort().
      *
@@ -219,6 +250,33 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("SENDFILEACCEPT") + info);
     }
 
+    /**
+     * Tests sendFileAccept() with file transfer options.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)<resume=1000:5678>[20103]{8578765}some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithOptions() throws CommandException {
+        final int userCode = 4321;
+        final int port = 20103;
+        final int fileHash = 8578765;
+        final String fileName = "some_file.txt";
+
+        final String info = "(" + userCode + ")" +
+                "<resume=1000:5678>" +
+                "[" + port + "]" +
+                "{" + fileHash + "}" +
+                fileName;
+
+        final User user = new User("TestUser", userCode);
+        final FileTransferOptions options = new FileTransferOptions().add(FileTransferOptions.RESUME, "1000:5678");
+
+        messages.sendFileAccept(user, port, fileHash, fileName, options);
+        verify(service).sendMessageToAllUsers(createMessage("SENDFILEACCEPT") + info);
+    }
+
     /**
      * Tests sendGetTopicMessage().
      *
@@ -30,6 +30,7 @@ import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.TestUtils;
 
@@ -150,4 +151,51 @@ public class NetworkServiceTest {
         final boolean messageSent = networkService.sendMessageToUser("Nothing", user);
         assertFalse(messageSent);
     }
+
+    @Test
+    public void sendMessageToUserShouldUseSeparateSequenceNumbersForEachUser() {
+        when(settings.isNoPrivateChat()).thenReturn(false);
+        final User amy = new User("Amy", 111);
+        amy.setIpAddress("192.168.1.111");
+        amy.setPrivateChatPort(1111);
+        final User bob = new User("Bob", 222);
+        bob.setIpAddress("192.168.1.222");
+        bob.setPrivateChatPort(2222);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToUser("111!PRIVMSG#Me:(111)one", amy);
+        networkService.sendMessageToUser("222!PRIVMSG#Me:(222)two", bob);
+        networkService.sendMessageToUser("111!PRIVMSG#Me:(111)three", amy);
+
+        verify(udpSender).send(MessageSequence.addSequenceNumber("111!PRIVMSG#Me:(111)one", 0), "192.168.1.111", 1111);
+        verify(udpSender).send(MessageSequence.addSequenceNumber("222!PRIVMSG#Me:(222)two", 0), "192.168.1.222", 2222);
+        verify(udpSender).send(MessageSequence.addSequenceNumber("111!PRIVMSG#Me:(111)three", 1), "192.168.1.111", 1111);
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldOnlyAddSequenceNumberToChatMessages() {
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender =
+                TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToAllUsers("100!IDLE#Me:[192.168.1.2]");
+        networkService.sendMessageToAllUsers("100!MSG#Me:hello");
+
+        verify(messageSender).send("100!IDLE#Me:[192.168.1.2]");
+        verify(messageSender).send(MessageSequence.addSequenceNumber("100!MSG#Me:hello", 0));
+    }
+
+    @Test
+    public void constructorShouldRegisterTheDeduplicatorForUserListChanges() {
+        final UserList userList = mock(UserList.class);
+        when(controller.getUserList()).thenReturn(userList);
+
+        new NetworkService(controller, settings, errorHandler);
+
+        verify(userList).addUserListListener(any(MessageDeduplicator.class));
+    }
 }
@@ -0,0 +1,325 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.usikkert.kouchat.util.TransferTelemetry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link ParallelFileSender} and {@link ParallelFileReceiver}.
+ *
+ * @author Christian Ihle
+ */
+public class ParallelFileSenderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private byte[] data;
+    private ServerSocketChannel serverSocketChannel;
+    private InetSocketAddress address;
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[ParallelFileSender.CHUNK_SIZE * 5 + 1234];
+        new Random(42).nextBytes(data);
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        address = (InetSocketAddress) serverSocketChannel.socket().getLocalSocketAddress();
+
+        executorService = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocketChannel.close();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void getNumberOfChunksShouldRoundUp() {
+        assertEquals(0, ParallelFileSender.getNumberOfChunks(0));
+        assertEquals(1, ParallelFileSender.getNumberOfChunks(1));
+        assertEquals(1, ParallelFileSender.getNumberOfChunks(ParallelFileSender.CHUNK_SIZE));
+        assertEquals(2, ParallelFileSender.getNumberOfChunks(ParallelFileSender.CHUNK_SIZE + 1));
+    }
+
+    @Test
+    public void shouldTransferTheWholeFileOverSeveralConnections() throws Exception {
+        transferFile(false);
+    }
+
+    @Test
+    public void shouldTransferTheWholeFileOverSeveralConnectionsWithChecksum() throws Exception {
+        transferFile(true);
+    }
+
+    @Test
+    public void sendShouldFailWhenTheReceiverIsGone() throws Exception {
+        final File source = createFile(data);
+        final FileChannel sourceChannel = new RandomAccessFile(source, "r").getChannel();
+        final SocketChannel firstChannel = SocketChannel.open(address);
+
+        serverSocketChannel.accept().close();
+        serverSocketChannel.close();
+
+        try {
+            final ParallelFileSender sender = new ParallelFileSender(address, new ChannelConnector(),
+                                                                     sourceChannel, data.length,
+                                                                     new SlowProgressListener(0),
+                                                                     new TransferTelemetry(), false, 0);
+
+            assertFalse(sender.send(firstChannel));
+        }
+
+        finally {
+            sourceChannel.close();
+        }
+    }
+
+    @Test
+    public void sendShouldOpenTheExtraConnectionsWithTheConnector() throws Exception {
+        final File source = createFile(data);
+        final File target = temporaryFolder.newFile();
+
+        final FileChannel sourceChannel = new RandomAccessFile(source, "r").getChannel();
+        final FileChannel targetChannel = openTarget(target);
+
+        final TransferTelemetry telemetry = mock(TransferTelemetry.class);
+        when(telemetry.getBytesPerSec()).thenReturn(1000L);
+
+        // Like a canceled connector, so the whole file is sent over the first connection
+        final ChannelConnector connector = mock(ChannelConnector.class);
+        when(connector.connect(any(InetSocketAddress.class), anyLong()))
+                .thenThrow(new InterruptedIOException("Connect canceled"));
+
+        try {
+            final Future<Boolean> received = startReceiver(targetChannel, new SlowProgressListener(0), false);
+            final ParallelFileSender sender = new ParallelFileSender(address, connector, sourceChannel, data.length,
+                                                                     new SlowProgressListener(400), telemetry,
+                                                                     false, 0);
+
+            assertTrue(sender.send(SocketChannel.open(address)));
+            assertTrue(received.get(10, TimeUnit.SECONDS));
+        }
+
+        finally {
+            sourceChannel.close();
+            targetChannel.close();
+        }
+
+        verify(connector, atLeastOnce()).connect(address, ChannelConnector.CONNECT_TIMEOUT);
+        assertTrue(Arrays.equals(data, readFile(target)));
+    }
+
+    @Test
+    public void shouldCountTheProgressOfEachChunkOnce() throws Exception {
+        final File source = createFile(data);
+        final File target = temporaryFolder.newFile();
+
+        final FileChannel sourceChannel = new RandomAccessFile(source, "r").getChannel();
+        final FileChannel targetChannel = openTarget(target);
+
+        final SlowProgressListener senderListener = new SlowProgressListener(0);
+        final SlowProgressListener receiverListener = new SlowProgressListener(0);
+
+        try {
+            final Future<Boolean> received = startReceiver(targetChannel, receiverListener, true);
+            final ParallelFileSender sender = new ParallelFileSender(address, new ChannelConnector(),
+                                                                     sourceChannel, data.length, senderListener,
+                                                                     new TransferTelemetry(), true, 0);
+
+            assertTrue(sender.send(SocketChannel.open(address)));
+            assertTrue(received.get(10, TimeUnit.SECONDS));
+        }
+
+        finally {
+            sourceChannel.close();
+            targetChannel.close();
+        }
+
+        assertEquals(data.length, senderListener.getTransferred());
+        assertEquals(ParallelFileSender.getNumberOfChunks(data.length), senderListener.getUpdates());
+        assertEquals(data.length, receiverListener.getTransferred());
+        assertEquals(ParallelFileSender.getNumberOfChunks(data.length), receiverListener.getUpdates());
+    }
+
+    private void transferFile(final boolean checksum) throws Exception {
+        final File source = createFile(data);
+        final File target = temporaryFolder.newFile();
+
+        final FileChannel sourceChannel = new RandomAccessFile(source, "r").getChannel();
+        final FileChannel targetChannel = openTarget(target);
+
+        // Pretend the speed increases for every check, so more connections are added
+        final TransferTelemetry telemetry = mock(TransferTelemetry.class);
+        final AtomicLong speed = new AtomicLong(1000);
+        when(telemetry.getBytesPerSec()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) {
+                return speed.getAndAdd(1000);
+            }
+        });
+
+        try {
+            final Future<Boolean> received = startReceiver(targetChannel, new SlowProgressListener(0), checksum);
+            final ParallelFileSender sender = new ParallelFileSender(address, new ChannelConnector(),
+                                                                     sourceChannel, data.length,
+                                                                     new SlowProgressListener(400), telemetry,
+                                                                     checksum, 0);
+
+            assertTrue(sender.send(SocketChannel.open(address)));
+            assertTrue(received.get(10, TimeUnit.SECONDS));
+        }
+
+        finally {
+            sourceChannel.close();
+            targetChannel.close();
+        }
+
+        assertTrue(Arrays.equals(data, readFile(target)));
+    }
+
+    private Future<Boolean> startReceiver(final FileChannel targetChannel,
+                                          final ChannelTransfer.ProgressListener listener,
+                                          final boolean checksum) {
+        return executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final SocketChannel firstChannel = serverSocketChannel.accept();
+                final ParallelFileReceiver receiver = new ParallelFileReceiver(
+                        new ServerSocketConnections(serverSocketChannel.socket()), targetChannel, data.length,
+                        listener, checksum);
+
+                return receiver.receive(firstChannel);
+            }
+        });
+    }
+
+    private FileChannel openTarget(final File target) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(target, "rw");
+        randomAccessFile.setLength(data.length);
+
+        return randomAccessFile.getChannel();
+    }
+
+    private File createFile(final byte[] content) throws IOException {
+        final File file = temporaryFolder.newFile();
+        final FileOutputStream outputStream = new FileOutputStream(file);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        return file;
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            final byte[] content = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(content);
+
+            return content;
+        }
+
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static class SlowProgressListener implements ChannelTransfer.ProgressListener {
+
+        private final long delay;
+        private final AtomicLong transferred = new AtomicLong();
+        private final AtomicInteger updates = new AtomicInteger();
+
+        SlowProgressListener(final long delay) {
+            this.delay = delay;
+        }
+
+        long getTransferred() {
+            return transferred.get();
+        }
+
+        int getUpdates() {
+            return updates.get();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void bytesTransferred(final long bytes) {
+            transferred.addAndGet(bytes);
+            updates.incrementAndGet();
+
+            try {
+                Thread.sleep(delay);
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
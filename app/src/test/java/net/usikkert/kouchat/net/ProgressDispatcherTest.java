@@ -0,0 +1,250 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link ProgressDispatcher}.
+ *
+ * @author Christian Ihle
+ */
+public class ProgressDispatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ProgressDispatcher dispatcher;
+    private RecordingListener recordingListener;
+    private FileTransferListener listener;
+
+    @Before
+    public void setUp() {
+        dispatcher = new ProgressDispatcher(10000);
+        recordingListener = new RecordingListener();
+        listener = dispatcher.wrap(recordingListener);
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfIntervalIsNegative() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Interval can not be negative");
+
+        new ProgressDispatcher(-1);
+    }
+
+    @Test
+    public void wrapShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        dispatcher.wrap(null);
+    }
+
+    @Test
+    public void firstUpdateShouldBeDeliveredRightAwayOnTheDispatcherThread() throws InterruptedException {
+        listener.transferUpdate();
+
+        recordingListener.waitForEvents(1);
+
+        assertEquals(Arrays.asList("transferUpdate"), recordingListener.getEvents());
+        assertEquals("ProgressDispatcher", recordingListener.getThreads().get(0));
+    }
+
+    @Test
+    public void updatesDuringTheIntervalShouldBeCoalesced() throws InterruptedException {
+        listener.transferUpdate();
+        recordingListener.waitForEvents(1);
+
+        for (int i = 0; i < 1000; i++) {
+            listener.transferUpdate();
+        }
+
+        Thread.sleep(100);
+
+        assertEquals(Arrays.asList("transferUpdate"), recordingListener.getEvents());
+    }
+
+    @Test
+    public void statusCompletedShouldDeliverTheUpdateWaitingFirst() throws InterruptedException {
+        listener.transferUpdate();
+        recordingListener.waitForEvents(1);
+
+        listener.transferUpdate();
+        listener.transferUpdate();
+        listener.statusCompleted();
+
+        assertEquals(Arrays.asList("transferUpdate", "transferUpdate", "statusCompleted"),
+                     recordingListener.getEvents());
+    }
+
+    @Test
+    public void statusFailedShouldDeliverTheUpdateWaitingFirst() throws InterruptedException {
+        listener.transferUpdate();
+        recordingListener.waitForEvents(1);
+
+        listener.transferUpdate();
+        listener.statusFailed();
+
+        assertEquals(Arrays.asList("transferUpdate", "transferUpdate", "statusFailed"), recordingListener.getEvents());
+    }
+
+    @Test
+    public void statusCompletedShouldNotDeliverAnUpdateIfNoneIsWaiting() throws InterruptedException {
+        listener.transferUpdate();
+        recordingListener.waitForEvents(1);
+
+        listener.statusCompleted();
+
+        assertEquals(Arrays.asList("transferUpdate", "statusCompleted"), recordingListener.getEvents());
+    }
+
+    @Test
+    public void statusChangesShouldBeDeliveredRightAwayOnTheCallingThread() {
+        listener.statusWaiting();
+        listener.statusConnecting();
+        listener.statusTransferring();
+        listener.fileCompleted(new File("file.txt"));
+
+        assertEquals(Arrays.asList("statusWaiting", "statusConnecting", "statusTransferring", "fileCompleted"),
+                     recordingListener.getEvents());
+
+        for (final String thread : recordingListener.getThreads()) {
+            assertEquals(Thread.currentThread().getName(), thread);
+        }
+    }
+
+    @Test
+    public void updatesShouldBeDeliveredAgainAfterTheInterval() throws InterruptedException {
+        final ProgressDispatcher fastDispatcher = new ProgressDispatcher(50);
+        final FileTransferListener fastListener = fastDispatcher.wrap(recordingListener);
+
+        try {
+            fastListener.transferUpdate();
+            recordingListener.waitForEvents(1);
+
+            fastListener.transferUpdate();
+            recordingListener.waitForEvents(2);
+
+            assertEquals(Arrays.asList("transferUpdate", "transferUpdate"), recordingListener.getEvents());
+        }
+
+        finally {
+            fastDispatcher.stop();
+        }
+    }
+
+    @Test
+    public void updatesAfterStopShouldBeDropped() throws InterruptedException {
+        dispatcher.stop();
+
+        listener.transferUpdate();
+        Thread.sleep(50);
+
+        assertTrue(recordingListener.getEvents().isEmpty());
+    }
+
+    private static class RecordingListener implements FileTransferListener {
+
+        private final List<String> events = new ArrayList<>();
+        private final List<String> threads = new ArrayList<>();
+
+        @Override
+        public void statusWaiting() {
+            record("statusWaiting");
+        }
+
+        @Override
+        public void statusConnecting() {
+            record("statusConnecting");
+        }
+
+        @Override
+        public void statusTransferring() {
+            record("statusTransferring");
+        }
+
+        @Override
+        public void statusCompleted() {
+            record("statusCompleted");
+        }
+
+        @Override
+        public void statusFailed() {
+            record("statusFailed");
+        }
+
+        @Override
+        public void transferUpdate() {
+            record("transferUpdate");
+        }
+
+        @Override
+        public void fileCompleted(final File file) {
+            record("fileCompleted");
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<>(events);
+        }
+
+        synchronized List<String> getThreads() {
+            return new ArrayList<>(threads);
+        }
+
+        synchronized void waitForEvents(final int count) throws InterruptedException {
+            final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+            while (events.size() < count && System.nanoTime() < end) {
+                wait(100);
+            }
+
+            assertEquals(count, events.size());
+        }
+
+        private synchronized void record(final String event) {
+            events.add(event);
+            threads.add(Thread.currentThread().getName());
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link SequenceWindow}.
+ *
+ * @author Christian Ihle
+ */
+public class SequenceWindowTest {
+
+    private SequenceWindow window;
+
+    @Before
+    public void setUp() {
+        window = new SequenceWindow();
+    }
+
+    @Test
+    public void registerShouldAcceptFirstCopyAndRejectDuplicates() {
+        assertTrue(window.register(10));
+        assertFalse(window.register(10));
+
+        assertTrue(window.register(11));
+        assertFalse(window.register(11));
+        assertFalse(window.register(10));
+    }
+
+    @Test
+    public void registerShouldAcceptMessagesArrivingOutOfOrder() {
+        assertTrue(window.register(5));
+        assertTrue(window.register(8));
+        assertTrue(window.register(6));
+        assertTrue(window.register(7));
+
+        assertFalse(window.register(6));
+        assertFalse(window.register(7));
+        assertEquals(8, window.getHighest());
+    }
+
+    @Test
+    public void registerShouldRejectMessagesOlderThanTheWindow() {
+        assertTrue(window.register(1000));
+
+        assertTrue(window.register(1000 - SequenceWindow.WINDOW_SIZE + 1));
+        assertFalse(window.register(1000 - SequenceWindow.WINDOW_SIZE));
+    }
+
+    @Test
+    public void registerShouldRememberAcrossWordBoundaries() {
+        assertTrue(window.register(0));
+        assertTrue(window.register(63));
+        assertTrue(window.register(64));
+        assertTrue(window.register(200));
+
+        assertFalse(window.register(0));
+        assertFalse(window.register(63));
+        assertFalse(window.register(64));
+        assertTrue(window.register(65));
+        assertTrue(window.register(1));
+    }
+
+    @Test
+    public void registerShouldForgetEverythingAfterLargeJump() {
+        assertTrue(window.register(1));
+        assertTrue(window.register(10_000));
+
+        assertFalse(window.isRegistered(10_001));
+        assertTrue(window.isRegistered(10_000));
+        assertFalse(window.isRegistered(9999));
+    }
+
+    @Test
+    public void isRegisteredShouldNotRegister() {
+        assertFalse(window.isRegistered(5));
+        window.register(5);
+
+        assertFalse(window.isRegistered(4));
+        assertTrue(window.register(4));
+        assertTrue(window.isRegistered(4));
+    }
+
+    @Test
+    public void getHighestShouldReturnNoSequenceNumberWhenEmpty() {
+        assertEquals(MessageSequence.NO_SEQUENCE_NUMBER, window.getHighest());
+    }
+}
@@ -0,0 +1,235 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferList}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TransferListTest {
+
+    private TransferList transferList;
+
+    private User user1;
+    private User user2;
+
+    @Before
+    public void setUp() {
+        transferList = new TransferList(mock(BandwidthGovernor.class), mock(FileTransferAcceptor.class),
+                                        new ProgressDispatcher(ProgressDispatcher.DEFAULT_INTERVAL));
+
+        user1 = new User("User1", 1001);
+        user2 = new User("User2", 1002);
+    }
+
+    @Test
+    public void getFileSenderShouldFindTheFileSenderByFileAndHash() {
+        final FileToSend file = new FileToSend(new File("file.txt"));
+        final FileSender fileSender = transferList.addFileSender(user1, file);
+
+        assertSame(fileSender, transferList.getFileSender(user1, "file.txt", file.hashCode()));
+        assertSame(fileSender, transferList.getFileSender(user1, "file.txt"));
+        assertSame(fileSender, transferList.getFileSender(user1, fileSender.getId()));
+
+        assertNull(transferList.getFileSender(user1, "file.txt", file.hashCode() + 1));
+        assertNull(transferList.getFileSender(user2, "file.txt", file.hashCode()));
+        assertNull(transferList.getFileSender(user1, "other.txt"));
+        assertNull(transferList.getFileSender(user2, fileSender.getId()));
+    }
+
+    @Test
+    public void getFileSenderShouldFindEachUserOfTheSameFileSentToSeveralUsers() {
+        final FileToSend file = new FileToSend(new File("file.txt"));
+
+        final FileSender fileSender1 = transferList.addFileSender(user1, file);
+        final FileSender fileSender2 = transferList.addFileSender(user2, file);
+
+        assertNotEquals(fileSender1.getId(), fileSender2.getId());
+        assertSame(fileSender1, transferList.getFileSender(user1, "file.txt", file.hashCode()));
+        assertSame(fileSender2, transferList.getFileSender(user2, "file.txt", file.hashCode()));
+    }
+
+    @Test
+    public void getFileSenderShouldReturnTheFirstFileSenderWhenTheSameFileIsSentTwice() {
+        final FileToSend file = new FileToSend(new File("file.txt"));
+        final FileSender fileSender1 = transferList.addFileSender(user1, file);
+        final FileSender fileSender2 = transferList.addFileSender(user1, file);
+
+        assertSame(fileSender1, transferList.getFileSender(user1, "file.txt", file.hashCode()));
+
+        transferList.removeFileSender(fileSender1);
+
+        assertSame(fileSender2, transferList.getFileSender(user1, "file.txt", file.hashCode()));
+    }
+
+    @Test
+    public void getFileSenderShouldNotFindFileSendersForAnotherUserObjectWithTheSameCode() {
+        final FileSender fileSender = transferList.addFileSender(user1, new FileToSend(new File("file.txt")));
+
+        assertNull(transferList.getFileSender(new User("User1", 1001), fileSender.getId()));
+    }
+
+    @Test
+    public void getFileReceiverShouldUseTheOriginalFileName() {
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user1, new File("file.txt"), 100);
+        fileReceiver.setFile(new File("file_1.txt"));
+
+        assertSame(fileReceiver, transferList.getFileReceiver(user1, "file.txt"));
+        assertSame(fileReceiver, transferList.getFileReceiver(user1, fileReceiver.getId()));
+        assertSame(fileReceiver, transferList.getFileTransfer(user1, "file.txt"));
+        assertSame(fileReceiver, transferList.getFileTransfer(user1, fileReceiver.getId()));
+        assertNull(transferList.getFileReceiver(user1, "file_1.txt"));
+    }
+
+    @Test
+    public void idsShouldBeUniqueAcrossSendersAndReceivers() {
+        final FileSender fileSender = transferList.addFileSender(user1, new FileToSend(new File("file.txt")));
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user1, new File("file.txt"), 100);
+
+        assertEquals(1, fileSender.getId());
+        assertEquals(2, fileReceiver.getId());
+        assertSame(fileSender, transferList.getFileTransfer(user1, 1));
+        assertSame(fileReceiver, transferList.getFileTransfer(user1, 2));
+    }
+
+    @Test
+    public void getFileSendersShouldReturnTheFileSendersInTheOrderTheyWereAdded() {
+        final FileSender fileSender1 = transferList.addFileSender(user1, new FileToSend(new File("file1.txt")));
+        final FileSender fileSender2 = transferList.addFileSender(user2, new FileToSend(new File("file2.txt")));
+        final FileSender fileSender3 = transferList.addFileSender(user1, new FileToSend(new File("file3.txt")));
+
+        final List<FileSender> all = transferList.getFileSenders();
+        assertEquals(3, all.size());
+        assertSame(fileSender1, all.get(0));
+        assertSame(fileSender2, all.get(1));
+        assertSame(fileSender3, all.get(2));
+
+        final List<FileSender> forUser1 = transferList.getFileSenders(user1);
+        assertEquals(2, forUser1.size());
+        assertSame(fileSender1, forUser1.get(0));
+        assertSame(fileSender3, forUser1.get(1));
+    }
+
+    @Test
+    public void removeShouldRemoveFromAllTheIndexes() {
+        final FileSender fileSender = transferList.addFileSender(user1, new FileToSend(new File("file.txt")));
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user1, new File("file.txt"), 100);
+
+        transferList.removeFileSender(fileSender);
+        transferList.removeFileReceiver(fileReceiver);
+
+        assertNull(transferList.getFileSender(user1, "file.txt"));
+        assertNull(transferList.getFileSender(user1, fileSender.getId()));
+        assertTrue(transferList.getFileSenders(user1).isEmpty());
+        assertTrue(transferList.getFileSenders().isEmpty());
+        assertNull(transferList.getFileReceiver(user1, "file.txt"));
+        assertNull(transferList.getFileReceiver(user1, fileReceiver.getId()));
+        assertTrue(transferList.getFileReceivers(user1).isEmpty());
+        assertTrue(transferList.getFileReceivers().isEmpty());
+    }
+
+    @Test
+    public void canceledFileTransfersShouldBeRemovedAutomatically() {
+        final FileSender fileSender = transferList.addFileSender(user1, new FileToSend(new File("file.txt")));
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user1, new File("file.txt"), 100);
+
+        fileSender.registerListener(mock(FileTransferListener.class));
+        fileSender.cancel();
+        fileReceiver.cancel();
+
+        assertNull(transferList.getFileSender(user1, fileSender.getId()));
+        assertTrue(transferList.getFileReceivers().isEmpty());
+        assertEquals(Long.valueOf(0), transferList.getBytesSent().get("User1"));
+        assertEquals(Long.valueOf(0), transferList.getBytesReceived().get("User1"));
+    }
+
+    @Test
+    public void removeShouldAddTheBytesTransferredToTheTotalForTheUserOnce() {
+        final FileReceiver fileReceiver1 = transferList.addFileReceiver(user1, new File("file1.txt"), 100);
+        final FileReceiver fileReceiver2 = transferList.addFileReceiver(user1, new File("file2.txt"), 100);
+
+        fileReceiver1.getTelemetry().addBytes(100);
+        fileReceiver2.getTelemetry().addBytes(50);
+
+        transferList.removeFileReceiver(fileReceiver1);
+        transferList.removeFileReceiver(fileReceiver1);
+        transferList.removeFileReceiver(fileReceiver2);
+
+        assertEquals(Long.valueOf(150), transferList.getBytesReceived().get("User1"));
+        assertNull(transferList.getBytesSent().get("User1"));
+    }
+
+    @Test
+    public void addShouldGiveUniqueIdsFromSeveralThreads() throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+
+            for (int i = 0; i < 100; i++) {
+                final int number = i;
+
+                futures.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return transferList.addFileReceiver(user1, new File("file" + number + ".txt"), 100).getId();
+                    }
+                }));
+            }
+
+            final Set<Integer> ids = new HashSet<>();
+
+            for (final Future<Integer> future : futures) {
+                ids.add(future.get());
+            }
+
+            assertEquals(100, ids.size());
+            assertEquals(100, transferList.getFileReceivers(user1).size());
+        }
+
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+}
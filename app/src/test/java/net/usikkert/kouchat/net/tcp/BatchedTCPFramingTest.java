@@ -0,0 +1,149 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test of {@link BatchedTCPFraming}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class BatchedTCPFramingTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private BatchedTCPFraming framing;
+
+    @Before
+    public void setUp() {
+        framing = new BatchedTCPFraming();
+    }
+
+    @Test
+    public void shouldReadAllMessagesWrittenInOneFrame() throws IOException {
+        final List<String> messages = Arrays.asList("123!MSG#Christian:[-15987646]hello", "123!IDLE#Christian:", "æøå €");
+
+        assertEquals(messages, read(write(messages)));
+    }
+
+    @Test
+    public void shouldSupportEmptyMessages() throws IOException {
+        final List<String> messages = Arrays.asList("", "a", "");
+
+        assertEquals(messages, read(write(messages)));
+    }
+
+    @Test
+    public void shouldSplitIntoSeveralFramesWhenTooLarge() throws IOException {
+        final char[] chars = new char[BatchedTCPFraming.MAX_FRAME_SIZE / 3];
+        Arrays.fill(chars, 'x');
+        final String largeMessage = new String(chars);
+        final List<String> messages = Arrays.asList(largeMessage, largeMessage, largeMessage, "last");
+
+        final DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(write(messages)));
+        final List<String> readMessages = new ArrayList<String>();
+
+        while (readMessages.size() < messages.size()) {
+            readMessages.addAll(framing.read(inputStream));
+        }
+
+        assertEquals(messages, readMessages);
+        assertEquals(-1, inputStream.read());
+    }
+
+    @Test
+    public void writeShouldDropMessagesTooLargeForAFrame() throws IOException {
+        final char[] chars = new char[BatchedTCPFraming.MAX_FRAME_SIZE];
+        Arrays.fill(chars, 'x');
+        final List<String> messages = Arrays.asList("first", new String(chars), "last");
+
+        assertEquals(Arrays.asList("first", "last"), read(write(messages)));
+    }
+
+    @Test
+    public void readShouldRejectFramesThatAreTooLarge() throws IOException {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        BatchedTCPFraming.writeVarInt(BatchedTCPFraming.MAX_FRAME_SIZE + 1, byteStream);
+
+        expectedException.expect(IOException.class);
+
+        read(byteStream.toByteArray());
+    }
+
+    @Test
+    public void readShouldThrowEOFExceptionWhenStreamEnds() throws IOException {
+        expectedException.expect(EOFException.class);
+
+        read(new byte[0]);
+    }
+
+    @Test
+    public void varIntShouldUseOneByteForSmallNumbers() throws IOException {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        BatchedTCPFraming.writeVarInt(127, byteStream);
+
+        assertArrayEquals(new byte[] {127}, byteStream.toByteArray());
+    }
+
+    @Test
+    public void varIntShouldRoundTrip() throws IOException {
+        for (final int value : new int[] {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE}) {
+            final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            BatchedTCPFraming.writeVarInt(value, byteStream);
+
+            assertEquals(value, BatchedTCPFraming.readVarInt(new ByteArrayInputStream(byteStream.toByteArray())));
+        }
+    }
+
+    private byte[] write(final List<String> messages) throws IOException {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        final DataOutputStream outputStream = new DataOutputStream(byteStream);
+
+        framing.write(messages, outputStream);
+        outputStream.flush();
+
+        return byteStream.toByteArray();
+    }
+
+    private List<String> read(final byte[] bytes) throws IOException {
+        return framing.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -0,0 +1,127 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.usikkert.kouchat.util.Tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPClient}, with two clients connected to each other.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPClientTest {
+
+    private TCPClient connectingClient;
+    private TCPClient acceptingClient;
+
+    @Before
+    public void setUp() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+        try {
+            final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            connectingClient = new TCPClient(socket);
+            acceptingClient = new TCPClient(serverSocket.accept());
+        }
+
+        finally {
+            serverSocket.close();
+        }
+
+        assertTrue(connectingClient.connect());
+        assertTrue(acceptingClient.connect());
+
+        connectingClient.offerBatchedFraming();
+
+        waitFor(connectingClient, false);
+        waitFor(acceptingClient, false);
+    }
+
+    @After
+    public void tearDown() {
+        connectingClient.disconnect();
+        acceptingClient.disconnect();
+    }
+
+    @Test
+    public void isAliveShouldBeTrueWhenTheOtherSideHasHeartbeatsDisabled() {
+        // The accepting side has heartbeats disabled, and never sends one
+        Tools.sleep(300);
+
+        assertFalse(connectingClient.isReceivingHeartbeats());
+        assertTrue(connectingClient.isAlive(50, 3));
+    }
+
+    @Test
+    public void isAliveShouldBeFalseWhenTheOtherSideStopsSendingHeartbeats() {
+        acceptingClient.sendHeartbeat(50);
+        waitFor(connectingClient, true);
+
+        assertTrue(connectingClient.isAlive(50, 3));
+
+        Tools.sleep(300);
+
+        assertFalse(connectingClient.isAlive(50, 3));
+    }
+
+    @Test
+    public void disconnectedShouldOnlyBeNotifiedOnceWhenTheConnectionFails() {
+        final TCPClientListener listener = mock(TCPClientListener.class);
+        connectingClient.registerClientListener(listener);
+
+        // The reader fails when the other side closes, and the writer fails on the next message
+        acceptingClient.disconnect();
+        verify(listener, timeout(2000)).disconnected(connectingClient);
+
+        connectingClient.send("100!MSG#Christian:hello");
+        Tools.sleep(100);
+        connectingClient.disconnect();
+
+        verify(listener).disconnected(connectingClient);
+    }
+
+    private void waitFor(final TCPClient client, final boolean heartbeats) {
+        for (int i = 0; i < 200; i++) {
+            if (client.isBatchedFraming() && (!heartbeats || client.isReceivingHeartbeats())) {
+                return;
+            }
+
+            Tools.sleep(10);
+        }
+
+        fail("Timed out waiting for the client");
+    }
+}
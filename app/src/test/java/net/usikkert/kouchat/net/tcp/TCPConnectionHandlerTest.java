@@ -0,0 +1,134 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPConnectionHandler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPConnectionHandlerTest {
+
+    private TCPConnectionHandler handler;
+
+    private TCPReceiverListener listener;
+    private User amy;
+    private User peer;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        final Controller controller = mock(Controller.class);
+        final Settings settings = new Settings();
+
+        amy = new User("Amy", 201);
+        amy.setIpAddress("192.168.1.201");
+        peer = new User("Peer", 202);
+
+        when(controller.getUser(201)).thenReturn(amy);
+        when(controller.getUser(202)).thenReturn(peer);
+
+        handler = new TCPConnectionHandler(controller, settings);
+
+        listener = mock(TCPReceiverListener.class);
+        handler.registerReceiverListener(listener);
+
+        final TCPUserClient peerClient = mock(TCPUserClient.class);
+        when(peerClient.isBatchedFraming()).thenReturn(true);
+
+        final Map<User, TCPUserClient> userClients = TestUtils.getFieldValue(handler, Map.class, "userClients");
+        userClients.put(peer, peerClient);
+    }
+
+    @After
+    public void tearDown() {
+        handler.disconnect();
+    }
+
+    @Test
+    public void gossipArrivedShouldDeliverMessageForwardedByGossipPeerWithIpAddressOfSender() {
+        handler.gossipArrived("201!MSG#Amy:hello", 201, peer);
+
+        verify(listener).messageArrived("201!MSG#Amy:hello", "192.168.1.201", amy);
+    }
+
+    @Test
+    public void gossipArrivedShouldDropMessageFromUnknownPeer() {
+        handler.gossipArrived("201!MSG#Amy:hello", 201, new User("Stranger", 203));
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void gossipArrivedShouldDropMessageWhenTheSenderDoesNotMatchTheId() {
+        handler.gossipArrived("201!MSG#Amy:hello", 202, peer);
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void gossipArrivedShouldDropMessageFromUnknownSender() {
+        handler.gossipArrived("205!MSG#Nobody:hello", 205, peer);
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void disconnectShouldShutDownTheScheduledExecutor() {
+        handler.connect();
+        final ScheduledExecutorService executor =
+                TestUtils.getFieldValue(handler, ScheduledExecutorService.class, "scheduledExecutorService");
+
+        handler.disconnect();
+
+        assertTrue(executor.isShutdown());
+    }
+
+    @Test
+    public void connectAfterDisconnectShouldStartANewScheduledExecutor() {
+        handler.connect();
+        handler.disconnect();
+        handler.connect();
+
+        final ScheduledExecutorService executor =
+                TestUtils.getFieldValue(handler, ScheduledExecutorService.class, "scheduledExecutorService");
+
+        assertFalse(executor.isShutdown());
+    }
+}
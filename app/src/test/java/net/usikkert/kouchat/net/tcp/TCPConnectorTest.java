@@ -0,0 +1,155 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link TCPConnector}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPConnectorTest {
+
+    private TCPConnector connector;
+
+    private User user;
+    private ExecutorService executorService;
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> portTimeout;
+    private TCPConnectorListener listener;
+
+    @Before
+    public void setUp() {
+        user = new User("Other", 200);
+        user.setIpAddress("127.0.0.1");
+
+        executorService = mock(ExecutorService.class);
+        scheduledExecutorService = mock(ScheduledExecutorService.class);
+        portTimeout = mock(ScheduledFuture.class);
+        listener = mock(TCPConnectorListener.class);
+
+        doReturn(portTimeout).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        connector = new TCPConnector(user, executorService, scheduledExecutorService, listener);
+    }
+
+    @Test
+    public void startShouldConnectRightAwayWhenPortIsKnown() {
+        user.setTcpChatPort(5000);
+
+        connector.start();
+
+        verify(executorService).submit(any(Runnable.class));
+        verifyZeroInteractions(scheduledExecutorService);
+    }
+
+    @Test
+    public void startShouldWaitForPortWhenPortIsUnknown() {
+        connector.start();
+
+        verify(scheduledExecutorService).schedule(any(Runnable.class), eq(5000L), eq(TimeUnit.MILLISECONDS));
+        verifyZeroInteractions(executorService);
+    }
+
+    @Test
+    public void portChangedShouldConnectWhenWaitingForPort() {
+        connector.start();
+        user.setTcpChatPort(5000);
+
+        connector.portChanged();
+
+        verify(portTimeout).cancel(false);
+        verify(executorService).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void portChangedShouldDoNothingWhenPortIsStillUnknown() {
+        connector.start();
+
+        connector.portChanged();
+
+        verifyZeroInteractions(executorService, portTimeout);
+    }
+
+    @Test
+    public void portChangedShouldOnlyConnectOnce() {
+        connector.start();
+        user.setTcpChatPort(5000);
+
+        connector.portChanged();
+        connector.portChanged();
+
+        verify(executorService, times(1)).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void portTimeoutShouldNotifyListener() {
+        connector.start();
+
+        final ArgumentCaptor<Runnable> timeoutCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(timeoutCaptor.capture(), anyLong(), any(TimeUnit.class));
+        timeoutCaptor.getValue().run();
+
+        verify(listener).connectionFailed(user);
+        verifyZeroInteractions(executorService);
+    }
+
+    @Test
+    public void portTimeoutAfterCancelShouldDoNothing() {
+        connector.start();
+        connector.cancel();
+
+        final ArgumentCaptor<Runnable> timeoutCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(timeoutCaptor.capture(), anyLong(), any(TimeUnit.class));
+        timeoutCaptor.getValue().run();
+
+        verify(portTimeout).cancel(false);
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void connectShouldNotifyListenerOfFailure() {
+        user.setTcpChatPort(1); // Nothing should be listening here
+
+        connector.start();
+
+        final ArgumentCaptor<Runnable> connectCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executorService).submit(connectCaptor.capture());
+        connectCaptor.getValue().run();
+
+        verify(listener).connectionFailed(user);
+    }
+}
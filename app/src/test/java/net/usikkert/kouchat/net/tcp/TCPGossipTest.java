@@ -0,0 +1,250 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link TCPGossip}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPGossipTest {
+
+    private TCPGossip gossip;
+
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> future;
+    private TCPGossipListener listener;
+
+    private User peer1;
+    private User peer2;
+    private User peer3;
+    private User peer4;
+    private List<User> peers;
+
+    @Before
+    public void setUp() {
+        scheduledExecutorService = mock(ScheduledExecutorService.class);
+        future = mock(ScheduledFuture.class);
+        listener = mock(TCPGossipListener.class);
+
+        doReturn(future).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        peer1 = new User("Peer1", 201);
+        peer2 = new User("Peer2", 202);
+        peer3 = new User("Peer3", 203);
+        peer4 = new User("Peer4", 204);
+        peers = Arrays.asList(peer1, peer2, peer3, peer4);
+
+        gossip = new TCPGossip(100, scheduledExecutorService, listener);
+    }
+
+    @Test
+    public void isGossipMessageShouldDetectControlMessages() {
+        assertTrue(TCPGossip.isGossipMessage("SYS-GOSSIP:100.1:100!MSG#Me:hello"));
+        assertTrue(TCPGossip.isGossipMessage("SYS-IHAVE:100.1"));
+        assertTrue(TCPGossip.isGossipMessage("SYS-GRAFT:100.1"));
+        assertTrue(TCPGossip.isGossipMessage("SYS-PRUNE"));
+
+        assertFalse(TCPGossip.isGossipMessage("SYS-HEARTBEAT:5000"));
+        assertFalse(TCPGossip.isGossipMessage("100!MSG#Me:SYS-PRUNE"));
+    }
+
+    @Test
+    public void getEagerTargetShouldBeAboutLog2OfPeers() {
+        assertEquals(0, TCPGossip.getEagerTarget(0));
+        assertEquals(1, TCPGossip.getEagerTarget(1));
+        assertEquals(3, TCPGossip.getEagerTarget(3));
+        assertEquals(4, TCPGossip.getEagerTarget(7));
+        assertEquals(5, TCPGossip.getEagerTarget(8));
+        assertEquals(8, TCPGossip.getEagerTarget(100));
+    }
+
+    @Test
+    public void broadcastShouldPushToEagerPeersAndAnnounceToLazyPeers() {
+        final List<User> manyPeers = Arrays.asList(peer1, peer2, peer3, peer4, new User("Peer5", 205),
+                                                   new User("Peer6", 206), new User("Peer7", 207), new User("Peer8", 208));
+
+        gossip.broadcast("100!MSG#Me:hello", manyPeers);
+
+        verify(listener, times(5)).sendGossip(eq("SYS-GOSSIP:100.0:100!MSG#Me:hello"), any(User.class));
+        verify(listener, times(3)).sendGossip(eq("SYS-IHAVE:100.0"), any(User.class));
+    }
+
+    @Test
+    public void broadcastShouldOnlyAnnounceToSomeOfTheLazyPeers() {
+        final List<User> manyPeers = new ArrayList<>();
+
+        for (int i = 1; i <= 20; i++) {
+            manyPeers.add(new User("Peer" + i, 200 + i));
+        }
+
+        gossip = new TCPGossip(100, scheduledExecutorService, listener, new Random(42));
+
+        gossip.broadcast("100!MSG#Me:hello", manyPeers);
+        gossip.broadcast("100!MSG#Me:again", manyPeers);
+
+        // 6 eager peers, and 6 of the 14 lazy peers
+        verify(listener, times(6)).sendGossip(eq("SYS-GOSSIP:100.0:100!MSG#Me:hello"), any(User.class));
+        verify(listener, times(6)).sendGossip(eq("SYS-IHAVE:100.0"), any(User.class));
+        verify(listener, times(6)).sendGossip(eq("SYS-IHAVE:100.1"), any(User.class));
+    }
+
+    @Test
+    public void getOriginCodeShouldParseTheUserCodeFromTheId() {
+        assertEquals(201, TCPGossip.getOriginCode("201.5"));
+        assertEquals(-1, TCPGossip.getOriginCode("201"));
+        assertEquals(-1, TCPGossip.getOriginCode(".5"));
+        assertEquals(-1, TCPGossip.getOriginCode("-201.5"));
+        assertEquals(-1, TCPGossip.getOriginCode("abc.5"));
+    }
+
+    @Test
+    public void gossipWithInvalidIdShouldBeIgnored() {
+        gossip.messageArrived("SYS-GOSSIP:hello.5:201!MSG#Peer1:hello", peer1, peers);
+
+        verify(listener, never()).gossipArrived(anyString(), anyInt(), any(User.class));
+        verify(listener, never()).sendGossip(anyString(), any(User.class));
+    }
+
+    @Test
+    public void broadcastShouldUseNewIdForEachMessage() {
+        gossip.broadcast("100!MSG#Me:one", peers);
+        gossip.broadcast("100!MSG#Me:two", peers);
+
+        verify(listener).sendGossip("SYS-GOSSIP:100.0:100!MSG#Me:one", peer1);
+        verify(listener).sendGossip("SYS-GOSSIP:100.1:100!MSG#Me:two", peer1);
+    }
+
+    @Test
+    public void firstGossipShouldBeDeliveredAndForwardedToOthers() {
+        gossip.messageArrived("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer1, peers);
+
+        verify(listener).gossipArrived("201!MSG#Peer1:hello", 201, peer1);
+        verify(listener, never()).sendGossip(anyString(), eq(peer1));
+        verify(listener).sendGossip("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer2);
+        verify(listener).sendGossip("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer3);
+        verify(listener).sendGossip("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer4);
+    }
+
+    @Test
+    public void duplicateGossipShouldPruneTheSender() {
+        gossip.messageArrived("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer1, peers);
+        gossip.messageArrived("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer2, peers);
+
+        verify(listener, times(1)).gossipArrived(anyString(), anyInt(), any(User.class));
+        verify(listener).sendGossip("SYS-PRUNE", peer2);
+        assertTrue(gossip.isLazyPeer(peer2));
+    }
+
+    @Test
+    public void ownMessageComingBackShouldPruneTheSender() {
+        gossip.broadcast("100!MSG#Me:hello", peers);
+        gossip.messageArrived("SYS-GOSSIP:100.0:100!MSG#Me:hello", peer3, peers);
+
+        verify(listener, never()).gossipArrived(anyString(), anyInt(), any(User.class));
+        verify(listener).sendGossip("SYS-PRUNE", peer3);
+    }
+
+    @Test
+    public void pruneShouldMakeThePeerLazy() {
+        gossip.broadcast("100!MSG#Me:hello", peers);
+        assertTrue(gossip.isEagerPeer(peer1));
+
+        gossip.messageArrived("SYS-PRUNE", peer1, peers);
+
+        assertTrue(gossip.isLazyPeer(peer1));
+        gossip.broadcast("100!MSG#Me:again", peers);
+        verify(listener).sendGossip("SYS-IHAVE:100.1", peer1);
+    }
+
+    @Test
+    public void graftShouldSendTheMessageAndMakeThePeerEager() {
+        gossip.broadcast("100!MSG#Me:hello", peers);
+        gossip.messageArrived("SYS-PRUNE", peer1, peers);
+
+        gossip.messageArrived("SYS-GRAFT:100.0", peer1, peers);
+
+        verify(listener, times(2)).sendGossip("SYS-GOSSIP:100.0:100!MSG#Me:hello", peer1);
+        assertTrue(gossip.isEagerPeer(peer1));
+    }
+
+    @Test
+    public void iHaveForMissingMessageShouldGraftAfterTimeout() {
+        gossip.messageArrived("SYS-IHAVE:201.5", peer1, peers);
+
+        final ArgumentCaptor<Runnable> timeoutCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(timeoutCaptor.capture(), eq(1000L), eq(TimeUnit.MILLISECONDS));
+        verify(listener, never()).sendGossip(anyString(), any(User.class));
+
+        timeoutCaptor.getValue().run();
+
+        verify(listener).sendGossip("SYS-GRAFT:201.5", peer1);
+        assertTrue(gossip.isEagerPeer(peer1));
+    }
+
+    @Test
+    public void iHaveForKnownMessageShouldBeIgnored() {
+        gossip.messageArrived("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer1, peers);
+
+        gossip.messageArrived("SYS-IHAVE:201.5", peer2, peers);
+
+        verifyZeroInteractions(scheduledExecutorService);
+    }
+
+    @Test
+    public void messageArrivingBeforeTimeoutShouldCancelTheGraft() {
+        gossip.messageArrived("SYS-IHAVE:201.5", peer2, peers);
+        gossip.messageArrived("SYS-GOSSIP:201.5:201!MSG#Peer1:hello", peer1, peers);
+
+        verify(future).cancel(false);
+        verify(listener, never()).sendGossip(startsWith("SYS-GRAFT"), any(User.class));
+    }
+
+    @Test
+    public void peersThatAreGoneShouldBeForgotten() {
+        gossip.broadcast("100!MSG#Me:hello", peers);
+
+        gossip.broadcast("100!MSG#Me:again", Arrays.asList(peer2));
+
+        assertFalse(gossip.isEagerPeer(peer1));
+        assertFalse(gossip.isLazyPeer(peer1));
+    }
+}
@@ -0,0 +1,126 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPOutboundQueue}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPOutboundQueueTest {
+
+    private TCPOutboundQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new TCPOutboundQueue(3);
+    }
+
+    @Test
+    public void offerShouldRejectMessagesWhenFull() {
+        assertTrue(queue.offer("1"));
+        assertTrue(queue.offer("2"));
+        assertTrue(queue.offer("3"));
+        assertFalse(queue.offer("4"));
+
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void offerShouldRejectMessagesWhenClosed() {
+        queue.close();
+
+        assertFalse(queue.offer("1"));
+        assertTrue(queue.isClosed());
+    }
+
+    @Test
+    public void takeBatchShouldReturnMessagesInOrderUpToMax() throws InterruptedException {
+        queue.offer("1");
+        queue.offer("2");
+        queue.offer("3");
+
+        assertEquals(Arrays.asList("1", "2"), queue.takeBatch(2));
+        assertEquals(Arrays.asList("3"), queue.takeBatch(2));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void takeBatchShouldReturnEmptyListWhenClosedWhileWaiting() throws InterruptedException {
+        final Thread closer = new Thread() {
+            @Override
+            public void run() {
+                queue.close();
+            }
+        };
+
+        closer.start();
+        final List<String> batch = queue.takeBatch(10);
+
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void takeBatchShouldWaitForMessage() throws InterruptedException {
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                queue.offer("1");
+            }
+        };
+
+        producer.start();
+
+        assertEquals(Arrays.asList("1"), queue.takeBatch(10));
+    }
+
+    @Test
+    public void dropPresenceMessagesShouldOnlyRemoveIdleAndWriting() throws InterruptedException {
+        queue.offer("123!IDLE#Tester:");
+        queue.offer("123!MSG#Tester:[-15987646]Hello");
+        queue.offer("123!WRITING#Tester:");
+
+        assertEquals(2, queue.dropPresenceMessages());
+        assertEquals(Arrays.asList("123!MSG#Tester:[-15987646]Hello"), queue.takeBatch(10));
+    }
+
+    @Test
+    public void isPresenceMessageShouldDetectPresenceTypes() {
+        assertTrue(TCPOutboundQueue.isPresenceMessage("123!IDLE#Tester:"));
+        assertTrue(TCPOutboundQueue.isPresenceMessage("123!WRITING#Tester:"));
+        assertTrue(TCPOutboundQueue.isPresenceMessage("123!STOPPEDWRITING#Tester:"));
+
+        assertFalse(TCPOutboundQueue.isPresenceMessage("123!MSG#Tester:[-15987646]IDLE"));
+        assertFalse(TCPOutboundQueue.isPresenceMessage("SYS-DISCONNECT-ADDITIONAL"));
+        assertFalse(TCPOutboundQueue.isPresenceMessage("123#IDLE!Tester:"));
+    }
+}
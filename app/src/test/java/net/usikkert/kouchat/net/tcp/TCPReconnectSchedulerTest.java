@@ -0,0 +1,233 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link TCPReconnectScheduler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPReconnectSchedulerTest {
+
+    private TCPReconnectScheduler scheduler;
+
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> future;
+    private TCPReconnectListener listener;
+    private Random random;
+    private User user;
+
+    @Before
+    public void setUp() {
+        scheduledExecutorService = mock(ScheduledExecutorService.class);
+        future = mock(ScheduledFuture.class);
+        listener = mock(TCPReconnectListener.class);
+        random = mock(Random.class);
+        user = new User("Other", 200);
+
+        doReturn(future).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        when(random.nextDouble()).thenReturn(1.0);
+
+        scheduler = new TCPReconnectScheduler(scheduledExecutorService, listener, random);
+    }
+
+    @Test
+    public void getDelayShouldDoubleForEachFailureUntilMax() {
+        assertEquals(1000, scheduler.getDelay(0));
+        assertEquals(2000, scheduler.getDelay(1));
+        assertEquals(4000, scheduler.getDelay(2));
+        assertEquals(64000, scheduler.getDelay(6));
+        assertEquals(120_000, scheduler.getDelay(7));
+    }
+
+    @Test
+    public void getDelayShouldUseJitterOfUpToHalfTheDelay() {
+        when(random.nextDouble()).thenReturn(0.0);
+        assertEquals(2000, scheduler.getDelay(2));
+
+        when(random.nextDouble()).thenReturn(0.5);
+        assertEquals(3000, scheduler.getDelay(2));
+    }
+
+    @Test
+    public void getDelayShouldUseCircuitOpenTimeAfterTooManyFailures() {
+        assertEquals(600_000, scheduler.getDelay(8));
+        assertEquals(600_000, scheduler.getDelay(100));
+    }
+
+    @Test
+    public void connectionFailedShouldScheduleWithBackoff() {
+        scheduler.connectionFailed(user);
+        verify(scheduledExecutorService).schedule(any(Runnable.class), eq(2000L), eq(TimeUnit.MILLISECONDS));
+
+        runScheduledAttempt();
+        scheduler.connectionFailed(user);
+        verify(scheduledExecutorService).schedule(any(Runnable.class), eq(4000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void scheduledAttemptShouldNotifyListener() {
+        scheduler.connectionFailed(user);
+
+        runScheduledAttempt();
+
+        verify(listener).reconnect(user);
+    }
+
+    @Test
+    public void connectionLostShouldOnlyScheduleOnce() {
+        scheduler.connectionLost(user);
+        scheduler.connectionLost(user);
+
+        verify(scheduledExecutorService, times(1)).schedule(any(Runnable.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void connectionLostShouldNotScheduleWhileAttemptIsInProgress() {
+        scheduler.connectionLost(user);
+        runScheduledAttempt();
+
+        scheduler.connectionLost(user);
+
+        verify(scheduledExecutorService, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void connectionSucceededShouldCancelAndForgetFailures() {
+        scheduler.connectionFailed(user);
+        scheduler.connectionSucceeded(user);
+
+        verify(future).cancel(false);
+        assertTrue(scheduler.getReconnectStates().isEmpty());
+
+        scheduler.connectionFailed(user);
+        verify(scheduledExecutorService, times(2)).schedule(any(Runnable.class), eq(2000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void attemptAfterUserRemovedShouldBeIgnored() {
+        scheduler.connectionFailed(user);
+        final Runnable attempt = captureLastScheduledAttempt();
+
+        scheduler.userRemoved(user);
+        attempt.run();
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void idleArrivedShouldTriggerAttemptOncePerScheduledAttempt() {
+        scheduler.connectionFailed(user);
+
+        scheduler.idleArrived(user);
+        verify(scheduledExecutorService).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+
+        runScheduledAttempt();
+        scheduler.connectionFailed(user);
+        scheduler.idleArrived(user);
+        scheduler.idleArrived(user);
+
+        verify(scheduledExecutorService, times(2)).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void idleArrivedShouldDoNothingForUnknownUser() {
+        scheduler.idleArrived(user);
+
+        verifyZeroInteractions(scheduledExecutorService);
+    }
+
+    @Test
+    public void idleArrivedShouldDoNothingWhenCircuitIsOpen() {
+        failTimes(8);
+
+        scheduler.idleArrived(user);
+
+        verify(scheduledExecutorService, never()).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void clientInfoArrivedShouldTriggerAttemptEvenWhenCircuitIsOpen() {
+        failTimes(8);
+
+        scheduler.clientInfoArrived(user);
+
+        verify(scheduledExecutorService).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void getReconnectStatesShouldDescribeEachUser() {
+        failTimes(8);
+
+        final List<String> reconnectStates = scheduler.getReconnectStates();
+
+        assertEquals(1, reconnectStates.size());
+        assertTrue(reconnectStates.get(0).startsWith("Other: failures=8, circuit=open, next attempt in "));
+    }
+
+    @Test
+    public void clearShouldCancelEverything() {
+        scheduler.connectionFailed(user);
+
+        scheduler.clear();
+
+        verify(future).cancel(false);
+        assertTrue(scheduler.getReconnectStates().isEmpty());
+    }
+
+    private void failTimes(final int times) {
+        for (int i = 1; i < times; i++) {
+            scheduler.connectionFailed(user);
+            runScheduledAttempt();
+        }
+
+        scheduler.connectionFailed(user);
+    }
+
+    private void runScheduledAttempt() {
+        captureLastScheduledAttempt().run();
+    }
+
+    private Runnable captureLastScheduledAttempt() {
+        final ArgumentCaptor<Runnable> attemptCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService, atLeastOnce()).schedule(attemptCaptor.capture(), anyLong(), any(TimeUnit.class));
+
+        return attemptCaptor.getValue();
+    }
+}
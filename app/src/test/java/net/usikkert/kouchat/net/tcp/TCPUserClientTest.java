@@ -0,0 +1,116 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPUserClient}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPUserClientTest {
+
+    private TCPUserClient userClient;
+
+    private TCPClient client;
+    private User user;
+    private TCPUserClientListener listener;
+
+    @Before
+    public void setUp() {
+        client = mock(TCPClient.class);
+        user = new User("Other", 200);
+
+        listener = mock(TCPUserClientListener.class);
+
+        userClient = new TCPUserClient(client, user, listener);
+    }
+
+    @Test
+    public void checkHeartbeatsShouldSendHeartbeatAndUpdateLastIdleWhenAlive() {
+        when(client.isAlive(5000, 3)).thenReturn(true);
+        when(client.isReceivingHeartbeats()).thenReturn(true);
+
+        userClient.checkHeartbeats(5000);
+
+        verify(client).sendHeartbeat(5000);
+        verify(client, never()).disconnect();
+        assertTrue(user.getLastIdle() > System.currentTimeMillis() - 1000);
+    }
+
+    @Test
+    public void checkHeartbeatsShouldDisconnectDeadClient() {
+        when(client.isAlive(5000, 3)).thenReturn(false);
+        when(client.isReceivingHeartbeats()).thenReturn(true);
+
+        userClient.checkHeartbeats(5000);
+
+        verify(client).disconnect();
+        verify(client, never()).sendHeartbeat(anyLong());
+        assertEquals(0, user.getLastIdle());
+    }
+
+    @Test
+    public void checkHeartbeatsShouldNotUpdateLastIdleWhenTheOtherSideIsNotSendingHeartbeats() {
+        when(client.isAlive(5000, 3)).thenReturn(true);
+        when(client.isReceivingHeartbeats()).thenReturn(false);
+
+        userClient.checkHeartbeats(5000);
+
+        verify(client).sendHeartbeat(5000);
+        verify(client, never()).disconnect();
+        assertEquals(0, user.getLastIdle());
+    }
+
+    @Test
+    public void disconnectedShouldNotifyConnectionLostWhenTheLastClientDisconnects() {
+        final TCPClient secondClient = mock(TCPClient.class);
+        userClient.add(secondClient);
+
+        userClient.disconnected(client);
+
+        verify(listener, never()).connectionLost(user);
+        assertTrue(user.isTcpEnabled());
+
+        userClient.disconnected(secondClient);
+
+        verify(listener).connectionLost(user);
+        assertFalse(user.isTcpEnabled());
+    }
+
+    @Test
+    public void disconnectShouldNotNotifyConnectionLost() {
+        userClient.disconnect();
+
+        verify(listener, never()).connectionLost(any(User.class));
+        assertFalse(user.isTcpEnabled());
+    }
+}
@@ -0,0 +1,156 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link TCPUserIdentifier}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPUserIdentifierTest {
+
+    private TCPUserIdentifier userIdentifier;
+
+    private Controller controller;
+    private TCPClient client;
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> timeout;
+    private TCPUserIdentifierListener listener;
+    private User user;
+
+    @Before
+    public void setUp() {
+        controller = mock(Controller.class);
+        client = mock(TCPClient.class);
+        scheduledExecutorService = mock(ScheduledExecutorService.class);
+        timeout = mock(ScheduledFuture.class);
+        listener = mock(TCPUserIdentifierListener.class);
+
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("Me", 100));
+
+        user = new User("Other", 200);
+        user.setIpAddress("192.168.1.2");
+        when(controller.getUser(200)).thenReturn(user);
+        when(client.getIPAddress()).thenReturn("192.168.1.2");
+
+        doReturn(timeout).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        userIdentifier = new TCPUserIdentifier(controller, settings, client, scheduledExecutorService, listener);
+        userIdentifier.start();
+    }
+
+    @Test
+    public void constructorShouldRegisterAsClientListener() {
+        verify(client).registerClientListener(userIdentifier);
+    }
+
+    @Test
+    public void messageArrivedShouldIdentifyUserAndCancelTimeout() {
+        userIdentifier.messageArrived("SYS-IDENTIFY:200:100", client);
+
+        verify(listener).userIdentified(user, client);
+        verify(client).registerClientListener(null);
+        verify(timeout).cancel(false);
+    }
+
+    @Test
+    public void messageArrivedShouldFailWithWrongRecipient() {
+        userIdentifier.messageArrived("SYS-IDENTIFY:200:101", client);
+
+        verify(listener).identificationFailed(client);
+        verify(listener, never()).userIdentified(any(User.class), any(TCPClient.class));
+    }
+
+    @Test
+    public void messageArrivedShouldFailWithUnexpectedIpAddress() {
+        when(client.getIPAddress()).thenReturn("192.168.1.3");
+
+        userIdentifier.messageArrived("SYS-IDENTIFY:200:100", client);
+
+        verify(listener).identificationFailed(client);
+    }
+
+    @Test
+    public void messageArrivedShouldFailWithUnexpectedMessage() {
+        userIdentifier.messageArrived("100!MSG#Other:(0)[1]{2}hello", client);
+
+        verify(listener).identificationFailed(client);
+    }
+
+    @Test
+    public void onlyTheFirstMessageShouldBeUsed() {
+        userIdentifier.messageArrived("SYS-IDENTIFY:200:100", client);
+        userIdentifier.messageArrived("SYS-IDENTIFY:200:100", client);
+        userIdentifier.disconnected(client);
+
+        verify(listener).userIdentified(user, client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void disconnectedShouldFail() {
+        userIdentifier.disconnected(client);
+
+        verify(listener).identificationFailed(client);
+        verify(timeout).cancel(false);
+    }
+
+    @Test
+    public void timeoutShouldFail() {
+        final ArgumentCaptor<Runnable> timeoutCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(timeoutCaptor.capture(), eq(5000L), eq(TimeUnit.MILLISECONDS));
+
+        timeoutCaptor.getValue().run();
+
+        verify(listener).identificationFailed(client);
+        verify(client).registerClientListener(null);
+    }
+
+    @Test
+    public void messageArrivedAfterTimeoutShouldBeIgnored() {
+        final ArgumentCaptor<Runnable> timeoutCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduledExecutorService).schedule(timeoutCaptor.capture(), anyLong(), any(TimeUnit.class));
+
+        timeoutCaptor.getValue().run();
+        userIdentifier.messageArrived("SYS-IDENTIFY:200:100", client);
+
+        verify(listener).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+}
@@ -0,0 +1,165 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferTelemetry}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferTelemetryTest {
+
+    private FakeTimeTelemetry telemetry;
+
+    @Before
+    public void setUp() {
+        telemetry = new FakeTimeTelemetry();
+        telemetry.prepare();
+    }
+
+    @Test
+    public void speedShouldBeZeroBeforeTheFirstSample() {
+        telemetry.addBytes(1000);
+
+        assertEquals(0, telemetry.getBytesPerSec());
+        assertEquals(0, telemetry.getWindowBytesPerSec());
+        assertEquals(1000, telemetry.getTotalBytes());
+        assertEquals(-1, telemetry.getEta(1000));
+    }
+
+    @Test
+    public void firstSampleShouldBeUsedAsTheSpeed() {
+        addBytesAfter(250, 1000);
+
+        assertEquals(4000, telemetry.getBytesPerSec());
+        assertEquals(4000, telemetry.getWindowBytesPerSec());
+        assertEquals(4000, telemetry.getAverageBytesPerSec());
+        assertEquals(4000, telemetry.getMinBytesPerSec());
+        assertEquals(4000, telemetry.getMaxBytesPerSec());
+    }
+
+    @Test
+    public void speedShouldMoveTowardsTheNewSamples() {
+        addBytesAfter(250, 1000);
+        addBytesAfter(250, 2000);
+
+        // 4000 + 0.25 * (8000 - 4000)
+        assertEquals(5000, telemetry.getBytesPerSec());
+        assertEquals(6000, telemetry.getWindowBytesPerSec());
+        assertEquals(4000, telemetry.getMinBytesPerSec());
+        assertEquals(5000, telemetry.getMaxBytesPerSec());
+    }
+
+    @Test
+    public void bytesShouldBeCollectedUntilTheNextSample() {
+        addBytesAfter(100, 500);
+        addBytesAfter(150, 500);
+
+        assertEquals(4000, telemetry.getBytesPerSec());
+    }
+
+    @Test
+    public void speedShouldFallWhenTheTransferStops() {
+        addBytesAfter(250, 1000);
+        telemetry.time += TimeUnit.MILLISECONDS.toNanos(250);
+
+        assertEquals(3000, telemetry.getBytesPerSec());
+        assertEquals(3000, telemetry.getMinBytesPerSec());
+        assertEquals(4000, telemetry.getMaxBytesPerSec());
+    }
+
+    @Test
+    public void windowShouldOnlyIncludeTheLastFiveSeconds() {
+        addBytesAfter(1000, 100000);
+
+        for (int i = 0; i < 6; i++) {
+            addBytesAfter(1000, 1000);
+        }
+
+        assertEquals(1000, telemetry.getWindowBytesPerSec());
+        assertEquals(106000 / 7, telemetry.getAverageBytesPerSec());
+    }
+
+    @Test
+    public void getEtaShouldUseTheCurrentSpeed() {
+        addBytesAfter(1000, 1000);
+
+        assertEquals(10, telemetry.getEta(10000));
+        assertEquals(11, telemetry.getEta(10001));
+        assertEquals(0, telemetry.getEta(0));
+    }
+
+    @Test
+    public void prepareShouldResetEverything() {
+        addBytesAfter(1000, 1000);
+
+        telemetry.prepare();
+
+        assertEquals(0, telemetry.getBytesPerSec());
+        assertEquals(0, telemetry.getTotalBytes());
+        assertEquals(0, telemetry.getMinBytesPerSec());
+        assertEquals(0, telemetry.getMaxBytesPerSec());
+        assertEquals(0, telemetry.getTotalWireBytes());
+    }
+
+    @Test
+    public void totalWireBytesShouldBeTheTotalBytesWhenNoWireBytesAreAdded() {
+        addBytesAfter(1000, 1000);
+
+        assertEquals(1000, telemetry.getTotalWireBytes());
+        assertEquals(1000, telemetry.getAverageWireBytesPerSec());
+    }
+
+    @Test
+    public void wireBytesShouldBeCountedSeparatelyFromTheBytesTransferred() {
+        telemetry.addWireBytes(250);
+        addBytesAfter(1000, 1000);
+
+        assertEquals(1000, telemetry.getTotalBytes());
+        assertEquals(250, telemetry.getTotalWireBytes());
+        assertEquals(1000, telemetry.getAverageBytesPerSec());
+        assertEquals(250, telemetry.getAverageWireBytesPerSec());
+    }
+
+    private void addBytesAfter(final long millis, final long bytes) {
+        telemetry.time += TimeUnit.MILLISECONDS.toNanos(millis);
+        telemetry.addBytes(bytes);
+    }
+
+    private static class FakeTimeTelemetry extends TransferTelemetry {
+
+        private long time;
+
+        @Override
+        protected long currentTime() {
+            return time;
+        }
+    }
+}